@@ -1,13 +1,26 @@
 package com.nutiteq.advancedmap.activity;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
 import android.app.Activity;
 import android.graphics.Color;
 import android.os.Bundle;
+import android.os.Environment;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
+import android.widget.Toast;
 import android.widget.ZoomControls;
 
 import com.nutiteq.MapView;
 import com.nutiteq.advancedmap.R;
+import com.nutiteq.advancedmap.geocode.GeocodeIndexBuilder;
+import com.nutiteq.advancedmap.mapquest.MapQuestSearchQuery;
+import com.nutiteq.advancedmap.mapquest.SearchSuggestionProvider;
 import com.nutiteq.components.Components;
 import com.nutiteq.components.MapPos;
 import com.nutiteq.components.Options;
@@ -31,12 +44,19 @@ import com.nutiteq.vectorlayers.MarkerLayer;
  * 
  * 2. mapquest.SearchQueryResults.java - ListView which initiates real search, and shows results as ListView
  * 
- * 3. mapquest.SearchRecentSuggestionsProvider.java - stores last search terms to memory
+ * 3. mapquest.SearchRecentSuggestionsProvider.java - stores last search terms to memory, and gives live
+ *      suggestions while typing with geocode.SuggestionEngine, ordered by distance from the map focus point
  * 
  * 4. AddressSearchActivity.java opens Android default search UI. Search result comes from resuming 
  *      from search results activity, this is shown on map, and map is re-centered to found result.
  * 
- * 5. Resources: values/strings.xml, layout/search_query_results.xml and layout/searchrow.xml define ListView.
+ * 5. geocode.OfflineGeocoder - used instead of MapQuestGeocoder if an offline index (mapxt/geocode.idx in external storage)
+ *      exists, the index is built with geocode.GeocodeIndexBuilder from OSM places and addresses.
+ *      Options menu builds the index on the device from mapxt/places.tsv in external storage: UTF-8 text with a line per place
+ *      and tab separated columns name, city, county, state, country, latitude, longitude, importance
+ *      (e.g. exported from the placex table of a Nominatim database, with importance or population as the last column)
+ * 
+ * 6. Resources: values/strings.xml, layout/search_query_results.xml and layout/searchrow.xml define ListView.
  *      xml/searchable.xml - needed for Android searchable interface
  *
  * Used layer(s):
@@ -47,6 +67,11 @@ import com.nutiteq.vectorlayers.MarkerLayer;
  */
 public class AddressSearchActivity extends Activity {
 
+    // places for the offline index, relative to external storage
+    private static final String PLACES_FILE = "mapxt/places.tsv";
+
+    private static final int MENU_BUILD_INDEX = 1;
+
     private static Marker searchResult;
     private MapView mapView;
     private MarkerLayer searchMarkerLayer;
@@ -182,6 +207,77 @@ public class AddressSearchActivity extends Activity {
         }
     }
 
+    @Override
+    public boolean onSearchRequested() {
+        // suggestions are ordered by distance from the map focus point
+        MapPos focusPoint = mapView.getLayers().getBaseLayer().getProjection().toWgs84(mapView.getFocusPoint().x, mapView.getFocusPoint().y);
+        SearchSuggestionProvider.setFocusPoint(focusPoint.y, focusPoint.x);
+        return super.onSearchRequested();
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        menu.add(Menu.NONE, MENU_BUILD_INDEX, Menu.NONE, "Build offline index");
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == MENU_BUILD_INDEX) {
+            buildOfflineIndex();
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    // builds offline geocoding index from places file in background
+    private void buildOfflineIndex() {
+        final File placesFile = new File(Environment.getExternalStorageDirectory(), PLACES_FILE);
+        final File indexFile = new File(Environment.getExternalStorageDirectory(), MapQuestSearchQuery.OFFLINE_INDEX_FILE);
+        if (!placesFile.exists()) {
+            Toast.makeText(this, "No places file " + placesFile, Toast.LENGTH_LONG).show();
+            return;
+        }
+        Toast.makeText(this, "Building offline index", Toast.LENGTH_SHORT).show();
+        Thread builder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long startTime = System.currentTimeMillis();
+                String message;
+                try {
+                    GeocodeIndexBuilder indexBuilder = new GeocodeIndexBuilder();
+                    Reader reader = new InputStreamReader(new FileInputStream(placesFile), "UTF-8");
+                    try {
+                        indexBuilder.addPlaces(reader);
+                    } finally {
+                        reader.close();
+                    }
+                    // index already opened in this process keeps the old file, so the new one is renamed in place
+                    File tmpFile = new File(indexFile.getPath() + ".tmp");
+                    indexBuilder.write(tmpFile);
+                    if (!tmpFile.renameTo(indexFile)) {
+                        throw new IOException("Could not rename " + tmpFile + " to " + indexFile);
+                    }
+                    message = "Indexed " + indexBuilder.getPlaceCount() + " places in " + (System.currentTimeMillis() - startTime) + " ms";
+                } catch (IOException e) {
+                    message = "Index building failed: " + e.getMessage();
+                } catch (RuntimeException e) {
+                    message = "Index building failed: " + e.getMessage();
+                }
+                Log.info("AddressSearchActivity: " + message);
+                final String finalMessage = message;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Toast.makeText(getApplicationContext(), finalMessage, Toast.LENGTH_LONG).show();
+                    }
+                });
+            }
+        });
+        builder.setPriority(Thread.MIN_PRIORITY);
+        builder.start();
+    }
+
     public static void setSearchResult(Marker marker) {
         Log.debug("Search result selected: " + marker.getMapPos());
         searchResult = marker;
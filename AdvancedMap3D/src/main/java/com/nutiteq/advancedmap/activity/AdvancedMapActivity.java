@@ -1,5 +1,7 @@
 package com.nutiteq.advancedmap.activity;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 
 import android.app.Activity;
@@ -18,10 +20,15 @@ import android.widget.ZoomControls;
 
 import com.nutiteq.MapView;
 import com.nutiteq.advancedmap.R;
+import com.nutiteq.advancedmap.datasources.KeepAliveHTTPRasterDataSource;
+import com.nutiteq.advancedmap.datasources.MappedTileArchiveRasterDataSource;
+import com.nutiteq.advancedmap.datasources.TileArchiveWriter;
 import com.nutiteq.advancedmap.maplisteners.MapEventListener;
 import com.nutiteq.components.Bounds;
 import com.nutiteq.components.Components;
+import com.nutiteq.components.Envelope;
 import com.nutiteq.components.MapPos;
+import com.nutiteq.components.MapTile;
 import com.nutiteq.components.Options;
 import com.nutiteq.components.Vector3D;
 import com.nutiteq.datasources.raster.StoredRasterDataSource;
@@ -57,7 +64,8 @@ import com.nutiteq.vectorlayers.Polygon3DLayer;
 /**
  * This sample has a set of different layers: 
  * a) raster online: TMS, WMS, Bing, MapBox
- * b) raster offline: StoredMap (MGM format), PackagedMap from app package (res/raw)
+ * b) raster offline: StoredMap (MGM format), PackagedMap from app package (res/raw).
+ *    StoredMap is converted once in background to a memory-mapped tile archive, which is used when it exists.
  * c) 3D layer: OSMPolygon3D with roof structures and color tags
  * d) Others: MarkerLayer
  * 
@@ -71,9 +79,13 @@ public class AdvancedMapActivity extends Activity {
 
     // Default OSM building height in meters
     private static final float DEFAULT_BUILDING_HEIGHT = 18.0f; 
+    private static final String STORED_MAP_NAME = "OpenStreetMap";
 
     private MapView mapView;
     private Projection proj;
+    // current base layer data source, if it can drop requests for invisible tiles
+    private volatile KeepAliveHTTPRasterDataSource keepAliveDataSource;
+    private volatile boolean exportingStoredMap;
 
 
     // force to load proj library (needed for spatialite)
@@ -98,6 +110,9 @@ public class AdvancedMapActivity extends Activity {
         Log.enableAll();
         Log.setTag("advancedmap");
 
+        // keep idle connections for all parallel tile requests to a host - optional, platform default is 5
+        KeepAliveHTTPRasterDataSource.setKeepAlivePoolSize(8);
+
         // 1. Get the MapView from the Layout xml - mandatory
         this.mapView = (MapView) findViewById(R.id.mapView);
         this.proj = new EPSG3857();
@@ -108,6 +123,7 @@ public class AdvancedMapActivity extends Activity {
         if (retainObject != null) {
             // just restore configuration, skip other initializations
             mapView.setComponents(retainObject);
+            updateKeepAliveDataSource(mapView.getLayers().getBaseLayer());
             // add event listener
             MapEventListener mapListener = new MapEventListener(this);
             mapView.getOptions().setMapListener(mapListener);
@@ -278,7 +294,7 @@ public class AdvancedMapActivity extends Activity {
 
 
         case R.id.menu_bing:
-            addBingBaseLayer("http://ecn.t3.tiles.virtualearth.net/tiles/r{quadkey}.png?g=1&mkt=en-US&shading=hill&n=z");
+            addBingBaseLayer("http://ecn.t{s}.tiles.virtualearth.net/tiles/r{quadkey}.png?g=1&mkt=en-US&shading=hill&n=z");
             break;
 
         case R.id.menu_bingaerial:
@@ -385,6 +401,7 @@ public class AdvancedMapActivity extends Activity {
         // Update base layer
         mapView.getLayers().setBaseLayer(baseLayer);
         proj = baseLayer.getProjection();
+        updateKeepAliveDataSource(baseLayer);
 
         // Transform corner coordinates to new base coordinate system
         Projection baseProjNew = mapView.getComponents().layers.getBaseProjection();
@@ -427,12 +444,70 @@ public class AdvancedMapActivity extends Activity {
     }
 
     private void addStoredBaseLayer(String dir) {
-        StoredRasterDataSource dataSource = new StoredRasterDataSource(new EPSG3857(), 256, 0, 17, "OpenStreetMap", dir);
+        StoredRasterDataSource storedDataSource = new StoredRasterDataSource(new EPSG3857(), 256, 0, 17, STORED_MAP_NAME, dir);
+        MapPos center = storedDataSource.getCenter();
+
+        // use memory-mapped archive of the stored map if it is already created, otherwise create it for the next time
+        long startTime = System.nanoTime();
+        RasterDataSource dataSource = null;
+        File archiveFile = new File(dir, STORED_MAP_NAME + ".ntta");
+        if (archiveFile.exists()) {
+            try {
+                dataSource = new MappedTileArchiveRasterDataSource(new EPSG3857(), 0, 17, archiveFile);
+            } catch (IOException e) {
+                Log.error("AdvancedMapActivity: could not open " + archiveFile + ": " + e.getMessage());
+            }
+        } else {
+            exportStoredMap(dir, archiveFile);
+        }
+        if (dataSource == null) {
+            startTime = System.nanoTime();
+            dataSource = new StoredRasterDataSource(new EPSG3857(), 256, 0, 17, STORED_MAP_NAME, dir);
+        }
+        long openTime = System.nanoTime() - startTime;
+
+        // cold start: time to open the data source and to read the tile at map center
+        Bounds bounds = dataSource.getProjection().getBounds();
+        int zoom = (int) center.z;
+        int tileX = (int) ((center.x - bounds.left) / bounds.getWidth() * (1 << zoom));
+        int tileY = (int) ((Math.max(bounds.top, bounds.bottom) - center.y) / Math.abs(bounds.getHeight()) * (1 << zoom));
+        startTime = System.nanoTime();
+        dataSource.loadTile(new MapTile(tileX, tileY, zoom, 0));
+        long tileTime = System.nanoTime() - startTime;
+        Log.info("AdvancedMapActivity: stored map from " + (dataSource instanceof MappedTileArchiveRasterDataSource ? "archive" : "directory")
+                + ", open " + openTime / 1000 + " us, first tile " + tileTime / 1000 + " us");
+
         RasterLayer storedMapLayer = new RasterLayer(dataSource, 135);
         updateBaseLayer(storedMapLayer);
 
-        mapView.setFocusPoint(dataSource.getCenter());
-        mapView.setZoom((float) dataSource.getCenter().z);
+        mapView.setFocusPoint(center);
+        mapView.setZoom((float) center.z);
+    }
+
+    // converts stored map directory to a single file archive in background
+    private void exportStoredMap(final String dir, final File archiveFile) {
+        if (exportingStoredMap) {
+            return;
+        }
+        exportingStoredMap = true;
+        Thread exporter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long startTime = System.currentTimeMillis();
+                try {
+                    TileArchiveWriter.exportStoredMap(new File(dir), STORED_MAP_NAME, archiveFile);
+                    Log.info("AdvancedMapActivity: stored map exported to " + archiveFile + " in " + (System.currentTimeMillis() - startTime) + " ms");
+                } catch (IOException e) {
+                    Log.error("AdvancedMapActivity: stored map export failed: " + e.getMessage());
+                } catch (RuntimeException e) {
+                    Log.error("AdvancedMapActivity: stored map export failed: " + e.getMessage());
+                } finally {
+                    exportingStoredMap = false;
+                }
+            }
+        });
+        exporter.setPriority(Thread.MIN_PRIORITY);
+        exporter.start();
     }
 
     // ** Add simple marker to map.
@@ -483,7 +558,7 @@ public class AdvancedMapActivity extends Activity {
     }
 
     private void addBingBaseLayer(String urlTemplate){
-        RasterDataSource dataSource = new HTTPRasterDataSource(new EPSG3857(), 0, 19, urlTemplate);
+        RasterDataSource dataSource = new KeepAliveHTTPRasterDataSource(new EPSG3857(), 0, 19, urlTemplate, new String[] { "0", "1", "2", "3" });
         RasterLayer bingMapLayer = new RasterLayer(dataSource, 1013);
         updateBaseLayer(bingMapLayer);
     }
@@ -499,7 +574,7 @@ public class AdvancedMapActivity extends Activity {
             cacheID = 25;
         }
 
-        RasterDataSource dataSource = new HTTPRasterDataSource(new EPSG3857(), 0, 19, "http://api.tiles.mapbox.com/v3/" + mapId + "/{zoom}/{x}/{y}.png");
+        RasterDataSource dataSource = new KeepAliveHTTPRasterDataSource(new EPSG3857(), 0, 19, "http://{s}.tiles.mapbox.com/v3/" + mapId + "/{zoom}/{x}/{y}.png", new String[] { "a", "b", "c", "d" });
         RasterLayer mapBoxLayer = new RasterLayer(dataSource, cacheID);
         updateBaseLayer(mapBoxLayer);
     }
@@ -514,33 +589,33 @@ public class AdvancedMapActivity extends Activity {
             mapId = "nutiteq.map-j6a1wkx0";
             cacheID = 23;
         }
-        RasterDataSource dataSource = new HTTPRasterDataSource(new EPSG3857(), 0, 19, "http://api.tiles.mapbox.com/v3/" + mapId + "/{zoom}/{x}/{y}.png");
+        RasterDataSource dataSource = new KeepAliveHTTPRasterDataSource(new EPSG3857(), 0, 19, "http://{s}.tiles.mapbox.com/v3/" + mapId + "/{zoom}/{x}/{y}.png", new String[] { "a", "b", "c", "d" });
         RasterLayer mapBoxLayer = new RasterLayer(dataSource, cacheID);
         updateBaseLayer(mapBoxLayer);
     }
 
 
     private void baseMapQuest() {
-        RasterDataSource dataSource = new HTTPRasterDataSource(new EPSG3857(), 0, 20, "http://otile1.mqcdn.com/tiles/1.0.0/osm/{zoom}/{x}/{y}.png");
+        RasterDataSource dataSource = new KeepAliveHTTPRasterDataSource(new EPSG3857(), 0, 20, "http://otile{s}.mqcdn.com/tiles/1.0.0/osm/{zoom}/{x}/{y}.png", new String[] { "1", "2", "3", "4" });
         RasterLayer mapQuestLayer = new RasterLayer(dataSource, 11);
         updateBaseLayer(mapQuestLayer);
     }
 
     private void baseLayerStamenTerrainLayer() {
-        RasterDataSource dataSource = new HTTPRasterDataSource(new EPSG3857(), 0, 20, "http://tile.stamen.com/terrain/{zoom}/{x}/{y}.png");
+        RasterDataSource dataSource = new KeepAliveHTTPRasterDataSource(new EPSG3857(), 0, 20, "http://{s}.tile.stamen.com/terrain/{zoom}/{x}/{y}.png", new String[] { "a", "b", "c", "d" });
         RasterLayer stamenLayer = new RasterLayer(dataSource, 18);
         updateBaseLayer(stamenLayer);
     }
 
 
     private void baseBingAerial() {
-        RasterDataSource dataSource = new HTTPRasterDataSource(new EPSG3857(), 0, 19, "http://ecn.t3.tiles.virtualearth.net/tiles/a{quadkey}.jpeg?g=471&mkt=en-US");
+        RasterDataSource dataSource = new KeepAliveHTTPRasterDataSource(new EPSG3857(), 0, 19, "http://ecn.t{s}.tiles.virtualearth.net/tiles/a{quadkey}.jpeg?g=471&mkt=en-US", new String[] { "0", "1", "2", "3" });
         RasterLayer bingLayer = new RasterLayer(dataSource, 14);
         updateBaseLayer(bingLayer);
     }
 
     private void baseMapOpenAerial() {
-        RasterDataSource dataSource = new HTTPRasterDataSource(new EPSG3857(), 0, 11, "http://otile1.mqcdn.com/tiles/1.0.0/sat/{zoom}/{x}/{y}.png");
+        RasterDataSource dataSource = new KeepAliveHTTPRasterDataSource(new EPSG3857(), 0, 11, "http://otile{s}.mqcdn.com/tiles/1.0.0/sat/{zoom}/{x}/{y}.png", new String[] { "1", "2", "3", "4" });
         RasterLayer aerialLayer = new RasterLayer(dataSource, 15);
         updateBaseLayer(aerialLayer);
     }
@@ -550,7 +625,7 @@ public class AdvancedMapActivity extends Activity {
         // Check https://developers.arcgis.com for details
         
         // World_Imagery as base
-        HTTPRasterDataSource dataSource = new HTTPRasterDataSource(new EPSG3857(), 0, 19, "http://server.arcgisonline.com/ArcGIS/rest/services/World_Imagery/MapServer/tile/{zoom}/{y}/{x}/");
+        HTTPRasterDataSource dataSource = new KeepAliveHTTPRasterDataSource(new EPSG3857(), 0, 19, "http://server.arcgisonline.com/ArcGIS/rest/services/World_Imagery/MapServer/tile/{zoom}/{y}/{x}/");
         RasterLayer mapLayer = new RasterLayer(dataSource, 17);
         updateBaseLayer(mapLayer);
         
@@ -595,5 +670,28 @@ public class AdvancedMapActivity extends Activity {
         return mapView;
     }
 
+    private void updateKeepAliveDataSource(Layer baseLayer) {
+        keepAliveDataSource = null;
+        if (baseLayer instanceof RasterLayer && ((RasterLayer) baseLayer).getDataSource() instanceof KeepAliveHTTPRasterDataSource) {
+            keepAliveDataSource = (KeepAliveHTTPRasterDataSource) ((RasterLayer) baseLayer).getDataSource();
+        }
+        updateVisibleArea();
+    }
+
+    /**
+     * Pass visible area to the base layer data source, so it can drop requests for tiles scrolled out of view.
+     * Called from MapEventListener, also from non-UI threads.
+     */
+    public void updateVisibleArea() {
+        KeepAliveHTTPRasterDataSource dataSource = keepAliveDataSource;
+        if (dataSource == null || mapView.getWidth() == 0) {
+            return;
+        }
+        // all four corners, as the view can be rotated
+        Envelope envelope = new Envelope(new MapPos[] { mapView.screenToWorld(0, 0), mapView.screenToWorld(mapView.getWidth(), 0),
+                mapView.screenToWorld(0, mapView.getHeight()), mapView.screenToWorld(mapView.getWidth(), mapView.getHeight()) });
+        dataSource.setVisibleArea(envelope, (int) mapView.getZoom());
+    }
+
 }
 
@@ -16,6 +16,9 @@ import android.widget.ZoomControls;
 
 import com.nutiteq.MapView;
 import com.nutiteq.advancedmap.R;
+import com.nutiteq.advancedmap.graphhopper.GraphHopperService;
+import com.nutiteq.advancedmap.graphhopper.IsochroneEngine;
+import com.nutiteq.advancedmap.graphhopper.OfflineDriveTimeRegionLayer;
 import com.nutiteq.advancedmap.maplisteners.MyLocationMapEventListener;
 import com.nutiteq.components.Components;
 import com.nutiteq.components.MapPos;
@@ -48,6 +51,8 @@ import com.nutiteq.utils.UnscaledBitmapLoader;
  *      Drive time is shown as polygon on map. Provided coordinates are user GPS location coordinates, 
  *      Drive time value is selected by user with a Seekbar control on map
  *      During data loading progress indicator is shown in application header, using FEATURE_INDETERMINATE_PROGRESS
+ *  OfflineDriveTimeRegionLayer - used instead of DriveTimeRegionLayer if an offline routing graph is loaded,
+ *      calculates drive time region on device from the graph with IsochroneEngine
  * 
  * @author jaak
  *
@@ -197,16 +202,24 @@ public class AnimatedLocationActivity extends Activity {
         // drivetime region layer
         StyleSet<PolygonStyle> polygonStyleSet = new StyleSet<PolygonStyle>(PolygonStyle.builder().setColor(Color.GREEN & 0x80FFFFFF).build());
 
-        driveTimeLayer = new DriveTimeRegionLayer(mapView.getLayers().getBaseLayer().getProjection(), polygonStyleSet) {
-            @Override
-            protected void setRunningState(final boolean flag) {
-                runOnUiThread(new Runnable() {
-                    public void run() {
-                        setProgressBarIndeterminateVisibility(flag);
-                    }
-                });
-            }
-        };
+        // calculate on device if a routing graph is already loaded, e.g. by GraphhopperRouteActivity
+        Projection projection = mapView.getLayers().getBaseLayer().getProjection();
+        GraphHopperService routingService = GraphHopperService.getLoadedInstance();
+        if (routingService != null) {
+            driveTimeLayer = new OfflineDriveTimeRegionLayer(projection, polygonStyleSet, new IsochroneEngine(routingService)) {
+                @Override
+                protected void setRunningState(boolean flag) {
+                    showProgress(flag);
+                }
+            };
+        } else {
+            driveTimeLayer = new DriveTimeRegionLayer(projection, polygonStyleSet) {
+                @Override
+                protected void setRunningState(boolean flag) {
+                    showProgress(flag);
+                }
+            };
+        }
 
         // initial values
         driveTimeLayer.setDistance((float)timeValues[seekBar.getProgress()]/60.0f);
@@ -216,6 +229,14 @@ public class AnimatedLocationActivity extends Activity {
     }
 
 
+    private void showProgress(final boolean flag) {
+        runOnUiThread(new Runnable() {
+            public void run() {
+                setProgressBarIndeterminateVisibility(flag);
+            }
+        });
+    }
+
     @Override
     protected void onStart() {
         mapView.startMapping();
@@ -1,20 +1,32 @@
 package com.nutiteq.advancedmap.activity;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Map;
 
 import android.app.Activity;
 import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.os.Bundle;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
+import android.widget.Toast;
 import android.widget.ZoomControls;
 
 import com.nutiteq.MapView;
 import com.nutiteq.advancedmap.R;
+import com.nutiteq.advancedmap.datasources.CartoDbVectorTileDataSource;
+import com.nutiteq.advancedmap.datasources.PackedVectorTile;
+import com.nutiteq.advancedmap.style.AttributeLabel;
+import com.nutiteq.components.Bounds;
 import com.nutiteq.components.Components;
+import com.nutiteq.components.Envelope;
 import com.nutiteq.components.MapPos;
 import com.nutiteq.components.Options;
 import com.nutiteq.datasources.vector.CartoDbDataSource;
+import com.nutiteq.geometry.Geometry;
 import com.nutiteq.log.Log;
 import com.nutiteq.projections.EPSG3857;
 import com.nutiteq.rasterdatasources.HTTPRasterDataSource;
@@ -24,9 +36,9 @@ import com.nutiteq.style.LineStyle;
 import com.nutiteq.style.PointStyle;
 import com.nutiteq.style.PolygonStyle;
 import com.nutiteq.style.StyleSet;
-import com.nutiteq.ui.DefaultLabel;
 import com.nutiteq.ui.Label;
 import com.nutiteq.utils.UnscaledBitmapLoader;
+import com.nutiteq.vectordatasources.VectorDataSource;
 import com.nutiteq.vectorlayers.GeometryLayer;
 
 /**
@@ -35,6 +47,13 @@ import com.nutiteq.vectorlayers.GeometryLayer;
  * 
  * Styles are defined for all possible graphics types: Point, Line and Polygons
  * 
+ * Data can be loaded with SQL queries for the whole view (CartoDbDataSource), or as protobuf vector tiles
+ * (CartoDbVectorTileDataSource), if the tile server supports them. Vector tiles are cached, so panning loads only new tiles.
+ * SQL queries are used by default, options menu switches between the two.
+ * 
+ * Options menu also checks the vector tile decoder without a tile server: assets/vectortiles has a sample tile,
+ * it is decoded and the tile size, element count, memory size and decoding time are logged.
+ * 
  * For CartoDB editing see EditableCartoDbMapActivity.java
  * 
  * Used other layer(s):
@@ -45,7 +64,20 @@ import com.nutiteq.vectorlayers.GeometryLayer;
  */
 public class CartoDbVectorMapActivity extends Activity {
 
+    // vector tiles need tile server with protobuf (Mapbox Vector Tile) output
+    private static final String VECTOR_TILE_URL = "http://nutiteq.cartodb.com/tiles/tm_world_borders/{zoom}/{x}/{y}.mvt";
+    // sample tile for decoder check, zoom 5 tile over Estonia
+    private static final String SAMPLE_TILE_ASSET = "vectortiles/tm_world_borders_5_18_9.mvt";
+    private static final int SAMPLE_TILE_ZOOM = 5;
+    private static final int SAMPLE_TILE_X = 18;
+    private static final int SAMPLE_TILE_Y = 9;
+
+    private static final int MENU_SQL = 1;
+    private static final int MENU_VECTOR_TILES = 2;
+    private static final int MENU_CHECK_DECODER = 3;
+
     private MapView mapView;
+    private GeometryLayer cartoLayer;
 
 
     @Override
@@ -141,7 +173,28 @@ public class CartoDbVectorMapActivity extends Activity {
 
 
         // 5. Add CartoDB vector layer to map
-        addCartoDbLayer();
+        addCartoDbLayer(false);
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        menu.add(Menu.NONE, MENU_SQL, Menu.NONE, "Load with SQL queries");
+        menu.add(Menu.NONE, MENU_VECTOR_TILES, Menu.NONE, "Load as vector tiles");
+        menu.add(Menu.NONE, MENU_CHECK_DECODER, Menu.NONE, "Check vector tile decoder");
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == MENU_SQL || item.getItemId() == MENU_VECTOR_TILES) {
+            addCartoDbLayer(item.getItemId() == MENU_VECTOR_TILES);
+            return true;
+        }
+        if (item.getItemId() == MENU_CHECK_DECODER) {
+            checkDecoder();
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
     }
 
     @Override
@@ -160,7 +213,10 @@ public class CartoDbVectorMapActivity extends Activity {
         return mapView;
     }
 
-    private void addCartoDbLayer() {
+    private void addCartoDbLayer(boolean useVectorTiles) {
+        if (cartoLayer != null) {
+            mapView.getLayers().removeLayer(cartoLayer);
+        }
 
         //  5.1 Define styles for all possible geometry types
         int color = Color.BLUE;
@@ -187,15 +243,90 @@ public class CartoDbVectorMapActivity extends Activity {
 
         //      String sql2 = "SELECT name, type, oneway, osm_id, the_geom_webmercator FROM osm_roads WHERE type in ('trunk','primary') AND the_geom_webmercator && ST_SetSRID('BOX3D(!bbox!)'::box3d, 3857) LIMIT 500";
         //      String sql2 = "SELECT name, type, oneway, osm_id, the_geom_webmercator FROM osm_roads WHERE the_geom_webmercator && ST_SetSRID('BOX3D(!bbox!)'::box3d, 3857) LIMIT 500";
-        CartoDbDataSource cartoDataSource = new CartoDbDataSource(mapView.getLayers().getBaseLayer().getProjection(), account, sql) {
+        VectorDataSource<Geometry> cartoDataSource;
+        if (useVectorTiles) {
+            CartoDbVectorTileDataSource tileDataSource = new CartoDbVectorTileDataSource(mapView.getLayers().getBaseLayer().getProjection(), VECTOR_TILE_URL) {
+
+                @Override
+                protected Label createLabel(Map<String, String> userData) {
+                    return new AttributeLabel("Data:", userData, null);
+                }
+
+                @Override
+                protected StyleSet<PointStyle> createPointStyleSet(Map<String, String> userData, int zoom) {
+                    return pointStyleSet;
+                }
+
+                @Override
+                protected StyleSet<LineStyle> createLineStyleSet(Map<String, String> userData, int zoom) {
+                    return lineStyleSet;
+                }
+
+                @Override
+                protected StyleSet<PolygonStyle> createPolygonStyleSet(Map<String, String> userData, int zoom) {
+                    return polygonStyleSet;
+                }
+
+            };
+            tileDataSource.setZoomRange(minZoom, 14);
+            cartoDataSource = tileDataSource;
+        } else {
+            cartoDataSource = createSqlDataSource(account, sql, pointStyleSet, lineStyleSet, polygonStyleSet);
+        }
+
+        cartoLayer = new GeometryLayer(cartoDataSource);
+        mapView.getLayers().addLayer(cartoLayer);
+
+    }
+
+    // decodes the sample tile from assets, same way as CartoDbVectorTileDataSource decodes downloaded tiles
+    private void checkDecoder() {
+        Bounds bounds = mapView.getLayers().getBaseLayer().getProjection().getBounds();
+        double tileWidth = bounds.getWidth() / (1 << SAMPLE_TILE_ZOOM);
+        double tileHeight = bounds.getHeight() / (1 << SAMPLE_TILE_ZOOM);
+        Envelope envelope = new Envelope(bounds.left + SAMPLE_TILE_X * tileWidth, bounds.left + (SAMPLE_TILE_X + 1) * tileWidth,
+                bounds.top - (SAMPLE_TILE_Y + 1) * tileHeight, bounds.top - SAMPLE_TILE_Y * tileHeight);
+
+        String message;
+        try {
+            byte[] data = readAsset(SAMPLE_TILE_ASSET);
+            long startTime = System.nanoTime();
+            PackedVectorTile tile = PackedVectorTile.decode(data, null, envelope);
+            long decodeTime = System.nanoTime() - startTime;
+            message = "Decoded " + data.length + " bytes: " + tile.getElementCount() + " elements, " + tile.getSize() + " bytes in memory, "
+                    + decodeTime / 1000 + " us";
+            for (int element = 0; element < tile.getElementCount(); element++) {
+                Log.debug("CartoDbVectorMapActivity: element " + tile.getId(element) + " type " + tile.getType(element) + " " + tile.getAttributes(element));
+            }
+        } catch (IOException e) {
+            message = "Decoding failed: " + e.getMessage();
+        }
+        Log.info("CartoDbVectorMapActivity: " + message);
+        Toast.makeText(this, message, Toast.LENGTH_LONG).show();
+    }
+
+    private byte[] readAsset(String fileName) throws IOException {
+        InputStream inputStream = getAssets().open(fileName);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = inputStream.read(buffer)) >= 0) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private VectorDataSource<Geometry> createSqlDataSource(String account, String sql, final StyleSet<PointStyle> pointStyleSet,
+            final StyleSet<LineStyle> lineStyleSet, final StyleSet<PolygonStyle> polygonStyleSet) {
+        return new CartoDbDataSource(mapView.getLayers().getBaseLayer().getProjection(), account, sql) {
 
             @Override
             protected Label createLabel(Map<String, String> userData) {
-                StringBuffer labelTxt = new StringBuffer();
-                for (Map.Entry<String, String> entry : userData.entrySet()){
-                    labelTxt.append(entry.getKey() + ": " + entry.getValue() + "\n");
-                }
-                return new DefaultLabel("Data:", labelTxt.toString());
+                return new AttributeLabel("Data:", userData, null);
             }
 
             @Override
@@ -214,10 +345,6 @@ public class CartoDbVectorMapActivity extends Activity {
             }
 
         };
-
-        GeometryLayer cartoLayerTrunk = new GeometryLayer(cartoDataSource);
-        mapView.getLayers().addLayer(cartoLayerTrunk);
-
     }
 }
 
@@ -0,0 +1,328 @@
+package com.nutiteq.advancedmap.activity;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLContext;
+import javax.microedition.khronos.opengles.GL10;
+
+import android.app.Activity;
+import android.graphics.Color;
+import android.os.Bundle;
+
+import com.nutiteq.MapView;
+import com.nutiteq.advancedmap.R;
+import com.nutiteq.advancedmap.clustering.ClusterMarkerLayer;
+import com.nutiteq.advancedmap.clustering.ClusteredMarkerDataSource;
+import com.nutiteq.components.Components;
+import com.nutiteq.components.CullState;
+import com.nutiteq.components.MapPos;
+import com.nutiteq.components.MapTile;
+import com.nutiteq.components.Options;
+import com.nutiteq.components.TileBitmap;
+import com.nutiteq.geometry.Marker;
+import com.nutiteq.log.Log;
+import com.nutiteq.projections.EPSG3857;
+import com.nutiteq.projections.Projection;
+import com.nutiteq.rasterdatasources.AbstractRasterDataSource;
+import com.nutiteq.rasterlayers.RasterLayer;
+import com.nutiteq.renderers.MapRenderer;
+import com.nutiteq.style.MarkerStyle;
+import com.nutiteq.utils.UnscaledBitmapLoader;
+
+/**
+ * Benchmark of ClusterMarkerLayer with 10k, 100k and 500k markers.
+ *
+ * For each marker count, markers are generated in Gaussian groups over central Europe and added to the layer
+ * in one call, build time and Java heap used by the markers and the cluster index are measured. Then the camera
+ * visits the same random views at several zoom levels, for each view the cull time and number of elements
+ * returned by the data source are recorded. Frame time is measured by drawing frames of the map renderer
+ * on the GL thread, until glFinish, so it includes the GPU work of the visible markers.
+ *
+ * Results are written to the log with "clusterbenchmark" tag, progress is shown in the title.
+ * Base map is empty, so tile loading does not disturb the measurements. Counts that do not fit into
+ * the heap of the device are reported as out of memory and skipped.
+ *
+ */
+public class ClusterBenchmarkActivity extends Activity {
+    private static final int[] MARKER_COUNTS = { 10000, 100000, 500000 };
+    private static final int[] ZOOMS = { 4, 8, 12, 16 };
+    private static final int VIEWS_PER_ZOOM = 10;
+    private static final int FRAMES_PER_VIEW = 10;
+    private static final int GROUP_COUNT = 50;
+    private static final long SEED = 42;
+    private static final long VIEW_TIMEOUT = 5000; // ms
+    private static final long VIEW_SETTLE_TIME = 200; // ms
+
+    private MapView mapView;
+    private ClusterMarkerLayer markerLayer;
+    private MarkerStyle markerStyle;
+    private Thread benchmarkThread;
+    private volatile boolean stopped;
+
+    // last view loaded by the layer, guarded by viewLock
+    private final Object viewLock = new Object();
+    private int loadedViews;
+    private long cullNanos;
+    private int cullElements;
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        setContentView(R.layout.main);
+
+        // only results are logged, debug logging would slow down the measured code
+        Log.setTag("clusterbenchmark");
+        Log.setShowInfo(true);
+        Log.setShowError(true);
+        Log.setShowDebug(false);
+
+        // 1. Get the MapView from the Layout xml - mandatory
+        mapView = (MapView) findViewById(R.id.mapView);
+
+        // 2. create and set MapView components - mandatory
+        // benchmark is always started from the beginning, so the components are not retained
+        Components components = new Components();
+        mapView.setComponents(components);
+
+        // 3. Define empty base map, so frame times contain only the markers
+        Projection proj = new EPSG3857();
+        RasterLayer mapLayer = new RasterLayer(new AbstractRasterDataSource(proj, 0, 18) {
+            @Override
+            public TileBitmap loadTile(MapTile tile) {
+                return null;
+            }
+        }, 0);
+        mapView.getLayers().setBaseLayer(mapLayer);
+
+        // cluster layer with timing of each view
+        ClusteredMarkerDataSource dataSource = new ClusteredMarkerDataSource(proj,
+                UnscaledBitmapLoader.decodeResource(getResources(), R.drawable.point), 0.6f) {
+            @Override
+            public Collection<Marker> loadElements(CullState cullState) {
+                long startTime = System.nanoTime();
+                Collection<Marker> elements = super.loadElements(cullState);
+                viewLoaded(System.nanoTime() - startTime, elements.size());
+                return elements;
+            }
+        };
+        // animations would add frames with markers in between
+        dataSource.setAnimated(false);
+        markerLayer = new ClusterMarkerLayer(dataSource);
+        mapView.getLayers().addLayer(markerLayer);
+
+        markerStyle = MarkerStyle.builder().setSize(0.5f).setBitmap(
+                UnscaledBitmapLoader.decodeResource(getResources(), R.drawable.olmarker)).build();
+
+        mapView.setMapRotation(0f);
+        mapView.setTilt(90.0f);
+        mapView.getOptions().setPreloading(false);
+        mapView.getOptions().setBackgroundPlaneDrawMode(Options.DRAW_BITMAP);
+        mapView.getOptions().setBackgroundPlaneBitmap(UnscaledBitmapLoader.decodeResource(getResources(), R.drawable.background_plane));
+        mapView.getOptions().setClearColor(Color.WHITE);
+    }
+
+    @Override
+    protected void onStart() {
+        mapView.startMapping();
+        super.onStart();
+
+        stopped = false;
+        benchmarkThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runBenchmark();
+            }
+        });
+        benchmarkThread.start();
+    }
+
+    @Override
+    protected void onStop() {
+        stopped = true;
+        benchmarkThread.interrupt();
+        super.onStop();
+        mapView.stopMapping();
+    }
+
+    private void runBenchmark() {
+        Log.info("ClusterBenchmarkActivity: markers, build ms, heap MB, cells");
+        Log.info("ClusterBenchmarkActivity: markers, zoom, elements per view, cull ms, median frame ms, max frame ms");
+        try {
+            for (int count : MARKER_COUNTS) {
+                if (stopped) {
+                    return;
+                }
+                try {
+                    runBenchmark(count);
+                } catch (OutOfMemoryError e) {
+                    markerLayer.clear();
+                    Log.error("ClusterBenchmarkActivity: " + count + " markers, out of memory");
+                }
+            }
+            markerLayer.clear();
+            showProgress("Benchmark done, results are in the log");
+        } catch (InterruptedException e) {
+            Log.info("ClusterBenchmarkActivity: stopped");
+        }
+    }
+
+    private void runBenchmark(int count) throws InterruptedException {
+        showProgress("Benchmark: adding " + count + " markers");
+        markerLayer.clear();
+        long heapBefore = getUsedHeap();
+        List<Marker> markers = createMarkers(count);
+        long startTime = System.nanoTime();
+        markerLayer.addAll(markers);
+        long buildNanos = System.nanoTime() - startTime;
+        markers = null;
+        long heapUsed = getUsedHeap() - heapBefore;
+        Log.info("ClusterBenchmarkActivity: " + count + ", " + buildNanos / 1000000 + ", " + heapUsed / (1024 * 1024) + ", "
+                + markerLayer.getClusterDataSource().getCellCount());
+
+        // same views for all counts
+        Random random = new Random(SEED);
+        for (int zoom : ZOOMS) {
+            showProgress("Benchmark: " + count + " markers, zoom " + zoom);
+            long totalElements = 0;
+            long totalCullNanos = 0;
+            int views = 0;
+            List<Double> frameTimes = new ArrayList<Double>();
+            for (int i = 0; i < VIEWS_PER_ZOOM; i++) {
+                MapPos mapPos = mapView.getLayers().getBaseProjection().fromWgs84(5 + random.nextDouble() * 20, 45 + random.nextDouble() * 10);
+                if (!showView(mapPos, zoom)) {
+                    Log.error("ClusterBenchmarkActivity: view was not loaded at zoom " + zoom);
+                    continue;
+                }
+                synchronized (viewLock) {
+                    totalElements += cullElements;
+                    totalCullNanos += cullNanos;
+                }
+                views++;
+                for (double frameTime : measureFrameTimes()) {
+                    frameTimes.add(frameTime);
+                }
+            }
+            if (views == 0 || frameTimes.isEmpty()) {
+                continue;
+            }
+            Double[] sortedTimes = frameTimes.toArray(new Double[frameTimes.size()]);
+            Arrays.sort(sortedTimes);
+            Log.info("ClusterBenchmarkActivity: " + count + ", " + zoom + ", " + totalElements / views + ", "
+                    + String.format("%.2f, %.2f, %.2f", totalCullNanos / 1.0e6 / views, sortedTimes[sortedTimes.length / 2], sortedTimes[sortedTimes.length - 1]));
+        }
+    }
+
+    private List<Marker> createMarkers(int count) {
+        Projection proj = mapView.getLayers().getBaseProjection();
+        Random random = new Random(SEED);
+        double[] groupLons = new double[GROUP_COUNT];
+        double[] groupLats = new double[GROUP_COUNT];
+        for (int i = 0; i < GROUP_COUNT; i++) {
+            groupLons[i] = 5 + random.nextDouble() * 20;
+            groupLats[i] = 45 + random.nextDouble() * 10;
+        }
+        List<Marker> markers = new ArrayList<Marker>(count);
+        for (int i = 0; i < count; i++) {
+            int group = random.nextInt(GROUP_COUNT);
+            MapPos mapPos = proj.fromWgs84(groupLons[group] + random.nextGaussian() * 0.5, groupLats[group] + random.nextGaussian() * 0.3);
+            markers.add(new Marker(mapPos, null, markerStyle, null));
+        }
+        return markers;
+    }
+
+    /**
+     * Move camera and wait until the layer has loaded the view.
+     *
+     * @return false if the view was not loaded in time
+     */
+    private boolean showView(final MapPos mapPos, final float zoom) throws InterruptedException {
+        synchronized (viewLock) {
+            loadedViews = 0;
+        }
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                mapView.setFocusPoint(mapPos);
+                mapView.setZoom(zoom);
+            }
+        });
+        long endTime = System.currentTimeMillis() + VIEW_TIMEOUT;
+        synchronized (viewLock) {
+            while (loadedViews == 0) {
+                long waitTime = endTime - System.currentTimeMillis();
+                if (waitTime <= 0) {
+                    return false;
+                }
+                viewLock.wait(waitTime);
+            }
+        }
+        // layer may load the view more than once while camera settles, measure the last one
+        Thread.sleep(VIEW_SETTLE_TIME);
+        return true;
+    }
+
+    private void viewLoaded(long nanos, int elements) {
+        synchronized (viewLock) {
+            loadedViews++;
+            cullNanos = nanos;
+            cullElements = elements;
+            viewLock.notifyAll();
+        }
+    }
+
+    /**
+     * Draw frames of the current view on the GL thread and measure their time in milliseconds.
+     */
+    private double[] measureFrameTimes() throws InterruptedException {
+        final MapRenderer renderer = mapView.getComponents().mapRenderers.getMapRenderer();
+        final double[] frameTimes = new double[FRAMES_PER_VIEW];
+        final CountDownLatch latch = new CountDownLatch(FRAMES_PER_VIEW);
+        for (int i = 0; i < FRAMES_PER_VIEW; i++) {
+            final int frame = i;
+            mapView.queueEvent(new Runnable() {
+                @Override
+                public void run() {
+                    GL10 gl = (GL10) ((EGL10) EGLContext.getEGL()).eglGetCurrentContext().getGL();
+                    long startTime = System.nanoTime();
+                    renderer.onDrawFrame(gl);
+                    gl.glFinish();
+                    frameTimes[frame] = (System.nanoTime() - startTime) / 1.0e6;
+                    latch.countDown();
+                }
+            });
+        }
+        if (!latch.await(VIEW_TIMEOUT, TimeUnit.MILLISECONDS)) {
+            Log.error("ClusterBenchmarkActivity: frames were not drawn, is the screen on?");
+            return new double[0];
+        }
+        return frameTimes;
+    }
+
+    private static long getUsedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private void showProgress(final String message) {
+        Log.info("ClusterBenchmarkActivity: " + message);
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                setTitle(message);
+            }
+        });
+    }
+
+}
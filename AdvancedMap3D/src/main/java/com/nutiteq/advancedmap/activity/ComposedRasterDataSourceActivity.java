@@ -3,40 +3,60 @@ package com.nutiteq.advancedmap.activity;
 import android.app.Activity;
 import android.graphics.Color;
 import android.os.Bundle;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.widget.RadioGroup;
 import android.widget.RadioGroup.OnCheckedChangeListener;
+import android.widget.Toast;
 
 import com.nutiteq.MapView;
 import com.nutiteq.advancedmap.R;
+import com.nutiteq.advancedmap.datasources.KeepAliveHTTPRasterDataSource;
+import com.nutiteq.advancedmap.datasources.ParallelImageFilterRasterDataSource;
+import com.nutiteq.advancedmap.datasources.ParallelImageFilterRasterDataSource.PixelFilter;
+import com.nutiteq.advancedmap.datasources.RasterTileSeeder;
+import com.nutiteq.advancedmap.datasources.RevalidatingCacheRasterDataSource;
 import com.nutiteq.cachestores.PersistentCacheStore;
+import com.nutiteq.components.Bounds;
 import com.nutiteq.components.Components;
+import com.nutiteq.components.Envelope;
+import com.nutiteq.components.MapPos;
+import com.nutiteq.components.MapTile;
 import com.nutiteq.components.Options;
-import com.nutiteq.imagefilters.GrayscaleImageFilter;
-import com.nutiteq.imagefilters.NightModeImageFilter;
+import com.nutiteq.geometry.VectorElement;
 import com.nutiteq.log.Log;
 import com.nutiteq.projections.EPSG4326;
-import com.nutiteq.rasterdatasources.CacheRasterDataSource;
-import com.nutiteq.rasterdatasources.HTTPRasterDataSource;
-import com.nutiteq.rasterdatasources.ImageFilterRasterDataSource;
-import com.nutiteq.rasterdatasources.ImageFilterRasterDataSource.ImageFilter;
 import com.nutiteq.rasterdatasources.RasterDataSource;
 import com.nutiteq.rasterlayers.RasterLayer;
+import com.nutiteq.ui.MapListener;
 import com.nutiteq.utils.UnscaledBitmapLoader;
 
 /**
  * This is an example how to compose multiple raster data sources into one:
  * first an online HTTP raster data source is created, this is connected to caching virtual data source
  * (with persistent cache store) which in turn is connected to image filter virtual data source.
+ * Cached tiles are revalidated in background using HTTP cache headers (ETag, Last-Modified) once they expire.
+ * Image filters run on a worker pool, filtered tiles are cached so switching between filters is fast.
  * Finally image filter data source is connected to the layer.
+ * 
+ * Options menu allows to download currently visible area into the persistent cache for offline use.
  *  
  * @author mark
  * 
  */
 public class ComposedRasterDataSourceActivity extends Activity {
+  private static final int MENU_SEED = 1;
+  // number of zoom levels below current zoom to download
+  private static final int SEED_ZOOM_LEVELS = 3;
+  // keep below persistent cache size, otherwise seeded tiles get evicted
+  private static final long SEED_BYTE_BUDGET = 8 * 1024 * 1024;
+
   public MapView mapView;
-  private RasterDataSource originalDS;
-  private CacheRasterDataSource cacheDS;
-  private ImageFilterRasterDataSource imageFilterDS;
+  private volatile KeepAliveHTTPRasterDataSource originalDS;
+  private PersistentCacheStore cacheStore;
+  private RevalidatingCacheRasterDataSource cacheDS;
+  private volatile ParallelImageFilterRasterDataSource imageFilterDS;
+  private RasterTileSeeder seeder;
 
   @Override
   public void onCreate(Bundle savedInstanceState) {
@@ -48,6 +68,9 @@ public class ComposedRasterDataSourceActivity extends Activity {
     Log.enableAll();
     Log.setTag("composeddatasources");
 
+    // keep idle connections for all parallel tile requests to a host - optional, platform default is 5
+    KeepAliveHTTPRasterDataSource.setKeepAlivePoolSize(8);
+
     // 1. Get the MapView from the Layout xml - mandatory
     mapView = (MapView) findViewById(R.id.mapView);
 
@@ -62,6 +85,7 @@ public class ComposedRasterDataSourceActivity extends Activity {
       setBaseMapLayer();
 
       setButtonListener();
+      setMapListener();
 
       mapView.startMapping();
       return;
@@ -102,6 +126,7 @@ public class ComposedRasterDataSourceActivity extends Activity {
 
     // Set up button listener for filter selection
     setButtonListener();
+    setMapListener();
   }
   
   private void setBaseMapLayer() {
@@ -113,9 +138,10 @@ public class ComposedRasterDataSourceActivity extends Activity {
   }
   
   private RasterDataSource createComposedDataSource() {
-    originalDS = new HTTPRasterDataSource(new EPSG4326(), 0, 19, "http://www.staremapy.cz/naturalearth/{zoom}/{x}/{yflipped}.png");
-    cacheDS = new CacheRasterDataSource(originalDS, new PersistentCacheStore(this.getDatabasePath("mapcache_composedrds").getPath(), 10 * 1024 * 1024));
-    imageFilterDS = new ImageFilterRasterDataSource(cacheDS);
+    originalDS = new KeepAliveHTTPRasterDataSource(new EPSG4326(), 0, 19, "http://www.staremapy.cz/naturalearth/{zoom}/{x}/{yflipped}.png");
+    cacheStore = new PersistentCacheStore(this.getDatabasePath("mapcache_composedrds").getPath(), 10 * 1024 * 1024);
+    cacheDS = new RevalidatingCacheRasterDataSource(originalDS, cacheStore, getDatabasePath("mapcache_composedrds_meta"));
+    imageFilterDS = new ParallelImageFilterRasterDataSource(cacheDS);
     
     cacheDS.open();
 
@@ -123,42 +149,146 @@ public class ComposedRasterDataSourceActivity extends Activity {
   }
   
   private void destroyComposedDataSource() {
+    if (seeder != null) {
+      seeder.cancel();
+      seeder = null;
+    }
+    if (imageFilterDS != null) {
+      imageFilterDS.shutdown();
+    }
     if (cacheDS != null) {
       cacheDS.close();
     }
     
     imageFilterDS = null;
     cacheDS = null;
+    cacheStore = null;
     originalDS = null;
   }
+
+  // downloads visible area from current zoom to SEED_ZOOM_LEVELS deeper into the persistent cache
+  private void seedVisibleArea() {
+    if (seeder != null && seeder.isRunning()) {
+      seeder.cancel();
+      Toast.makeText(this, "Download stopped", Toast.LENGTH_SHORT).show();
+      return;
+    }
+
+    // all four corners, as the view can be rotated
+    Envelope envelope = new Envelope(new MapPos[] { mapView.screenToWorld(0, 0), mapView.screenToWorld(mapView.getWidth(), 0),
+        mapView.screenToWorld(0, mapView.getHeight()), mapView.screenToWorld(mapView.getWidth(), mapView.getHeight()) });
+    Bounds bounds = new Bounds(envelope.minX, envelope.maxY, envelope.maxX, envelope.minY);
+    int zoom = (int) mapView.getZoom();
+
+    seeder = new RasterTileSeeder(originalDS, cacheStore, getDatabasePath("mapcache_composedrds_seed")) {
+      @Override
+      protected String getTileHost(MapTile tile) {
+        return "www.staremapy.cz";
+      }
+    };
+    seeder.setByteBudget(SEED_BYTE_BUDGET);
+    seeder.start(bounds, zoom, zoom + SEED_ZOOM_LEVELS, new RasterTileSeeder.ProgressListener() {
+      @Override
+      public void onProgress(final long completedTiles, final long totalTiles, long downloadedBytes) {
+        runOnUiThread(new Runnable() {
+          @Override
+          public void run() {
+            setTitle("Downloading " + completedTiles + "/" + totalTiles);
+          }
+        });
+      }
+
+      @Override
+      public void onFinished(final boolean complete, final int failedTiles) {
+        runOnUiThread(new Runnable() {
+          @Override
+          public void run() {
+            String message = complete ? "Area is available offline" : "Download stopped";
+            if (failedTiles > 0) {
+              message += ", " + failedTiles + " tiles failed";
+            }
+            Toast.makeText(getApplicationContext(), message, Toast.LENGTH_SHORT).show();
+          }
+        });
+      }
+    });
+  }
   
-  private ImageFilter createImageFilter(int id) {
+  private PixelFilter createImageFilter(int id) {
     switch (id) {
     case R.id.no_imagefilter:
       return null;
     case R.id.grayscale_imagefilter:
-      return new GrayscaleImageFilter();
+      return new ParallelImageFilterRasterDataSource.GrayscaleFilter();
     case R.id.nightmode_imagefilter:
-      return new NightModeImageFilter();
+      return new ParallelImageFilterRasterDataSource.NightModeFilter();
     }
     return null;
   }
 
+  // lets data sources drop work for tiles that are scrolled out of view
+  private void setMapListener() {
+    mapView.getOptions().setMapListener(new MapListener() {
+      @Override
+      public void onMapMoved() {
+        // called also from non-UI thread
+        ParallelImageFilterRasterDataSource imageFilterDS = ComposedRasterDataSourceActivity.this.imageFilterDS;
+        KeepAliveHTTPRasterDataSource originalDS = ComposedRasterDataSourceActivity.this.originalDS;
+        if (imageFilterDS == null || originalDS == null || mapView.getWidth() == 0) {
+          return;
+        }
+        // all four corners, as the view can be rotated
+        Envelope envelope = new Envelope(new MapPos[] { mapView.screenToWorld(0, 0), mapView.screenToWorld(mapView.getWidth(), 0),
+            mapView.screenToWorld(0, mapView.getHeight()), mapView.screenToWorld(mapView.getWidth(), mapView.getHeight()) });
+        int zoom = (int) mapView.getZoom();
+        imageFilterDS.setVisibleArea(envelope, zoom);
+        originalDS.setVisibleArea(envelope, zoom);
+      }
+
+      @Override
+      public void onMapClicked(double x, double y, boolean longClick) {
+      }
+
+      @Override
+      public void onVectorElementClicked(VectorElement vectorElement, double x, double y, boolean longClick) {
+      }
+
+      @Override
+      public void onLabelClicked(VectorElement vectorElement, boolean longClick) {
+      }
+    });
+  }
+
   private void setButtonListener() {
     RadioGroup radio = (RadioGroup) findViewById(R.id.radioImageFilter);
-    ImageFilter imageFilter = createImageFilter(radio.getCheckedRadioButtonId());
-    imageFilterDS.setImageFilter(imageFilter);
+    PixelFilter imageFilter = createImageFilter(radio.getCheckedRadioButtonId());
+    imageFilterDS.setPixelFilter(imageFilter);
 
     radio.setOnCheckedChangeListener(new OnCheckedChangeListener() {
       @Override
       public void onCheckedChanged(RadioGroup radio, int checkedId) {
         // Cancel all 'in-flight' processes that may change tiles in background after caches are reset
-        ImageFilter imageFilter = createImageFilter(radio.getCheckedRadioButtonId());
-        imageFilterDS.setImageFilter(imageFilter);
+        PixelFilter imageFilter = createImageFilter(radio.getCheckedRadioButtonId());
+        imageFilterDS.setPixelFilter(imageFilter);
       }
     });
   }
 
+  @Override
+  public boolean onCreateOptionsMenu(Menu menu) {
+    menu.add(Menu.NONE, MENU_SEED, Menu.NONE, "Download visible area");
+    return true;
+  }
+
+  @Override
+  public boolean onOptionsItemSelected(MenuItem item) {
+    if (item.getItemId() == MENU_SEED) {
+      seedVisibleArea();
+      return true;
+    }
+    return super.onOptionsItemSelected(item);
+  }
+
   @Override
   public Object onRetainNonConfigurationInstance() {
     Log.debug("onRetainNonConfigurationInstance");
@@ -11,8 +11,9 @@ import android.content.DialogInterface;
 import android.graphics.Bitmap;
 
 import com.nutiteq.advancedmap.R;
+import com.nutiteq.advancedmap.editing.BatchedCartoDbDataSource;
+import com.nutiteq.advancedmap.style.AttributeLabel;
 import com.nutiteq.components.Color;
-import com.nutiteq.editable.datasources.EditableCartoDbDataSource;
 import com.nutiteq.editable.layers.EditableGeometryLayer;
 import com.nutiteq.geometry.Geometry;
 import com.nutiteq.geometry.Line;
@@ -27,7 +28,6 @@ import com.nutiteq.style.LineStyle;
 import com.nutiteq.style.PointStyle;
 import com.nutiteq.style.PolygonStyle;
 import com.nutiteq.style.StyleSet;
-import com.nutiteq.ui.DefaultLabel;
 import com.nutiteq.ui.Label;
 import com.nutiteq.utils.UnscaledBitmapLoader;
 
@@ -159,15 +159,12 @@ public class EditableCartoDbMapActivity extends EditableMapActivityBase {
 		String updateSql = "UPDATE "+table+" SET the_geom=ST_Transform(!geom!, 4326), name=!name! WHERE cartodb_id=!id!";
 		String deleteSql = "DELETE FROM "+table+" WHERE cartodb_id=!id!";
 
-		EditableCartoDbDataSource dataSource = new EditableCartoDbDataSource(mapView.getLayers().getBaseProjection(), account, apiKey, querySql, insertSql, updateSql, deleteSql, multiGeometry) {
+		// updates and deletes are committed in batches when changes are saved
+		BatchedCartoDbDataSource dataSource = new BatchedCartoDbDataSource(mapView.getLayers().getBaseProjection(), account, apiKey, querySql, insertSql, updateSql, deleteSql, multiGeometry) {
 
             @Override
             protected Label createLabel(Map<String, String> userData) {
-                StringBuffer labelTxt = new StringBuffer();
-                for (Map.Entry<String, String> entry : userData.entrySet()){
-                    labelTxt.append(entry.getKey() + ": " + entry.getValue() + "\n");
-                }
-                return new DefaultLabel("Data:", labelTxt.toString());
+                return new AttributeLabel("Data:", userData, null);
             }
 
             @Override
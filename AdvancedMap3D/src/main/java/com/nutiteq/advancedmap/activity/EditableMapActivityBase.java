@@ -4,7 +4,11 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Stack;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.annotation.SuppressLint;
 import android.app.Activity;
@@ -29,6 +33,9 @@ import android.widget.Toast;
 import android.widget.ZoomControls;
 
 import com.nutiteq.advancedmap.R;
+import com.nutiteq.advancedmap.editing.BatchedDataSource;
+import com.nutiteq.advancedmap.editing.EditJournal;
+import com.nutiteq.advancedmap.editing.VertexSnapIndex;
 import com.nutiteq.components.Color;
 import com.nutiteq.components.Components;
 import com.nutiteq.components.MapPos;
@@ -38,13 +45,14 @@ import com.nutiteq.editable.EditableMapView;
 import com.nutiteq.editable.layers.EditableGeometryLayer;
 import com.nutiteq.geometry.Geometry;
 import com.nutiteq.geometry.Line;
+import com.nutiteq.geometry.Point;
+import com.nutiteq.geometry.Polygon;
 import com.nutiteq.geometry.VectorElement;
 import com.nutiteq.log.Log;
 import com.nutiteq.projections.EPSG3857;
 import com.nutiteq.rasterdatasources.HTTPRasterDataSource;
 import com.nutiteq.rasterdatasources.RasterDataSource;
 import com.nutiteq.rasterlayers.RasterLayer;
-import com.nutiteq.utils.LongHashMap;
 import com.nutiteq.utils.UnscaledBitmapLoader;
 
 /**
@@ -61,24 +69,20 @@ import com.nutiteq.utils.UnscaledBitmapLoader;
  */
 public abstract class EditableMapActivityBase extends Activity {
 
-    /**
-     * Keeps state of editable elements to enable undo/redo functions
-     * 
-     * @author mtehver
-     *
-     */
-    private static class Memento {
-        public final List<LongHashMap<Geometry>> geometries;
-
-        public Memento(List<LongHashMap<Geometry>> geometries) {
-            this.geometries = geometries;
-        }
-    }
+    // memory limit for undo/redo history, oldest changes are dropped when exceeded
+    private static final long MAX_JOURNAL_SIZE = 4 * 1024 * 1024;
+
+    // maximum number of layers saved in parallel
+    private static final int MAX_SAVE_THREADS = 3;
+
+    // snapping distance for vertices, in screen pixels
+    private static final float SNAP_DISTANCE = 30;
 
     protected EditableMapView mapView;
 
-    private Stack<Memento> undoStack = new Stack<Memento>(); 
-    private Stack<Memento> redoStack = new Stack<Memento>(); 
+    private EditJournal journal = new EditJournal(MAX_JOURNAL_SIZE);
+    private VertexSnapIndex snapIndex = new VertexSnapIndex(1);
+    private double snapDistance;
 
     private LinearLayout elementEditorLayout;
     private LinearLayout pointEditorLayout;
@@ -209,6 +213,9 @@ public abstract class EditableMapActivityBase extends Activity {
 
             VectorElement selectedElement;
             VectorElement dragElement;
+            // snapping lookups of the current drag, logged when the drag ends
+            int snapCount;
+            long snapTime;
 
             @Override
             public void updateUI() {
@@ -217,48 +224,55 @@ public abstract class EditableMapActivityBase extends Activity {
 
             @Override
             public Vector snapElement(VectorElement element, Vector delta) {
-                return delta;
+                // assume element.getLayer().getProjection() == baseLayer.getProjection()
+                if (!(element instanceof Geometry) || snapDistance <= 0) {
+                    return delta;
+                }
+                long startTime = System.nanoTime();
+                double bestDist2 = Double.MAX_VALUE;
+                Vector bestDelta = delta;
+                for (MapPos vertexMapPos : getElementVertices((Geometry) element)) {
+                    double x = vertexMapPos.x + delta.x, y = vertexMapPos.y + delta.y;
+                    MapPos snapMapPos = snapIndex.findNearest(x, y, snapDistance, (Geometry) element);
+                    if (snapMapPos != null) {
+                        double dx = snapMapPos.x - x, dy = snapMapPos.y - y;
+                        if (dx * dx + dy * dy < bestDist2) {
+                            bestDist2 = dx * dx + dy * dy;
+                            bestDelta = new Vector(snapMapPos.x - vertexMapPos.x, snapMapPos.y - vertexMapPos.y);
+                        }
+                    }
+                }
+                snapCount++;
+                snapTime += System.nanoTime() - startTime;
+                return bestDelta;
             }
 
             @Override
             public MapPos snapElementVertex(VectorElement element, int index, MapPos mapPos) {
-                /*
-                if (element instanceof Line) {
-                    List<?> visibleElements = element.getLayer().getVisibleElements();
-                    MapPos screenPos = mapView.worldToScreen(mapPos.x, mapPos.y, 0); // assume element.getLayer().getProjection() == baseLayer.getProjection()
-                    for (Object obj : visibleElements) {
-                        if (obj instanceof Line) {
-                            Line line = (Line) obj;
-                            List<MapPos> vertexList = line.getVertexList();
-                            for (int i = 0; i < vertexList.size(); i++) {
-                                if (i == index) {
-                                    continue;
-                                }
-                                MapPos vertexMapPos = vertexList.get(i);
-                                MapPos vertexScreenPos = mapView.worldToScreen(vertexMapPos.x, vertexMapPos.y, 0);
-                                double dx = vertexScreenPos.x - screenPos.x, dy = vertexScreenPos.y - screenPos.y;
-                                if (dx * dx + dy * dy < 30 * 30) {
-                                    return vertexMapPos;
-                                }
-                            }
-                        }
-                    }
+                // assume element.getLayer().getProjection() == baseLayer.getProjection()
+                if (!(element instanceof Geometry) || snapDistance <= 0) {
+                    return mapPos;
                 }
-                */
-                return mapPos;
+                long startTime = System.nanoTime();
+                MapPos snapMapPos = snapIndex.findNearest(mapPos.x, mapPos.y, snapDistance, (Geometry) element);
+                snapCount++;
+                snapTime += System.nanoTime() - startTime;
+                return snapMapPos != null ? snapMapPos : mapPos;
             }
 
             @Override
             public void onElementCreated(VectorElement element) {
-                saveState();
                 attachEditableElementToLayer((Geometry) element);
+                if (element.getLayer() instanceof EditableGeometryLayer) {
+                    journal.recordCreate((EditableGeometryLayer) element.getLayer(), (Geometry) element);
+                }
             }
 
             @Override
             public void onBeforeElementChange(VectorElement element) {
                 if (element.getLayer() instanceof EditableGeometryLayer) {
                     if (dragElement == null) {
-                        saveState();
+                        journal.beginChange((EditableGeometryLayer) element.getLayer(), (Geometry) element);
                     }
                 }
             }
@@ -268,15 +282,17 @@ public abstract class EditableMapActivityBase extends Activity {
                 if (element.getLayer() instanceof EditableGeometryLayer) {
                     EditableGeometryLayer layer = (EditableGeometryLayer) element.getLayer();
                     layer.update((Geometry) element);
+                    snapIndex.update((Geometry) element);
                 }
             }
 
             @Override
             public void onElementDeleted(VectorElement element) {
                 if (element.getLayer() instanceof EditableGeometryLayer) {
-                    saveState();
                     EditableGeometryLayer layer = (EditableGeometryLayer) element.getLayer();
+                    journal.recordDelete(layer, (Geometry) element);
                     layer.remove((Geometry) element);
+                    snapIndex.remove((Geometry) element);
                 }
             }
 
@@ -297,8 +313,11 @@ public abstract class EditableMapActivityBase extends Activity {
             public void onDragStart(VectorElement element, float x, float y) {
                 dragElement = element;
                 if (element.getLayer() instanceof EditableGeometryLayer) {
-                    saveState();
+                    journal.beginChange((EditableGeometryLayer) element.getLayer(), (Geometry) element);
                 }
+                updateSnapIndex(x, y);
+                snapCount = 0;
+                snapTime = 0;
                 addPointBtn.setVisibility(View.GONE);
                 deletePointBtn.setVisibility(View.VISIBLE);
             }
@@ -317,6 +336,10 @@ public abstract class EditableMapActivityBase extends Activity {
             @Override
             public boolean onDragEnd(float x, float y) {
                 dragElement = null;
+                if (snapCount > 0) {
+                    Log.debug("EditableMapActivityBase: " + snapCount + " snaps, average " + snapTime / snapCount / 1000 + " us, "
+                            + snapIndex.getVertexCount() + " vertices in snap index");
+                }
                 Rect rect = new Rect();
                 deletePointBtn.getHitRect(rect);
                 deletePointBtn.setColorFilter(null);
@@ -539,8 +562,8 @@ public abstract class EditableMapActivityBase extends Activity {
                 deleteElementBtn.setVisibility(selectedElement != null ? View.VISIBLE : View.GONE);
                 saveChangesBtn.setVisibility(hasPendingChanges() ? View.VISIBLE : View.GONE);
                 //discardChangesBtn.setVisibility(hasPendingChanges() ? View.VISIBLE : View.GONE);
-                undoChangeBtn.setVisibility(!undoStack.isEmpty() ? View.VISIBLE : View.GONE);
-                redoChangeBtn.setVisibility(!redoStack.isEmpty() ? View.VISIBLE : View.GONE);
+                undoChangeBtn.setVisibility(journal.canUndo() ? View.VISIBLE : View.GONE);
+                redoChangeBtn.setVisibility(journal.canRedo() ? View.VISIBLE : View.GONE);
             }
         });
     }
@@ -550,62 +573,48 @@ public abstract class EditableMapActivityBase extends Activity {
             if (layer.hasPendingChanges()) {
                 return true;
             }
+            // statements left over from failed commit
+            if (layer.getDataSource() instanceof BatchedDataSource) {
+                if (((BatchedDataSource) layer.getDataSource()).getPendingStatementCount() > 0) {
+                    return true;
+                }
+            }
         }
         return false;
     }
 
-    private void saveState() {
-        List<LongHashMap<Geometry>> geometries = new ArrayList<LongHashMap<Geometry>>();
-        for (EditableGeometryLayer layer : getEditableLayers()) {
-            geometries.add(layer.saveState());
-        }
-        Memento memento = new Memento(geometries);
-        undoStack.push(memento);
-        redoStack.clear();
-    }
-
     private void undoStateChanges() {
-        if (undoStack.empty()) {
+        if (!journal.canUndo()) {
             return;
         }
-        List<LongHashMap<Geometry>> geometries = new ArrayList<LongHashMap<Geometry>>();
-        for (EditableGeometryLayer layer : getEditableLayers()) {
-            geometries.add(layer.saveState());
-        }
-        Memento memento = new Memento(geometries);
-        redoStack.push(memento);
-        memento = undoStack.pop();
         mapView.selectElement(null);
-        for (int i = 0; i < memento.geometries.size(); i++) {
-            getEditableLayers().get(i).loadState(memento.geometries.get(i));
-        }
+        long startTime = System.nanoTime();
+        journal.undo();
+        Log.debug("EditableMapActivityBase: undo in " + (System.nanoTime() - startTime) / 1000 + " us, journal " + journal.getSize() + " bytes");
+        snapIndex.clear();
         updateUIButtons();
     }
 
     private void redoStateChanges() {
-        if (redoStack.empty()) {
+        if (!journal.canRedo()) {
             return;
         }
-        List<LongHashMap<Geometry>> geometries = new ArrayList<LongHashMap<Geometry>>();
-        for (EditableGeometryLayer layer : getEditableLayers()) {
-            geometries.add(layer.saveState());
-        }
-        Memento memento = new Memento(geometries);
-        undoStack.push(memento);
-        memento = redoStack.pop();
         mapView.selectElement(null);
-        for (int i = 0; i < memento.geometries.size(); i++) {
-            getEditableLayers().get(i).loadState(memento.geometries.get(i));
-        }
+        long startTime = System.nanoTime();
+        journal.redo();
+        Log.debug("EditableMapActivityBase: redo in " + (System.nanoTime() - startTime) / 1000 + " us, journal " + journal.getSize() + " bytes");
+        snapIndex.clear();
         updateUIButtons();
     }
 
     private void saveChanges() {
         mapView.selectElement(null);
 
-        AsyncTask<Void, Void, Void> task = new AsyncTask<Void, Void, Void>() {
+        AsyncTask<Void, Integer, Void> task = new AsyncTask<Void, Integer, Void>() {
             ProgressDialog dialog;
             RuntimeException exception;
+            AtomicInteger committedCount = new AtomicInteger();
+            AtomicInteger totalCount = new AtomicInteger();
 
             @Override
             protected void onPreExecute() {
@@ -620,23 +629,59 @@ public abstract class EditableMapActivityBase extends Activity {
 
             @Override
             protected Void doInBackground(final Void... args) {
-                try {
-                    for (EditableGeometryLayer layer : getEditableLayers()) {
-                        layer.saveChanges();
-                    }
+                // save layers in parallel, batched data sources commit the statements queued by saving the layer
+                // and reload the layer when the commit is complete
+                List<EditableGeometryLayer> layers = getEditableLayers();
+                ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(layers.size(), MAX_SAVE_THREADS)));
+                List<Future<?>> futures = new ArrayList<Future<?>>();
+                for (final EditableGeometryLayer layer : layers) {
+                    futures.add(executor.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            layer.saveChanges();
+                            if (layer.getDataSource() instanceof BatchedDataSource) {
+                                BatchedDataSource dataSource = (BatchedDataSource) layer.getDataSource();
+                                publishProgress(committedCount.get(), totalCount.addAndGet(dataSource.getPendingStatementCount()));
+                                dataSource.commitPendingStatements(new BatchedDataSource.ProgressListener() {
+                                    @Override
+                                    public void onBatchCommitted(int statementCount) {
+                                        publishProgress(committedCount.addAndGet(statementCount), totalCount.get());
+                                    }
+                                });
+                            }
+                        }
+                    }));
                 }
-                catch (RuntimeException e) {
-                    exception = e;
+                executor.shutdown();
+                for (Future<?> future : futures) {
+                    try {
+                        future.get();
+                    }
+                    catch (ExecutionException e) {
+                        if (e.getCause() instanceof RuntimeException) {
+                            exception = (RuntimeException) e.getCause();
+                        } else {
+                            exception = new RuntimeException(e.getCause());
+                        }
+                    }
+                    catch (InterruptedException e) {
+                        exception = new RuntimeException(e);
+                    }
                 }
-                redoStack.clear(); // TODO: currently this is required, otherwise redo/undo will not work properly
-                undoStack.clear();
                 return null;
             }
 
+            @Override
+            protected void onProgressUpdate(Integer... progress) {
+                dialog.setMessage("Saving... " + progress[0] + "/" + progress[1]);
+            }
+
             @Override
             protected void onPostExecute(final Void result) {
                 super.onPostExecute(result);
                 dialog.dismiss();
+                journal.clear(); // TODO: currently this is required, otherwise redo/undo will not work properly
+                snapIndex.clear();
                 if (exception != null) {
                     Toast.makeText(EditableMapActivityBase.this, "Failed to save: " + exception.getMessage(), Toast.LENGTH_LONG).show();
                 }
@@ -651,11 +696,48 @@ public abstract class EditableMapActivityBase extends Activity {
         for (EditableGeometryLayer layer : getEditableLayers()) {
             layer.discardChanges();
         }
-        redoStack.clear(); // TODO: currently this is required, otherwise redo/undo will not work properly
-        undoStack.clear();
+        journal.clear(); // TODO: currently this is required, otherwise redo/undo will not work properly
+        snapIndex.clear();
         updateUIButtons();
     }
 
+    private void updateSnapIndex(float x, float y) {
+        // convert snapping distance from screen pixels to map units at the touch point
+        MapPos mapPos0 = mapView.screenToWorld(x, y);
+        MapPos mapPos1 = mapView.screenToWorld(x + SNAP_DISTANCE, y);
+        snapDistance = Math.sqrt((mapPos1.x - mapPos0.x) * (mapPos1.x - mapPos0.x) + (mapPos1.y - mapPos0.y) * (mapPos1.y - mapPos0.y));
+
+        // rebuild grid only if zoom level has changed significantly
+        if (snapDistance > 0 && (snapIndex.getCellSize() > snapDistance * 4 || snapIndex.getCellSize() < snapDistance / 4)) {
+            snapIndex.setCellSize(snapDistance);
+        }
+
+        // add newly loaded elements and drop elements that are not visible anymore
+        List<Geometry> elements = new ArrayList<Geometry>();
+        for (EditableGeometryLayer layer : getEditableLayers()) {
+            List<Geometry> visibleElements = layer.getVisibleElements();
+            if (visibleElements != null) {
+                elements.addAll(visibleElements);
+            }
+        }
+        long startTime = System.nanoTime();
+        snapIndex.sync(elements);
+        Log.debug("EditableMapActivityBase: snap index synced with " + elements.size() + " elements in " + (System.nanoTime() - startTime) / 1000 + " us");
+    }
+
+    private List<MapPos> getElementVertices(Geometry element) {
+        if (element instanceof Point) {
+            List<MapPos> mapPoses = new ArrayList<MapPos>();
+            mapPoses.add(((Point) element).getMapPos());
+            return mapPoses;
+        } else if (element instanceof Line) {
+            return ((Line) element).getVertexList();
+        } else if (element instanceof Polygon) {
+            return ((Polygon) element).getVertexList();
+        }
+        return new ArrayList<MapPos>();
+    }
+
     private void addPoint(VectorElement element) {
         if (element instanceof Line) {
             Line line = (Line) element;
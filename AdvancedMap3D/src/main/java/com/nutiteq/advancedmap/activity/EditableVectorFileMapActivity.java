@@ -12,11 +12,12 @@ import java.util.Map;
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.content.DialogInterface;
-import android.graphics.Typeface;
 import android.os.Bundle;
 import android.util.DisplayMetrics;
 import android.widget.Toast;
 
+import com.nutiteq.advancedmap.style.AttributeLabel;
+import com.nutiteq.advancedmap.style.StyleCache;
 import com.nutiteq.components.Bounds;
 import com.nutiteq.components.Color;
 import com.nutiteq.components.Envelope;
@@ -40,7 +41,6 @@ import com.nutiteq.style.LineStyle;
 import com.nutiteq.style.PointStyle;
 import com.nutiteq.style.PolygonStyle;
 import com.nutiteq.style.StyleSet;
-import com.nutiteq.ui.DefaultLabel;
 import com.nutiteq.ui.Label;
 
 /**
@@ -63,6 +63,7 @@ import com.nutiteq.ui.Label;
  *
  */
 public class EditableVectorFileMapActivity extends EditableMapActivityBase implements FilePickerActivity {
+    // Limit for the number of vector elements that are loaded per tile, data is streamed tile by tile
     // about 2000 lines/polygons for high-end devices is fine, for older devices <1000
     // for points 5000 would work fine with almost any device
     private static final int MAX_ELEMENTS = 500;
@@ -245,13 +246,7 @@ public class EditableVectorFileMapActivity extends EditableMapActivityBase imple
         PolygonStyle polygonStyle = PolygonStyle.builder().setColor(Color.BLUE | Color.GREEN).build();
         polygonStyleSet.setZoomStyle(0, polygonStyle);
 
-        labelStyle = 
-                LabelStyle.builder()
-                .setEdgePadding((int) (12 * dpi))
-                .setLinePadding((int) (6 * dpi))
-                .setTitleFont(Typeface.create("Arial", Typeface.BOLD), (int) (16 * dpi))
-                .setDescriptionFont(Typeface.create("Arial", Typeface.NORMAL), (int) (13 * dpi))
-                .build();
+        labelStyle = StyleCache.getInstance().getAttributeLabelStyle(dpi);
     }
 
     private void createEditableOGRLayers(String dbPath) {
@@ -287,7 +282,7 @@ public class EditableVectorFileMapActivity extends EditableMapActivityBase imple
             return;
         }
         dataSource.setMaxElements(MAX_ELEMENTS);
-        EditableGeometryLayer dbEditableLayer = new EditableGeometryLayer(dataSource);
+        EditableGeometryLayer dbEditableLayer = new EditableGeometryLayer(new EditableStreamingVectorDataSource(dataSource));
         mapView.getLayers().addLayer(dbEditableLayer);
 
         // zoom map to data extent
@@ -326,7 +321,7 @@ public class EditableVectorFileMapActivity extends EditableMapActivityBase imple
 
         };
         dataSource.setMaxElements(MAX_ELEMENTS);
-        EditableGeometryLayer dbEditableLayer = new EditableGeometryLayer(dataSource);
+        EditableGeometryLayer dbEditableLayer = new EditableGeometryLayer(new EditableStreamingVectorDataSource(dataSource));
         mapView.getLayers().addLayer(dbEditableLayer);
 
         // zoom map to data extent
@@ -335,11 +330,7 @@ public class EditableVectorFileMapActivity extends EditableMapActivityBase imple
     }
 
     private Label createLabel(Map<String, String> userData) {
-        StringBuffer labelTxt = new StringBuffer();
-        for(Map.Entry<String, String> entry : userData.entrySet()){
-            labelTxt.append(entry.getKey() + ": " + entry.getValue() + "\n");
-        }
-        return new DefaultLabel("Data:", labelTxt.toString(), labelStyle);
+        return new AttributeLabel("Data:", userData, labelStyle);
     }
 
     // Methods for FilePicker
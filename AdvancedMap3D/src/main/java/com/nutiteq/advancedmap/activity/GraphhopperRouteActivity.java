@@ -2,14 +2,11 @@ package com.nutiteq.advancedmap.activity;
 
 import java.io.File;
 import java.io.FileFilter;
-import java.util.ArrayList;
-import java.util.List;
 
 import org.mapsforge.map.reader.MapDatabase;
 import org.mapsforge.map.reader.header.FileOpenResult;
 import org.mapsforge.map.reader.header.MapFileInfo;
 import org.mapsforge.map.rendertheme.InternalRenderTheme;
-import org.mapsforge.map.rendertheme.XmlRenderTheme;
 
 import android.app.Activity;
 import android.graphics.Bitmap;
@@ -21,13 +18,15 @@ import android.view.View;
 import android.widget.Toast;
 import android.widget.ZoomControls;
 
-import com.graphhopper.GHRequest;
 import com.graphhopper.GHResponse;
-import com.graphhopper.GraphHopper;
-import com.graphhopper.util.PointList;
 import com.graphhopper.util.StopWatch;
 import com.nutiteq.MapView;
 import com.nutiteq.advancedmap.R;
+import com.nutiteq.advancedmap.datasources.CompiledRenderTheme;
+import com.nutiteq.advancedmap.datasources.PooledMapsforgeRasterDataSource;
+import com.nutiteq.advancedmap.datasources.ThemeFilteringMapDatabase;
+import com.nutiteq.advancedmap.graphhopper.GraphHopperService;
+import com.nutiteq.advancedmap.graphhopper.RouteLine;
 import com.nutiteq.advancedmap.maplisteners.RouteMapEventListener;
 import com.nutiteq.components.Bounds;
 import com.nutiteq.components.Components;
@@ -50,7 +49,6 @@ import com.nutiteq.utils.UnscaledBitmapLoader;
 import com.nutiteq.vectorlayers.GeometryLayer;
 import com.nutiteq.vectorlayers.MarkerLayer;
 
-import com.nutiteq.datasources.raster.MapsforgeRasterDataSource;
 /**
  * 
  * 
@@ -66,13 +64,14 @@ import com.nutiteq.datasources.raster.MapsforgeRasterDataSource;
 public class GraphhopperRouteActivity extends Activity implements FilePickerActivity, RouteActivity{
 
     private MapView mapView;
-    private GraphHopper gh;
+    private GraphHopperService routingService;
     protected boolean errorLoading;
     protected boolean graphLoaded;
     protected boolean shortestPathRunning;
     private GeometryLayer routeLayer;
     private Marker startMarker;
     private Marker stopMarker;
+    private PooledMapsforgeRasterDataSource dataSource;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -93,16 +92,14 @@ public class GraphhopperRouteActivity extends Activity implements FilePickerActi
             // just restore configuration, skip other initializations
             mapView.setComponents(retainObject);
             // add event listener
-            RouteMapEventListener mapListener = new RouteMapEventListener(this);
-            mapView.getOptions().setMapListener(mapListener);
+            mapView.getOptions().setMapListener(createMapListener());
             return;
         } else {
             // 2. create and set MapView components - mandatory
             Components components = new Components();
             mapView.setComponents(components);
             // add event listener
-            RouteMapEventListener mapListener = new RouteMapEventListener(this);
-            mapView.getOptions().setMapListener(mapListener);
+            mapView.getOptions().setMapListener(createMapListener());
         }
 
         // read filename from extras
@@ -110,8 +107,8 @@ public class GraphhopperRouteActivity extends Activity implements FilePickerActi
         String mapFilePath = b.getString("selectedFile");
 
         //  use mapsforge as offline base map
-        XmlRenderTheme renderTheme = InternalRenderTheme.OSMARENDER;
-        MapDatabase mapDatabase = new MapDatabase();
+        CompiledRenderTheme renderTheme = new CompiledRenderTheme(InternalRenderTheme.OSMARENDER, new File(getCacheDir(), "osmarender.theme"));
+        MapDatabase mapDatabase = new ThemeFilteringMapDatabase(renderTheme.getIndex());
         mapDatabase.closeFile();
         File mapFile = new File("/" + mapFilePath);
         FileOpenResult fileOpenResult = mapDatabase.openFile(mapFile);
@@ -119,7 +116,7 @@ public class GraphhopperRouteActivity extends Activity implements FilePickerActi
             Log.debug("MapsforgeRasterDataSource: MapDatabase opened ok: " + mapFilePath);
         }
 
-        MapsforgeRasterDataSource dataSource =  new MapsforgeRasterDataSource(new EPSG3857(), 0, 20, mapFile, mapDatabase, renderTheme, this.getApplication());
+        dataSource = new PooledMapsforgeRasterDataSource(new EPSG3857(), 0, 20, mapFile, mapDatabase, renderTheme, this.getApplication());
         RasterLayer mapLayer = new RasterLayer(dataSource, mapFile.hashCode());
 
         mapView.getLayers().setBaseLayer(mapLayer);
@@ -205,6 +202,9 @@ public class GraphhopperRouteActivity extends Activity implements FilePickerActi
         // set persistent raster cache limit to 100MB
         mapView.getOptions().setPersistentCacheSize(100 * 1024 * 1024);
 
+        // several tiles must be requested at once, so that render workers have work and can pick the most important tile
+        mapView.getOptions().setRasterTaskPoolSize(4);
+
         // 4. zoom buttons using Android widgets - optional
         // get the zoomcontrols that was defined in main.xml
         ZoomControls zoomControls = (ZoomControls) findViewById(R.id.zoomcontrols);
@@ -221,6 +221,17 @@ public class GraphhopperRouteActivity extends Activity implements FilePickerActi
         });
     }
 
+    // route clicks, and visible area for the render workers of the base map
+    private RouteMapEventListener createMapListener() {
+        return new RouteMapEventListener(this) {
+            @Override
+            public void onMapMoved() {
+                // called also from non-UI thread
+                PooledMapsforgeRasterDataSource.updateVisibleArea(mapView);
+            }
+        };
+    }
+
     @Override
     protected void onStart() {
         mapView.startMapping();
@@ -233,6 +244,25 @@ public class GraphhopperRouteActivity extends Activity implements FilePickerActi
         mapView.stopMapping();
     }
 
+    @Override
+    public void onLowMemory() {
+        // road network copies of matrix and isochrone calculations are made again when needed, mapped graph stays loaded
+        if (routingService != null) {
+            routingService.releaseRoutingGraphs();
+        }
+        super.onLowMemory();
+    }
+
+    @Override
+    protected void onDestroy() {
+        // stop render workers and close map databases
+        if (dataSource != null) {
+            dataSource.shutdown();
+            dataSource.getMapDatabase().closeFile();
+        }
+        super.onDestroy();
+    }
+
     @Override
     public void showRoute(final double fromLat, final double fromLon,
             final double toLat, final double toLon) {
@@ -253,11 +283,7 @@ public class GraphhopperRouteActivity extends Activity implements FilePickerActi
 
             protected GHResponse doInBackground(Void... v) {
                 StopWatch sw = new StopWatch().start();
-                GHRequest req = new GHRequest(fromLat, fromLon, toLat, toLon)
-                .setAlgorithm("dijkstrabi")
-                .putHint("instructions", false)
-                .putHint("douglas.minprecision", 1);
-                GHResponse resp = gh.route(req);
+                GHResponse resp = routingService.route(fromLat, fromLon, toLat, toLon);
                 time = sw.stop().getSeconds();
                 return resp;
             }
@@ -280,39 +306,28 @@ public class GraphhopperRouteActivity extends Activity implements FilePickerActi
     }
 
 
-    // creates Nutiteq line from GraphHopper response
+    // creates Nutiteq line from GraphHopper response, simplified for the current zoom level
     protected Line createPolyline(MapPos start, MapPos end, GHResponse response) {
 
         StyleSet<LineStyle> lineStyleSet = new StyleSet<LineStyle>(LineStyle.builder().setWidth(0.05f).setColor(Color.BLUE).build());
 
         Projection proj = mapView.getLayers().getBaseLayer().getProjection();
-        int points = response.getPoints().getSize();
-        List<MapPos> geoPoints = new ArrayList<MapPos>(points+2);
-        PointList tmp = response.getPoints();
-        geoPoints.add(start);
-        for (int i = 0; i < points; i++) {
-            geoPoints.add(proj.fromWgs84(tmp.getLongitude(i), tmp.getLatitude(i)));
-        }
-        geoPoints.add(end);
 
         String labelText = "" + (int) (response.getDistance() / 100) / 10f
                 + "km, time:" + response.getTime() / 60f + "min";
 
-        return new Line(geoPoints, new DefaultLabel("Route", labelText), lineStyleSet, null);
+        return new RouteLine(start, end, response.getPoints(), proj, new DefaultLabel("Route", labelText), lineStyleSet, null);
     }
 
-    // opens GraphHopper graph file
+    // opens GraphHopper graph file, graph is shared by all activities and loaded only once per process
     void openGraph(final String graphFile) {
         Log.debug("loading graph (" + graphFile
                 + ") ... ");
+        routingService = GraphHopperService.getInstance(graphFile);
         new AsyncTask<Void, Void, Path>() {
             protected Path doInBackground(Void... v) {
                 try {
-                    GraphHopper tmpHopp = new GraphHopper().forMobile();
-                    tmpHopp.setCHShortcuts("fastest");
-                    tmpHopp.load(graphFile);
-                    Log.debug("found graph with " + tmpHopp.getGraph().getNodes() + " nodes");
-                    gh = tmpHopp;
+                    routingService.load();
                     graphLoaded = true;
                 } catch (Throwable t) {
                     Log.error(t.getMessage());
@@ -324,7 +339,7 @@ public class GraphhopperRouteActivity extends Activity implements FilePickerActi
 
             protected void onPostExecute(Path o) {
                 if(graphLoaded)
-                    Toast.makeText(getApplicationContext(), "graph loaded, click on map to set route start and end", Toast.LENGTH_SHORT).show();
+                    Toast.makeText(getApplicationContext(), "graph loaded in " + routingService.getLoadTime() + " ms, click on map to set route start and end", Toast.LENGTH_SHORT).show();
                 else
                     Toast.makeText(getApplicationContext(), "graph loading problem", Toast.LENGTH_SHORT).show();
             }
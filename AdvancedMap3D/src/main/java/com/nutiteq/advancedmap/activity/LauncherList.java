@@ -47,6 +47,8 @@ public class LauncherList extends ListActivity{
             {WfsMapActivity.class, null},
             {com.nutiteq.fragmentmap.FragmentMapActivity.class,null},
             {CompassMapActivity.class,null},
+            {ClusterBenchmarkActivity.class,null},
+            {RoutingBenchmarkActivity.class,FilePicker.class},
     };
 
     @Override
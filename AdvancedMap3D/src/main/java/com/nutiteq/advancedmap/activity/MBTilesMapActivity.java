@@ -11,18 +11,28 @@ import android.graphics.Color;
 import android.os.Bundle;
 import android.os.Handler;
 import android.util.DisplayMetrics;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
 import android.webkit.WebView;
 import android.webkit.WebViewClient;
 import android.widget.RelativeLayout;
+import android.widget.Toast;
 import android.widget.ZoomControls;
 
 import com.nutiteq.MapView;
 import com.nutiteq.advancedmap.R;
+import com.nutiteq.advancedmap.datasources.IndexedUTFGridDataSource;
+import com.nutiteq.advancedmap.datasources.MBTilesWriter;
+import com.nutiteq.advancedmap.datasources.MappedTileArchiveRasterDataSource;
+import com.nutiteq.advancedmap.datasources.RasterTileSeeder;
+import com.nutiteq.advancedmap.datasources.TileArchiveWriter;
 import com.nutiteq.advancedmap.maplisteners.UTFGridLayerEventListener;
 import com.nutiteq.components.Bounds;
 import com.nutiteq.components.Components;
+import com.nutiteq.components.Envelope;
 import com.nutiteq.components.MapPos;
+import com.nutiteq.components.MapTile;
 import com.nutiteq.components.Options;
 import com.nutiteq.datasources.raster.MBTilesRasterDataSource;
 import com.nutiteq.filepicker.FilePickerActivity;
@@ -30,6 +40,8 @@ import com.nutiteq.geometry.Marker;
 import com.nutiteq.layers.raster.UTFGridRasterLayer;
 import com.nutiteq.log.Log;
 import com.nutiteq.projections.EPSG3857;
+import com.nutiteq.rasterdatasources.HTTPRasterDataSource;
+import com.nutiteq.rasterdatasources.RasterDataSource;
 import com.nutiteq.style.MarkerStyle;
 import com.nutiteq.ui.Label;
 import com.nutiteq.ui.ViewLabel;
@@ -49,12 +61,25 @@ import com.nutiteq.vectorlayers.MarkerLayer;
  * You need to pre-download a MBTiles file to SDCard to use this layer. 
  * See https://github.com/nutiteq/hellomap3d/wiki/Offline-map-tiles for details
  * 
+ * Options menu allows to download visible area of online OpenStreetMap into a new MBTiles file
+ * next to the opened file, written with MBTilesWriter. Write speed is logged when download finishes.
+ * 
+ * Options menu also exports the file to a memory-mapped tile archive (<file>.ntta). When the archive exists,
+ * raster tiles are read from it, UTFGrid data still comes from the MBTiles file. Time to open the tile source
+ * and to read the first tile is logged on start, so both can be compared.
+ * 
  * @author jaak
  *
  */
 public class MBTilesMapActivity extends Activity implements FilePickerActivity{
+    private static final int MENU_DOWNLOAD = 1;
+    private static final int MENU_EXPORT_ARCHIVE = 2;
+    // number of zoom levels below current zoom to download
+    private static final int DOWNLOAD_ZOOM_LEVELS = 2;
+    private static final long DOWNLOAD_BYTE_BUDGET = 8 * 1024 * 1024;
 
     private MapView mapView;
+    private RasterTileSeeder seeder;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -95,8 +120,23 @@ public class MBTilesMapActivity extends Activity implements FilePickerActivity{
             Bundle b = getIntent().getExtras();
             String file = b.getString("selectedFile");
 
+            long startTime = System.nanoTime();
             MBTilesRasterDataSource dataSource = new MBTilesRasterDataSource(new EPSG3857(), 0, 19, file, false, this);
-            UTFGridRasterLayer dbLayer = new UTFGridRasterLayer(dataSource, dataSource, file.hashCode());
+            long openTime = System.nanoTime() - startTime;
+
+            // read raster tiles from the memory-mapped archive, if it is exported from this file
+            RasterDataSource tileDataSource = dataSource;
+            File archiveFile = getArchiveFile(file);
+            if (archiveFile.exists() && archiveFile.lastModified() >= new File(file).lastModified()) {
+                try {
+                    startTime = System.nanoTime();
+                    tileDataSource = new MappedTileArchiveRasterDataSource(new EPSG3857(), 0, 19, archiveFile);
+                    openTime = System.nanoTime() - startTime;
+                } catch (IOException e) {
+                    Log.error("MBTilesMapActivity: could not open " + archiveFile + ": " + e.getMessage());
+                }
+            }
+            UTFGridRasterLayer dbLayer = new UTFGridRasterLayer(tileDataSource, new IndexedUTFGridDataSource(dataSource), file.hashCode());
             mapView.getLayers().setBaseLayer(dbLayer);
 
             HashMap<String, String> dbMetaData = dataSource.getDatabase().getMetadata();
@@ -126,6 +166,7 @@ public class MBTilesMapActivity extends Activity implements FilePickerActivity{
                 mapView.setZoom(5.0f);
 
             }
+            logColdStart(tileDataSource, openTime);
 
             // add a layer and marker for click labels
             // define small invisible Marker, as Label requires some Marker 
@@ -232,6 +273,139 @@ public class MBTilesMapActivity extends Activity implements FilePickerActivity{
         mapView.stopMapping();
     }
 
+    @Override
+    protected void onDestroy() {
+        if (seeder != null) {
+            seeder.cancel();
+        }
+        super.onDestroy();
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        menu.add(Menu.NONE, MENU_DOWNLOAD, Menu.NONE, "Download visible area to MBTiles");
+        menu.add(Menu.NONE, MENU_EXPORT_ARCHIVE, Menu.NONE, "Export to tile archive");
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == MENU_DOWNLOAD) {
+            downloadVisibleArea();
+            return true;
+        }
+        if (item.getItemId() == MENU_EXPORT_ARCHIVE) {
+            exportArchive();
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    // cold start: time to open the tile data source and to read the tile at the initial view center
+    private void logColdStart(RasterDataSource dataSource, long openTime) {
+        MapPos focusPoint = mapView.getFocusPoint();
+        Bounds bounds = dataSource.getProjection().getBounds();
+        int zoom = (int) mapView.getZoom();
+        int tileX = (int) ((focusPoint.x - bounds.left) / bounds.getWidth() * (1 << zoom));
+        int tileY = (int) ((Math.max(bounds.top, bounds.bottom) - focusPoint.y) / Math.abs(bounds.getHeight()) * (1 << zoom));
+        long startTime = System.nanoTime();
+        dataSource.loadTile(new MapTile(tileX, tileY, zoom, 0));
+        long tileTime = System.nanoTime() - startTime;
+        Log.info("MBTilesMapActivity: tiles from " + (dataSource instanceof MappedTileArchiveRasterDataSource ? "archive" : "MBTiles")
+                + ", open " + openTime / 1000 + " us, first tile " + tileTime / 1000 + " us");
+    }
+
+    private static File getArchiveFile(String file) {
+        return new File(file + ".ntta");
+    }
+
+    // exports the opened file to a tile archive in background, the archive is used when the file is opened next time
+    private void exportArchive() {
+        final File file = new File(getIntent().getExtras().getString("selectedFile"));
+        final File archiveFile = getArchiveFile(file.getPath());
+        Toast.makeText(this, "Exporting to " + archiveFile.getName(), Toast.LENGTH_SHORT).show();
+        Thread exporter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long startTime = System.currentTimeMillis();
+                String message;
+                try {
+                    TileArchiveWriter.exportMBTiles(file, archiveFile);
+                    Log.info("MBTilesMapActivity: exported " + archiveFile + " in " + (System.currentTimeMillis() - startTime) + " ms");
+                    message = "Exported, open the file again to use the archive";
+                } catch (RuntimeException e) {
+                    Log.error("MBTilesMapActivity: export failed: " + e.getMessage());
+                    message = "Export failed";
+                }
+                final String finalMessage = message;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Toast.makeText(getApplicationContext(), finalMessage, Toast.LENGTH_LONG).show();
+                    }
+                });
+            }
+        });
+        exporter.setPriority(Thread.MIN_PRIORITY);
+        exporter.start();
+    }
+
+    // downloads visible area of online map from current zoom to DOWNLOAD_ZOOM_LEVELS deeper into a new MBTiles file
+    private void downloadVisibleArea() {
+        if (seeder != null && seeder.isRunning()) {
+            seeder.cancel();
+            Toast.makeText(this, "Download stopped", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        String file = getIntent().getExtras().getString("selectedFile");
+        final File downloadFile = new File(file.replaceFirst("(\\.[^./]*)?$", "") + "-download.mbtiles");
+        final MBTilesWriter writer = new MBTilesWriter(downloadFile);
+        writer.open();
+
+        // all four corners, as the view can be rotated
+        Envelope envelope = new Envelope(new MapPos[] { mapView.screenToWorld(0, 0), mapView.screenToWorld(mapView.getWidth(), 0),
+                mapView.screenToWorld(0, mapView.getHeight()), mapView.screenToWorld(mapView.getWidth(), mapView.getHeight()) });
+        Bounds bounds = new Bounds(envelope.minX, envelope.maxY, envelope.maxX, envelope.minY);
+        final int zoom = (int) mapView.getZoom();
+        MapPos center = mapView.getLayers().getBaseProjection().toWgs84(mapView.getFocusPoint().x, mapView.getFocusPoint().y);
+        writer.setCenter(center.x, center.y, zoom);
+
+        HTTPRasterDataSource onlineDataSource = new HTTPRasterDataSource(new EPSG3857(), 0, 18, "http://otile1.mqcdn.com/tiles/1.0.0/osm/{zoom}/{x}/{y}.png");
+        seeder = new RasterTileSeeder(onlineDataSource, writer, new File(downloadFile.getPath() + ".progress"));
+        seeder.setByteBudget(DOWNLOAD_BYTE_BUDGET);
+        final long startTime = System.currentTimeMillis();
+        seeder.start(bounds, zoom, zoom + DOWNLOAD_ZOOM_LEVELS, new RasterTileSeeder.ProgressListener() {
+            @Override
+            public void onProgress(final long completedTiles, final long totalTiles, long downloadedBytes) {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        setTitle("Downloading " + completedTiles + "/" + totalTiles);
+                    }
+                });
+            }
+
+            @Override
+            public void onFinished(final boolean complete, final int failedTiles) {
+                writer.close();
+                long time = System.currentTimeMillis() - startTime;
+                Log.info("MBTilesMapActivity: downloaded " + writer.getTileCount() + " tiles in " + time + " ms, "
+                        + writer.getDuplicateCount() + " duplicates, writing " + Math.round(writer.getTilesPerSecond()) + " tiles/s");
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        String message = (complete ? "Area saved to " : "Download stopped, saved to ") + downloadFile.getName();
+                        if (failedTiles > 0) {
+                            message += ", " + failedTiles + " tiles failed";
+                        }
+                        Toast.makeText(getApplicationContext(), message, Toast.LENGTH_LONG).show();
+                    }
+                });
+            }
+        });
+    }
+
     public MapView getMapView() {
         return mapView;
     }
@@ -16,6 +16,7 @@ import android.widget.ZoomControls;
 
 import com.nutiteq.MapView;
 import com.nutiteq.advancedmap.R;
+import com.nutiteq.advancedmap.datasources.IndexedUTFGridDataSource;
 import com.nutiteq.advancedmap.maplisteners.UTFGridLayerEventListener;
 import com.nutiteq.components.Components;
 import com.nutiteq.components.MapPos;
@@ -150,7 +151,7 @@ public class MapBoxMapActivity extends Activity {
 
         // MapBox Satellite
         MBOnlineRasterDataSource dataSource = new MBOnlineRasterDataSource(new EPSG3857(), 0, 19, MAPBOX_ACCOUNT, MAPBOX_MAPID);
-        UTFGridRasterLayer mapLayer = new UTFGridRasterLayer(dataSource, dataSource, 334);
+        UTFGridRasterLayer mapLayer = new UTFGridRasterLayer(dataSource, new IndexedUTFGridDataSource(dataSource), 334);
 
         mapView.getLayers().setBaseLayer(mapLayer);
 
@@ -7,7 +7,6 @@ import org.mapsforge.map.reader.MapDatabase;
 import org.mapsforge.map.reader.header.FileOpenResult;
 import org.mapsforge.map.reader.header.MapFileInfo;
 import org.mapsforge.map.rendertheme.InternalRenderTheme;
-import org.mapsforge.map.rendertheme.XmlRenderTheme;
 
 import android.app.Activity;
 import android.graphics.Color;
@@ -19,16 +18,20 @@ import android.widget.ZoomControls;
 
 import com.nutiteq.MapView;
 import com.nutiteq.advancedmap.R;
+import com.nutiteq.advancedmap.datasources.CompiledRenderTheme;
+import com.nutiteq.advancedmap.datasources.PooledMapsforgeRasterDataSource;
+import com.nutiteq.advancedmap.datasources.ThemeFilteringMapDatabase;
 import com.nutiteq.components.Bounds;
 import com.nutiteq.components.Components;
 import com.nutiteq.components.MapPos;
 import com.nutiteq.components.Options;
 import com.nutiteq.filepicker.FilePickerActivity;
+import com.nutiteq.geometry.VectorElement;
 import com.nutiteq.log.Log;
 import com.nutiteq.projections.EPSG3857;
 import com.nutiteq.rasterlayers.RasterLayer;
+import com.nutiteq.ui.MapListener;
 import com.nutiteq.utils.UnscaledBitmapLoader;
-import com.nutiteq.datasources.raster.MapsforgeRasterDataSource;
 
 /**
  * 
@@ -40,6 +43,9 @@ import com.nutiteq.datasources.raster.MapsforgeRasterDataSource;
  * You need to preload .map file to SDCard for using this layer. See
  * https://github.com/nutiteq/hellomap3d/wiki/Mapsforge-layer for details
  * 
+ * Tiles are rendered in parallel by PooledMapsforgeRasterDataSource, visible tiles first,
+ * and rendered tiles are kept in the persistent cache of MapView, under a layer id per map file.
+ * 
  * @author jaak
  * 
  */
@@ -47,6 +53,7 @@ public class MapsForgeMapActivity extends Activity implements FilePickerActivity
 
     private MapView mapView;
     private float dpi;
+    private PooledMapsforgeRasterDataSource dataSource;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -74,6 +81,7 @@ public class MapsForgeMapActivity extends Activity implements FilePickerActivity
         if (retainObject != null) {
             // just restore configuration, skip other initializations
             mapView.setComponents(retainObject);
+            setMapListener();
             return;
         } else {
             // 2. create and set MapView components - mandatory
@@ -88,11 +96,12 @@ public class MapsForgeMapActivity extends Activity implements FilePickerActivity
         Bundle b = getIntent().getExtras();
         String mapFilePath = b.getString("selectedFile");
 
-        XmlRenderTheme renderTheme = InternalRenderTheme.OSMARENDER;
-        // XmlRenderTheme renderTheme = new AssetsRenderTheme(this, "",
-        // "renderthemes/assets_noname.xml");
+        // theme is parsed once and cached in compiled form, used tags are indexed for filtering map data
+        CompiledRenderTheme renderTheme = new CompiledRenderTheme(InternalRenderTheme.OSMARENDER, new File(getCacheDir(), "osmarender.theme"));
+        // CompiledRenderTheme renderTheme = new CompiledRenderTheme(new AssetsRenderTheme(this, "",
+        // "renderthemes/assets_noname.xml"), "assets_noname", new File(getCacheDir(), "assets_noname.theme"));
 
-        MapDatabase mapDatabase = new MapDatabase();
+        MapDatabase mapDatabase = new ThemeFilteringMapDatabase(renderTheme.getIndex());
         mapDatabase.closeFile();
         File mapFile = new File("/" + mapFilePath);
         FileOpenResult fileOpenResult = mapDatabase.openFile(mapFile);
@@ -100,9 +109,11 @@ public class MapsForgeMapActivity extends Activity implements FilePickerActivity
             Log.debug("MapsforgeRasterDataSource: MapDatabase opened ok: " + mapFilePath);
         }
 
-        MapsforgeRasterDataSource dataSource = new MapsforgeRasterDataSource(new EPSG3857(), 0, 20, mapFile, mapDatabase, renderTheme, this.getApplication());
-        RasterLayer mapLayer = new RasterLayer(dataSource, 1044);
+        dataSource = new PooledMapsforgeRasterDataSource(new EPSG3857(), 0, 20, mapFile, mapDatabase, renderTheme, this.getApplication());
+        // layer id is used as persistent cache key, so rendered tiles of different map files are kept apart
+        RasterLayer mapLayer = new RasterLayer(dataSource, mapFile.hashCode());
         mapView.getLayers().setBaseLayer(mapLayer);
+        setMapListener();
 
         // set initial map view camera from database
         MapFileInfo mapFileInfo = dataSource.getMapDatabase().getMapFileInfo();
@@ -157,11 +168,12 @@ public class MapsForgeMapActivity extends Activity implements FilePickerActivity
 
         // define online map persistent caching - optional, suggested. Default -
         // no caching
-        // mapView.getOptions().setPersistentCachePath(this.getDatabasePath("mapcache").getPath());
+        mapView.getOptions().setPersistentCachePath(this.getDatabasePath("mapcache").getPath());
         // set persistent raster cache limit to 100MB
         mapView.getOptions().setPersistentCacheSize(100 * 1024 * 1024);
 
-        mapView.getOptions().setRasterTaskPoolSize(1);
+        // several tiles must be requested at once, so that render workers have work and can pick the most important tile
+        mapView.getOptions().setRasterTaskPoolSize(4);
 
         // 4. zoom buttons using Android widgets - optional
         // get the zoomcontrols that was defined in main.xml
@@ -192,6 +204,16 @@ public class MapsForgeMapActivity extends Activity implements FilePickerActivity
         mapView.stopMapping();
     }
 
+    @Override
+    protected void onDestroy() {
+        // stop render workers and close map databases
+        if (dataSource != null) {
+            dataSource.shutdown();
+            dataSource.getMapDatabase().closeFile();
+        }
+        super.onDestroy();
+    }
+
     @Override
     public FileFilter getFileFilter() {
         return new FileFilter() {
@@ -216,6 +238,28 @@ public class MapsForgeMapActivity extends Activity implements FilePickerActivity
         return mapView;
     }
 
+    private void setMapListener() {
+        mapView.getOptions().setMapListener(new MapListener() {
+            @Override
+            public void onMapMoved() {
+                // called also from non-UI thread
+                PooledMapsforgeRasterDataSource.updateVisibleArea(mapView);
+            }
+
+            @Override
+            public void onMapClicked(double x, double y, boolean longClick) {
+            }
+
+            @Override
+            public void onVectorElementClicked(VectorElement vectorElement, double x, double y, boolean longClick) {
+            }
+
+            @Override
+            public void onLabelClicked(VectorElement vectorElement, boolean longClick) {
+            }
+        });
+    }
+
     @Override
     public String getFileSelectMessage() {
         return "Select MapsForge .map file";
@@ -0,0 +1,272 @@
+package com.nutiteq.advancedmap.activity;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.Random;
+
+import android.app.Activity;
+import android.graphics.Color;
+import android.os.Bundle;
+
+import com.graphhopper.GHResponse;
+import com.graphhopper.util.shapes.BBox;
+import com.nutiteq.MapView;
+import com.nutiteq.advancedmap.R;
+import com.nutiteq.advancedmap.graphhopper.GraphHopperService;
+import com.nutiteq.advancedmap.graphhopper.IsochroneEngine;
+import com.nutiteq.advancedmap.graphhopper.RoutingMatrix;
+import com.nutiteq.components.Components;
+import com.nutiteq.components.MapTile;
+import com.nutiteq.components.TileBitmap;
+import com.nutiteq.filepicker.FilePickerActivity;
+import com.nutiteq.log.Log;
+import com.nutiteq.projections.EPSG3857;
+import com.nutiteq.rasterdatasources.AbstractRasterDataSource;
+import com.nutiteq.rasterlayers.RasterLayer;
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Benchmark of offline routing calculations on a GraphHopper graph: RoutingMatrix and IsochroneEngine.
+ *
+ * Graph is loaded with GraphHopperService, as in GraphhopperRouteActivity. The first calculation copies the
+ * road network for searches outside of GraphHopper, its time and the Java heap used by the copy are measured.
+ * Then matrices of 10x10, 50x50 and 200x200 random points within the graph bounds are calculated, for each
+ * size the time, cells per second and number of reachable cells are recorded. The 10x10 matrix is also
+ * calculated with one GraphHopperService.route() call per cell, for comparison. Isochrones of 5, 15 and 30
+ * minutes are calculated from random origins, with times of the first and the repeated (cached) request.
+ *
+ * Results are written to the log with "routingbenchmark" tag, progress is shown in the title.
+ * Copies of the road network are released when the benchmark ends, the heap after release is logged too.
+ *
+ */
+public class RoutingBenchmarkActivity extends Activity implements FilePickerActivity {
+    private static final int[] MATRIX_SIZES = { 10, 50, 200 };
+    private static final int ROUTE_COMPARISON_SIZE = 10;
+    private static final double[] ISOCHRONE_TIMES = { 5 * 60, 15 * 60, 30 * 60 }; // seconds
+    private static final int ISOCHRONE_ORIGINS = 5;
+    private static final long SEED = 42;
+
+    private MapView mapView;
+    private String graphLocation;
+    private Thread benchmarkThread;
+    private volatile boolean stopped;
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        setContentView(R.layout.main);
+
+        // only results are logged, debug logging would slow down the measured code
+        Log.setTag("routingbenchmark");
+        Log.setShowInfo(true);
+        Log.setShowError(true);
+        Log.setShowDebug(false);
+
+        // 1. Get the MapView from the Layout xml - mandatory
+        mapView = (MapView) findViewById(R.id.mapView);
+
+        // 2. create and set MapView components - mandatory
+        // benchmark is always started from the beginning, so the components are not retained
+        Components components = new Components();
+        mapView.setComponents(components);
+
+        // 3. Define empty base map, map is not used by the benchmark
+        RasterLayer mapLayer = new RasterLayer(new AbstractRasterDataSource(new EPSG3857(), 0, 18) {
+            @Override
+            public TileBitmap loadTile(MapTile tile) {
+                return null;
+            }
+        }, 0);
+        mapView.getLayers().setBaseLayer(mapLayer);
+        mapView.getOptions().setClearColor(Color.WHITE);
+
+        // read filename from extras, graph is in the same folder as the .map file
+        String mapFilePath = getIntent().getExtras().getString("selectedFile");
+        String graphPath = mapFilePath.replace("-gh", "");
+        graphLocation = graphPath.substring(0, graphPath.lastIndexOf("/"));
+    }
+
+    @Override
+    protected void onStart() {
+        mapView.startMapping();
+        super.onStart();
+
+        stopped = false;
+        benchmarkThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runBenchmark();
+            }
+        });
+        benchmarkThread.start();
+    }
+
+    @Override
+    protected void onStop() {
+        stopped = true;
+        benchmarkThread.interrupt();
+        super.onStop();
+        mapView.stopMapping();
+    }
+
+    private void runBenchmark() {
+        GraphHopperService service = GraphHopperService.getInstance(graphLocation);
+        try {
+            showProgress("Benchmark: loading graph");
+            service.load();
+            Log.info("RoutingBenchmarkActivity: graph " + graphLocation + " loaded in " + service.getLoadTime() + " ms");
+
+            BBox bounds;
+            synchronized (service) {
+                bounds = service.getGraphHopper().getGraph().getBounds();
+            }
+
+            // first calculation copies the road network
+            showProgress("Benchmark: copying road network");
+            service.releaseRoutingGraphs();
+            long heapBefore = getUsedHeap();
+            RoutingMatrix matrix = new RoutingMatrix(service);
+            Random random = new Random(SEED);
+            matrix.calculate(new double[] { randomLat(random, bounds) }, new double[] { randomLon(random, bounds) },
+                    new double[] { randomLat(random, bounds) }, new double[] { randomLon(random, bounds) });
+            long heapUsed = getUsedHeap() - heapBefore;
+            Log.info("RoutingBenchmarkActivity: road network copy with first 1x1 matrix " + matrix.getLastCalculationTime() + " ms, heap "
+                    + heapUsed / 1024 + " KB");
+
+            Log.info("RoutingBenchmarkActivity: points, matrix ms, cells per second, reachable cells");
+            for (int size : MATRIX_SIZES) {
+                if (stopped) {
+                    return;
+                }
+                showProgress("Benchmark: " + size + "x" + size + " matrix");
+                runMatrix(service, matrix, random, bounds, size);
+            }
+
+            Log.info("RoutingBenchmarkActivity: isochrone minutes, first ms, cached ms, reachable nodes");
+            IsochroneEngine engine = new IsochroneEngine(service);
+            for (int i = 0; i < ISOCHRONE_ORIGINS && !stopped; i++) {
+                showProgress("Benchmark: isochrones from origin " + (i + 1));
+                runIsochrones(engine, random, bounds);
+            }
+
+            service.releaseRoutingGraphs();
+            engine = null;
+            matrix = null;
+            Log.info("RoutingBenchmarkActivity: heap after releasing road network copies " + (getUsedHeap() - heapBefore) / 1024 + " KB");
+            showProgress("Benchmark done, results are in the log");
+        } catch (InterruptedException e) {
+            Log.info("RoutingBenchmarkActivity: stopped");
+        } catch (RuntimeException e) {
+            Log.error("RoutingBenchmarkActivity: " + e.getMessage());
+            showProgress("Benchmark failed, see the log");
+        }
+    }
+
+    private void runMatrix(GraphHopperService service, RoutingMatrix matrix, Random random, BBox bounds, int size) {
+        double[] lats = new double[size];
+        double[] lons = new double[size];
+        for (int i = 0; i < size; i++) {
+            lats[i] = randomLat(random, bounds);
+            lons[i] = randomLon(random, bounds);
+        }
+        RoutingMatrix.Result result = matrix.calculate(lats, lons, lats, lons);
+        long time = matrix.getLastCalculationTime();
+        int reachable = 0;
+        for (double value : result.getTimes()) {
+            if (!Double.isInfinite(value)) {
+                reachable++;
+            }
+        }
+        Log.info("RoutingBenchmarkActivity: " + size + ", " + time + ", " + (long) size * size * 1000 / Math.max(1, time) + ", " + reachable);
+
+        if (size == ROUTE_COMPARISON_SIZE) {
+            // same cells with a route request each, cached routes would hide the search time
+            service.clearCache();
+            long startTime = System.currentTimeMillis();
+            int found = 0;
+            for (int i = 0; i < size; i++) {
+                for (int j = 0; j < size; j++) {
+                    GHResponse response = service.route(lats[i], lons[i], lats[j], lons[j]);
+                    if (response.isFound()) {
+                        found++;
+                    }
+                }
+            }
+            Log.info("RoutingBenchmarkActivity: " + size + "x" + size + " as single routes " + (System.currentTimeMillis() - startTime) + " ms, "
+                    + found + " found");
+        }
+    }
+
+    private void runIsochrones(IsochroneEngine engine, Random random, BBox bounds) {
+        engine.setOrigin(randomLat(random, bounds), randomLon(random, bounds));
+        for (double time : ISOCHRONE_TIMES) {
+            long startTime = System.nanoTime();
+            Geometry isochrone = engine.getIsochrone(time);
+            long firstTime = System.nanoTime() - startTime;
+            if (isochrone == null) {
+                Log.info("RoutingBenchmarkActivity: origin is not on the graph");
+                return;
+            }
+            startTime = System.nanoTime();
+            engine.getIsochrone(time);
+            long cachedTime = System.nanoTime() - startTime;
+            Log.info("RoutingBenchmarkActivity: " + (int) (time / 60) + ", " + String.format("%.2f, %.3f", firstTime / 1.0e6, cachedTime / 1.0e6) + ", "
+                    + engine.getReachableNodeCount(time));
+        }
+    }
+
+    private static double randomLat(Random random, BBox bounds) {
+        return bounds.minLat + random.nextDouble() * (bounds.maxLat - bounds.minLat);
+    }
+
+    private static double randomLon(Random random, BBox bounds) {
+        return bounds.minLon + random.nextDouble() * (bounds.maxLon - bounds.minLon);
+    }
+
+    private static long getUsedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private void showProgress(final String message) {
+        Log.info("RoutingBenchmarkActivity: " + message);
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                setTitle(message);
+            }
+        });
+    }
+
+    @Override
+    public String getFileSelectMessage() {
+        return "Select .map file in graphhopper graph (<mapname>_gh folder)";
+    }
+
+    @Override
+    public FileFilter getFileFilter() {
+        return new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                // accept only readable files
+                if (file.canRead()) {
+                    if (file.isDirectory()) {
+                        // allow to select any directory
+                        return true;
+                    } else if (file.isFile()
+                            && file.getName().endsWith(".map")) {
+                        // accept files with given extension
+                        return true;
+                    }
+                }
+                return false;
+            }
+        };
+    }
+
+}
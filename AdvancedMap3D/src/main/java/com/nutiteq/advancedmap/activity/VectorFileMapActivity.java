@@ -13,7 +13,7 @@ import android.app.Dialog;
 import android.content.DialogInterface;
 import android.graphics.Bitmap;
 import android.graphics.Color;
-import android.graphics.Typeface;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.util.DisplayMetrics;
 import android.view.View;
@@ -23,6 +23,12 @@ import android.widget.ZoomControls;
 
 import com.nutiteq.MapView;
 import com.nutiteq.advancedmap.R;
+import com.nutiteq.advancedmap.datasources.PackedGeometryStore;
+import com.nutiteq.advancedmap.datasources.PackedVectorDataSource;
+import com.nutiteq.advancedmap.datasources.StreamingVectorDataSource;
+import com.nutiteq.advancedmap.datasources.VectorTileDiskCache;
+import com.nutiteq.advancedmap.style.AttributeLabel;
+import com.nutiteq.advancedmap.style.StyleCache;
 import com.nutiteq.components.Bounds;
 import com.nutiteq.components.Components;
 import com.nutiteq.components.Envelope;
@@ -31,6 +37,7 @@ import com.nutiteq.datasources.vector.OGRVectorDataSource;
 import com.nutiteq.datasources.vector.SpatialiteDataSource;
 import com.nutiteq.db.SpatialLiteDbHelper;
 import com.nutiteq.filepicker.FilePickerActivity;
+import com.nutiteq.geometry.Geometry;
 import com.nutiteq.log.Log;
 import com.nutiteq.projections.EPSG3857;
 import com.nutiteq.projections.Projection;
@@ -42,7 +49,6 @@ import com.nutiteq.style.LineStyle;
 import com.nutiteq.style.PointStyle;
 import com.nutiteq.style.PolygonStyle;
 import com.nutiteq.style.StyleSet;
-import com.nutiteq.ui.DefaultLabel;
 import com.nutiteq.ui.Label;
 import com.nutiteq.utils.UnscaledBitmapLoader;
 import com.nutiteq.vectorlayers.GeometryLayer;
@@ -71,14 +77,22 @@ public class VectorFileMapActivity extends Activity implements FilePickerActivit
     private static final int DIALOG_TABLE_LIST = 1;
     private static final int DIALOG_NO_TABLES = 2;
     
-    // Limit for the number of vector elements that are loaded
+    // Limit for the number of vector elements that are loaded per tile, data is streamed tile by tile
     private static final int MAX_ELEMENTS = 500;
 
+    // Tables can optionally be loaded into packed off-heap store, selected with "Load to memory" button in the table list.
+    // Whole table is read once when it is opened, then views are queried from memory instead of the database.
+    // Keeps Java heap usage low for large tables, only elements of loaded tiles are created as objects.
+    // Packed store is streamed tile by tile too, so MAX_ELEMENTS applies per tile and large views are not cut off
+    private static final int MAX_PACKED_CACHED_TILES = 32;
+    private static final int MAX_PACKED_CACHED_ELEMENTS = MAX_PACKED_CACHED_TILES * MAX_ELEMENTS;
+
     private MapView mapView;
 
     // Spatialite-specific members
     private String[] tableList = new String[1];
     private SpatialLiteDbHelper spatialLite;
+    private String spatialitePath;
     private Map<String, SpatialLiteDbHelper.DbLayer> dbMetaData;
 
     private StyleSet<PointStyle> pointStyleSet;
@@ -237,13 +251,7 @@ public class VectorFileMapActivity extends Activity implements FilePickerActivit
         PolygonStyle polygonStyle = PolygonStyle.builder().setColor(color & 0x80FFFFFF).setLineStyle(lineStyle).build();
         polygonStyleSet.setZoomStyle(minZoom, polygonStyle);
 
-        labelStyle = 
-                LabelStyle.builder()
-                .setEdgePadding((int) (12 * dpi))
-                .setLinePadding((int) (6 * dpi))
-                .setTitleFont(Typeface.create("Arial", Typeface.BOLD), (int) (16 * dpi))
-                .setDescriptionFont(Typeface.create("Arial", Typeface.NORMAL), (int) (13 * dpi))
-                .build();
+        labelStyle = StyleCache.getInstance().getAttributeLabelStyle(dpi);
     }
 
     private void addOgrLayer(Projection proj, String dbPath, String table, int color) {
@@ -279,7 +287,10 @@ public class VectorFileMapActivity extends Activity implements FilePickerActivit
 
         dataSource.setMaxElements(MAX_ELEMENTS);
 
-        GeometryLayer ogrLayer = new GeometryLayer(dataSource);
+        StreamingVectorDataSource<Geometry> streamingDataSource = new StreamingVectorDataSource<Geometry>(dataSource);
+        streamingDataSource.setTileStore(createTileCache(dbPath, table));
+
+        GeometryLayer ogrLayer = new GeometryLayer(streamingDataSource);
         mapView.getLayers().addLayer(ogrLayer);
 
         Envelope extent = ogrLayer.getDataExtent();
@@ -299,6 +310,13 @@ public class VectorFileMapActivity extends Activity implements FilePickerActivit
                         int selectedPosition = ((AlertDialog) dialog).getListView().getCheckedItemPosition();
                         addSpatiaLiteTable(selectedPosition);
                     }
+                })
+                .setNeutralButton("Load to memory", new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int whichButton) {
+                        dialog.dismiss();
+                        int selectedPosition = ((AlertDialog) dialog).getListView().getCheckedItemPosition();
+                        addPackedSpatiaLiteTable(dbMetaData.get(tableList[selectedPosition]));
+                    }
                 }).create();
 
         case DIALOG_NO_TABLES:
@@ -318,6 +336,7 @@ public class VectorFileMapActivity extends Activity implements FilePickerActivit
     private void showSpatialiteTableList(String dbPath) {
         try {
             spatialLite = new SpatialLiteDbHelper(dbPath);
+            spatialitePath = dbPath;
         } catch (IOException e) {
             Log.error(e.getLocalizedMessage());
             Toast.makeText(this, "ERROR "+e.getLocalizedMessage(), Toast.LENGTH_LONG).show();
@@ -371,13 +390,13 @@ public class VectorFileMapActivity extends Activity implements FilePickerActivit
             }
         };
         dataSource.setMaxElements(MAX_ELEMENTS);
+        StreamingVectorDataSource<Geometry> streamingDataSource = new StreamingVectorDataSource<Geometry>(dataSource);
 
-        // define pixels and screen width for automatic polygon/line simplification
-        DisplayMetrics metrics = new DisplayMetrics();
-        getWindowManager().getDefaultDisplay().getMetrics(metrics);   
-        dataSource.setAutoSimplify(2, metrics.widthPixels);
+        // define pixels and tile width for automatic polygon/line simplification, data is queried tile by tile
+        dataSource.setAutoSimplify(2, streamingDataSource.getTileScreenSize());
+        streamingDataSource.setTileStore(createTileCache(spatialitePath, tableList[selectedPosition]));
 
-        GeometryLayer spatialiteLayer = new GeometryLayer(dataSource);
+        GeometryLayer spatialiteLayer = new GeometryLayer(streamingDataSource);
 
         mapView.getLayers().addLayer(spatialiteLayer);
 
@@ -385,12 +404,84 @@ public class VectorFileMapActivity extends Activity implements FilePickerActivit
         mapView.setBoundingBox(new Bounds(extent.minX, extent.maxY, extent.maxX, extent.minY), false);
     }
     
+    // loads whole table to off-heap memory at once, suitable for tables which are queried often and fit into memory
+    private void addPackedSpatiaLiteTable(final SpatialLiteDbHelper.DbLayer dbLayer) {
+        Toast.makeText(this, "Loading table " + dbLayer.table, Toast.LENGTH_SHORT).show();
+
+        new AsyncTask<Void, Void, PackedGeometryStore>() {
+            protected PackedGeometryStore doInBackground(Void... v) {
+                Bounds bounds = new EPSG3857().getBounds();
+                Envelope envelope = new Envelope(bounds.left, bounds.right, Math.min(bounds.bottom, bounds.top), Math.max(bounds.bottom, bounds.top));
+                return PackedGeometryStore.loadSpatialite(spatialLite, dbLayer, null, null, envelope);
+            }
+
+            protected void onPostExecute(PackedGeometryStore store) {
+                PackedVectorDataSource dataSource = new PackedVectorDataSource(new EPSG3857(), store) {
+                    @Override
+                    protected Label createLabel(Map<String, String> userData) {
+                        return VectorFileMapActivity.this.createLabel(userData);
+                    }
+
+                    @Override
+                    protected StyleSet<PointStyle> createPointStyleSet(Map<String, String> userData, int zoom) {
+                        return pointStyleSet;
+                    }
+
+                    @Override
+                    protected StyleSet<LineStyle> createLineStyleSet(Map<String, String> userData, int zoom) {
+                        return lineStyleSet;
+                    }
+
+                    @Override
+                    protected StyleSet<PolygonStyle> createPolygonStyleSet(Map<String, String> userData, int zoom) {
+                        return polygonStyleSet;
+                    }
+                };
+                dataSource.setMaxElements(MAX_ELEMENTS);
+                dataSource.setMaxCachedElements(MAX_PACKED_CACHED_ELEMENTS);
+                // fewer tiles are kept in memory than with database queries, as tiles are cheap to load again from the store
+                StreamingVectorDataSource<Geometry> streamingDataSource = new StreamingVectorDataSource<Geometry>(dataSource, MAX_PACKED_CACHED_TILES);
+
+                GeometryLayer packedLayer = new GeometryLayer(streamingDataSource);
+                mapView.getLayers().addLayer(packedLayer);
+
+                Envelope extent = packedLayer.getDataExtent();
+                mapView.setBoundingBox(new Bounds(extent.minX, extent.maxY, extent.maxX, extent.minY), false);
+            }
+        }.execute();
+    }
+
+    // creates persistent cache of simplified vector tiles, so revisited areas are not queried from the file again
+    private VectorTileDiskCache createTileCache(String path, String table) {
+        File sourceFile = new File(path);
+        String cacheName = sourceFile.getName() + "_" + (table != null ? table : "") + "_" + Integer.toHexString(path.hashCode());
+        File cacheDir = new File(new File(getCacheDir(), "vectortiles"), cacheName.replaceAll("[^A-Za-z0-9_.-]", "_"));
+
+        return new VectorTileDiskCache(cacheDir, sourceFile) {
+            @Override
+            protected Label createLabel(Map<String, String> userData) {
+                return VectorFileMapActivity.this.createLabel(userData);
+            }
+
+            @Override
+            protected StyleSet<PointStyle> createPointStyleSet(Map<String, String> userData, int zoom) {
+                return pointStyleSet;
+            }
+
+            @Override
+            protected StyleSet<LineStyle> createLineStyleSet(Map<String, String> userData, int zoom) {
+                return lineStyleSet;
+            }
+
+            @Override
+            protected StyleSet<PolygonStyle> createPolygonStyleSet(Map<String, String> userData, int zoom) {
+                return polygonStyleSet;
+            }
+        };
+    }
+
     private Label createLabel(Map<String, String> userData) {
-        StringBuffer labelTxt = new StringBuffer();
-        for(Map.Entry<String, String> entry : userData.entrySet()){
-            labelTxt.append(entry.getKey() + ": " + entry.getValue() + "\n");
-        }
-        return new DefaultLabel("Data:", labelTxt.toString(), labelStyle);
+        return new AttributeLabel("Data:", userData, labelStyle);
     }
 
     public MapView getMapView() {
@@ -76,7 +76,7 @@ public class WmsMapActivity extends Activity {
             mapView.setComponents(retainObject);
             // re-create listener
             WMSFeatureClickListener oldListener = (WMSFeatureClickListener) mapView.getOptions().getMapListener();
-            WMSFeatureClickListener mapListener = new WMSFeatureClickListener(this, mapView, oldListener.getDataSource(), oldListener.getClickMarker());
+            WMSFeatureClickListener mapListener = new WMSFeatureClickListener(this, mapView, oldListener.getFeatureInfoService(), oldListener.getClickMarker());
             mapView.getOptions().setMapListener(mapListener);
             return;
         } else {
@@ -0,0 +1,65 @@
+package com.nutiteq.advancedmap.clustering;
+
+import java.util.Collection;
+
+import com.nutiteq.components.Envelope;
+import com.nutiteq.geometry.Marker;
+import com.nutiteq.vectorlayers.MarkerLayer;
+
+/**
+ *
+ * MarkerLayer which clusters its markers with ClusteredMarkerDataSource.
+ *
+ * Can be used instead of MarkerLayer without other changes: markers added to the layer go to the clustering index,
+ * not to the unclustered internal data source of MarkerLayer. Clicked cluster markers have Cluster as user data.
+ *
+ */
+public class ClusterMarkerLayer extends MarkerLayer {
+    private final ClusteredMarkerDataSource clusterDataSource;
+
+    /**
+     * Default constructor.
+     *
+     * @param dataSource
+     *          clustering data source, can already contain markers
+     */
+    public ClusterMarkerLayer(ClusteredMarkerDataSource dataSource) {
+        super(dataSource);
+        this.clusterDataSource = dataSource;
+    }
+
+    public ClusteredMarkerDataSource getClusterDataSource() {
+        return clusterDataSource;
+    }
+
+    @Override
+    public void add(Marker marker) {
+        clusterDataSource.add(marker);
+    }
+
+    @Override
+    public void addAll(Collection<? extends Marker> markers) {
+        clusterDataSource.addAll(markers);
+    }
+
+    @Override
+    public void remove(Marker marker) {
+        clusterDataSource.remove(marker);
+    }
+
+    @Override
+    public void removeAll(Collection<? extends Marker> markers) {
+        clusterDataSource.removeAll(markers);
+    }
+
+    @Override
+    public void clear() {
+        clusterDataSource.clear();
+    }
+
+    @Override
+    public Envelope getDataExtent() {
+        return clusterDataSource.getDataExtent();
+    }
+
+}
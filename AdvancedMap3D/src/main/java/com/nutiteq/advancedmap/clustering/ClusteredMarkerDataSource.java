@@ -0,0 +1,737 @@
+package com.nutiteq.advancedmap.clustering;
+
+import gnu.trove.iterator.TLongIntIterator;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TLongIntHashMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+
+import com.nutiteq.components.Bounds;
+import com.nutiteq.components.Components;
+import com.nutiteq.components.CullState;
+import com.nutiteq.components.Envelope;
+import com.nutiteq.components.MapPos;
+import com.nutiteq.geometry.Marker;
+import com.nutiteq.log.Log;
+import com.nutiteq.projections.Projection;
+import com.nutiteq.style.MarkerStyle;
+import com.nutiteq.style.StyleSet;
+import com.nutiteq.vectordatasources.AbstractVectorDataSource;
+import com.nutiteq.vectorlayers.VectorLayer;
+
+/**
+ *
+ * Marker data source which shows nearby markers as a single cluster marker with the marker count.
+ *
+ * Markers are kept in a hierarchical grid: a cell of zoom level z has the size of clusterSize pixels at that zoom,
+ * and is split to 4 cells of level z + 1. Each cell keeps the number and the coordinate sum of its markers,
+ * so adding or removing a marker updates only one cell per level, and a view needs only the cells in the
+ * visible area of the current zoom. Above maxClusterZoom the markers are shown individually.
+ * Cells are stored in parallel arrays per level, as there are a few times more cells than markers.
+ *
+ * Cluster markers are created on demand and reused until their cell changes. When the zoom level changes,
+ * markers of the new level fly out from their parent clusters, or markers of the old level fly into
+ * their new clusters. Animated copies are used for the added markers, so their positions are never changed.
+ *
+ * Markers must not be moved while in the data source: remove, move and add again.
+ *
+ */
+public class ClusteredMarkerDataSource extends AbstractVectorDataSource<Marker> {
+    private static final int DEFAULT_MAX_CLUSTER_ZOOM = 16;
+    private static final float DEFAULT_CLUSTER_SIZE = 64; // pixels
+    private static final int TILE_SIZE = 256;
+    private static final long ANIMATION_DURATION = 300; // ms
+    private static final long ANIMATION_FRAME_TIME = 16; // ms
+    private static final int MAX_ANIMATED_MARKERS = 300;
+
+    private static final Timer animationTimer = new Timer("ClusterAnimation", true);
+
+    /**
+     * User data of cluster markers.
+     */
+    public static class Cluster {
+        private final int zoom;
+        private final int x;
+        private final int y;
+        private final int count;
+
+        Cluster(int zoom, int x, int y, int count) {
+            this.zoom = zoom;
+            this.x = x;
+            this.y = y;
+            this.count = count;
+        }
+
+        /**
+         * Get zoom level of the cluster, the markers are shown separately from a larger zoom.
+         */
+        public int getZoom() {
+            return zoom;
+        }
+
+        /**
+         * Get number of markers in the cluster.
+         */
+        public int getCount() {
+            return count;
+        }
+    }
+
+    // cells of one zoom level, found by the cell key
+    private static class Level {
+        final TLongIntHashMap cellIndex = new TLongIntHashMap(16, 0.75f, 0, -1);
+        final TIntArrayList freeCells = new TIntArrayList();
+        final TLongObjectHashMap<Marker> clusterMarkers = new TLongObjectHashMap<Marker>();
+        int[] counts = new int[16];
+        double[] sumX = new double[16];
+        double[] sumY = new double[16];
+        Marker[][] markers; // only in the last level
+        int size;
+
+        Level(boolean last) {
+            // removed keys are reused by later inserts, compaction would rehash the whole level
+            cellIndex.setAutoCompactionFactor(0);
+            if (last) {
+                markers = new Marker[16][];
+            }
+        }
+
+        int getCell(long key) {
+            return cellIndex.get(key);
+        }
+
+        int addCell(long key) {
+            int cell;
+            if (!freeCells.isEmpty()) {
+                cell = freeCells.removeAt(freeCells.size() - 1);
+            } else {
+                if (size == counts.length) {
+                    counts = Arrays.copyOf(counts, size * 2);
+                    sumX = Arrays.copyOf(sumX, size * 2);
+                    sumY = Arrays.copyOf(sumY, size * 2);
+                    if (markers != null) {
+                        markers = Arrays.copyOf(markers, size * 2);
+                    }
+                }
+                cell = size++;
+            }
+            cellIndex.put(key, cell);
+            return cell;
+        }
+
+        void removeCell(long key, int cell) {
+            cellIndex.remove(key);
+            counts[cell] = 0;
+            sumX[cell] = 0;
+            sumY[cell] = 0;
+            if (markers != null) {
+                markers[cell] = null;
+            }
+            freeCells.add(cell);
+        }
+
+        MapPos getCenter(int cell) {
+            return new MapPos(sumX[cell] / counts[cell], sumY[cell] / counts[cell]);
+        }
+    }
+
+    // marker or cluster in the view, with the cell it belongs to
+    private static class VisibleMarker {
+        final Marker marker;
+        final int level;
+        final int x;
+        final int y;
+        final double mapX;
+        final double mapY;
+
+        VisibleMarker(Marker marker, int level, int x, int y, double mapX, double mapY) {
+            this.marker = marker;
+            this.level = level;
+            this.x = x;
+            this.y = y;
+            this.mapX = mapX;
+            this.mapY = mapY;
+        }
+    }
+
+    private static class AnimatedMarker {
+        final Marker marker;
+        final double fromX;
+        final double fromY;
+        final double toX;
+        final double toY;
+
+        AnimatedMarker(Marker marker, double fromX, double fromY, double toX, double toY) {
+            this.marker = marker;
+            this.fromX = fromX;
+            this.fromY = fromY;
+            this.toX = toX;
+            this.toY = toY;
+        }
+    }
+
+    private final int maxClusterZoom;
+    private final double minX;
+    private final double minY;
+    private final double cellSize; // of the last level
+    private final int cellCount; // of the last level, per axis
+    private final Level[] levels;
+    private final Bitmap clusterBitmap;
+    private final float clusterMarkerSize;
+    private final Map<String, StyleSet<MarkerStyle>> clusterStyleSets = new HashMap<String, StyleSet<MarkerStyle>>();
+    private Envelope extent;
+    private int markerCount;
+    private boolean animated = true;
+
+    private List<VisibleMarker> visibleMarkers = new ArrayList<VisibleMarker>();
+    private int visibleLevel = -1;
+    private List<AnimatedMarker> animatedMarkers = Collections.emptyList();
+    private List<Marker> animatedView;
+    private long animationStartTime;
+    private int animationId;
+
+    /**
+     * Default constructor, with 64 pixel clusters up to zoom 16.
+     *
+     * @param proj
+     *          projection of the markers
+     * @param clusterBitmap
+     *          background of cluster markers, count is drawn on it
+     * @param clusterMarkerSize
+     *          size of cluster markers with few markers, larger clusters are drawn slightly larger
+     */
+    public ClusteredMarkerDataSource(Projection proj, Bitmap clusterBitmap, float clusterMarkerSize) {
+        this(proj, clusterBitmap, clusterMarkerSize, DEFAULT_MAX_CLUSTER_ZOOM, DEFAULT_CLUSTER_SIZE);
+    }
+
+    /**
+     * Constructor with custom clustering.
+     *
+     * @param proj
+     *          projection of the markers
+     * @param clusterBitmap
+     *          background of cluster markers, count is drawn on it
+     * @param clusterMarkerSize
+     *          size of cluster markers with few markers, larger clusters are drawn slightly larger
+     * @param maxClusterZoom
+     *          last zoom level with clusters, all markers are shown at larger zooms
+     * @param clusterSize
+     *          size of cluster cells in pixels
+     */
+    public ClusteredMarkerDataSource(Projection proj, Bitmap clusterBitmap, float clusterMarkerSize, int maxClusterZoom, float clusterSize) {
+        super(proj);
+        this.clusterBitmap = clusterBitmap;
+        this.clusterMarkerSize = clusterMarkerSize;
+        this.maxClusterZoom = maxClusterZoom;
+        Bounds bounds = proj.getBounds();
+        this.minX = Math.min(bounds.left, bounds.right);
+        this.minY = Math.min(bounds.top, bounds.bottom);
+        double width = Math.abs(bounds.getWidth());
+        this.cellSize = width / ((double) TILE_SIZE * (1L << maxClusterZoom)) * clusterSize;
+        this.cellCount = (int) Math.ceil(Math.max(width, Math.abs(bounds.getHeight())) / cellSize);
+        this.levels = new Level[maxClusterZoom + 1];
+        for (int level = 0; level <= maxClusterZoom; level++) {
+            levels[level] = new Level(level == maxClusterZoom);
+        }
+    }
+
+    /**
+     * Enable or disable split and merge animations, enabled by default.
+     */
+    public synchronized void setAnimated(boolean animated) {
+        this.animated = animated;
+    }
+
+    /**
+     * Get number of markers in the data source.
+     */
+    public synchronized int getMarkerCount() {
+        return markerCount;
+    }
+
+    /**
+     * Get number of grid cells of all levels, for memory estimates.
+     */
+    public synchronized int getCellCount() {
+        int count = 0;
+        for (Level level : levels) {
+            count += level.cellIndex.size();
+        }
+        return count;
+    }
+
+    public void add(Marker marker) {
+        addAll(Collections.singletonList(marker));
+    }
+
+    public void addAll(Collection<? extends Marker> markers) {
+        synchronized (this) {
+            for (Marker marker : markers) {
+                MapPos mapPos = marker.getMapPos();
+                int x = getCellX(mapPos.x);
+                int y = getCellY(mapPos.y);
+                for (int z = maxClusterZoom; z >= 0; z--) {
+                    Level level = levels[z];
+                    long key = getKey(x, y);
+                    int cell = level.getCell(key);
+                    if (cell < 0) {
+                        cell = level.addCell(key);
+                    }
+                    level.counts[cell]++;
+                    level.sumX[cell] += mapPos.x;
+                    level.sumY[cell] += mapPos.y;
+                    level.clusterMarkers.remove(key);
+                    if (z == maxClusterZoom) {
+                        Marker[] cellMarkers = level.markers[cell];
+                        cellMarkers = cellMarkers == null ? new Marker[1] : Arrays.copyOf(cellMarkers, cellMarkers.length + 1);
+                        cellMarkers[cellMarkers.length - 1] = marker;
+                        level.markers[cell] = cellMarkers;
+                    }
+                    x >>= 1;
+                    y >>= 1;
+                }
+                marker.attachToDataSource(this);
+                markerCount++;
+                extent = null;
+            }
+        }
+        notifyElementsChanged();
+    }
+
+    public void remove(Marker marker) {
+        removeAll(Collections.singletonList(marker));
+    }
+
+    public void removeAll(Collection<? extends Marker> markers) {
+        synchronized (this) {
+            for (Marker marker : markers) {
+                MapPos mapPos = marker.getMapPos();
+                int x = getCellX(mapPos.x);
+                int y = getCellY(mapPos.y);
+                if (!removeFromLastLevel(marker, getKey(x, y))) {
+                    continue;
+                }
+                for (int z = maxClusterZoom; z >= 0; z--) {
+                    Level level = levels[z];
+                    long key = getKey(x, y);
+                    int cell = level.getCell(key);
+                    level.counts[cell]--;
+                    level.sumX[cell] -= mapPos.x;
+                    level.sumY[cell] -= mapPos.y;
+                    level.clusterMarkers.remove(key);
+                    if (level.counts[cell] == 0) {
+                        level.removeCell(key, cell);
+                    }
+                    x >>= 1;
+                    y >>= 1;
+                }
+                marker.detachFromDataSource();
+                markerCount--;
+                extent = null;
+            }
+        }
+        notifyElementsChanged();
+    }
+
+    public void clear() {
+        synchronized (this) {
+            Level lastLevel = levels[maxClusterZoom];
+            for (int cell = 0; cell < lastLevel.size; cell++) {
+                for (int i = 0; lastLevel.markers[cell] != null && i < lastLevel.markers[cell].length; i++) {
+                    lastLevel.markers[cell][i].detachFromDataSource();
+                }
+            }
+            for (int z = 0; z <= maxClusterZoom; z++) {
+                levels[z] = new Level(z == maxClusterZoom);
+            }
+            markerCount = 0;
+            extent = null;
+            visibleMarkers = new ArrayList<VisibleMarker>();
+            stopAnimation();
+        }
+        notifyElementsChanged();
+    }
+
+    /**
+     * Get markers of a cluster.
+     */
+    public synchronized List<Marker> getMarkers(Cluster cluster) {
+        List<Marker> markers = new ArrayList<Marker>(cluster.count);
+        int shift = maxClusterZoom - cluster.zoom;
+        Level level = levels[maxClusterZoom];
+        TLongIntIterator it = level.cellIndex.iterator();
+        while (it.hasNext()) {
+            it.advance();
+            long key = it.key();
+            if (getKeyX(key) >> shift == cluster.x && getKeyY(key) >> shift == cluster.y) {
+                markers.addAll(Arrays.asList(level.markers[it.value()]));
+            }
+        }
+        return markers;
+    }
+
+    @Override
+    public synchronized Envelope getDataExtent() {
+        if (extent == null && markerCount > 0) {
+            double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+            Level level = levels[maxClusterZoom];
+            TLongIntIterator it = level.cellIndex.iterator();
+            while (it.hasNext()) {
+                it.advance();
+                for (Marker marker : level.markers[it.value()]) {
+                    MapPos mapPos = marker.getMapPos();
+                    minX = Math.min(minX, mapPos.x);
+                    minY = Math.min(minY, mapPos.y);
+                    maxX = Math.max(maxX, mapPos.x);
+                    maxY = Math.max(maxY, mapPos.y);
+                }
+            }
+            extent = new Envelope(minX, maxX, minY, maxY);
+        }
+        return extent;
+    }
+
+    @Override
+    public Collection<Marker> loadElements(CullState cullState) {
+        long startTime = System.nanoTime();
+        Envelope envelope = projection.fromInternal(cullState.envelope);
+        int level = Math.max(0, Math.min(cullState.zoom, maxClusterZoom + 1));
+
+        List<Marker> elements;
+        List<AnimatedMarker> moves = new ArrayList<AnimatedMarker>();
+        boolean startAnimation = false;
+        synchronized (this) {
+            if (animatedView != null && level == visibleLevel) {
+                // keep animating, new markers in the view are added when the animation ends
+                return new ArrayList<Marker>(animatedView);
+            }
+            stopAnimation();
+
+            List<VisibleMarker> newMarkers = loadMarkers(envelope, level);
+            elements = new ArrayList<Marker>(newMarkers.size());
+            for (VisibleMarker visibleMarker : newMarkers) {
+                elements.add(visibleMarker.marker);
+                // cluster markers may be left elsewhere by an earlier animation
+                if (visibleMarker.marker.userData instanceof Cluster) {
+                    moves.add(new AnimatedMarker(visibleMarker.marker, 0, 0, visibleMarker.mapX, visibleMarker.mapY));
+                }
+            }
+
+            if (animated && visibleLevel >= 0 && level != visibleLevel) {
+                List<Marker> view = new ArrayList<Marker>();
+                List<AnimatedMarker> animation = level > visibleLevel ? createSplitAnimation(newMarkers, visibleLevel, view)
+                        : createMergeAnimation(visibleMarkers, level, view);
+                if (!animation.isEmpty() && animation.size() <= MAX_ANIMATED_MARKERS) {
+                    for (AnimatedMarker animatedMarker : animation) {
+                        moves.add(new AnimatedMarker(animatedMarker.marker, 0, 0, animatedMarker.fromX, animatedMarker.fromY));
+                    }
+                    animatedMarkers = animation;
+                    animatedView = view;
+                    elements = view;
+                    startAnimation = true;
+                }
+            }
+            visibleMarkers = newMarkers;
+            visibleLevel = level;
+        }
+
+        for (AnimatedMarker move : moves) {
+            move.marker.setMapPos(new MapPos(move.toX, move.toY));
+        }
+        if (startAnimation) {
+            scheduleAnimation();
+        }
+        Log.debug("ClusteredMarkerDataSource: " + elements.size() + " markers at zoom " + cullState.zoom + " in "
+                + (System.nanoTime() - startTime) / 1000 + " us");
+        return new ArrayList<Marker>(elements);
+    }
+
+    /**
+     * Create style set of cluster markers. Styles are cached by the count label, override to use custom styles.
+     *
+     * @param count
+     *          number of markers in the cluster
+     */
+    protected StyleSet<MarkerStyle> createClusterStyleSet(int count) {
+        String text = getCountText(count);
+        StyleSet<MarkerStyle> styleSet = clusterStyleSets.get(text);
+        if (styleSet == null) {
+            Bitmap bitmap = clusterBitmap.copy(Bitmap.Config.ARGB_8888, true);
+            Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+            paint.setColor(Color.WHITE);
+            paint.setFakeBoldText(true);
+            paint.setTextAlign(Paint.Align.CENTER);
+            paint.setTextSize(bitmap.getHeight() * 0.45f);
+            float maxWidth = bitmap.getWidth() * 0.8f;
+            if (paint.measureText(text) > maxWidth) {
+                paint.setTextSize(bitmap.getHeight() * 0.45f * maxWidth / paint.measureText(text));
+            }
+            Canvas canvas = new Canvas(bitmap);
+            canvas.drawText(text, bitmap.getWidth() / 2.0f, (bitmap.getHeight() - paint.ascent() - paint.descent()) / 2.0f, paint);
+            float size = clusterMarkerSize * (1 + 0.15f * (float) Math.log10(count));
+            styleSet = new StyleSet<MarkerStyle>(MarkerStyle.builder().setBitmap(bitmap).setSize(size).setAnchorY(MarkerStyle.CENTER).build());
+            clusterStyleSets.put(text, styleSet);
+        }
+        return styleSet;
+    }
+
+    private static String getCountText(int count) {
+        if (count < 100) {
+            return Integer.toString(count);
+        } else if (count < 1000) {
+            return (count / 100) * 100 + "+";
+        } else if (count < 1000000) {
+            return count / 1000 + "k+";
+        }
+        return count / 1000000 + "M+";
+    }
+
+    private List<VisibleMarker> loadMarkers(Envelope envelope, int level) {
+        int cellLevel = Math.min(level, maxClusterZoom);
+        int shift = maxClusterZoom - cellLevel;
+        int minX = getCellX(envelope.minX) >> shift;
+        int minY = getCellY(envelope.minY) >> shift;
+        int maxX = getCellX(envelope.maxX) >> shift;
+        int maxY = getCellY(envelope.maxY) >> shift;
+
+        TLongIntHashMap cellIndex = levels[cellLevel].cellIndex;
+        List<VisibleMarker> markers = new ArrayList<VisibleMarker>();
+        if ((long) (maxX - minX + 1) * (maxY - minY + 1) <= cellIndex.size()) {
+            for (int y = minY; y <= maxY; y++) {
+                for (int x = minX; x <= maxX; x++) {
+                    int cell = cellIndex.get(getKey(x, y));
+                    if (cell >= 0) {
+                        addMarkers(markers, cell, level, x, y, envelope);
+                    }
+                }
+            }
+        } else {
+            // view is larger than the data, scan the data instead
+            TLongIntIterator it = cellIndex.iterator();
+            while (it.hasNext()) {
+                it.advance();
+                int x = getKeyX(it.key());
+                int y = getKeyY(it.key());
+                if (x >= minX && x <= maxX && y >= minY && y <= maxY) {
+                    addMarkers(markers, it.value(), level, x, y, envelope);
+                }
+            }
+        }
+        return markers;
+    }
+
+    private void addMarkers(List<VisibleMarker> markers, int cell, int level, int x, int y, Envelope envelope) {
+        if (level > maxClusterZoom) {
+            for (Marker marker : levels[maxClusterZoom].markers[cell]) {
+                MapPos mapPos = marker.getMapPos();
+                if (envelope.contains(mapPos)) {
+                    markers.add(new VisibleMarker(marker, level, x, y, mapPos.x, mapPos.y));
+                }
+            }
+            return;
+        }
+        Level cellLevel = levels[level];
+        if (cellLevel.counts[cell] == 1) {
+            Marker marker = findSingleMarker(level, x, y);
+            MapPos mapPos = marker.getMapPos();
+            markers.add(new VisibleMarker(marker, level, x, y, mapPos.x, mapPos.y));
+        } else {
+            long key = getKey(x, y);
+            MapPos center = cellLevel.getCenter(cell);
+            Marker clusterMarker = cellLevel.clusterMarkers.get(key);
+            if (clusterMarker == null) {
+                int count = cellLevel.counts[cell];
+                clusterMarker = new Marker(center, null, createClusterStyleSet(count), new Cluster(level, x, y, count));
+                cellLevel.clusterMarkers.put(key, clusterMarker);
+            }
+            markers.add(new VisibleMarker(clusterMarker, level, x, y, center.x, center.y));
+        }
+    }
+
+    private Marker findSingleMarker(int level, int x, int y) {
+        for (int z = level + 1; z <= maxClusterZoom; z++) {
+            x <<= 1;
+            y <<= 1;
+            TLongIntHashMap cellIndex = levels[z].cellIndex;
+            if (cellIndex.containsKey(getKey(x + 1, y))) {
+                x++;
+            } else if (cellIndex.containsKey(getKey(x, y + 1))) {
+                y++;
+            } else if (cellIndex.containsKey(getKey(x + 1, y + 1))) {
+                x++;
+                y++;
+            }
+        }
+        Level lastLevel = levels[maxClusterZoom];
+        return lastLevel.markers[lastLevel.getCell(getKey(x, y))][0];
+    }
+
+    private boolean removeFromLastLevel(Marker marker, long key) {
+        Level level = levels[maxClusterZoom];
+        int cell = level.getCell(key);
+        if (cell < 0) {
+            return false;
+        }
+        Marker[] cellMarkers = level.markers[cell];
+        for (int i = 0; i < cellMarkers.length; i++) {
+            if (cellMarkers[i] == marker) {
+                Marker[] newMarkers = new Marker[cellMarkers.length - 1];
+                System.arraycopy(cellMarkers, 0, newMarkers, 0, i);
+                System.arraycopy(cellMarkers, i + 1, newMarkers, i, newMarkers.length - i);
+                level.markers[cell] = newMarkers;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Markers of the new level start from the position of their cluster in the old level.
+     * Markers which were not in a cluster are added to the view as they are.
+     */
+    private List<AnimatedMarker> createSplitAnimation(List<VisibleMarker> markers, int oldLevel, List<Marker> view) {
+        List<AnimatedMarker> animation = new ArrayList<AnimatedMarker>();
+        for (VisibleMarker visibleMarker : markers) {
+            int parent = getAncestor(visibleMarker, oldLevel);
+            if (parent >= 0 && levels[oldLevel].counts[parent] > 1) {
+                MapPos center = levels[oldLevel].getCenter(parent);
+                Marker marker = getAnimatedMarker(visibleMarker.marker);
+                animation.add(new AnimatedMarker(marker, center.x, center.y, visibleMarker.mapX, visibleMarker.mapY));
+                view.add(marker);
+            } else {
+                view.add(visibleMarker.marker);
+            }
+        }
+        return animation;
+    }
+
+    /**
+     * Markers of the old level move to the position of their cluster in the new level.
+     * Markers which stay alone are added to the view as they are, new markers are added when the animation ends.
+     */
+    private List<AnimatedMarker> createMergeAnimation(List<VisibleMarker> markers, int newLevel, List<Marker> view) {
+        List<AnimatedMarker> animation = new ArrayList<AnimatedMarker>();
+        for (VisibleMarker visibleMarker : markers) {
+            int parent = getAncestor(visibleMarker, newLevel);
+            if (parent >= 0 && levels[newLevel].counts[parent] > 1) {
+                MapPos center = levels[newLevel].getCenter(parent);
+                Marker marker = getAnimatedMarker(visibleMarker.marker);
+                animation.add(new AnimatedMarker(marker, visibleMarker.mapX, visibleMarker.mapY, center.x, center.y));
+                view.add(marker);
+            } else if (parent >= 0) {
+                view.add(visibleMarker.marker);
+            }
+        }
+        return animation;
+    }
+
+    private int getAncestor(VisibleMarker visibleMarker, int level) {
+        int shift = Math.min(visibleMarker.level, maxClusterZoom) - level;
+        if (shift < 0) {
+            return -1;
+        }
+        return levels[level].getCell(getKey(visibleMarker.x >> shift, visibleMarker.y >> shift));
+    }
+
+    // cluster markers are owned by the data source, other markers are animated with copies
+    private static Marker getAnimatedMarker(Marker marker) {
+        if (marker.userData instanceof Cluster) {
+            return marker;
+        }
+        return new Marker(marker.getMapPos(), marker.getLabel(), marker.getStyleSet(), marker.userData);
+    }
+
+    private void scheduleAnimation() {
+        final int id;
+        synchronized (this) {
+            animationStartTime = System.currentTimeMillis();
+            id = ++animationId;
+        }
+        animationTimer.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                List<AnimatedMarker> markers;
+                float t;
+                synchronized (ClusteredMarkerDataSource.this) {
+                    if (id != animationId) {
+                        cancel();
+                        return;
+                    }
+                    markers = animatedMarkers;
+                    t = Math.min(1, (System.currentTimeMillis() - animationStartTime) / (float) ANIMATION_DURATION);
+                }
+                float s = t * (2 - t); // ease out
+                try {
+                    VectorLayer<?> layer = null;
+                    for (AnimatedMarker animatedMarker : markers) {
+                        animatedMarker.marker.setMapPos(new MapPos(animatedMarker.fromX + (animatedMarker.toX - animatedMarker.fromX) * s,
+                                animatedMarker.fromY + (animatedMarker.toY - animatedMarker.fromY) * s));
+                        if (layer == null) {
+                            layer = animatedMarker.marker.getLayer();
+                        }
+                    }
+                    Components components = layer != null ? layer.getComponents() : null;
+                    if (components != null) {
+                        components.mapRenderers.getMapRenderer().requestRenderView();
+                    }
+                } catch (RuntimeException e) {
+                    // shared timer thread must survive, finish the animation instead
+                    Log.error("ClusteredMarkerDataSource: animation failed " + e.getMessage());
+                    t = 1;
+                }
+                if (t >= 1) {
+                    cancel();
+                    synchronized (ClusteredMarkerDataSource.this) {
+                        if (id != animationId) {
+                            return;
+                        }
+                        stopAnimation();
+                    }
+                    // replace copies with the real markers, and add markers which were not animated
+                    notifyElementsChanged();
+                }
+            }
+        }, 0, ANIMATION_FRAME_TIME);
+    }
+
+    private void stopAnimation() {
+        animationId++;
+        animatedMarkers = Collections.emptyList();
+        animatedView = null;
+    }
+
+    private int getCellX(double x) {
+        return Math.max(0, Math.min(cellCount - 1, (int) Math.floor((x - minX) / cellSize)));
+    }
+
+    private int getCellY(double y) {
+        return Math.max(0, Math.min(cellCount - 1, (int) Math.floor((y - minY) / cellSize)));
+    }
+
+    private static long getKey(int x, int y) {
+        return ((long) x << 32) | (y & 0xffffffffL);
+    }
+
+    private static int getKeyX(long key) {
+        return (int) (key >>> 32);
+    }
+
+    private static int getKeyY(long key) {
+        return (int) key;
+    }
+
+}
@@ -0,0 +1,373 @@
+package com.nutiteq.advancedmap.datasources;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.nutiteq.components.Bounds;
+import com.nutiteq.components.CullState;
+import com.nutiteq.components.Envelope;
+import com.nutiteq.components.MapPos;
+import com.nutiteq.geometry.Geometry;
+import com.nutiteq.geometry.Line;
+import com.nutiteq.geometry.Point;
+import com.nutiteq.geometry.Polygon;
+import com.nutiteq.log.Log;
+import com.nutiteq.projections.Projection;
+import com.nutiteq.style.LineStyle;
+import com.nutiteq.style.PointStyle;
+import com.nutiteq.style.PolygonStyle;
+import com.nutiteq.style.StyleSet;
+import com.nutiteq.ui.Label;
+import com.nutiteq.vectordatasources.AbstractVectorDataSource;
+
+/**
+ *
+ * Online vector data source for CartoDB/PostGIS content served as Mapbox Vector Tiles (protobuf), z/x/y per request.
+ *
+ * Unlike CartoDbDataSource, which queries and parses the whole view as JSON with hex encoded WKB geometries
+ * whenever the view changes, only tiles that are not cached yet are requested, so panning fetches just the new edge tiles.
+ * Tiles are loaded in a background thread, closest to the view center first, and decoded into PackedVectorTile.
+ * Decoded tiles are kept in a LRU cache limited by size. Until a tile is loaded, cached lower zoom tiles covering it are shown.
+ *
+ * Geometry objects are created only for the visible tiles, and are reused while the tiles stay visible.
+ * Above the maximum zoom of the tile server, tiles of the maximum zoom are used.
+ *
+ */
+public abstract class CartoDbVectorTileDataSource extends AbstractVectorDataSource<Geometry> {
+    private static final int DEFAULT_MAX_CACHE_SIZE = 8 * 1024 * 1024;
+    private static final int DEFAULT_MIN_ZOOM = 0;
+    private static final int DEFAULT_MAX_ZOOM = 14;
+    private static final int MAX_PARENT_LEVELS = 4;
+    private static final int CONNECTION_TIMEOUT = 10000;
+    private static final int READ_TIMEOUT = 20000;
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Pending tile load request
+     */
+    private static class TileRequest {
+        final long key;
+        final int zoom;
+        final int x;
+        final int y;
+        final double priority;
+
+        TileRequest(long key, int zoom, int x, int y, double priority) {
+            this.key = key;
+            this.zoom = zoom;
+            this.x = x;
+            this.y = y;
+            this.priority = priority;
+        }
+    }
+
+    private final String urlTemplate;
+    private final Map<Long, PackedVectorTile> tileCache = new LinkedHashMap<Long, PackedVectorTile>(16, 0.75f, true);
+    private final List<TileRequest> pendingRequests = new ArrayList<TileRequest>();
+    private boolean loaderRunning;
+    private long cacheSize;
+    private long maxCacheSize = DEFAULT_MAX_CACHE_SIZE;
+    private int minZoom = DEFAULT_MIN_ZOOM;
+    private int maxZoom = DEFAULT_MAX_ZOOM;
+    private String layerName;
+
+    private Map<Long, List<Geometry>> visibleTiles = new HashMap<Long, List<Geometry>>();
+    private int visibleZoom = -1;
+
+    /**
+     * Default constructor.
+     *
+     * @param proj
+     *          projection of the tile grid, normally EPSG3857
+     * @param urlTemplate
+     *          tile URL with {zoom}, {x} and {y} placeholders. Rows are counted from the top, as in XYZ tiles.
+     */
+    public CartoDbVectorTileDataSource(Projection proj, String urlTemplate) {
+        super(proj);
+        this.urlTemplate = urlTemplate;
+    }
+
+    /**
+     * Set zoom range of the tile server. Default is 0..14.
+     */
+    public void setZoomRange(int minZoom, int maxZoom) {
+        this.minZoom = minZoom;
+        this.maxZoom = maxZoom;
+    }
+
+    /**
+     * Set name of the tile layer to use, null to use all layers. Default is null.
+     */
+    public void setLayerName(String layerName) {
+        this.layerName = layerName;
+    }
+
+    /**
+     * Set maximum size of decoded tiles kept in memory, in bytes. Default is 8MB.
+     */
+    public void setMaxCacheSize(long maxCacheSize) {
+        synchronized (tileCache) {
+            this.maxCacheSize = maxCacheSize;
+            trimCache();
+        }
+    }
+
+    /**
+     * Drop all cached tiles and reload visible area.
+     */
+    public void invalidate() {
+        synchronized (tileCache) {
+            tileCache.clear();
+            cacheSize = 0;
+        }
+        notifyElementsChanged();
+    }
+
+    @Override
+    public Envelope getDataExtent() {
+        Bounds bounds = projection.getBounds();
+        return new Envelope(bounds.left, bounds.right, bounds.bottom, bounds.top);
+    }
+
+    @Override
+    public synchronized Collection<Geometry> loadElements(CullState cullState) {
+        int zoom = Math.max(minZoom, Math.min(maxZoom, cullState.zoom));
+        Envelope envelope = projection.fromInternal(cullState.envelope);
+        Bounds bounds = projection.getBounds();
+        int tileCount = 1 << zoom;
+        double tileWidth = bounds.getWidth() / tileCount;
+        double tileHeight = bounds.getHeight() / tileCount;
+        int minTileX = Math.max(0, (int) Math.floor((envelope.minX - bounds.left) / tileWidth));
+        int maxTileX = Math.min(tileCount - 1, (int) Math.floor((envelope.maxX - bounds.left) / tileWidth));
+        int minTileY = Math.max(0, (int) Math.floor((bounds.top - envelope.maxY) / tileHeight));
+        int maxTileY = Math.min(tileCount - 1, (int) Math.floor((bounds.top - envelope.minY) / tileHeight));
+        double centerX = (envelope.minX + envelope.maxX) / 2;
+        double centerY = (envelope.minY + envelope.maxY) / 2;
+
+        // style sets depend on zoom, so elements can be reused only within the same view zoom
+        Map<Long, List<Geometry>> oldTiles = cullState.zoom == visibleZoom ? visibleTiles : new HashMap<Long, List<Geometry>>();
+        Map<Long, List<Geometry>> newTiles = new HashMap<Long, List<Geometry>>();
+        Set<Long> parentKeys = new HashSet<Long>();
+        List<TileRequest> requests = new ArrayList<TileRequest>();
+        synchronized (tileCache) {
+            for (int tileY = minTileY; tileY <= maxTileY; tileY++) {
+                for (int tileX = minTileX; tileX <= maxTileX; tileX++) {
+                    long key = getTileKey(zoom, tileX, tileY);
+                    if (addTileElements(key, oldTiles, newTiles, cullState.zoom)) {
+                        continue;
+                    }
+
+                    // show coarser data until the tile is loaded
+                    for (int level = 1; level <= MAX_PARENT_LEVELS && level <= zoom - minZoom; level++) {
+                        long parentKey = getTileKey(zoom - level, tileX >> level, tileY >> level);
+                        if (parentKeys.contains(parentKey) || addTileElements(parentKey, oldTiles, newTiles, cullState.zoom)) {
+                            parentKeys.add(parentKey);
+                            break;
+                        }
+                    }
+
+                    double dx = bounds.left + (tileX + 0.5) * tileWidth - centerX;
+                    double dy = bounds.top - (tileY + 0.5) * tileHeight - centerY;
+                    requests.add(new TileRequest(key, zoom, tileX, tileY, dx * dx + dy * dy));
+                }
+            }
+        }
+        visibleTiles = newTiles;
+        visibleZoom = cullState.zoom;
+
+        Collections.sort(requests, new Comparator<TileRequest>() {
+            @Override
+            public int compare(TileRequest request1, TileRequest request2) {
+                return Double.compare(request1.priority, request2.priority);
+            }
+        });
+
+        synchronized (pendingRequests) {
+            // requests for the previous view are superseded
+            pendingRequests.clear();
+            pendingRequests.addAll(requests);
+            if (!pendingRequests.isEmpty() && !loaderRunning) {
+                loaderRunning = true;
+                Thread loader = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        loadPendingTiles();
+                    }
+                });
+                loader.setPriority(Thread.MIN_PRIORITY);
+                loader.start();
+            }
+        }
+
+        List<Geometry> elements = new ArrayList<Geometry>();
+        for (List<Geometry> tileElements : newTiles.values()) {
+            elements.addAll(tileElements);
+        }
+        return elements;
+    }
+
+    private boolean addTileElements(long key, Map<Long, List<Geometry>> oldTiles, Map<Long, List<Geometry>> newTiles, int viewZoom) {
+        // visible tiles are kept even if they are already dropped from the cache
+        List<Geometry> tileElements = oldTiles.get(key);
+        if (tileElements == null) {
+            PackedVectorTile tile = tileCache.get(key);
+            if (tile == null) {
+                return false;
+            }
+            tileElements = new ArrayList<Geometry>(tile.getElementCount());
+            for (int element = 0; element < tile.getElementCount(); element++) {
+                Geometry geometry = createElement(tile, element, viewZoom);
+                geometry.setId(tile.getId(element));
+                geometry.attachToDataSource(this);
+                tileElements.add(geometry);
+            }
+        }
+        newTiles.put(key, tileElements);
+        return true;
+    }
+
+    private Geometry createElement(PackedVectorTile tile, int element, int zoom) {
+        Map<String, String> userData = tile.getAttributes(element);
+        List<List<MapPos>> rings = tile.getRings(element);
+        Label label = createLabel(userData);
+        switch (tile.getType(element)) {
+        case PackedVectorTile.TYPE_POINT:
+            return new Point(rings.get(0).get(0), label, createPointStyleSet(userData, zoom), userData);
+        case PackedVectorTile.TYPE_LINE:
+            return new Line(rings.get(0), label, createLineStyleSet(userData, zoom), userData);
+        default:
+            List<List<MapPos>> holes = rings.size() > 1 ? new ArrayList<List<MapPos>>(rings.subList(1, rings.size())) : null;
+            return new Polygon(rings.get(0), holes, label, createPolygonStyleSet(userData, zoom), userData);
+        }
+    }
+
+    private void loadPendingTiles() {
+        while (true) {
+            TileRequest request;
+            synchronized (pendingRequests) {
+                if (pendingRequests.isEmpty()) {
+                    loaderRunning = false;
+                    return;
+                }
+                request = pendingRequests.remove(0);
+            }
+            synchronized (tileCache) {
+                if (tileCache.containsKey(request.key)) {
+                    continue;
+                }
+            }
+
+            PackedVectorTile tile = loadTile(request.zoom, request.x, request.y);
+            if (tile == null) {
+                continue;
+            }
+            synchronized (tileCache) {
+                tileCache.put(request.key, tile);
+                cacheSize += tile.getSize();
+                trimCache();
+            }
+
+            // publish partial result, layer will call loadElements again
+            notifyElementsChanged();
+        }
+    }
+
+    private PackedVectorTile loadTile(int zoom, int x, int y) {
+        String url = urlTemplate.replace("{zoom}", Integer.toString(zoom)).replace("{x}", Integer.toString(x)).replace("{y}", Integer.toString(y));
+        Bounds bounds = projection.getBounds();
+        double tileWidth = bounds.getWidth() / (1 << zoom);
+        double tileHeight = bounds.getHeight() / (1 << zoom);
+        Envelope envelope = new Envelope(bounds.left + x * tileWidth, bounds.left + (x + 1) * tileWidth, bounds.top - (y + 1) * tileHeight, bounds.top - y * tileHeight);
+
+        HttpURLConnection conn = null;
+        try {
+            long time = System.currentTimeMillis();
+            conn = (HttpURLConnection) new URL(url).openConnection();
+            conn.setConnectTimeout(CONNECTION_TIMEOUT);
+            conn.setReadTimeout(READ_TIMEOUT);
+            int responseCode = conn.getResponseCode();
+            byte[] data;
+            if (responseCode == HttpURLConnection.HTTP_NO_CONTENT || responseCode == HttpURLConnection.HTTP_NOT_FOUND) {
+                // no data in this tile
+                data = new byte[0];
+            } else {
+                InputStream inputStream = conn.getInputStream();
+                try {
+                    data = readFully(inputStream, conn.getContentLength());
+                } finally {
+                    inputStream.close();
+                }
+            }
+            long decodeTime = System.currentTimeMillis();
+            PackedVectorTile tile = PackedVectorTile.decode(data, layerName, envelope);
+            Log.debug("CartoDbVectorTileDataSource: loaded " + url + " " + data.length + " bytes, " + tile.getElementCount() + " elements, time ms: "
+                    + (decodeTime - time) + " + " + (System.currentTimeMillis() - decodeTime));
+            return tile;
+        } catch (IOException e) {
+            Log.error("CartoDbVectorTileDataSource: failed to load tile " + url + ": " + e.getMessage());
+            return null;
+        } finally {
+            if (conn != null) {
+                conn.disconnect();
+            }
+        }
+    }
+
+    private static byte[] readFully(InputStream inputStream, int contentLength) throws IOException {
+        if (contentLength >= 0) {
+            // read directly into the final array, no intermediate copies
+            byte[] data = new byte[contentLength];
+            int offset = 0;
+            while (offset < contentLength) {
+                int count = inputStream.read(data, offset, contentLength - offset);
+                if (count < 0) {
+                    throw new IOException("Unexpected end of tile data");
+                }
+                offset += count;
+            }
+            return data;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(BUFFER_SIZE);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int count;
+        while ((count = inputStream.read(buffer)) >= 0) {
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    private void trimCache() {
+        Iterator<PackedVectorTile> it = tileCache.values().iterator();
+        while (cacheSize > maxCacheSize && it.hasNext()) {
+            cacheSize -= it.next().getSize();
+            it.remove();
+        }
+    }
+
+    private static long getTileKey(int zoom, int tileX, int tileY) {
+        return ((long) zoom << 56) | ((long) tileX << 28) | (long) tileY;
+    }
+
+    protected abstract Label createLabel(Map<String, String> userData);
+
+    protected abstract StyleSet<PointStyle> createPointStyleSet(Map<String, String> userData, int zoom);
+
+    protected abstract StyleSet<LineStyle> createLineStyleSet(Map<String, String> userData, int zoom);
+
+    protected abstract StyleSet<PolygonStyle> createPolygonStyleSet(Map<String, String> userData, int zoom);
+
+}
@@ -0,0 +1,285 @@
+package com.nutiteq.advancedmap.datasources;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.mapsforge.map.rendertheme.XmlRenderTheme;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import com.nutiteq.log.Log;
+
+/**
+ *
+ * Render theme which is read and analysed once, and then served from memory.
+ *
+ * Source theme is parsed when the theme is compiled: comments and whitespace are removed, and tag keys and values
+ * used by rules and captions are collected to a RenderThemeIndex. Compiled theme and index are saved to a binary
+ * cache file, later instances load it with a single read instead of parsing the XML. Mapsforge renderers parse
+ * the theme from the compact in-memory copy, shared by all renderers.
+ *
+ * Use the index with ThemeFilteringMapDatabase to drop tags which can not change the rendering.
+ *
+ */
+public class CompiledRenderTheme implements XmlRenderTheme {
+    private static final int MAGIC = 0x4e545254; // "NTRT"
+    private static final int VERSION = 1;
+    private static final String ELEMENT_RULE = "rule";
+    private static final String ELEMENT_CAPTION = "caption";
+    private static final String ELEMENT_PATH_TEXT = "pathText";
+    private static final int DEFAULT_MAX_ZOOM = Byte.MAX_VALUE;
+
+    private final String relativePathPrefix;
+    private byte[] themeData;
+    private RenderThemeIndex index;
+
+    /**
+     * Constructor for themes with stable toString(), like InternalRenderTheme.
+     *
+     * @param source
+     *          source theme
+     * @param cacheFile
+     *          cache file for the compiled theme, null to compile without caching
+     */
+    public CompiledRenderTheme(XmlRenderTheme source, File cacheFile) {
+        this(source, source.getClass().getName() + ":" + source, cacheFile);
+    }
+
+    /**
+     * Default constructor.
+     *
+     * @param source
+     *          source theme
+     * @param sourceId
+     *          identifier of the source theme contents, cached theme is used only if it has the same identifier.
+     *          Must be changed when the source theme changes, e.g. include application version.
+     * @param cacheFile
+     *          cache file for the compiled theme, null to compile without caching
+     */
+    public CompiledRenderTheme(XmlRenderTheme source, String sourceId, File cacheFile) {
+        this.relativePathPrefix = source.getRelativePathPrefix();
+        long startTime = System.currentTimeMillis();
+        if (cacheFile != null && readCache(cacheFile, sourceId)) {
+            Log.debug("CompiledRenderTheme: loaded " + themeData.length + " bytes from cache in " + (System.currentTimeMillis() - startTime) + " ms");
+            return;
+        }
+        compile(source);
+        Log.debug("CompiledRenderTheme: compiled " + themeData.length + " bytes, " + index.getKeyCount() + " keys, "
+                + index.getValueCount() + " values in " + (System.currentTimeMillis() - startTime) + " ms");
+        if (cacheFile != null) {
+            writeCache(cacheFile, sourceId);
+        }
+    }
+
+    public RenderThemeIndex getIndex() {
+        return index;
+    }
+
+    @Override
+    public String getRelativePathPrefix() {
+        return relativePathPrefix;
+    }
+
+    @Override
+    public InputStream getRenderThemeAsStream() throws FileNotFoundException {
+        return new ByteArrayInputStream(themeData);
+    }
+
+    private void compile(XmlRenderTheme source) {
+        ThemeCompiler compiler = new ThemeCompiler();
+        try {
+            InputStream in = source.getRenderThemeAsStream();
+            try {
+                SAXParserFactory.newInstance().newSAXParser().parse(in, compiler);
+            } finally {
+                in.close();
+            }
+            themeData = compiler.xml.toString().getBytes("UTF-8");
+        } catch (SAXException e) {
+            throw new RuntimeException("Invalid render theme", e);
+        } catch (ParserConfigurationException e) {
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read render theme", e);
+        }
+        index = compiler.index;
+    }
+
+    private boolean readCache(File cacheFile, String sourceId) {
+        if (!cacheFile.exists()) {
+            return false;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile), 64 * 1024));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION || !in.readUTF().equals(sourceId)) {
+                    Log.debug("CompiledRenderTheme: cache is outdated, recompiling");
+                    return false;
+                }
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                index = RenderThemeIndex.read(in);
+                themeData = data;
+                return true;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.error("CompiledRenderTheme: could not read " + cacheFile + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private void writeCache(File cacheFile, String sourceId) {
+        File tempFile = new File(cacheFile.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 64 * 1024));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(sourceId);
+                out.writeInt(themeData.length);
+                out.write(themeData);
+                index.write(out);
+            } finally {
+                out.close();
+            }
+            cacheFile.delete();
+            if (!tempFile.renameTo(cacheFile)) {
+                throw new IOException("Could not rename " + tempFile);
+            }
+        } catch (IOException e) {
+            // theme works without the cache, it is compiled again next time
+            tempFile.delete();
+            Log.error("CompiledRenderTheme: could not write " + cacheFile + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * SAX handler which writes the theme without comments and whitespace, and collects the index.
+     */
+    private static class ThemeCompiler extends DefaultHandler {
+        final StringBuilder xml = new StringBuilder(32 * 1024);
+        final RenderThemeIndex index = new RenderThemeIndex();
+        private final List<Long> ruleZoomMasks = new ArrayList<Long>();
+        private boolean startTagOpen;
+
+        @Override
+        public void startDocument() {
+            xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
+            closeStartTag();
+            xml.append('<').append(qName);
+            for (int i = 0; i < attributes.getLength(); i++) {
+                xml.append(' ').append(attributes.getQName(i)).append("=\"");
+                appendEscaped(attributes.getValue(i));
+                xml.append('"');
+            }
+            startTagOpen = true;
+
+            long parentMask = ruleZoomMasks.isEmpty() ? RenderThemeIndex.ALL_ZOOMS : ruleZoomMasks.get(ruleZoomMasks.size() - 1);
+            if (ELEMENT_RULE.equals(qName)) {
+                // child rules are tested only when the parent matches, so they inherit its zoom range
+                long mask = parentMask & RenderThemeIndex.getZoomMask(parseZoom(attributes.getValue("zoom-min"), 0),
+                        parseZoom(attributes.getValue("zoom-max"), DEFAULT_MAX_ZOOM));
+                ruleZoomMasks.add(mask);
+                indexRule(attributes.getValue("k"), attributes.getValue("v"), mask);
+            } else if (ELEMENT_CAPTION.equals(qName) || ELEMENT_PATH_TEXT.equals(qName)) {
+                String textKey = attributes.getValue("k");
+                if (textKey != null) {
+                    index.addKey(textKey, parentMask);
+                }
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            if (startTagOpen) {
+                xml.append("/>");
+                startTagOpen = false;
+            } else {
+                xml.append("</").append(qName).append('>');
+            }
+            if (ELEMENT_RULE.equals(qName)) {
+                ruleZoomMasks.remove(ruleZoomMasks.size() - 1);
+            }
+        }
+
+        private void indexRule(String keys, String values, long mask) {
+            if (keys != null) {
+                for (String key : keys.split("\\|")) {
+                    if (!key.equals("*")) {
+                        index.addKey(key, mask);
+                    }
+                }
+            }
+            if (values != null) {
+                for (String value : values.split("\\|")) {
+                    // "~" marks a negative rule, "*" matches anything, neither is compared with tag values
+                    if (!value.equals("*") && !value.equals("~")) {
+                        index.addValue(value, mask);
+                    }
+                }
+            }
+        }
+
+        private void closeStartTag() {
+            if (startTagOpen) {
+                xml.append('>');
+                startTagOpen = false;
+            }
+        }
+
+        private void appendEscaped(String value) {
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                case '&':
+                    xml.append("&amp;");
+                    break;
+                case '<':
+                    xml.append("&lt;");
+                    break;
+                case '>':
+                    xml.append("&gt;");
+                    break;
+                case '"':
+                    xml.append("&quot;");
+                    break;
+                default:
+                    xml.append(c);
+                }
+            }
+        }
+
+        private static int parseZoom(String zoom, int defaultZoom) throws SAXException {
+            if (zoom == null) {
+                return defaultZoom;
+            }
+            try {
+                return Integer.parseInt(zoom);
+            } catch (NumberFormatException e) {
+                throw new SAXException("Invalid zoom level: " + zoom);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,67 @@
+package com.nutiteq.advancedmap.datasources;
+
+import java.util.List;
+
+import com.nutiteq.components.Envelope;
+import com.nutiteq.components.MapPos;
+import com.nutiteq.components.MutableEnvelope;
+import com.nutiteq.editable.datasources.EditableVectorDataSource;
+import com.nutiteq.geometry.Geometry;
+import com.nutiteq.geometry.Line;
+import com.nutiteq.geometry.Point;
+import com.nutiteq.geometry.Polygon;
+
+/**
+ *
+ * Streaming data source wrapper for editable data sources. Modifications are passed to the
+ * underlying data source and tiles affected by the modified element are dropped afterwards, so saved changes
+ * become visible. Other loaded and stored tiles are kept.
+ *
+ */
+public class EditableStreamingVectorDataSource extends StreamingVectorDataSource<Geometry> implements EditableVectorDataSource<Geometry> {
+    private final EditableVectorDataSource<Geometry> dataSource;
+
+    public EditableStreamingVectorDataSource(EditableVectorDataSource<Geometry> dataSource) {
+        super(dataSource);
+        this.dataSource = dataSource;
+    }
+
+    @Override
+    public long insertElement(Geometry element) {
+        long id = dataSource.insertElement(element);
+        invalidateElement(id, getEnvelope(element));
+        return id;
+    }
+
+    @Override
+    public void updateElement(long id, Geometry element) {
+        dataSource.updateElement(id, element);
+        invalidateElement(id, getEnvelope(element));
+    }
+
+    @Override
+    public void deleteElement(long id) {
+        dataSource.deleteElement(id);
+        invalidateElement(id, null);
+    }
+
+    private static Envelope getEnvelope(Geometry element) {
+        List<MapPos> vertices;
+        if (element instanceof Point) {
+            MapPos mapPos = ((Point) element).getMapPos();
+            return new Envelope(mapPos.x, mapPos.x, mapPos.y, mapPos.y);
+        } else if (element instanceof Line) {
+            vertices = ((Line) element).getVertexList();
+        } else if (element instanceof Polygon) {
+            vertices = ((Polygon) element).getVertexList(); // holes are inside
+        } else {
+            return null;
+        }
+        MutableEnvelope envelope = new MutableEnvelope(vertices.get(0).x, vertices.get(0).y);
+        for (MapPos mapPos : vertices) {
+            envelope.add(mapPos);
+        }
+        return new Envelope(envelope);
+    }
+
+}
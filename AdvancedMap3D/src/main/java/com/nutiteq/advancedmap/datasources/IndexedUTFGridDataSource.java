@@ -0,0 +1,244 @@
+package com.nutiteq.advancedmap.datasources;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.nutiteq.components.MapTile;
+import com.nutiteq.components.MutableMapPos;
+import com.nutiteq.datasources.raster.UTFGridDataSource;
+import com.nutiteq.log.Log;
+import com.nutiteq.utils.UtfGridHelper;
+import com.nutiteq.utils.UtfGridHelper.MBTileUTFGrid;
+import com.samskivert.mustache.Template;
+
+/**
+ *
+ * UTFGrid data source wrapper which keeps decoded grids in compact form for fast click lookups.
+ *
+ * Give this as UTFGrid data source to UTFGridRasterLayer: grids of visible tiles are loaded by the layer
+ * in background as before, and the layer keeps the original grids, so UTFGridRasterLayer.getUTFGridTooltips()
+ * keeps working. Only weak references to the grids are kept here, so they are not held in memory twice.
+ *
+ * When a tile is clicked first time, its grid is decoded once into per-cell key indices with feature attributes
+ * already parsed. Decoded grids of recently clicked tiles are kept in a LRU cache, strings repeating between
+ * tiles are shared.
+ *
+ */
+public class IndexedUTFGridDataSource implements UTFGridDataSource {
+    private static final int DEFAULT_MAX_CACHED_TILES = 16;
+    private static final int MAX_GRID_REFERENCES = 1024;
+    private static final int MAX_INTERNED_STRINGS = 20000;
+
+    /**
+     * Decoded grid of a single tile
+     */
+    private static class GridTile {
+        final int size;
+        // key index for each cell, row by row
+        final char[] cells;
+        // attributes for each key index, null for empty cells
+        final Map<String, String>[] attributes;
+
+        GridTile(int size, char[] cells, Map<String, String>[] attributes) {
+            this.size = size;
+            this.cells = cells;
+            this.attributes = attributes;
+        }
+    }
+
+    private final UTFGridDataSource dataSource;
+    private final Map<Long, GridTile> gridTiles;
+    private final Map<Long, WeakReference<MBTileUTFGrid>> grids;
+    private final Map<String, String> internedStrings = new HashMap<String, String>();
+
+    /**
+     * Default constructor.
+     *
+     * @param dataSource
+     *          original UTFGrid data source
+     */
+    public IndexedUTFGridDataSource(UTFGridDataSource dataSource) {
+        this(dataSource, DEFAULT_MAX_CACHED_TILES);
+    }
+
+    /**
+     * Constructor with custom cache size.
+     *
+     * @param dataSource
+     *          original UTFGrid data source
+     * @param maxCachedTiles
+     *          maximum number of decoded grids of clicked tiles kept in memory
+     */
+    @SuppressWarnings("serial")
+    public IndexedUTFGridDataSource(UTFGridDataSource dataSource, final int maxCachedTiles) {
+        this.dataSource = dataSource;
+        this.gridTiles = new LinkedHashMap<Long, GridTile>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, GridTile> eldest) {
+                return size() > maxCachedTiles;
+            }
+        };
+        this.grids = new LinkedHashMap<Long, WeakReference<MBTileUTFGrid>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, WeakReference<MBTileUTFGrid>> eldest) {
+                return size() > MAX_GRID_REFERENCES;
+            }
+        };
+    }
+
+    @Override
+    public MBTileUTFGrid loadUTFGrid(MapTile tile) {
+        MBTileUTFGrid grid = dataSource.loadUTFGrid(tile);
+        long key = getTileKey(tile);
+        synchronized (gridTiles) {
+            // grid may have changed, decode it again when clicked
+            gridTiles.remove(key);
+            if (grid != null) {
+                grids.put(key, new WeakReference<MBTileUTFGrid>(grid));
+            } else {
+                grids.remove(key);
+            }
+        }
+        return grid;
+    }
+
+    /**
+     * Check if the grid of the tile is available for getTooltips(). If not, the layer does not
+     * hold the grid either, so UTFGridRasterLayer.getUTFGridTooltips() can be used as fallback.
+     */
+    public boolean hasGrid(MapTile tile) {
+        return getGridTile(tile) != null;
+    }
+
+    /**
+     * Get attributes of the feature at clicked location. If the grid of the tile is not decoded yet,
+     * it is decoded from the grid held by the layer, which takes a few milliseconds.
+     *
+     * @param tile
+     *          clicked tile
+     * @param tilePos
+     *          clicked position in the tile, in range 0..1
+     * @param template
+     *          compiled tooltip template, null if not used
+     * @return feature attributes and templated values, or null if there is no feature at the location
+     *          or the grid of the tile is not loaded
+     */
+    public Map<String, String> getTooltips(MapTile tile, MutableMapPos tilePos, Template template) {
+        GridTile gridTile = getGridTile(tile);
+        if (gridTile == null) {
+            return null;
+        }
+        int col = Math.min(Math.max((int) (tilePos.x * gridTile.size), 0), gridTile.size - 1);
+        int row = Math.min(Math.max((int) ((1 - tilePos.y) * gridTile.size), 0), gridTile.size - 1);
+        Map<String, String> attributes = gridTile.attributes[gridTile.cells[row * gridTile.size + col]];
+        if (attributes == null) {
+            return null;
+        }
+
+        Map<String, String> toolTips = new HashMap<String, String>(attributes);
+        if (template != null) {
+            toolTips.put(UtfGridHelper.TEMPLATED_TEASER_KEY, executeTemplate(template, toolTips, "__teaser__"));
+            toolTips.put(UtfGridHelper.TEMPLATED_FULL_KEY, executeTemplate(template, toolTips, "__full__"));
+            toolTips.put(UtfGridHelper.TEMPLATED_LOCATION_KEY, executeTemplate(template, toolTips, "__location__"));
+        }
+        return toolTips;
+    }
+
+    private static String executeTemplate(Template template, Map<String, String> values, String section) {
+        Map<String, String> context = new HashMap<String, String>(values);
+        context.put(section, "1");
+        return template.execute(context);
+    }
+
+    private GridTile getGridTile(MapTile tile) {
+        long key = getTileKey(tile);
+        MBTileUTFGrid grid;
+        synchronized (gridTiles) {
+            GridTile gridTile = gridTiles.get(key);
+            if (gridTile != null) {
+                return gridTile;
+            }
+            WeakReference<MBTileUTFGrid> gridRef = grids.get(key);
+            grid = gridRef != null ? gridRef.get() : null;
+        }
+        if (grid == null || grid.grid == null || grid.grid.length == 0) {
+            return null;
+        }
+        GridTile gridTile;
+        try {
+            gridTile = decodeGrid(grid);
+        } catch (JSONException e) {
+            Log.error("IndexedUTFGridDataSource: JSON parsing error " + e.getMessage());
+            return null;
+        }
+        synchronized (gridTiles) {
+            gridTiles.put(key, gridTile);
+        }
+        return gridTile;
+    }
+
+    private static long getTileKey(MapTile tile) {
+        return ((long) tile.zoom << 58) | ((long) tile.x << 29) | tile.y;
+    }
+
+    @SuppressWarnings("unchecked")
+    private GridTile decodeGrid(MBTileUTFGrid grid) throws JSONException {
+        int size = grid.grid.length;
+        char[] cells = new char[size * size];
+        for (int row = 0; row < size; row++) {
+            String line = grid.grid[row];
+            for (int col = 0, i = 0; col < size && i < line.length(); col++) {
+                int code = line.codePointAt(i);
+                i += Character.charCount(code);
+                if (code >= 93) {
+                    code--;
+                }
+                if (code >= 35) {
+                    code--;
+                }
+                cells[row * size + col] = (char) (code - 32);
+            }
+        }
+
+        Map<String, String>[] attributes = new Map[grid.keys.length];
+        for (int i = 0; i < grid.keys.length; i++) {
+            String key = grid.keys[i];
+            JSONObject feature = key.equals("") || grid.data == null ? null : grid.data.optJSONObject(key);
+            if (feature == null) {
+                continue;
+            }
+            Map<String, String> featureAttributes = new HashMap<String, String>();
+            JSONArray names = feature.names();
+            for (int j = 0; names != null && j < names.length(); j++) {
+                String name = names.getString(j);
+                featureAttributes.put(intern(name), intern(feature.getString(name)));
+            }
+            attributes[i] = featureAttributes;
+        }
+        return new GridTile(size, cells, attributes);
+    }
+
+    private String intern(String value) {
+        synchronized (internedStrings) {
+            String interned = internedStrings.get(value);
+            if (interned != null) {
+                return interned;
+            }
+            if (internedStrings.size() >= MAX_INTERNED_STRINGS) {
+                Iterator<String> it = internedStrings.keySet().iterator();
+                it.next();
+                it.remove();
+            }
+            internedStrings.put(value, value);
+            return value;
+        }
+    }
+
+}
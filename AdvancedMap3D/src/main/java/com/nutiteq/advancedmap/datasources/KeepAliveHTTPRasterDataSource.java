@@ -0,0 +1,372 @@
+package com.nutiteq.advancedmap.datasources;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.nutiteq.components.Envelope;
+import com.nutiteq.components.MapTile;
+import com.nutiteq.components.TileBitmap;
+import com.nutiteq.log.Log;
+import com.nutiteq.projections.Projection;
+import com.nutiteq.rasterdatasources.HTTPRasterDataSource;
+import com.nutiteq.utils.Utils;
+
+/**
+ *
+ * Drop-in replacement for HTTPRasterDataSource which reuses HTTP connections and spreads requests over several hosts.
+ *
+ * {s} tag of the URL template is replaced with one of the given subdomains. Subdomain is selected by tile coordinates,
+ * so the same tile always comes from the same host (good for HTTP caches) while neighbouring tiles are
+ * fetched from different hosts in parallel.
+ *
+ * Connections are not closed after each tile but returned to the keep-alive pool of the host, so following tiles skip
+ * TCP (and TLS) handshakes. Number of simultaneous requests per host is limited, requests waiting for a free connection
+ * are served closest to the view center first, and requests for tiles that are no longer visible are dropped.
+ * Visible area must be updated with setVisibleArea() for this, e.g. from MapListener.onMapMoved().
+ * Keep-alive pool of the platform may need to be enlarged at application startup, see setKeepAlivePoolSize().
+ *
+ */
+public class KeepAliveHTTPRasterDataSource extends HTTPRasterDataSource {
+    private static final String[] DEFAULT_SUBDOMAINS = new String[] { "a", "b", "c" };
+    private static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 4;
+
+    /**
+     * Tile request waiting for a connection
+     */
+    private static class TileRequest {
+        final MapTile tile;
+        final long sequence;
+        boolean granted;
+        boolean dropped;
+
+        TileRequest(MapTile tile, long sequence) {
+            this.tile = tile;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * Result of a conditional tile request
+     */
+    public static class TileResponse {
+        /**
+         * Loaded tile, null if not modified
+         */
+        public TileBitmap tileBitmap;
+        /**
+         * True if server responded with 304, cached tile is still valid
+         */
+        public boolean notModified;
+        /**
+         * ETag header value, null if missing
+         */
+        public String eTag;
+        /**
+         * Last-Modified header time, 0 if missing
+         */
+        public long lastModified;
+        /**
+         * Expiration time from Cache-Control or Expires header, 0 if missing
+         */
+        public long expires;
+    }
+
+    /**
+     * Connection slots of a single host
+     */
+    private static class HostQueue {
+        int activeRequests;
+        final List<TileRequest> waitingRequests = new ArrayList<TileRequest>();
+    }
+
+    private final String[] subdomains;
+    private final Map<String, HostQueue> hostQueues = new HashMap<String, HostQueue>();
+    private int maxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+    private long requestCounter;
+    private VisibleArea visibleArea;
+
+    /**
+     * Default constructor, {s} tag is replaced with a, b or c.
+     *
+     * @param projection
+     *          projection of the tiles
+     * @param minZoom
+     *          minimum zoom supported by the data source
+     * @param maxZoom
+     *          maximum zoom supported by the data source
+     * @param urlTemplate
+     *          tile URL template, see HTTPRasterDataSource
+     */
+    public KeepAliveHTTPRasterDataSource(Projection projection, int minZoom, int maxZoom, String urlTemplate) {
+        this(projection, minZoom, maxZoom, urlTemplate, DEFAULT_SUBDOMAINS);
+    }
+
+    /**
+     * Constructor with custom subdomains.
+     *
+     * @param projection
+     *          projection of the tiles
+     * @param minZoom
+     *          minimum zoom supported by the data source
+     * @param maxZoom
+     *          maximum zoom supported by the data source
+     * @param urlTemplate
+     *          tile URL template, see HTTPRasterDataSource
+     * @param subdomains
+     *          values for {s} tag, e.g. {"1", "2", "3", "4"} for otile{s}.mqcdn.com
+     */
+    public KeepAliveHTTPRasterDataSource(Projection projection, int minZoom, int maxZoom, String urlTemplate, String[] subdomains) {
+        super(projection, minZoom, maxZoom, urlTemplate);
+        this.subdomains = subdomains;
+    }
+
+    /**
+     * Set maximum number of simultaneous requests to a single host. Default is 4.
+     */
+    public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    /**
+     * Set size of the HttpURLConnection keep-alive pool, in idle connections per host. Platform default is 5.
+     * This is a process wide system property, so it is not changed by the data source: application should call this
+     * once at startup, before the first HTTP request, with a value not smaller than setMaxConnectionsPerHost().
+     */
+    public static void setKeepAlivePoolSize(int maxIdleConnectionsPerHost) {
+        System.setProperty("http.maxConnections", Integer.toString(maxIdleConnectionsPerHost));
+    }
+
+    /**
+     * Update visible area. Waiting requests for tiles outside of the area are dropped,
+     * remaining requests are ordered by distance from the area center.
+     *
+     * @param envelope
+     *          visible area in data source projection, null if unknown
+     * @param zoom
+     *          current view zoom
+     */
+    public void setVisibleArea(Envelope envelope, int zoom) {
+        synchronized (hostQueues) {
+            visibleArea = envelope != null ? new VisibleArea(projection, envelope, zoom) : null;
+            for (HostQueue queue : hostQueues.values()) {
+                for (int i = queue.waitingRequests.size() - 1; i >= 0; i--) {
+                    TileRequest request = queue.waitingRequests.get(i);
+                    if (!isVisible(request.tile)) {
+                        request.dropped = true;
+                        queue.waitingRequests.remove(i);
+                    }
+                }
+            }
+            hostQueues.notifyAll();
+        }
+    }
+
+    @Override
+    protected String buildTileURL(MapTile tile) {
+        Map<String, String> tagMap = buildTileTagMap(tile);
+        if (subdomains.length > 0) {
+            tagMap.put("s", subdomains[(tile.x + tile.y) % subdomains.length]);
+        }
+        return Utils.replaceTags(urlTemplate, tagMap);
+    }
+
+    @Override
+    public TileBitmap loadTile(MapTile tile) {
+        TileResponse response = loadTile(tile, null, 0);
+        return response != null ? response.tileBitmap : null;
+    }
+
+    /**
+     * Load tile with conditional request.
+     *
+     * @param tile
+     *          tile to load
+     * @param eTag
+     *          ETag of the cached tile, sent as If-None-Match. Null if not known.
+     * @param lastModified
+     *          Last-Modified time of the cached tile, sent as If-Modified-Since. 0 if not known.
+     * @return response, or null if request failed or was dropped
+     */
+    public TileResponse loadTile(MapTile tile, String eTag, long lastModified) {
+        String url = buildTileURL(tile);
+        String host;
+        try {
+            host = new URL(url).getHost();
+        } catch (IOException e) {
+            Log.error(getClass().getName() + ": invalid URL " + url);
+            return null;
+        }
+
+        long startTime = System.currentTimeMillis();
+        if (!acquireConnection(host, tile)) {
+            Log.debug(getClass().getName() + ": dropped invisible tile " + url);
+            return null;
+        }
+        long fetchTime = System.currentTimeMillis();
+        try {
+            return fetchTile(url, eTag, lastModified);
+        } finally {
+            releaseConnection(host);
+            long endTime = System.currentTimeMillis();
+            Log.debug(getClass().getName() + ": tile " + url + " waited " + (fetchTime - startTime) + " ms, loaded in " + (endTime - fetchTime) + " ms");
+        }
+    }
+
+    private TileResponse fetchTile(String url, String eTag, long lastModified) {
+        Log.info(getClass().getName() + ": loading tile " + url);
+        HttpURLConnection conn = null;
+        InputStream inputStream = null;
+        try {
+            conn = (HttpURLConnection) new URL(url).openConnection();
+            conn.setConnectTimeout(connectionTimeout);
+            conn.setReadTimeout(readTimeout);
+            if (httpHeaders != null) {
+                for (Map.Entry<String, String> entry : httpHeaders.entrySet()) {
+                    conn.addRequestProperty(entry.getKey(), entry.getValue());
+                }
+            }
+            if (eTag != null) {
+                conn.setRequestProperty("If-None-Match", eTag);
+            }
+            if (lastModified > 0) {
+                conn.setIfModifiedSince(lastModified);
+            }
+            inputStream = new BufferedInputStream(conn.getInputStream(), BUFFER_SIZE);
+
+            TileResponse response = new TileResponse();
+            response.eTag = conn.getHeaderField("ETag");
+            response.lastModified = conn.getLastModified();
+            response.expires = getExpiration(conn);
+            if (conn.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                response.notModified = true;
+                drain(inputStream);
+                inputStream.close();
+            } else {
+                // reads the response to the end and closes the stream, which returns the connection to the keep-alive pool.
+                // Unlike HTTPRasterDataSource, disconnect() is not called as it would close the socket.
+                response.tileBitmap = readTileBitmap(inputStream);
+                if (response.tileBitmap == null) {
+                    return null;
+                }
+            }
+            return response;
+        } catch (IOException e) {
+            Log.error(getClass().getName() + ": failed to load tile " + url + ": " + e.getMessage());
+            if (conn != null) {
+                // error body must be consumed as well, otherwise the connection can not be reused
+                InputStream errorStream = conn.getErrorStream();
+                try {
+                    if (errorStream != null) {
+                        drain(errorStream);
+                        errorStream.close();
+                    } else if (inputStream != null) {
+                        inputStream.close();
+                    }
+                } catch (IOException e2) {
+                    conn.disconnect();
+                }
+            }
+            return null;
+        }
+    }
+
+    private static long getExpiration(HttpURLConnection conn) {
+        // Cache-Control max-age takes precedence over Expires
+        String cacheControl = conn.getHeaderField("Cache-Control");
+        if (cacheControl != null) {
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim().toLowerCase();
+                if (directive.equals("no-cache") || directive.equals("no-store")) {
+                    return System.currentTimeMillis();
+                }
+                if (directive.startsWith("max-age=")) {
+                    try {
+                        return System.currentTimeMillis() + Long.parseLong(directive.substring(8).trim()) * 1000;
+                    } catch (NumberFormatException e) {
+                        Log.debug("KeepAliveHTTPRasterDataSource: invalid Cache-Control " + cacheControl);
+                    }
+                }
+            }
+        }
+        return conn.getExpiration();
+    }
+
+    private boolean acquireConnection(String host, MapTile tile) {
+        synchronized (hostQueues) {
+            HostQueue queue = hostQueues.get(host);
+            if (queue == null) {
+                queue = new HostQueue();
+                hostQueues.put(host, queue);
+            }
+            if (!isVisible(tile)) {
+                return false;
+            }
+            if (queue.activeRequests < maxConnectionsPerHost && queue.waitingRequests.isEmpty()) {
+                queue.activeRequests++;
+                return true;
+            }
+
+            TileRequest request = new TileRequest(tile, requestCounter++);
+            queue.waitingRequests.add(request);
+            while (!request.granted && !request.dropped) {
+                try {
+                    hostQueues.wait();
+                } catch (InterruptedException e) {
+                    queue.waitingRequests.remove(request);
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return request.granted;
+        }
+    }
+
+    private void releaseConnection(String host) {
+        synchronized (hostQueues) {
+            HostQueue queue = hostQueues.get(host);
+            TileRequest next = null;
+            double nextPriority = 0;
+            for (TileRequest request : queue.waitingRequests) {
+                double priority = getPriority(request);
+                if (next == null || priority < nextPriority) {
+                    next = request;
+                    nextPriority = priority;
+                }
+            }
+            if (next != null) {
+                // slot is handed over directly, active count stays the same
+                queue.waitingRequests.remove(next);
+                next.granted = true;
+                hostQueues.notifyAll();
+            } else {
+                queue.activeRequests--;
+            }
+        }
+    }
+
+    private boolean isVisible(MapTile tile) {
+        return visibleArea == null || visibleArea.contains(tile);
+    }
+
+    private double getPriority(TileRequest request) {
+        if (visibleArea == null) {
+            // newest first, older requests are more likely to be for a previous view
+            return -request.sequence;
+        }
+        return visibleArea.getPriority(request.tile);
+    }
+
+    private static void drain(InputStream inputStream) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        while (inputStream.read(buffer) != -1) {
+        }
+    }
+
+}
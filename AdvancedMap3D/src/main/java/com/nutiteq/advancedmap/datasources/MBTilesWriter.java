@@ -0,0 +1,366 @@
+package com.nutiteq.advancedmap.datasources;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.graphics.Bitmap;
+
+import com.nutiteq.components.MapTile;
+import com.nutiteq.components.TileBitmap;
+import com.nutiteq.log.Log;
+import com.nutiteq.rasterdatasources.CacheRasterDataSource;
+
+/**
+ *
+ * Fast writer for MBTiles files, which can be read with MBTilesRasterDataSource.
+ *
+ * Tiles are buffered in memory and each full batch is inserted with prepared statements in a single transaction,
+ * which is begun and committed within the same call. Android database transactions belong to the thread which began
+ * them, so tiles can be put from any number of threads. Database uses WAL journal where available.
+ * New files use the images/map schema with a tiles view: identical tiles (sea, empty land) are stored only once,
+ * keyed by MD5 of the tile data. Existing files with a plain tiles table are written to that table.
+ *
+ * Writer is also a cache store, so tiles can be imported from any raster data source with RasterTileSeeder.
+ * Metadata keys used by MBTilesMapActivity (center, bounds, legend) can be set with the helper methods,
+ * minzoom, maxzoom and format are written automatically on close.
+ *
+ */
+public class MBTilesWriter implements CacheRasterDataSource.CacheStore {
+    private static final int DEFAULT_BATCH_SIZE = 256;
+
+    private static class PendingTile {
+        final int zoom;
+        final int x;
+        final int y;
+        final byte[] data;
+
+        PendingTile(int zoom, int x, int y, byte[] data) {
+            this.zoom = zoom;
+            this.x = x;
+            this.y = y;
+            this.data = data;
+        }
+    }
+
+    private final File file;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private SQLiteDatabase db;
+    private boolean tilesTable;
+    private SQLiteStatement insertImage;
+    private SQLiteStatement insertMap;
+    private SQLiteStatement insertTile;
+    private MessageDigest digest;
+    private final Map<Long, PendingTile> pendingTiles = new LinkedHashMap<Long, PendingTile>();
+
+    private int minZoom = Integer.MAX_VALUE;
+    private int maxZoom = -1;
+    private String format;
+    private long tileCount;
+    private long duplicateCount;
+    private long writeNanos;
+
+    /**
+     * Default constructor. File is created if it does not exist, tiles in an existing file are kept.
+     *
+     * @param file
+     *          MBTiles file
+     */
+    public MBTilesWriter(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Set number of tiles buffered and written in a single transaction. Default is 256.
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public synchronized void open() {
+        if (db != null) {
+            return;
+        }
+        db = SQLiteDatabase.openOrCreateDatabase(file, null);
+        // WAL is available from Android 3.0, older versions keep the default journal
+        queryPragma("PRAGMA journal_mode=WAL");
+        db.execSQL("PRAGMA synchronous=NORMAL");
+
+        db.execSQL("CREATE TABLE IF NOT EXISTS metadata (name TEXT, value TEXT)");
+        db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS metadata_name ON metadata (name)");
+        tilesTable = isTable("tiles");
+        if (tilesTable) {
+            // standard schema of other tools, a view with the same name can not be created
+            db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS tile_index ON tiles (zoom_level, tile_column, tile_row)");
+            insertTile = db.compileStatement("INSERT OR REPLACE INTO tiles (zoom_level, tile_column, tile_row, tile_data) VALUES (?, ?, ?, ?)");
+            Log.debug("MBTilesWriter: " + file + " has a tiles table, tiles are not deduplicated");
+            return;
+        }
+
+        db.execSQL("CREATE TABLE IF NOT EXISTS images (tile_id TEXT, tile_data BLOB)");
+        db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS images_id ON images (tile_id)");
+        db.execSQL("CREATE TABLE IF NOT EXISTS map (zoom_level INTEGER, tile_column INTEGER, tile_row INTEGER, tile_id TEXT)");
+        db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS map_index ON map (zoom_level, tile_column, tile_row)");
+        db.execSQL("CREATE VIEW IF NOT EXISTS tiles AS SELECT map.zoom_level AS zoom_level, map.tile_column AS tile_column, map.tile_row AS tile_row,"
+                + " images.tile_data AS tile_data FROM map JOIN images ON images.tile_id = map.tile_id");
+
+        insertImage = db.compileStatement("INSERT OR IGNORE INTO images (tile_id, tile_data) VALUES (?, ?)");
+        insertMap = db.compileStatement("INSERT OR REPLACE INTO map (zoom_level, tile_column, tile_row, tile_id) VALUES (?, ?, ?, ?)");
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Write buffered tiles, write zoom range and format to metadata and close the file.
+     */
+    @Override
+    public synchronized void close() {
+        if (db == null) {
+            return;
+        }
+        flush();
+        if (maxZoom >= 0) {
+            // file may contain tiles from earlier runs
+            setMetadata("minzoom", Integer.toString(getStoredZoom("min", minZoom)));
+            setMetadata("maxzoom", Integer.toString(getStoredZoom("max", maxZoom)));
+        }
+        if (format != null) {
+            setMetadata("format", format);
+        }
+        if (tilesTable) {
+            insertTile.close();
+        } else {
+            insertImage.close();
+            insertMap.close();
+        }
+        db.close();
+        db = null;
+        Log.debug("MBTilesWriter: wrote " + tileCount + " tiles, " + duplicateCount + " duplicates, "
+                + Math.round(getTilesPerSecond()) + " tiles/s");
+    }
+
+    /**
+     * Write tile. Tile is buffered until the batch is full, flush() or close() is called.
+     *
+     * @param zoom
+     *          zoom level
+     * @param x
+     *          tile column
+     * @param y
+     *          tile row, counted from the top like in MapTile. Converted to TMS row for the file.
+     * @param data
+     *          compressed tile image
+     */
+    public synchronized void putTile(int zoom, int x, int y, byte[] data) {
+        pendingTiles.put(getTileKey(zoom, x, y), new PendingTile(zoom, x, y, data));
+        if (pendingTiles.size() >= batchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Write buffered tiles in a single transaction.
+     */
+    public synchronized void flush() {
+        if (pendingTiles.isEmpty()) {
+            return;
+        }
+        long startTime = System.nanoTime();
+        db.beginTransaction();
+        try {
+            for (PendingTile tile : pendingTiles.values()) {
+                insert(tile);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        pendingTiles.clear();
+        writeNanos += System.nanoTime() - startTime;
+        Log.debug("MBTilesWriter: " + tileCount + " tiles written, " + Math.round(getTilesPerSecond()) + " tiles/s");
+    }
+
+    @Override
+    public void put(MapTile tile, TileBitmap tileBitmap) {
+        byte[] data = tileBitmap.getCompressed();
+        if (data == null) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            tileBitmap.getBitmap().compress(Bitmap.CompressFormat.PNG, 100, out);
+            data = out.toByteArray();
+        }
+        putTile(tile.zoom, tile.x, tile.y, data);
+    }
+
+    @Override
+    public synchronized TileBitmap get(MapTile tile) {
+        PendingTile pendingTile = pendingTiles.get(getTileKey(tile.zoom, tile.x, tile.y));
+        if (pendingTile != null) {
+            return new TileBitmap(pendingTile.data);
+        }
+        Cursor cursor = db.rawQuery("SELECT tile_data FROM tiles WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?",
+                new String[] { Integer.toString(tile.zoom), Integer.toString(tile.x), Integer.toString((1 << tile.zoom) - 1 - tile.y) });
+        try {
+            return cursor.moveToFirst() ? new TileBitmap(cursor.getBlob(0)) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public synchronized void remove(MapTile tile) {
+        pendingTiles.remove(getTileKey(tile.zoom, tile.x, tile.y));
+        // image is kept, it may be used by other tiles
+        db.execSQL("DELETE FROM " + (tilesTable ? "tiles" : "map") + " WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?",
+                new Object[] { tile.zoom, tile.x, (1 << tile.zoom) - 1 - tile.y });
+    }
+
+    @Override
+    public synchronized void clear() {
+        pendingTiles.clear();
+        if (tilesTable) {
+            db.execSQL("DELETE FROM tiles");
+        } else {
+            db.execSQL("DELETE FROM map");
+            db.execSQL("DELETE FROM images");
+        }
+    }
+
+    /**
+     * Set metadata value.
+     */
+    public synchronized void setMetadata(String name, String value) {
+        db.execSQL("INSERT OR REPLACE INTO metadata (name, value) VALUES (?, ?)", new Object[] { name, value });
+    }
+
+    /**
+     * Set bounds metadata, used by MBTilesMapActivity to position the map if center is not given.
+     */
+    public void setBounds(double minLon, double minLat, double maxLon, double maxLat) {
+        setMetadata("bounds", String.format(Locale.US, "%.6f,%.6f,%.6f,%.6f", minLon, minLat, maxLon, maxLat));
+    }
+
+    /**
+     * Set center metadata, used by MBTilesMapActivity as initial map position.
+     */
+    public void setCenter(double lon, double lat, float zoom) {
+        setMetadata("center", String.format(Locale.US, "%.6f,%.6f,%s", lon, lat, Float.toString(zoom)));
+    }
+
+    /**
+     * Set legend metadata, HTML shown by MBTilesMapActivity.
+     */
+    public void setLegend(String legendHtml) {
+        setMetadata("legend", legendHtml);
+    }
+
+    public synchronized long getTileCount() {
+        return tileCount;
+    }
+
+    /**
+     * Get number of tiles which were identical to an already stored tile.
+     */
+    public synchronized long getDuplicateCount() {
+        return duplicateCount;
+    }
+
+    /**
+     * Get write throughput, including transaction commits.
+     */
+    public synchronized double getTilesPerSecond() {
+        return writeNanos > 0 ? tileCount * 1.0e9 / writeNanos : 0;
+    }
+
+    private void insert(PendingTile tile) {
+        long tmsRow = (1 << tile.zoom) - 1 - tile.y;
+        if (tilesTable) {
+            insertTile.bindLong(1, tile.zoom);
+            insertTile.bindLong(2, tile.x);
+            insertTile.bindLong(3, tmsRow);
+            insertTile.bindBlob(4, tile.data);
+            insertTile.executeInsert();
+        } else {
+            String tileId = getTileId(tile.data);
+            insertImage.bindString(1, tileId);
+            insertImage.bindBlob(2, tile.data);
+            if (insertImage.executeInsert() == -1) {
+                duplicateCount++;
+            }
+            insertMap.bindLong(1, tile.zoom);
+            insertMap.bindLong(2, tile.x);
+            insertMap.bindLong(3, tmsRow);
+            insertMap.bindString(4, tileId);
+            insertMap.executeInsert();
+        }
+
+        minZoom = Math.min(minZoom, tile.zoom);
+        maxZoom = Math.max(maxZoom, tile.zoom);
+        if (format == null) {
+            format = detectFormat(tile.data);
+        }
+        tileCount++;
+    }
+
+    private static long getTileKey(int zoom, int x, int y) {
+        return ((long) zoom << 58) | ((long) x << 29) | y;
+    }
+
+    private boolean isTable(String name) {
+        Cursor cursor = db.rawQuery("SELECT type FROM sqlite_master WHERE name = ?", new String[] { name });
+        try {
+            return cursor.moveToFirst() && "table".equals(cursor.getString(0));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private String getTileId(byte[] data) {
+        byte[] hash = digest.digest(data);
+        StringBuilder tileId = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            tileId.append(Character.forDigit((b >> 4) & 0xf, 16));
+            tileId.append(Character.forDigit(b & 0xf, 16));
+        }
+        return tileId.toString();
+    }
+
+    private int getStoredZoom(String name, int defaultZoom) {
+        Cursor cursor = db.rawQuery("SELECT " + name + "(zoom_level) FROM " + (tilesTable ? "tiles" : "map"), null);
+        try {
+            return cursor.moveToFirst() && cursor.getString(0) != null ? Integer.parseInt(cursor.getString(0)) : defaultZoom;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void queryPragma(String pragma) {
+        // pragmas returning a value can not be run with execSQL
+        Cursor cursor = db.rawQuery(pragma, null);
+        try {
+            if (cursor.moveToFirst()) {
+                Log.debug("MBTilesWriter: " + pragma + " -> " + cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static String detectFormat(byte[] data) {
+        if (data.length > 2 && (data[0] & 0xff) == 0xff && (data[1] & 0xff) == 0xd8) {
+            return "jpg";
+        }
+        return "png";
+    }
+
+}
@@ -0,0 +1,115 @@
+package com.nutiteq.advancedmap.datasources;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.nutiteq.components.MapTile;
+import com.nutiteq.components.TileBitmap;
+import com.nutiteq.log.Log;
+import com.nutiteq.projections.Projection;
+import com.nutiteq.rasterdatasources.AbstractRasterDataSource;
+
+/**
+ *
+ * Raster data source for tile archives created with TileArchiveWriter.
+ *
+ * Whole archive is memory-mapped when the data source is created, tiles are found by binary search
+ * in the sorted index. Reading a tile needs no file open, seek or database query, tile data comes
+ * straight from the page cache. getTileData() returns tile data as a ByteBuffer slice of the mapping, without copying.
+ *
+ */
+public class MappedTileArchiveRasterDataSource extends AbstractRasterDataSource {
+    private final ByteBuffer buffer;
+    private final int tileCount;
+
+    /**
+     * Default constructor.
+     *
+     * @param projection
+     *          projection of the tiles
+     * @param minZoom
+     *          minimum zoom supported by the data source
+     * @param maxZoom
+     *          maximum zoom supported by the data source
+     * @param file
+     *          archive file
+     * @throws IOException
+     *          if file can not be read or is not a tile archive
+     */
+    public MappedTileArchiveRasterDataSource(Projection projection, int minZoom, int maxZoom, File file) throws IOException {
+        super(projection, minZoom, maxZoom);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            // mapping stays valid after the file is closed
+            MappedByteBuffer mappedBuffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+            this.buffer = mappedBuffer;
+        } finally {
+            randomAccessFile.close();
+        }
+        if (buffer.capacity() < TileArchiveWriter.HEADER_SIZE || buffer.getInt(0) != TileArchiveWriter.MAGIC) {
+            throw new IOException("Not a tile archive: " + file);
+        }
+        if (buffer.getInt(4) != TileArchiveWriter.VERSION) {
+            throw new IOException("Unsupported tile archive version " + buffer.getInt(4) + ": " + file);
+        }
+        this.tileCount = buffer.getInt(8);
+        Log.debug("MappedTileArchiveRasterDataSource: " + tileCount + " tiles in " + file);
+    }
+
+    public int getTileCount() {
+        return tileCount;
+    }
+
+    /**
+     * Get compressed tile data.
+     *
+     * @param zoom
+     *          zoom level
+     * @param x
+     *          tile column
+     * @param y
+     *          tile row, counted from the top like in MapTile
+     * @return read-only slice of the mapped archive, or null if tile is not in the archive
+     */
+    public ByteBuffer getTileData(int zoom, int x, int y) {
+        long key = TileArchiveWriter.getTileKey(zoom, x, y);
+        int low = 0;
+        int high = tileCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int entryPos = TileArchiveWriter.HEADER_SIZE + mid * TileArchiveWriter.INDEX_ENTRY_SIZE;
+            long midKey = buffer.getLong(entryPos);
+            if (midKey < key) {
+                low = mid + 1;
+            } else if (midKey > key) {
+                high = mid - 1;
+            } else {
+                int offset = (int) buffer.getLong(entryPos + 8);
+                int length = buffer.getInt(entryPos + 16);
+                // position and limit are per view, so concurrent reads do not interfere
+                ByteBuffer view = buffer.asReadOnlyBuffer();
+                view.position(offset);
+                view.limit(offset + length);
+                return view.slice();
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public TileBitmap loadTile(MapTile tile) {
+        ByteBuffer data = getTileData(tile.zoom, tile.x, tile.y);
+        if (data == null) {
+            return null;
+        }
+        // bitmap decoder needs an array, this is the only copy
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        return new TileBitmap(bytes);
+    }
+
+}
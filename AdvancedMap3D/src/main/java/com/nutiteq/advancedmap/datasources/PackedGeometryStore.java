@@ -0,0 +1,554 @@
+package com.nutiteq.advancedmap.datasources;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import com.nutiteq.components.Envelope;
+import com.nutiteq.components.MapPos;
+import com.nutiteq.db.SpatialLiteDbHelper;
+import com.nutiteq.geometry.Geometry;
+import com.nutiteq.geometry.Line;
+import com.nutiteq.geometry.Point;
+import com.nutiteq.geometry.Polygon;
+import com.nutiteq.log.Log;
+import com.nutiteq.style.LineStyle;
+import com.nutiteq.style.PointStyle;
+import com.nutiteq.style.PolygonStyle;
+import com.nutiteq.style.StyleSet;
+import com.nutiteq.utils.WkbRead;
+
+/**
+ *
+ * Compact read-only storage of simple features outside of Java heap.
+ *
+ * Coordinates, feature records, bounding boxes and spatial grid index are kept in packed direct ByteBuffers.
+ * Attributes are stored column by column as indices into a shared table of unique strings.
+ * Geometry objects are not kept at all, they are created on demand by PackedVectorDataSource
+ * for the features that are actually drawn.
+ *
+ * Store is filled by add() calls or by loadSpatialite(), and becomes queryable after finish().
+ *
+ */
+public class PackedGeometryStore {
+    public static final int TYPE_POINT = 0;
+    public static final int TYPE_LINE = 1;
+    public static final int TYPE_POLYGON = 2;
+
+    // feature record layout: type, first coordinate, first part, part count
+    private static final int RECORD_INTS = 4;
+    private static final int INITIAL_FEATURES = 1024;
+    private static final int FEATURES_PER_CELL = 4;
+    private static final int MAX_GRID_SIZE = 1024;
+    private static final int NULL_VALUE = -1;
+
+    private ByteBuffer records = allocate(INITIAL_FEATURES * RECORD_INTS * 4);
+    private ByteBuffer ids = allocate(INITIAL_FEATURES * 8);
+    private ByteBuffer bounds = allocate(INITIAL_FEATURES * 4 * 8);
+    private ByteBuffer coords = allocate(INITIAL_FEATURES * 2 * 8);
+    private ByteBuffer parts = allocate(INITIAL_FEATURES * 4);
+    private final List<ByteBuffer> columnValues = new ArrayList<ByteBuffer>();
+    private final List<String> columnNames = new ArrayList<String>();
+    private final Map<String, Integer> columnIndices = new HashMap<String, Integer>();
+    private final List<String> strings = new ArrayList<String>();
+    private Map<String, Integer> stringIndices = new HashMap<String, Integer>();
+
+    private int featureCount;
+    private int coordCount;
+    private int partCount;
+
+    // grid index, valid after finish()
+    private Envelope extent;
+    private int gridSize;
+    private ByteBuffer cellStarts;
+    private ByteBuffer cellFeatures;
+    private int[] visitStamps;
+    private int visitStamp;
+
+    /**
+     * Attribute map of a single feature, reads values directly from the attribute columns.
+     */
+    private class FeatureAttributes extends AbstractMap<String, String> {
+        private final int feature;
+
+        FeatureAttributes(int feature) {
+            this.feature = feature;
+        }
+
+        @Override
+        public String get(Object key) {
+            Integer column = columnIndices.get(key);
+            if (column == null) {
+                return null;
+            }
+            return getAttribute(feature, column);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            Integer column = columnIndices.get(key);
+            return column != null && columnValues.get(column).getInt(feature * 4) != NULL_VALUE;
+        }
+
+        @Override
+        public Set<Map.Entry<String, String>> entrySet() {
+            return new AbstractSet<Map.Entry<String, String>>() {
+                @Override
+                public Iterator<Map.Entry<String, String>> iterator() {
+                    return new Iterator<Map.Entry<String, String>>() {
+                        private int column = nextColumn(0);
+
+                        @Override
+                        public boolean hasNext() {
+                            return column < columnNames.size();
+                        }
+
+                        @Override
+                        public Map.Entry<String, String> next() {
+                            if (!hasNext()) {
+                                throw new NoSuchElementException();
+                            }
+                            Map.Entry<String, String> entry = new SimpleImmutableEntry<String, String>(columnNames.get(column), getAttribute(feature, column));
+                            column = nextColumn(column + 1);
+                            return entry;
+                        }
+
+                        @Override
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    int size = 0;
+                    for (int column = nextColumn(0); column < columnNames.size(); column = nextColumn(column + 1)) {
+                        size++;
+                    }
+                    return size;
+                }
+            };
+        }
+
+        private int nextColumn(int column) {
+            while (column < columnNames.size() && columnValues.get(column).getInt(feature * 4) == NULL_VALUE) {
+                column++;
+            }
+            return column;
+        }
+    }
+
+    public int getFeatureCount() {
+        return featureCount;
+    }
+
+    /**
+     * Get number of bytes used outside of Java heap.
+     */
+    public long getDirectSize() {
+        long size = records.capacity() + ids.capacity() + bounds.capacity() + coords.capacity() + parts.capacity();
+        for (ByteBuffer values : columnValues) {
+            size += values.capacity();
+        }
+        if (cellStarts != null) {
+            size += cellStarts.capacity() + cellFeatures.capacity();
+        }
+        return size;
+    }
+
+    /**
+     * Get extent of all features. Available after finish().
+     */
+    public Envelope getExtent() {
+        return extent;
+    }
+
+    /**
+     * Add a feature.
+     *
+     * @param type
+     *          TYPE_POINT, TYPE_LINE or TYPE_POLYGON
+     * @param rings
+     *          vertex lists. Single list for points and lines, outer ring followed by holes for polygons.
+     * @param attributes
+     *          attribute values, can be null
+     * @return index of the new feature
+     */
+    public int add(int type, List<List<MapPos>> rings, Map<String, String> attributes) {
+        if (cellStarts != null) {
+            throw new IllegalStateException("Store is already finished");
+        }
+        int feature = featureCount;
+        records = ensureCapacity(records, (feature + 1) * RECORD_INTS * 4);
+        ids = ensureCapacity(ids, (feature + 1) * 8);
+        bounds = ensureCapacity(bounds, (feature + 1) * 4 * 8);
+        parts = ensureCapacity(parts, (partCount + rings.size()) * 4);
+        records.putInt((feature * RECORD_INTS + 0) * 4, type);
+        records.putInt((feature * RECORD_INTS + 1) * 4, coordCount);
+        records.putInt((feature * RECORD_INTS + 2) * 4, partCount);
+        records.putInt((feature * RECORD_INTS + 3) * 4, rings.size());
+        ids.putLong(feature * 8, feature);
+
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        for (List<MapPos> ring : rings) {
+            coords = ensureCapacity(coords, (coordCount + ring.size()) * 2 * 8);
+            for (MapPos mapPos : ring) {
+                coords.putDouble((coordCount * 2 + 0) * 8, mapPos.x);
+                coords.putDouble((coordCount * 2 + 1) * 8, mapPos.y);
+                coordCount++;
+                minX = Math.min(minX, mapPos.x);
+                minY = Math.min(minY, mapPos.y);
+                maxX = Math.max(maxX, mapPos.x);
+                maxY = Math.max(maxY, mapPos.y);
+            }
+            parts.putInt(partCount * 4, ring.size());
+            partCount++;
+        }
+        bounds.putDouble((feature * 4 + 0) * 8, minX);
+        bounds.putDouble((feature * 4 + 1) * 8, minY);
+        bounds.putDouble((feature * 4 + 2) * 8, maxX);
+        bounds.putDouble((feature * 4 + 3) * 8, maxY);
+
+        featureCount++;
+        for (int column = 0; column < columnValues.size(); column++) {
+            ByteBuffer values = ensureCapacity(columnValues.get(column), featureCount * 4);
+            values.putInt(feature * 4, NULL_VALUE);
+            columnValues.set(column, values);
+        }
+        if (attributes != null) {
+            for (Map.Entry<String, String> entry : attributes.entrySet()) {
+                if (entry.getValue() != null) {
+                    columnValues.get(getColumn(entry.getKey())).putInt(feature * 4, internString(entry.getValue()));
+                }
+            }
+        }
+        return feature;
+    }
+
+    public void setId(int feature, long id) {
+        ids.putLong(feature * 8, id);
+    }
+
+    public long getId(int feature) {
+        return ids.getLong(feature * 8);
+    }
+
+    public int getType(int feature) {
+        return records.getInt((feature * RECORD_INTS + 0) * 4);
+    }
+
+    /**
+     * Get vertex lists of the feature. Single list for points and lines, outer ring followed by holes for polygons.
+     */
+    public List<List<MapPos>> getRings(int feature) {
+        int coord = records.getInt((feature * RECORD_INTS + 1) * 4);
+        int part = records.getInt((feature * RECORD_INTS + 2) * 4);
+        int count = records.getInt((feature * RECORD_INTS + 3) * 4);
+        List<List<MapPos>> rings = new ArrayList<List<MapPos>>(count);
+        for (int i = 0; i < count; i++) {
+            int size = parts.getInt((part + i) * 4);
+            List<MapPos> ring = new ArrayList<MapPos>(size);
+            for (int j = 0; j < size; j++) {
+                ring.add(new MapPos(coords.getDouble((coord * 2 + 0) * 8), coords.getDouble((coord * 2 + 1) * 8)));
+                coord++;
+            }
+            rings.add(ring);
+        }
+        return rings;
+    }
+
+    /**
+     * Get attribute map view of the feature. Values are read from the store on access.
+     */
+    public Map<String, String> getAttributes(int feature) {
+        return new FeatureAttributes(feature);
+    }
+
+    /**
+     * Finish adding features and build spatial index. Trims buffers to actual size.
+     */
+    public void finish() {
+        records = trim(records, featureCount * RECORD_INTS * 4);
+        ids = trim(ids, featureCount * 8);
+        bounds = trim(bounds, featureCount * 4 * 8);
+        coords = trim(coords, coordCount * 2 * 8);
+        parts = trim(parts, partCount * 4);
+        for (int column = 0; column < columnValues.size(); column++) {
+            columnValues.set(column, trim(columnValues.get(column), featureCount * 4));
+        }
+        stringIndices = null;
+
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        for (int feature = 0; feature < featureCount; feature++) {
+            minX = Math.min(minX, bounds.getDouble((feature * 4 + 0) * 8));
+            minY = Math.min(minY, bounds.getDouble((feature * 4 + 1) * 8));
+            maxX = Math.max(maxX, bounds.getDouble((feature * 4 + 2) * 8));
+            maxY = Math.max(maxY, bounds.getDouble((feature * 4 + 3) * 8));
+        }
+        extent = featureCount > 0 ? new Envelope(minX, maxX, minY, maxY) : new Envelope(0, 0, 0, 0);
+
+        gridSize = (int) Math.max(1, Math.min(MAX_GRID_SIZE, Math.sqrt(featureCount / FEATURES_PER_CELL)));
+        int[] cellCounts = new int[gridSize * gridSize];
+        for (int pass = 0; pass < 2; pass++) {
+            for (int feature = 0; feature < featureCount; feature++) {
+                int minCellX = getCellX(bounds.getDouble((feature * 4 + 0) * 8));
+                int minCellY = getCellY(bounds.getDouble((feature * 4 + 1) * 8));
+                int maxCellX = getCellX(bounds.getDouble((feature * 4 + 2) * 8));
+                int maxCellY = getCellY(bounds.getDouble((feature * 4 + 3) * 8));
+                for (int cellY = minCellY; cellY <= maxCellY; cellY++) {
+                    for (int cellX = minCellX; cellX <= maxCellX; cellX++) {
+                        int cell = cellY * gridSize + cellX;
+                        if (pass == 0) {
+                            cellCounts[cell]++;
+                        } else {
+                            cellFeatures.putInt(cellCounts[cell] * 4, feature);
+                            cellCounts[cell]++;
+                        }
+                    }
+                }
+            }
+            if (pass == 0) {
+                // convert counts to cell start offsets
+                cellStarts = allocate((cellCounts.length + 1) * 4);
+                int offset = 0;
+                for (int cell = 0; cell < cellCounts.length; cell++) {
+                    cellStarts.putInt(cell * 4, offset);
+                    int count = cellCounts[cell];
+                    cellCounts[cell] = offset;
+                    offset += count;
+                }
+                cellStarts.putInt(cellCounts.length * 4, offset);
+                cellFeatures = allocate(Math.max(1, offset) * 4);
+            }
+        }
+        visitStamps = new int[featureCount];
+    }
+
+    /**
+     * Find features whose bounding box intersects given envelope. Store must be finished.
+     *
+     * @param envelope
+     *          query envelope in the coordinates of the features
+     * @param maxFeatures
+     *          maximum number of features to return
+     * @return list of feature indices
+     */
+    public synchronized List<Integer> query(Envelope envelope, int maxFeatures) {
+        if (cellStarts == null) {
+            throw new IllegalStateException("Store is not finished");
+        }
+        List<Integer> result = new ArrayList<Integer>();
+        if (featureCount == 0 || envelope.maxX < extent.minX || envelope.minX > extent.maxX || envelope.maxY < extent.minY || envelope.minY > extent.maxY) {
+            return result;
+        }
+        if (++visitStamp == 0) {
+            Arrays.fill(visitStamps, 0);
+            visitStamp = 1;
+        }
+        int minCellX = getCellX(envelope.minX), maxCellX = getCellX(envelope.maxX);
+        int minCellY = getCellY(envelope.minY), maxCellY = getCellY(envelope.maxY);
+        for (int cellY = minCellY; cellY <= maxCellY; cellY++) {
+            for (int cellX = minCellX; cellX <= maxCellX; cellX++) {
+                int cell = cellY * gridSize + cellX;
+                int end = cellStarts.getInt((cell + 1) * 4);
+                for (int i = cellStarts.getInt(cell * 4); i < end; i++) {
+                    int feature = cellFeatures.getInt(i * 4);
+                    if (visitStamps[feature] == visitStamp) {
+                        continue;
+                    }
+                    visitStamps[feature] = visitStamp;
+                    if (bounds.getDouble((feature * 4 + 0) * 8) > envelope.maxX || bounds.getDouble((feature * 4 + 2) * 8) < envelope.minX) {
+                        continue;
+                    }
+                    if (bounds.getDouble((feature * 4 + 1) * 8) > envelope.maxY || bounds.getDouble((feature * 4 + 3) * 8) < envelope.minY) {
+                        continue;
+                    }
+                    result.add(feature);
+                    if (result.size() >= maxFeatures) {
+                        return result;
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Load all features of a SpatiaLite table into a new store. Features are packed as they are read,
+     * no Geometry objects are kept on heap.
+     *
+     * @param spatialLite
+     *          database helper
+     * @param dbLayer
+     *          table and geometry column to load
+     * @param userColumns
+     *          attribute columns to load, if null then all columns are loaded
+     * @param filter
+     *          optional SQL filter, can be null
+     * @param envelope
+     *          envelope to load, in EPSG3857 coordinates
+     * @return finished store
+     */
+    public static PackedGeometryStore loadSpatialite(SpatialLiteDbHelper spatialLite, SpatialLiteDbHelper.DbLayer dbLayer, String[] userColumns, String filter, Envelope envelope) {
+        final PackedGeometryStore store = new PackedGeometryStore();
+        final int[] nextIdFeature = new int[1];
+
+        // helper assigns ids to the returned geometries, shared placeholders forward them to the store
+        final Point point = new Point(new MapPos(0, 0), null, (StyleSet<PointStyle>) null, null) {
+            @Override
+            public void setId(long id) {
+                store.setId(nextIdFeature[0]++, id);
+            }
+        };
+        List<MapPos> placeholderVertices = new ArrayList<MapPos>();
+        placeholderVertices.add(new MapPos(0, 0));
+        placeholderVertices.add(new MapPos(0, 1));
+        placeholderVertices.add(new MapPos(1, 0));
+        final Line line = new Line(placeholderVertices, null, (StyleSet<LineStyle>) null, null) {
+            @Override
+            public void setId(long id) {
+                store.setId(nextIdFeature[0]++, id);
+            }
+        };
+        final Polygon polygon = new Polygon(placeholderVertices, null, (StyleSet<PolygonStyle>) null, null) {
+            @Override
+            public void setId(long id) {
+                store.setId(nextIdFeature[0]++, id);
+            }
+        };
+
+        WkbRead.GeometryFactory factory = new WkbRead.GeometryFactory() {
+            @SuppressWarnings("unchecked")
+            @Override
+            public Point createPoint(MapPos mapPos, Object userData) {
+                List<List<MapPos>> rings = new ArrayList<List<MapPos>>(1);
+                rings.add(Collections.singletonList(mapPos));
+                store.add(TYPE_POINT, rings, (Map<String, String>) userData);
+                return point;
+            }
+
+            @SuppressWarnings("unchecked")
+            @Override
+            public Line createLine(List<MapPos> points, Object userData) {
+                List<List<MapPos>> rings = new ArrayList<List<MapPos>>(1);
+                rings.add(points);
+                store.add(TYPE_LINE, rings, (Map<String, String>) userData);
+                return line;
+            }
+
+            @SuppressWarnings("unchecked")
+            @Override
+            public Polygon createPolygon(List<MapPos> outerRing, List<List<MapPos>> innerRings, Object userData) {
+                List<List<MapPos>> rings = new ArrayList<List<MapPos>>();
+                rings.add(outerRing);
+                if (innerRings != null) {
+                    rings.addAll(innerRings);
+                }
+                store.add(TYPE_POLYGON, rings, (Map<String, String>) userData);
+                return polygon;
+            }
+
+            @Override
+            public Geometry[] createMultigeometry(List<Geometry> geomList) {
+                return geomList.toArray(new Geometry[geomList.size()]);
+            }
+        };
+
+        if (userColumns == null) {
+            userColumns = spatialLite.qryColumns(dbLayer);
+        }
+        spatialLite.defineEPSG3857();
+
+        Runtime runtime = Runtime.getRuntime();
+        long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+        long time = System.currentTimeMillis();
+        spatialLite.qrySpatiaLiteGeom(envelope, Integer.MAX_VALUE, dbLayer, userColumns, filter, 0, 0, factory);
+        store.finish();
+        long heapAfter = runtime.totalMemory() - runtime.freeMemory();
+        Log.debug("PackedGeometryStore: loaded " + store.getFeatureCount() + " features in " + (System.currentTimeMillis() - time) + " ms, " +
+                "direct memory " + store.getDirectSize() / 1024 + " KB, heap change " + (heapAfter - heapBefore) / 1024 + " KB");
+        return store;
+    }
+
+    private String getAttribute(int feature, int column) {
+        int value = columnValues.get(column).getInt(feature * 4);
+        return value == NULL_VALUE ? null : strings.get(value);
+    }
+
+    private int getColumn(String name) {
+        Integer column = columnIndices.get(name);
+        if (column == null) {
+            column = columnNames.size();
+            ByteBuffer values = allocate(Math.max(INITIAL_FEATURES, featureCount) * 4);
+            for (int feature = 0; feature < featureCount; feature++) {
+                values.putInt(feature * 4, NULL_VALUE);
+            }
+            columnNames.add(name);
+            columnValues.add(values);
+            columnIndices.put(name, column);
+        }
+        return column;
+    }
+
+    private int internString(String value) {
+        Integer index = stringIndices.get(value);
+        if (index == null) {
+            index = strings.size();
+            strings.add(value);
+            stringIndices.put(value, index);
+        }
+        return index;
+    }
+
+    private int getCellX(double x) {
+        double width = extent.maxX - extent.minX;
+        int cellX = width > 0 ? (int) ((x - extent.minX) / width * gridSize) : 0;
+        return Math.max(0, Math.min(gridSize - 1, cellX));
+    }
+
+    private int getCellY(double y) {
+        double height = extent.maxY - extent.minY;
+        int cellY = height > 0 ? (int) ((y - extent.minY) / height * gridSize) : 0;
+        return Math.max(0, Math.min(gridSize - 1, cellY));
+    }
+
+    private static ByteBuffer allocate(int capacity) {
+        return ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+    }
+
+    private static ByteBuffer ensureCapacity(ByteBuffer buffer, int capacity) {
+        if (buffer.capacity() >= capacity) {
+            return buffer;
+        }
+        ByteBuffer newBuffer = allocate(Math.max(capacity, buffer.capacity() * 2));
+        buffer.clear();
+        newBuffer.put(buffer);
+        newBuffer.clear();
+        return newBuffer;
+    }
+
+    private static ByteBuffer trim(ByteBuffer buffer, int size) {
+        if (buffer.capacity() == size) {
+            return buffer;
+        }
+        ByteBuffer newBuffer = allocate(Math.max(1, size));
+        buffer.position(0).limit(size);
+        newBuffer.put(buffer);
+        newBuffer.clear();
+        return newBuffer;
+    }
+
+}
@@ -0,0 +1,137 @@
+package com.nutiteq.advancedmap.datasources;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.nutiteq.components.CullState;
+import com.nutiteq.components.Envelope;
+import com.nutiteq.components.MapPos;
+import com.nutiteq.geometry.Geometry;
+import com.nutiteq.geometry.Line;
+import com.nutiteq.geometry.Point;
+import com.nutiteq.geometry.Polygon;
+import com.nutiteq.projections.Projection;
+import com.nutiteq.style.LineStyle;
+import com.nutiteq.style.PointStyle;
+import com.nutiteq.style.PolygonStyle;
+import com.nutiteq.style.StyleSet;
+import com.nutiteq.ui.Label;
+import com.nutiteq.vectordatasources.AbstractVectorDataSource;
+
+/**
+ *
+ * Vector data source for features kept in PackedGeometryStore.
+ *
+ * Geometry objects are created only for the features in the queried area. Created elements are kept in
+ * a LRU cache per zoom level, so a feature covering several tiles of StreamingVectorDataSource is created once
+ * and shared by the tiles. Attribute maps of the elements are read-only views of the store.
+ *
+ * Parts of a multi-geometry are separate features of the store with the same row id, so element id is
+ * the feature index in the store, which is unique. Row id is available from getStore().getId(element.getId()).
+ *
+ */
+public abstract class PackedVectorDataSource extends AbstractVectorDataSource<Geometry> {
+    private static final int DEFAULT_MAX_ELEMENTS = 2000;
+    private static final int DEFAULT_MAX_CACHED_ELEMENTS = 10000;
+
+    private final PackedGeometryStore store;
+    private int maxElements = DEFAULT_MAX_ELEMENTS;
+    private int maxCachedElements = DEFAULT_MAX_CACHED_ELEMENTS;
+    private final Map<Integer, Geometry> cachedElements;
+    private int cachedZoom = -1;
+
+    /**
+     * Default constructor.
+     *
+     * @param proj
+     *          projection of the coordinates in the store
+     * @param store
+     *          finished geometry store
+     */
+    @SuppressWarnings("serial")
+    public PackedVectorDataSource(Projection proj, PackedGeometryStore store) {
+        super(proj);
+        this.store = store;
+        this.cachedElements = new LinkedHashMap<Integer, Geometry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Geometry> eldest) {
+                return size() > maxCachedElements;
+            }
+        };
+    }
+
+    public PackedGeometryStore getStore() {
+        return store;
+    }
+
+    /**
+     * Set maximum number of elements created for a single view.
+     */
+    public void setMaxElements(int maxElements) {
+        this.maxElements = maxElements;
+    }
+
+    /**
+     * Set maximum number of created elements kept for reuse. Should be larger than the number
+     * of elements in the tiles kept in memory by the streaming data source.
+     */
+    public synchronized void setMaxCachedElements(int maxCachedElements) {
+        this.maxCachedElements = maxCachedElements;
+    }
+
+    @Override
+    public Envelope getDataExtent() {
+        return store.getExtent();
+    }
+
+    @Override
+    public synchronized Collection<Geometry> loadElements(CullState cullState) {
+        Envelope envelope = projection.fromInternal(cullState.envelope);
+        List<Integer> features = store.query(envelope, maxElements);
+
+        // style sets depend on zoom, so elements can be reused only within the same zoom
+        if (cullState.zoom != cachedZoom) {
+            cachedElements.clear();
+            cachedZoom = cullState.zoom;
+        }
+        List<Geometry> elements = new ArrayList<Geometry>(features.size());
+        for (Integer feature : features) {
+            Geometry element = cachedElements.get(feature);
+            if (element == null) {
+                element = createElement(feature, cullState.zoom);
+                element.setId(feature);
+                element.attachToDataSource(this);
+                cachedElements.put(feature, element);
+            }
+            elements.add(element);
+        }
+        return elements;
+    }
+
+    private Geometry createElement(int feature, int zoom) {
+        Map<String, String> userData = store.getAttributes(feature);
+        List<List<MapPos>> rings = store.getRings(feature);
+        Label label = createLabel(userData);
+        switch (store.getType(feature)) {
+        case PackedGeometryStore.TYPE_POINT:
+            return new Point(rings.get(0).get(0), label, createPointStyleSet(userData, zoom), userData);
+        case PackedGeometryStore.TYPE_LINE:
+            return new Line(rings.get(0), label, createLineStyleSet(userData, zoom), userData);
+        default:
+            List<List<MapPos>> holes = rings.size() > 1 ? new ArrayList<List<MapPos>>(rings.subList(1, rings.size())) : null;
+            return new Polygon(rings.get(0), holes, label, createPolygonStyleSet(userData, zoom), userData);
+        }
+    }
+
+    protected abstract Label createLabel(Map<String, String> userData);
+
+    protected abstract StyleSet<PointStyle> createPointStyleSet(Map<String, String> userData, int zoom);
+
+    protected abstract StyleSet<LineStyle> createLineStyleSet(Map<String, String> userData, int zoom);
+
+    protected abstract StyleSet<PolygonStyle> createPolygonStyleSet(Map<String, String> userData, int zoom);
+
+}
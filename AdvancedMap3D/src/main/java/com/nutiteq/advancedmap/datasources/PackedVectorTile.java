@@ -0,0 +1,548 @@
+package com.nutiteq.advancedmap.datasources;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
+import com.nutiteq.components.Envelope;
+import com.nutiteq.components.MapPos;
+
+/**
+ *
+ * Decoded vector tile in Mapbox Vector Tile (protobuf) format, kept in packed arrays.
+ *
+ * Tile is decoded with CodedInputStream directly over the downloaded bytes: nested messages are
+ * read within stream limits instead of being copied out, and geometry commands are decoded straight into a packed
+ * coordinate array. No protobuf message objects are created, strings are created only for layer keys and values.
+ *
+ * Multi-geometries are split into elements: each point, each line and each polygon with its holes is a separate element.
+ * Coordinates are stored as floats relative to the tile origin, which is exact enough for the tile grid resolution.
+ *
+ */
+public class PackedVectorTile {
+    public static final int TYPE_POINT = 0;
+    public static final int TYPE_LINE = 1;
+    public static final int TYPE_POLYGON = 2;
+
+    // protobuf tags (field number and wire type) of vector_tile.proto
+    private static final int TILE_LAYERS = (3 << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+    private static final int LAYER_NAME = (1 << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+    private static final int LAYER_FEATURES = (2 << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+    private static final int LAYER_KEYS = (3 << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+    private static final int LAYER_VALUES = (4 << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+    private static final int LAYER_EXTENT = (5 << 3) | WireFormat.WIRETYPE_VARINT;
+    private static final int FEATURE_ID = (1 << 3) | WireFormat.WIRETYPE_VARINT;
+    private static final int FEATURE_TAGS = (2 << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+    private static final int FEATURE_TYPE = (3 << 3) | WireFormat.WIRETYPE_VARINT;
+    private static final int FEATURE_GEOMETRY = (4 << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+    private static final int VALUE_STRING = (1 << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+    private static final int VALUE_FLOAT = (2 << 3) | WireFormat.WIRETYPE_FIXED32;
+    private static final int VALUE_DOUBLE = (3 << 3) | WireFormat.WIRETYPE_FIXED64;
+    private static final int VALUE_INT64 = (4 << 3) | WireFormat.WIRETYPE_VARINT;
+    private static final int VALUE_UINT64 = (5 << 3) | WireFormat.WIRETYPE_VARINT;
+    private static final int VALUE_SINT64 = (6 << 3) | WireFormat.WIRETYPE_VARINT;
+    private static final int VALUE_BOOL = (7 << 3) | WireFormat.WIRETYPE_VARINT;
+
+    private static final int GEOM_POINT = 1;
+    private static final int GEOM_LINESTRING = 2;
+    private static final int GEOM_POLYGON = 3;
+    private static final int CMD_MOVE_TO = 1;
+    private static final int CMD_LINE_TO = 2;
+    private static final int CMD_CLOSE_PATH = 7;
+    private static final int DEFAULT_EXTENT = 4096;
+
+    // element record layout: type, feature, first part, part count
+    private static final int RECORD_INTS = 4;
+    private static final int NO_ID = -1;
+
+    /**
+     * Attribute map of a single feature, reads values directly from the tag arrays.
+     */
+    private class FeatureAttributes extends AbstractMap<String, String> {
+        private final int firstTag;
+        private final int lastTag;
+
+        FeatureAttributes(int feature) {
+            this.firstTag = featureTags[feature];
+            this.lastTag = featureTags[feature + 1];
+        }
+
+        @Override
+        public String get(Object key) {
+            for (int tag = firstTag; tag < lastTag; tag += 2) {
+                if (keys.get(tags[tag]).equals(key)) {
+                    return values.get(tags[tag + 1]);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public Set<Map.Entry<String, String>> entrySet() {
+            return new AbstractSet<Map.Entry<String, String>>() {
+                @Override
+                public Iterator<Map.Entry<String, String>> iterator() {
+                    return new Iterator<Map.Entry<String, String>>() {
+                        private int tag = firstTag;
+
+                        @Override
+                        public boolean hasNext() {
+                            return tag < lastTag;
+                        }
+
+                        @Override
+                        public Map.Entry<String, String> next() {
+                            if (!hasNext()) {
+                                throw new NoSuchElementException();
+                            }
+                            Map.Entry<String, String> entry = new SimpleImmutableEntry<String, String>(keys.get(tags[tag]), values.get(tags[tag + 1]));
+                            tag += 2;
+                            return entry;
+                        }
+
+                        @Override
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return (lastTag - firstTag) / 2;
+                }
+            };
+        }
+    }
+
+    private final Envelope envelope;
+    private final List<String> keys = new ArrayList<String>();
+    private final List<String> values = new ArrayList<String>();
+
+    private long[] featureIds = new long[64];
+    private int[] featureTags = new int[65];
+    private int featureCount;
+    private int[] tags = new int[256];
+    private int tagCount;
+    private int[] elements = new int[64 * RECORD_INTS];
+    private int elementCount;
+    private int[] parts = new int[65];
+    private int partCount;
+    private float[] coords = new float[1024];
+    private int coordCount;
+
+    // geometry decoder state
+    private int position;
+    private boolean partOpen;
+    private int exteriorSign;
+
+    private PackedVectorTile(Envelope envelope) {
+        this.envelope = envelope;
+    }
+
+    /**
+     * Decode tile.
+     *
+     * @param data
+     *          tile data, not modified and not referenced after decoding
+     * @param layerName
+     *          name of the tile layer to decode, null to decode all layers
+     * @param envelope
+     *          tile envelope in the data source projection
+     * @return decoded tile
+     * @throws IOException
+     *          if data is not a valid vector tile
+     */
+    public static PackedVectorTile decode(byte[] data, String layerName, Envelope envelope) throws IOException {
+        PackedVectorTile tile = new PackedVectorTile(envelope);
+        CodedInputStream in = CodedInputStream.newInstance(data);
+        while (true) {
+            int tag = in.readTag();
+            if (tag == 0) {
+                break;
+            }
+            if (tag == TILE_LAYERS) {
+                int length = in.readRawVarint32();
+                tile.readLayer(data, in.getTotalBytesRead(), length, layerName);
+                in.skipRawBytes(length);
+            } else {
+                in.skipField(tag);
+            }
+        }
+        tile.trim();
+        return tile;
+    }
+
+    public Envelope getEnvelope() {
+        return envelope;
+    }
+
+    public int getElementCount() {
+        return elementCount;
+    }
+
+    public int getType(int element) {
+        return elements[element * RECORD_INTS];
+    }
+
+    /**
+     * Get id of the feature of the element.
+     *
+     * @return feature id, or -1 if the feature has no id
+     */
+    public long getId(int element) {
+        return featureIds[elements[element * RECORD_INTS + 1]];
+    }
+
+    /**
+     * Get vertex lists of the element: single list for points and lines, outer ring followed by holes for polygons.
+     */
+    public List<List<MapPos>> getRings(int element) {
+        int firstPart = elements[element * RECORD_INTS + 2];
+        int partCount = elements[element * RECORD_INTS + 3];
+        List<List<MapPos>> rings = new ArrayList<List<MapPos>>(partCount);
+        for (int part = firstPart; part < firstPart + partCount; part++) {
+            List<MapPos> ring = new ArrayList<MapPos>(parts[part + 1] - parts[part]);
+            for (int coord = parts[part]; coord < parts[part + 1]; coord++) {
+                ring.add(new MapPos(envelope.minX + coords[coord * 2], envelope.minY + coords[coord * 2 + 1]));
+            }
+            rings.add(ring);
+        }
+        return rings;
+    }
+
+    /**
+     * Get read-only attribute map of the feature of the element.
+     */
+    public Map<String, String> getAttributes(int element) {
+        return new FeatureAttributes(elements[element * RECORD_INTS + 1]);
+    }
+
+    /**
+     * Get approximate number of bytes used by the tile.
+     */
+    public int getSize() {
+        int size = featureIds.length * 8 + (featureTags.length + tags.length + elements.length + parts.length + coords.length) * 4;
+        for (String key : keys) {
+            size += key.length() * 2;
+        }
+        for (String value : values) {
+            size += value.length() * 2;
+        }
+        return size;
+    }
+
+    private void readLayer(byte[] data, int offset, int length, String layerName) throws IOException {
+        // name, extent, keys and values may follow the features, so they are read in a separate pass
+        int keyBase = keys.size();
+        int valueBase = values.size();
+        String name = null;
+        int extent = DEFAULT_EXTENT;
+        CodedInputStream in = CodedInputStream.newInstance(data, offset, length);
+        while (true) {
+            int tag = in.readTag();
+            if (tag == 0) {
+                break;
+            }
+            switch (tag) {
+            case LAYER_NAME:
+                name = in.readString();
+                break;
+            case LAYER_KEYS:
+                keys.add(in.readString());
+                break;
+            case LAYER_VALUES:
+                int limit = in.pushLimit(in.readRawVarint32());
+                values.add(readValue(in));
+                in.popLimit(limit);
+                break;
+            case LAYER_EXTENT:
+                extent = in.readRawVarint32();
+                break;
+            default:
+                in.skipField(tag);
+                break;
+            }
+        }
+        if (layerName != null && !layerName.equals(name)) {
+            keys.subList(keyBase, keys.size()).clear();
+            values.subList(valueBase, values.size()).clear();
+            return;
+        }
+        if (extent <= 0) {
+            throw new IOException("Invalid layer extent " + extent);
+        }
+
+        float scaleX = (float) (envelope.getWidth() / extent);
+        float scaleY = (float) (envelope.getHeight() / extent);
+        in = CodedInputStream.newInstance(data, offset, length);
+        while (true) {
+            int tag = in.readTag();
+            if (tag == 0) {
+                break;
+            }
+            if (tag == LAYER_FEATURES) {
+                int limit = in.pushLimit(in.readRawVarint32());
+                readFeature(in, data, offset, keyBase, valueBase, extent, scaleX, scaleY);
+                in.popLimit(limit);
+            } else {
+                in.skipField(tag);
+            }
+        }
+    }
+
+    private static String readValue(CodedInputStream in) throws IOException {
+        String value = "";
+        while (true) {
+            int tag = in.readTag();
+            if (tag == 0) {
+                break;
+            }
+            switch (tag) {
+            case VALUE_STRING:
+                value = in.readString();
+                break;
+            case VALUE_FLOAT:
+                value = Float.toString(in.readFloat());
+                break;
+            case VALUE_DOUBLE:
+                value = Double.toString(in.readDouble());
+                break;
+            case VALUE_INT64:
+                value = Long.toString(in.readInt64());
+                break;
+            case VALUE_UINT64:
+                value = Long.toString(in.readUInt64());
+                break;
+            case VALUE_SINT64:
+                value = Long.toString(in.readSInt64());
+                break;
+            case VALUE_BOOL:
+                value = Boolean.toString(in.readBool());
+                break;
+            default:
+                in.skipField(tag);
+                break;
+            }
+        }
+        return value;
+    }
+
+    private void readFeature(CodedInputStream in, byte[] data, int offset, int keyBase, int valueBase, int extent, float scaleX, float scaleY) throws IOException {
+        long id = NO_ID;
+        int type = 0;
+        int geometryOffset = -1;
+        int geometryLength = 0;
+        int firstTag = tagCount;
+        while (true) {
+            int tag = in.readTag();
+            if (tag == 0) {
+                break;
+            }
+            switch (tag) {
+            case FEATURE_ID:
+                id = in.readUInt64();
+                break;
+            case FEATURE_TAGS:
+                int limit = in.pushLimit(in.readRawVarint32());
+                while (in.getBytesUntilLimit() > 0) {
+                    int key = keyBase + in.readRawVarint32();
+                    int value = valueBase + in.readRawVarint32();
+                    if (key >= keys.size() || value >= values.size()) {
+                        throw new IOException("Invalid feature tag " + key + "=" + value);
+                    }
+                    tags = ensureCapacity(tags, tagCount + 2);
+                    tags[tagCount++] = key;
+                    tags[tagCount++] = value;
+                }
+                in.popLimit(limit);
+                break;
+            case FEATURE_TYPE:
+                type = in.readRawVarint32();
+                break;
+            case FEATURE_GEOMETRY:
+                // decoded after the feature, as type can follow the geometry
+                geometryLength = in.readRawVarint32();
+                geometryOffset = offset + in.getTotalBytesRead();
+                in.skipRawBytes(geometryLength);
+                break;
+            default:
+                in.skipField(tag);
+                break;
+            }
+        }
+
+        int firstElement = elementCount;
+        if (geometryOffset >= 0) {
+            readGeometry(data, geometryOffset, geometryOffset + geometryLength, type, extent, scaleX, scaleY);
+        }
+        if (elementCount == firstElement) {
+            // unknown or empty geometry
+            tagCount = firstTag;
+            return;
+        }
+        featureIds = ensureCapacity(featureIds, featureCount + 1);
+        featureTags = ensureCapacity(featureTags, featureCount + 2);
+        featureIds[featureCount] = id;
+        featureTags[featureCount + 1] = tagCount;
+        featureCount++;
+    }
+
+    private void readGeometry(byte[] data, int offset, int end, int type, int extent, float scaleX, float scaleY) throws IOException {
+        int elementType;
+        switch (type) {
+        case GEOM_POINT:
+            elementType = TYPE_POINT;
+            break;
+        case GEOM_LINESTRING:
+            elementType = TYPE_LINE;
+            break;
+        case GEOM_POLYGON:
+            elementType = TYPE_POLYGON;
+            break;
+        default:
+            return;
+        }
+
+        // packed uint32 commands are read directly from the tile data
+        position = offset;
+        exteriorSign = 0;
+        int x = 0;
+        int y = 0;
+        while (position < end) {
+            int command = readVarint(data, end);
+            int commandId = command & 7;
+            int count = command >>> 3;
+            switch (commandId) {
+            case CMD_MOVE_TO:
+            case CMD_LINE_TO:
+                for (int i = 0; i < count; i++) {
+                    x += CodedInputStream.decodeZigZag32(readVarint(data, end));
+                    y += CodedInputStream.decodeZigZag32(readVarint(data, end));
+                    if (commandId == CMD_MOVE_TO) {
+                        startPart(elementType);
+                    } else if (!partOpen) {
+                        throw new IOException("LineTo without MoveTo");
+                    }
+                    // tile y axis points down
+                    addCoord(x * scaleX, (extent - y) * scaleY);
+                }
+                break;
+            case CMD_CLOSE_PATH:
+                if (partOpen && coordCount > parts[partCount]) {
+                    int first = parts[partCount];
+                    addCoord(coords[first * 2], coords[first * 2 + 1]);
+                }
+                break;
+            default:
+                throw new IOException("Invalid geometry command " + commandId);
+            }
+        }
+        finishPart(elementType);
+    }
+
+    private int readVarint(byte[] data, int end) throws IOException {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (position >= end) {
+                throw new IOException("Truncated geometry");
+            }
+            byte b = data[position++];
+            result |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return result;
+            }
+        }
+        throw new IOException("Malformed geometry varint");
+    }
+
+    private void startPart(int type) {
+        finishPart(type);
+        parts = ensureCapacity(parts, partCount + 2);
+        parts[partCount] = coordCount;
+        partOpen = true;
+    }
+
+    private void finishPart(int type) {
+        if (!partOpen) {
+            return;
+        }
+        partOpen = false;
+        int start = parts[partCount];
+        int minCoords = type == TYPE_POINT ? 1 : type == TYPE_LINE ? 2 : 3;
+        float area = type == TYPE_POLYGON ? getRingArea(start, coordCount) : 0;
+        if (coordCount - start < minCoords || (type == TYPE_POLYGON && area == 0)) {
+            coordCount = start;
+            return;
+        }
+        partCount++;
+        parts[partCount] = coordCount;
+
+        // rings with the winding of the first ring are exterior rings, others are holes of the previous exterior ring
+        if (type == TYPE_POLYGON) {
+            int sign = area > 0 ? 1 : -1;
+            if (exteriorSign != 0 && sign != exteriorSign) {
+                elements[(elementCount - 1) * RECORD_INTS + 3]++;
+                return;
+            }
+            exteriorSign = sign;
+        }
+        elements = ensureCapacity(elements, (elementCount + 1) * RECORD_INTS);
+        elements[elementCount * RECORD_INTS] = type;
+        elements[elementCount * RECORD_INTS + 1] = featureCount;
+        elements[elementCount * RECORD_INTS + 2] = partCount - 1;
+        elements[elementCount * RECORD_INTS + 3] = 1;
+        elementCount++;
+    }
+
+    private float getRingArea(int start, int end) {
+        float area = 0;
+        for (int i = start, j = end - 1; i < end; j = i++) {
+            area += coords[j * 2] * coords[i * 2 + 1] - coords[i * 2] * coords[j * 2 + 1];
+        }
+        return area / 2;
+    }
+
+    private void addCoord(float x, float y) {
+        coords = ensureCapacity(coords, (coordCount + 1) * 2);
+        coords[coordCount * 2] = x;
+        coords[coordCount * 2 + 1] = y;
+        coordCount++;
+    }
+
+    private void trim() {
+        featureIds = Arrays.copyOf(featureIds, featureCount);
+        featureTags = Arrays.copyOf(featureTags, featureCount + 1);
+        tags = Arrays.copyOf(tags, tagCount);
+        elements = Arrays.copyOf(elements, elementCount * RECORD_INTS);
+        parts = Arrays.copyOf(parts, partCount + 1);
+        coords = Arrays.copyOf(coords, coordCount * 2);
+    }
+
+    private static int[] ensureCapacity(int[] array, int capacity) {
+        return capacity <= array.length ? array : Arrays.copyOf(array, Math.max(capacity, array.length * 2));
+    }
+
+    private static long[] ensureCapacity(long[] array, int capacity) {
+        return capacity <= array.length ? array : Arrays.copyOf(array, Math.max(capacity, array.length * 2));
+    }
+
+    private static float[] ensureCapacity(float[] array, int capacity) {
+        return capacity <= array.length ? array : Arrays.copyOf(array, Math.max(capacity, array.length * 2));
+    }
+
+}
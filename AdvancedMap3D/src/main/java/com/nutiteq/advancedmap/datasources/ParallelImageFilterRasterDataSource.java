@@ -0,0 +1,308 @@
+package com.nutiteq.advancedmap.datasources;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.graphics.Bitmap;
+
+import com.nutiteq.components.Envelope;
+import com.nutiteq.components.MapTile;
+import com.nutiteq.components.TileBitmap;
+import com.nutiteq.log.Log;
+import com.nutiteq.rasterdatasources.AbstractRasterDataSource;
+import com.nutiteq.rasterdatasources.RasterDataSource;
+
+/**
+ *
+ * Image filter data source which filters tiles on a worker pool, replacement for ImageFilterRasterDataSource.
+ *
+ * Filters work on the pixel array of the whole tile, which is split into stripes processed in parallel.
+ * Filtered tiles are cached by tile and filter id, so switching back to a previously used filter
+ * does not filter the tiles again. Work is cancelled when the filter is changed, or when the tile leaves
+ * the visible area set with setVisibleArea().
+ *
+ */
+public class ParallelImageFilterRasterDataSource extends AbstractRasterDataSource {
+    private static final int DEFAULT_MAX_CACHED_TILES = 48;
+    private static final int STATS_LOG_INTERVAL = 50;
+
+    /**
+     * Filter for ARGB pixel arrays.
+     */
+    public interface PixelFilter {
+
+        /**
+         * Get unique id of the filter and its parameters, used as cache key.
+         */
+        String getId();
+
+        /**
+         * Filter pixels in place. Called concurrently for different ranges of the same array.
+         *
+         * @param pixels
+         *          ARGB pixels
+         * @param start
+         *          first pixel to filter
+         * @param end
+         *          end of the range, exclusive
+         */
+        void filter(int[] pixels, int start, int end);
+    }
+
+    /**
+     * Grayscale filter, same output as GrayscaleImageFilter.
+     */
+    public static class GrayscaleFilter implements PixelFilter {
+        @Override
+        public String getId() {
+            return "grayscale";
+        }
+
+        @Override
+        public void filter(int[] pixels, int start, int end) {
+            for (int i = start; i < end; i++) {
+                int color = pixels[i];
+                int gray = (77 * ((color >> 16) & 0xff) + 151 * ((color >> 8) & 0xff) + 28 * (color & 0xff)) >> 8;
+                pixels[i] = (color & 0xff000000) | (gray << 16) | (gray << 8) | gray;
+            }
+        }
+    }
+
+    /**
+     * Night mode filter, same output as NightModeImageFilter.
+     */
+    public static class NightModeFilter implements PixelFilter {
+        @Override
+        public String getId() {
+            return "nightmode";
+        }
+
+        @Override
+        public void filter(int[] pixels, int start, int end) {
+            for (int i = start; i < end; i++) {
+                int color = pixels[i];
+                int red = (820 - (((color >> 16) & 0xff) + ((color >> 8) & 0xff) + (color & 0xff))) >> 2;
+                pixels[i] = 0xff000000 | (red << 16);
+            }
+        }
+    }
+
+    /**
+     * Filtering throughput of a single filter
+     */
+    private static class FilterStats {
+        long pixels;
+        long nanos;
+        int tiles;
+    }
+
+    private final RasterDataSource dataSource;
+    private final ExecutorService workers;
+    private final int stripeCount;
+    private final Map<String, TileBitmap> filteredTiles;
+    private final Map<String, FilterStats> filterStats = new HashMap<String, FilterStats>();
+    private volatile PixelFilter pixelFilter;
+    private volatile int generation;
+    private volatile VisibleArea visibleArea;
+
+    /**
+     * Default constructor, uses one worker per CPU core.
+     *
+     * @param dataSource
+     *          data source of the original tiles
+     */
+    public ParallelImageFilterRasterDataSource(RasterDataSource dataSource) {
+        this(dataSource, Runtime.getRuntime().availableProcessors(), DEFAULT_MAX_CACHED_TILES);
+    }
+
+    /**
+     * Constructor with custom worker count and cache size.
+     *
+     * @param dataSource
+     *          data source of the original tiles
+     * @param workerCount
+     *          number of threads filtering a tile in parallel
+     * @param maxCachedTiles
+     *          maximum number of filtered tiles kept in memory, for all filters
+     */
+    @SuppressWarnings("serial")
+    public ParallelImageFilterRasterDataSource(RasterDataSource dataSource, int workerCount, final int maxCachedTiles) {
+        super(dataSource.getProjection(), dataSource.getMinZoom(), dataSource.getMaxZoom());
+        this.dataSource = dataSource;
+        // calling thread processes one stripe itself
+        this.stripeCount = Math.max(1, workerCount);
+        this.workers = stripeCount > 1 ? Executors.newFixedThreadPool(stripeCount - 1) : null;
+        this.filteredTiles = new LinkedHashMap<String, TileBitmap>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, TileBitmap> eldest) {
+                return size() > maxCachedTiles;
+            }
+        };
+
+        dataSource.addOnChangeListener(new OnChangeListener() {
+            @Override
+            public void onTilesChanged() {
+                synchronized (filteredTiles) {
+                    filteredTiles.clear();
+                }
+                notifyTilesChanged();
+            }
+        });
+    }
+
+    public PixelFilter getPixelFilter() {
+        return pixelFilter;
+    }
+
+    /**
+     * Set filter, null to show original tiles. Filtering of tiles with the previous filter is cancelled.
+     */
+    public void setPixelFilter(PixelFilter pixelFilter) {
+        this.pixelFilter = pixelFilter;
+        generation++;
+        notifyTilesChanged();
+    }
+
+    /**
+     * Update visible area, filtering of tiles outside of it is cancelled.
+     *
+     * @param envelope
+     *          visible area in data source projection, null if unknown
+     * @param zoom
+     *          current view zoom
+     */
+    public void setVisibleArea(Envelope envelope, int zoom) {
+        visibleArea = envelope != null ? new VisibleArea(projection, envelope, zoom) : null;
+    }
+
+    /**
+     * Get average filtering throughput.
+     *
+     * @param filterId
+     *          filter id
+     * @return pixels per second, 0 if filter is not used yet
+     */
+    public double getPixelsPerSecond(String filterId) {
+        synchronized (filterStats) {
+            FilterStats stats = filterStats.get(filterId);
+            if (stats == null || stats.nanos == 0) {
+                return 0;
+            }
+            return stats.pixels * 1.0e9 / stats.nanos;
+        }
+    }
+
+    /**
+     * Stop worker threads. Data source can not be used after this.
+     */
+    public void shutdown() {
+        if (workers != null) {
+            workers.shutdownNow();
+        }
+    }
+
+    @Override
+    public TileBitmap loadTile(MapTile tile) {
+        PixelFilter filter = pixelFilter;
+        int tileGeneration = generation;
+        if (filter == null) {
+            return dataSource.loadTile(tile);
+        }
+
+        String key = tile.id + "/" + filter.getId();
+        synchronized (filteredTiles) {
+            TileBitmap cached = filteredTiles.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        TileBitmap tileBitmap = dataSource.loadTile(tile);
+        if (tileBitmap == null || isCancelled(tile, tileGeneration)) {
+            return null;
+        }
+
+        Bitmap bitmap = tileBitmap.getBitmap();
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int[] pixels = new int[width * height];
+        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+
+        long startTime = System.nanoTime();
+        if (!filterPixels(filter, pixels, tile, tileGeneration)) {
+            Log.debug("ParallelImageFilterRasterDataSource: cancelled " + tile);
+            return null;
+        }
+        updateStats(filter.getId(), pixels.length, System.nanoTime() - startTime);
+
+        TileBitmap filteredBitmap = new TileBitmap(Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888));
+        synchronized (filteredTiles) {
+            filteredTiles.put(key, filteredBitmap);
+        }
+        return filteredBitmap;
+    }
+
+    private boolean filterPixels(final PixelFilter filter, final int[] pixels, final MapTile tile, final int tileGeneration) {
+        int stripeSize = (pixels.length + stripeCount - 1) / stripeCount;
+        List<Future<?>> futures = new ArrayList<Future<?>>(stripeCount - 1);
+        for (int start = stripeSize; start < pixels.length; start += stripeSize) {
+            final int stripeStart = start;
+            final int stripeEnd = Math.min(start + stripeSize, pixels.length);
+            futures.add(workers.submit(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isCancelled(tile, tileGeneration)) {
+                        filter.filter(pixels, stripeStart, stripeEnd);
+                    }
+                }
+            }));
+        }
+        filter.filter(pixels, 0, Math.min(stripeSize, pixels.length));
+
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        return !isCancelled(tile, tileGeneration);
+    }
+
+    private boolean isCancelled(MapTile tile, int tileGeneration) {
+        if (tileGeneration != generation) {
+            return true;
+        }
+        VisibleArea visibleArea = this.visibleArea;
+        return visibleArea != null && !visibleArea.contains(tile);
+    }
+
+    private void updateStats(String filterId, long pixels, long nanos) {
+        synchronized (filterStats) {
+            FilterStats stats = filterStats.get(filterId);
+            if (stats == null) {
+                stats = new FilterStats();
+                filterStats.put(filterId, stats);
+            }
+            stats.pixels += pixels;
+            stats.nanos += nanos;
+            if (++stats.tiles % STATS_LOG_INTERVAL == 0) {
+                Log.debug("ParallelImageFilterRasterDataSource: " + filterId + " " + Math.round(stats.pixels * 1.0e3 / stats.nanos) + " Mpixels/s");
+            }
+        }
+    }
+
+}
@@ -0,0 +1,348 @@
+package com.nutiteq.advancedmap.datasources;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.map.android.graphics.AndroidGraphicFactory;
+import org.mapsforge.map.layer.renderer.DatabaseRenderer;
+import org.mapsforge.map.layer.renderer.RendererJob;
+import org.mapsforge.map.model.DisplayModel;
+import org.mapsforge.map.reader.MapDatabase;
+import org.mapsforge.map.rendertheme.XmlRenderTheme;
+
+import android.app.Application;
+import android.graphics.Bitmap;
+import android.os.Process;
+
+import com.nutiteq.MapView;
+import com.nutiteq.components.Envelope;
+import com.nutiteq.components.MapPos;
+import com.nutiteq.components.MapTile;
+import com.nutiteq.components.TileBitmap;
+import com.nutiteq.log.Log;
+import com.nutiteq.projections.Projection;
+import com.nutiteq.rasterdatasources.AbstractRasterDataSource;
+import com.nutiteq.rasterdatasources.CacheRasterDataSource;
+import com.nutiteq.rasterlayers.RasterLayer;
+
+/**
+ *
+ * Mapsforge data source which renders tiles on a pool of background threads, replacement for MapsforgeRasterDataSource.
+ *
+ * Each worker has its own MapDatabase handle and DatabaseRenderer (with its own canvas and parsed render theme),
+ * so tiles are rendered in parallel without locking. Workers run with background priority to leave CPU for the GL thread.
+ * Waiting tiles are rendered closest to the view center first, and tiles that are no longer visible are dropped.
+ * Visible area must be updated for this, e.g. by calling updateVisibleArea() from MapListener.onMapMoved().
+ *
+ * If a cache store is set, rendered tiles are stored there and never rendered again.
+ * If the given database is a ThemeFilteringMapDatabase, databases of the other workers filter tags with the same index.
+ *
+ */
+public class PooledMapsforgeRasterDataSource extends AbstractRasterDataSource {
+    private static final float DEFAULT_TEXT_SCALE = 1;
+    private static final int MAX_DEFAULT_WORKERS = 4;
+    private static final int STATS_LOG_INTERVAL = 50;
+
+    /**
+     * Tile waiting for rendering
+     */
+    private static class RenderRequest {
+        final MapTile tile;
+        final long sequence;
+        TileBitmap result;
+        boolean done;
+
+        RenderRequest(MapTile tile, long sequence) {
+            this.tile = tile;
+            this.sequence = sequence;
+        }
+    }
+
+    private final File mapFile;
+    private final MapDatabase mapDatabase;
+    private final XmlRenderTheme theme;
+    private final List<RenderRequest> requests = new ArrayList<RenderRequest>();
+    private final List<Thread> workers = new ArrayList<Thread>();
+    private volatile CacheRasterDataSource.CacheStore cacheStore;
+    private VisibleArea visibleArea;
+    private long requestCounter;
+    private boolean stopped;
+
+    private int renderedTiles;
+    private long renderNanos;
+
+    /**
+     * Default constructor, uses one worker per CPU core minus one for the GL thread, up to 4 workers.
+     *
+     * @param projection
+     *          projection of the tiles
+     * @param minZoom
+     *          minimum zoom supported by the data source
+     * @param maxZoom
+     *          maximum zoom supported by the data source
+     * @param mapFile
+     *          Mapsforge .map file
+     * @param mapDatabase
+     *          database opened for the map file, used by the first worker
+     * @param theme
+     *          render theme
+     * @param app
+     *          application, needed for Mapsforge graphics
+     */
+    public PooledMapsforgeRasterDataSource(Projection projection, int minZoom, int maxZoom, File mapFile, MapDatabase mapDatabase, XmlRenderTheme theme, Application app) {
+        this(projection, minZoom, maxZoom, mapFile, mapDatabase, theme, app,
+                Math.max(1, Math.min(MAX_DEFAULT_WORKERS, Runtime.getRuntime().availableProcessors() - 1)));
+    }
+
+    /**
+     * Constructor with custom worker count.
+     *
+     * @param projection
+     *          projection of the tiles
+     * @param minZoom
+     *          minimum zoom supported by the data source
+     * @param maxZoom
+     *          maximum zoom supported by the data source
+     * @param mapFile
+     *          Mapsforge .map file
+     * @param mapDatabase
+     *          database opened for the map file, used by the first worker
+     * @param theme
+     *          render theme
+     * @param app
+     *          application, needed for Mapsforge graphics
+     * @param workerCount
+     *          number of rendering threads
+     */
+    public PooledMapsforgeRasterDataSource(Projection projection, int minZoom, int maxZoom, File mapFile, MapDatabase mapDatabase, XmlRenderTheme theme, Application app, int workerCount) {
+        super(projection, minZoom, maxZoom);
+        this.mapFile = mapFile;
+        this.mapDatabase = mapDatabase;
+        this.theme = theme;
+        AndroidGraphicFactory.createInstance(app);
+
+        for (int i = 0; i < workerCount; i++) {
+            final MapDatabase workerDatabase;
+            if (i == 0) {
+                workerDatabase = mapDatabase;
+            } else {
+                // MapDatabase keeps read position and buffers, it can not be shared between threads
+                workerDatabase = createWorkerDatabase();
+                workerDatabase.openFile(mapFile);
+            }
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    renderTiles(workerDatabase);
+                }
+            }, "MapsforgeRenderer-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    public MapDatabase getMapDatabase() {
+        return mapDatabase;
+    }
+
+    /**
+     * Set cache store for rendered tiles, null to disable caching. Cache store must be opened by the caller.
+     */
+    public void setCacheStore(CacheRasterDataSource.CacheStore cacheStore) {
+        this.cacheStore = cacheStore;
+    }
+
+    /**
+     * Update visible area. Waiting tiles outside of the area are dropped,
+     * remaining tiles are ordered by distance from the area center.
+     *
+     * @param envelope
+     *          visible area in data source projection, null if unknown
+     * @param zoom
+     *          current view zoom
+     */
+    public void setVisibleArea(Envelope envelope, int zoom) {
+        synchronized (requests) {
+            visibleArea = envelope != null ? new VisibleArea(projection, envelope, zoom) : null;
+            for (int i = requests.size() - 1; i >= 0; i--) {
+                RenderRequest request = requests.get(i);
+                if (!isVisible(request.tile)) {
+                    requests.remove(i);
+                    request.done = true;
+                }
+            }
+            requests.notifyAll();
+        }
+    }
+
+    /**
+     * Update visible area of the pooled data source of the base layer from the current view of the map.
+     * Does nothing if the base layer uses another data source. Can be called from any thread.
+     */
+    public static void updateVisibleArea(MapView mapView) {
+        if (!(mapView.getLayers().getBaseLayer() instanceof RasterLayer) || mapView.getWidth() == 0) {
+            return;
+        }
+        RasterLayer baseLayer = (RasterLayer) mapView.getLayers().getBaseLayer();
+        if (!(baseLayer.getDataSource() instanceof PooledMapsforgeRasterDataSource)) {
+            return;
+        }
+        // all four corners, as the view can be rotated
+        Envelope envelope = new Envelope(new MapPos[] { mapView.screenToWorld(0, 0), mapView.screenToWorld(mapView.getWidth(), 0),
+                mapView.screenToWorld(0, mapView.getHeight()), mapView.screenToWorld(mapView.getWidth(), mapView.getHeight()) });
+        ((PooledMapsforgeRasterDataSource) baseLayer.getDataSource()).setVisibleArea(envelope, (int) mapView.getZoom());
+    }
+
+    /**
+     * Get rendering throughput of all workers together, when all of them are busy.
+     *
+     * @return tiles per second, 0 if nothing is rendered yet
+     */
+    public double getTilesPerSecond() {
+        synchronized (requests) {
+            return renderNanos > 0 ? renderedTiles * 1.0e9 * workers.size() / renderNanos : 0;
+        }
+    }
+
+    /**
+     * Stop rendering threads and close map databases opened by the workers. Data source can not be used after this.
+     */
+    public void shutdown() {
+        synchronized (requests) {
+            stopped = true;
+            for (RenderRequest request : requests) {
+                request.done = true;
+            }
+            requests.clear();
+            requests.notifyAll();
+        }
+    }
+
+    @Override
+    public TileBitmap loadTile(MapTile tile) {
+        CacheRasterDataSource.CacheStore cacheStore = this.cacheStore;
+        if (cacheStore != null) {
+            TileBitmap cached = cacheStore.get(tile);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        RenderRequest request;
+        synchronized (requests) {
+            if (stopped || !isVisible(tile)) {
+                return null;
+            }
+            request = new RenderRequest(tile, requestCounter++);
+            requests.add(request);
+            requests.notifyAll();
+            while (!request.done) {
+                try {
+                    requests.wait();
+                } catch (InterruptedException e) {
+                    requests.remove(request);
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+        }
+        if (request.result == null) {
+            Log.debug("PooledMapsforgeRasterDataSource: dropped invisible tile " + tile);
+        }
+        return request.result;
+    }
+
+    private void renderTiles(MapDatabase workerDatabase) {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        DatabaseRenderer renderer = new DatabaseRenderer(workerDatabase, AndroidGraphicFactory.INSTANCE);
+        DisplayModel displayModel = new DisplayModel();
+        try {
+            while (true) {
+                RenderRequest request;
+                synchronized (requests) {
+                    while (!stopped && requests.isEmpty()) {
+                        requests.wait();
+                    }
+                    if (stopped) {
+                        break;
+                    }
+                    request = takeNextRequest();
+                }
+
+                TileBitmap tileBitmap = null;
+                try {
+                    tileBitmap = renderTile(renderer, displayModel, request.tile);
+                } catch (RuntimeException e) {
+                    Log.error("PooledMapsforgeRasterDataSource: failed to render " + request.tile + ": " + e.getMessage());
+                }
+                synchronized (requests) {
+                    request.result = tileBitmap;
+                    request.done = true;
+                    requests.notifyAll();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            renderer.destroy();
+            if (workerDatabase != mapDatabase) {
+                workerDatabase.closeFile();
+            }
+        }
+    }
+
+    private MapDatabase createWorkerDatabase() {
+        // workers filter tags the same way as the first database
+        if (mapDatabase instanceof ThemeFilteringMapDatabase) {
+            return new ThemeFilteringMapDatabase(((ThemeFilteringMapDatabase) mapDatabase).getIndex());
+        }
+        return new MapDatabase();
+    }
+
+    private RenderRequest takeNextRequest() {
+        RenderRequest next = null;
+        double nextPriority = 0;
+        for (RenderRequest request : requests) {
+            double priority = visibleArea != null ? visibleArea.getPriority(request.tile) : -request.sequence;
+            if (next == null || priority < nextPriority) {
+                next = request;
+                nextPriority = priority;
+            }
+        }
+        requests.remove(next);
+        return next;
+    }
+
+    private TileBitmap renderTile(DatabaseRenderer renderer, DisplayModel displayModel, MapTile tile) {
+        long startTime = System.nanoTime();
+        RendererJob job = new RendererJob(new Tile(tile.x, tile.y, (byte) tile.zoom), mapFile, theme, displayModel, DEFAULT_TEXT_SCALE, false);
+        Bitmap bitmap = AndroidGraphicFactory.getBitmap(renderer.executeJob(job));
+        TileBitmap tileBitmap = new TileBitmap(bitmap);
+
+        CacheRasterDataSource.CacheStore cacheStore = this.cacheStore;
+        if (cacheStore != null) {
+            cacheStore.put(tile, tileBitmap);
+        }
+        updateStats(System.nanoTime() - startTime);
+        return tileBitmap;
+    }
+
+    private void updateStats(long nanos) {
+        synchronized (requests) {
+            renderedTiles++;
+            renderNanos += nanos;
+            if (renderedTiles % STATS_LOG_INTERVAL == 0) {
+                Log.debug("PooledMapsforgeRasterDataSource: " + workers.size() + " workers, " + Math.round(getTilesPerSecond()) + " tiles/s, "
+                        + (renderNanos / renderedTiles / 1000000) + " ms per tile");
+            }
+        }
+    }
+
+    private boolean isVisible(MapTile tile) {
+        return visibleArea == null || visibleArea.contains(tile);
+    }
+
+}
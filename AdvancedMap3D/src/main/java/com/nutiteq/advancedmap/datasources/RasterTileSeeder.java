@@ -0,0 +1,534 @@
+package com.nutiteq.advancedmap.datasources;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+import com.nutiteq.components.Bounds;
+import com.nutiteq.components.MapTile;
+import com.nutiteq.components.TileBitmap;
+import com.nutiteq.log.Log;
+import com.nutiteq.projections.Projection;
+import com.nutiteq.rasterdatasources.CacheRasterDataSource;
+import com.nutiteq.rasterdatasources.RasterDataSource;
+
+/**
+ *
+ * Downloads all tiles of a raster data source for given area and zoom range into a cache store,
+ * so that the area is available offline through CacheRasterDataSource using the same store.
+ *
+ * Tiles are fetched by a bounded thread pool, optionally with per-host concurrency limit.
+ * Progress is saved periodically to a file, so seeding of the same area continues from where it was
+ * stopped. Tiles that are already in the cache store are not downloaded again.
+ * Failed downloads are retried a few times. Tiles that still fail are kept in the progress and retried first
+ * on the next run, seeding is reported complete only when all tiles are stored. Seeding stops early when
+ * many downloads fail in a row, e.g. when network is not available.
+ * Seeding stops when the download byte budget is exceeded.
+ *
+ * Cache store must be opened by the caller, for example by CacheRasterDataSource.open().
+ *
+ */
+public class RasterTileSeeder {
+    private static final int DEFAULT_MAX_THREADS = 4;
+    private static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 2;
+    private static final int PROGRESS_SAVE_INTERVAL = 50;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_DELAY = 1000;
+    private static final int MAX_CONSECUTIVE_FAILURES = 20;
+
+    /**
+     * Seeding progress listener. Methods are called from worker threads.
+     */
+    public interface ProgressListener {
+
+        /**
+         * Called after each processed tile.
+         *
+         * @param completedTiles
+         *          number of stored tiles, including tiles stored in earlier runs
+         * @param totalTiles
+         *          total number of tiles in the area
+         * @param downloadedBytes
+         *          number of downloaded bytes, including earlier runs
+         */
+        void onProgress(long completedTiles, long totalTiles, long downloadedBytes);
+
+        /**
+         * Called once when seeding stops.
+         *
+         * @param complete
+         *          true if all tiles were stored, false if seeding was cancelled, byte budget was exceeded or some tiles failed
+         * @param failedTiles
+         *          number of tiles that could not be downloaded, these are retried when seeding is started again
+         */
+        void onFinished(boolean complete, int failedTiles);
+    }
+
+    /**
+     * Tiles of a single zoom level
+     */
+    private static class TileRange {
+        final int zoom;
+        final int minX;
+        final int minY;
+        final int columns;
+        final long offset;
+        final long count;
+
+        TileRange(int zoom, int minX, int minY, int maxX, int maxY, long offset) {
+            this.zoom = zoom;
+            this.minX = minX;
+            this.minY = minY;
+            this.columns = maxX - minX + 1;
+            this.offset = offset;
+            this.count = (long) columns * (maxY - minY + 1);
+        }
+    }
+
+    private final RasterDataSource dataSource;
+    private final CacheRasterDataSource.CacheStore cacheStore;
+    private final File progressFile;
+    private final Map<String, Semaphore> hostSemaphores = new HashMap<String, Semaphore>();
+    private int maxThreads = DEFAULT_MAX_THREADS;
+    private int maxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+    private long byteBudget = Long.MAX_VALUE;
+
+    // state of the current run, guarded by this
+    private ExecutorService executor;
+    private ProgressListener listener;
+    private List<TileRange> ranges;
+    private String signature;
+    private long totalTiles;
+    private long nextIndex;
+    private long completedIndex;
+    private final TreeSet<Long> completedAhead = new TreeSet<Long>();
+    private final TreeSet<Long> failedIndexes = new TreeSet<Long>();
+    private final List<Long> retryIndexes = new ArrayList<Long>();
+    private int consecutiveFailures;
+    private long downloadedBytes;
+    private int activeWorkers;
+    private volatile boolean cancelled;
+
+    /**
+     * Default constructor.
+     *
+     * @param dataSource
+     *          data source to download tiles from
+     * @param cacheStore
+     *          store for downloaded tiles
+     * @param progressFile
+     *          file for saving progress, can be null if seeding does not need to be resumable
+     */
+    public RasterTileSeeder(RasterDataSource dataSource, CacheRasterDataSource.CacheStore cacheStore, File progressFile) {
+        this.dataSource = dataSource;
+        this.cacheStore = cacheStore;
+        this.progressFile = progressFile;
+    }
+
+    /**
+     * Set number of parallel downloads. Default is 4.
+     */
+    public void setMaxThreads(int maxThreads) {
+        this.maxThreads = maxThreads;
+    }
+
+    /**
+     * Set number of parallel downloads from a single host, see getTileHost(). Default is 2.
+     */
+    public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    /**
+     * Set maximum number of bytes to download, including earlier runs. Budget can be exceeded by a few tiles
+     * that are already being downloaded when the limit is reached. Default is unlimited.
+     */
+    public void setByteBudget(long byteBudget) {
+        this.byteBudget = byteBudget;
+    }
+
+    public synchronized boolean isRunning() {
+        return executor != null;
+    }
+
+    /**
+     * Calculate number of tiles in the area.
+     */
+    public long getTileCount(Bounds bounds, int minZoom, int maxZoom) {
+        List<TileRange> ranges = createTileRanges(bounds, minZoom, maxZoom);
+        if (ranges.isEmpty()) {
+            return 0;
+        }
+        TileRange last = ranges.get(ranges.size() - 1);
+        return last.offset + last.count;
+    }
+
+    /**
+     * Start seeding in background. If progress file contains progress for the same area, seeding continues from there.
+     *
+     * @param bounds
+     *          area to seed, in data source projection
+     * @param minZoom
+     *          minimum zoom level
+     * @param maxZoom
+     *          maximum zoom level, inclusive
+     * @param listener
+     *          progress listener, can be null
+     */
+    public synchronized void start(Bounds bounds, int minZoom, int maxZoom, ProgressListener listener) {
+        if (executor != null) {
+            throw new IllegalStateException("Seeding is already running");
+        }
+        this.listener = listener;
+        this.ranges = createTileRanges(bounds, minZoom, maxZoom);
+        this.totalTiles = getTileCount(bounds, minZoom, maxZoom);
+        this.signature = bounds.left + "," + bounds.top + "," + bounds.right + "," + bounds.bottom + "," + minZoom + "," + maxZoom;
+        this.completedIndex = 0;
+        this.downloadedBytes = 0;
+        this.completedAhead.clear();
+        this.failedIndexes.clear();
+        this.consecutiveFailures = 0;
+        this.cancelled = false;
+        loadProgress();
+        this.nextIndex = completedIndex;
+        this.retryIndexes.clear();
+        this.retryIndexes.addAll(failedIndexes);
+
+        Log.debug("RasterTileSeeder: seeding " + totalTiles + " tiles, starting from " + completedIndex + ", retrying " + retryIndexes.size());
+
+        activeWorkers = maxThreads;
+        executor = Executors.newFixedThreadPool(maxThreads);
+        for (int i = 0; i < maxThreads; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    seedTiles();
+                }
+            });
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * Stop seeding. Downloads in progress are finished, progress is saved.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Calculate tile id the same way as the map renderer, so that tiles are found from the cache store.
+     */
+    public static long getTileId(int zoom, int x, int y) {
+        long id = 0;
+        for (int level = zoom - 1; level >= 0; level--) {
+            int dx = (x >> level) & 1;
+            int dy = (y >> level) & 1;
+            int child = dy == 0 ? dx : 3 - dx;
+            id = id * 4 + child + 1;
+        }
+        return id;
+    }
+
+    /**
+     * Get host the tile is downloaded from, used for per-host concurrency limit.
+     * Default implementation returns null, which means no per-host limit.
+     */
+    protected String getTileHost(MapTile tile) {
+        return null;
+    }
+
+    private void seedTiles() {
+        try {
+            while (!cancelled) {
+                long index;
+                boolean retry;
+                synchronized (this) {
+                    if (downloadedBytes >= byteBudget) {
+                        Log.debug("RasterTileSeeder: byte budget exceeded");
+                        cancelled = true;
+                        break;
+                    }
+                    // tiles failed in earlier runs are below the saved progress, so they are taken first
+                    retry = !retryIndexes.isEmpty();
+                    if (retry) {
+                        index = retryIndexes.remove(retryIndexes.size() - 1);
+                    } else if (nextIndex < totalTiles) {
+                        index = nextIndex++;
+                    } else {
+                        break;
+                    }
+                }
+
+                MapTile tile = getTile(index);
+                long bytes = -1;
+                for (int attempt = 1; attempt <= MAX_ATTEMPTS && bytes < 0; attempt++) {
+                    if (attempt > 1) {
+                        try {
+                            Thread.sleep(RETRY_DELAY * (attempt - 1));
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            break;
+                        }
+                    }
+                    if (cancelled) {
+                        break;
+                    }
+                    try {
+                        bytes = cacheStore.get(tile) != null ? 0 : fetchTile(tile);
+                    } catch (RuntimeException e) {
+                        Log.error("RasterTileSeeder: failed to seed tile " + tile + ": " + e.getMessage());
+                    }
+                }
+                if (bytes >= 0) {
+                    tileCompleted(index, retry, bytes);
+                } else if (!cancelled) {
+                    tileFailed(index, retry);
+                }
+                // otherwise cancelled, progress stays before the tile
+            }
+        } finally {
+            boolean finished;
+            synchronized (this) {
+                finished = --activeWorkers == 0;
+            }
+            if (finished) {
+                finish();
+            }
+        }
+    }
+
+    /**
+     * Download tile and put it to the cache store.
+     *
+     * @return number of downloaded bytes, or -1 if tile could not be loaded
+     */
+    private long fetchTile(MapTile tile) {
+        String host = getTileHost(tile);
+        Semaphore semaphore = host != null ? getHostSemaphore(host) : null;
+        if (semaphore != null) {
+            semaphore.acquireUninterruptibly();
+        }
+        try {
+            TileBitmap tileBitmap = dataSource.loadTile(tile);
+            if (tileBitmap == null) {
+                Log.error("RasterTileSeeder: could not load tile " + tile);
+                return -1;
+            }
+            cacheStore.put(tile, tileBitmap);
+            byte[] compressed = tileBitmap.getCompressed();
+            return compressed != null ? compressed.length : 0;
+        } finally {
+            if (semaphore != null) {
+                semaphore.release();
+            }
+        }
+    }
+
+    private void tileCompleted(long index, boolean retry, long bytes) {
+        boolean saveProgress;
+        synchronized (this) {
+            downloadedBytes += bytes;
+            consecutiveFailures = 0;
+            if (retry) {
+                failedIndexes.remove(index);
+                saveProgress = retryIndexes.isEmpty();
+            } else {
+                saveProgress = advanceProgress(index);
+            }
+            if (saveProgress) {
+                saveProgress();
+            }
+        }
+        notifyProgress();
+    }
+
+    private void tileFailed(long index, boolean retry) {
+        synchronized (this) {
+            // failed tile is remembered, so the progress can advance past it and the tile is retried in the next run
+            failedIndexes.add(index);
+            if (!cancelled && ++consecutiveFailures >= MAX_CONSECUTIVE_FAILURES) {
+                Log.error("RasterTileSeeder: too many failed tiles, stopping");
+                cancelled = true;
+            }
+            if (!retry && advanceProgress(index)) {
+                saveProgress();
+            }
+        }
+        notifyProgress();
+    }
+
+    /**
+     * Advance contiguous progress, tiles processed out of order are kept aside. Must be called while holding the lock.
+     *
+     * @return true if progress should be saved
+     */
+    private boolean advanceProgress(long index) {
+        boolean saveProgress = false;
+        completedAhead.add(index);
+        while (!completedAhead.isEmpty() && completedAhead.first() == completedIndex) {
+            completedAhead.pollFirst();
+            completedIndex++;
+            if (completedIndex % PROGRESS_SAVE_INTERVAL == 0) {
+                saveProgress = true;
+            }
+        }
+        return saveProgress;
+    }
+
+    private void notifyProgress() {
+        ProgressListener listener;
+        long completedTiles;
+        long totalBytes;
+        synchronized (this) {
+            listener = this.listener;
+            completedTiles = completedIndex + completedAhead.size() - failedIndexes.size();
+            totalBytes = downloadedBytes;
+        }
+        if (listener != null) {
+            listener.onProgress(completedTiles, totalTiles, totalBytes);
+        }
+    }
+
+    private void finish() {
+        ProgressListener listener;
+        boolean complete;
+        int failedTiles;
+        synchronized (this) {
+            saveProgress();
+            failedTiles = failedIndexes.size();
+            complete = completedIndex >= totalTiles && failedTiles == 0;
+            listener = this.listener;
+            this.listener = null;
+            executor = null;
+        }
+        Log.debug("RasterTileSeeder: seeding " + (complete ? "complete" : "stopped") + ", failed tiles: " + failedTiles);
+        if (listener != null) {
+            listener.onFinished(complete, failedTiles);
+        }
+    }
+
+    private MapTile getTile(long index) {
+        for (TileRange range : ranges) {
+            if (index < range.offset + range.count) {
+                long rangeIndex = index - range.offset;
+                int x = range.minX + (int) (rangeIndex % range.columns);
+                int y = range.minY + (int) (rangeIndex / range.columns);
+                return new MapTile(x, y, range.zoom, getTileId(range.zoom, x, y));
+            }
+        }
+        throw new IllegalArgumentException("Tile index out of range");
+    }
+
+    private List<TileRange> createTileRanges(Bounds bounds, int minZoom, int maxZoom) {
+        Projection projection = dataSource.getProjection();
+        Bounds projBounds = projection.getBounds();
+        double projLeft = Math.min(projBounds.left, projBounds.right);
+        double projTop = Math.max(projBounds.top, projBounds.bottom);
+        double left = Math.min(bounds.left, bounds.right);
+        double right = Math.max(bounds.left, bounds.right);
+        double top = Math.max(bounds.top, bounds.bottom);
+        double bottom = Math.min(bounds.top, bounds.bottom);
+
+        List<TileRange> ranges = new ArrayList<TileRange>();
+        long offset = 0;
+        for (int zoom = Math.max(minZoom, dataSource.getMinZoom()); zoom <= Math.min(maxZoom, dataSource.getMaxZoom()); zoom++) {
+            int tileCount = 1 << zoom;
+            double tileWidth = projBounds.getWidth() / tileCount;
+            double tileHeight = projBounds.getHeight() / tileCount;
+            // tile rows are counted from the top
+            int minX = clamp((int) Math.floor((left - projLeft) / tileWidth), tileCount);
+            int maxX = clamp((int) Math.floor((right - projLeft) / tileWidth), tileCount);
+            int minY = clamp((int) Math.floor((projTop - top) / tileHeight), tileCount);
+            int maxY = clamp((int) Math.floor((projTop - bottom) / tileHeight), tileCount);
+            TileRange range = new TileRange(zoom, minX, minY, maxX, maxY, offset);
+            ranges.add(range);
+            offset += range.count;
+        }
+        return ranges;
+    }
+
+    private Semaphore getHostSemaphore(String host) {
+        synchronized (hostSemaphores) {
+            Semaphore semaphore = hostSemaphores.get(host);
+            if (semaphore == null) {
+                semaphore = new Semaphore(maxConnectionsPerHost);
+                hostSemaphores.put(host, semaphore);
+            }
+            return semaphore;
+        }
+    }
+
+    private void loadProgress() {
+        if (progressFile == null || !progressFile.exists()) {
+            return;
+        }
+        Properties properties = new Properties();
+        try {
+            InputStream in = new FileInputStream(progressFile);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+            if (signature.equals(properties.getProperty("area"))) {
+                completedIndex = Math.min(totalTiles, Long.parseLong(properties.getProperty("completed", "0")));
+                downloadedBytes = Long.parseLong(properties.getProperty("bytes", "0"));
+                for (String failed : properties.getProperty("failed", "").split(",")) {
+                    if (failed.length() > 0) {
+                        failedIndexes.add(Long.parseLong(failed));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.error("RasterTileSeeder: could not read progress: " + e.getMessage());
+        } catch (NumberFormatException e) {
+            Log.error("RasterTileSeeder: invalid progress file: " + e.getMessage());
+        }
+    }
+
+    private void saveProgress() {
+        if (progressFile == null) {
+            return;
+        }
+        Properties properties = new Properties();
+        properties.setProperty("area", signature);
+        properties.setProperty("completed", Long.toString(completedIndex));
+        properties.setProperty("bytes", Long.toString(downloadedBytes));
+        StringBuilder failed = new StringBuilder();
+        for (Long index : failedIndexes) {
+            if (failed.length() > 0) {
+                failed.append(',');
+            }
+            failed.append(index);
+        }
+        properties.setProperty("failed", failed.toString());
+        try {
+            OutputStream out = new FileOutputStream(progressFile);
+            try {
+                properties.store(out, null);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.error("RasterTileSeeder: could not save progress: " + e.getMessage());
+        }
+    }
+
+    private static int clamp(int value, int count) {
+        return Math.max(0, Math.min(count - 1, value));
+    }
+
+}
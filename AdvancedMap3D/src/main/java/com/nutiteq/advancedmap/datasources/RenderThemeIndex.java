@@ -0,0 +1,111 @@
+package com.nutiteq.advancedmap.datasources;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *
+ * Index of tag keys and values used by a Mapsforge render theme, by zoom level.
+ *
+ * Mapsforge rule matchers test keys and values separately: a rule matches if some tag has one of its keys
+ * and some tag has one of its values. So a tag can change the result of matching only if its key or its value
+ * is listed in a rule active at the zoom level, or its key is used for captions. Other tags can be dropped
+ * before rendering without changing the rendered tile. Checking a tag is two hash lookups.
+ *
+ * Index is built by CompiledRenderTheme.
+ *
+ */
+public class RenderThemeIndex {
+    static final long ALL_ZOOMS = -1L;
+    private static final int MAX_ZOOM_BIT = 63;
+
+    private final Map<String, Long> keyZooms = new HashMap<String, Long>();
+    private final Map<String, Long> valueZooms = new HashMap<String, Long>();
+
+    /**
+     * Check if tag can affect rendering.
+     *
+     * @param key
+     *          tag key
+     * @param value
+     *          tag value
+     * @param zoom
+     *          zoom level of the tile
+     * @return true if some rule or caption uses the key or the value at the zoom level
+     */
+    public boolean isRelevant(String key, String value, byte zoom) {
+        long zoomBit = getZoomMask(zoom, zoom);
+        Long keyMask = keyZooms.get(key);
+        if (keyMask != null && (keyMask & zoomBit) != 0) {
+            return true;
+        }
+        Long valueMask = valueZooms.get(value);
+        return valueMask != null && (valueMask & zoomBit) != 0;
+    }
+
+    public int getKeyCount() {
+        return keyZooms.size();
+    }
+
+    public int getValueCount() {
+        return valueZooms.size();
+    }
+
+    void addKey(String key, long zoomMask) {
+        add(keyZooms, key, zoomMask);
+    }
+
+    void addValue(String value, long zoomMask) {
+        add(valueZooms, value, zoomMask);
+    }
+
+    void write(DataOutput out) throws IOException {
+        write(out, keyZooms);
+        write(out, valueZooms);
+    }
+
+    static RenderThemeIndex read(DataInput in) throws IOException {
+        RenderThemeIndex index = new RenderThemeIndex();
+        read(in, index.keyZooms);
+        read(in, index.valueZooms);
+        return index;
+    }
+
+    /**
+     * Get bit mask of zoom levels in range. Zoom levels from 63 up share the last bit.
+     */
+    static long getZoomMask(int minZoom, int maxZoom) {
+        minZoom = Math.max(0, Math.min(minZoom, MAX_ZOOM_BIT));
+        maxZoom = Math.min(maxZoom, MAX_ZOOM_BIT);
+        if (maxZoom < minZoom) {
+            return 0;
+        }
+        long upToMax = maxZoom == MAX_ZOOM_BIT ? ALL_ZOOMS : (1L << (maxZoom + 1)) - 1;
+        return upToMax & (ALL_ZOOMS << minZoom);
+    }
+
+    private static void add(Map<String, Long> zooms, String name, long zoomMask) {
+        Long mask = zooms.get(name);
+        zooms.put(name, mask != null ? mask | zoomMask : zoomMask);
+    }
+
+    private static void write(DataOutput out, Map<String, Long> zooms) throws IOException {
+        out.writeInt(zooms.size());
+        for (Map.Entry<String, Long> entry : zooms.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeLong(entry.getValue());
+        }
+    }
+
+    private static void read(DataInput in, Map<String, Long> zooms) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String name = in.readUTF();
+            zooms.put(name, in.readLong());
+        }
+    }
+
+}
@@ -0,0 +1,333 @@
+package com.nutiteq.advancedmap.datasources;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.nutiteq.components.MapTile;
+import com.nutiteq.components.TileBitmap;
+import com.nutiteq.log.Log;
+import com.nutiteq.rasterdatasources.AbstractRasterDataSource;
+import com.nutiteq.rasterdatasources.CacheRasterDataSource;
+
+/**
+ *
+ * Caching raster data source with HTTP freshness model, replacement for CacheRasterDataSource over online tiles.
+ *
+ * Each cached tile carries expiration time and validators (ETag, Last-Modified) from the HTTP response headers.
+ * Fresh tiles are served from the cache. Stale tiles are served from the cache as well, but are revalidated in
+ * background with a conditional request: if the server responds with 304, only the expiration time is updated,
+ * otherwise the new tile replaces the cached one and the layer is refreshed.
+ *
+ * Tile metadata is kept in memory and saved to a separate file, as cache stores keep only bitmaps. The file is
+ * rewritten periodically in background from a snapshot of the metadata, and once more when the data source is closed.
+ * Tiles stored without metadata (e.g. by RasterTileSeeder) are considered fresh for the default max age from the first access.
+ *
+ */
+public class RevalidatingCacheRasterDataSource extends AbstractRasterDataSource {
+    private static final int FORMAT_VERSION = 1;
+    private static final long DEFAULT_MAX_AGE = 24 * 60 * 60 * 1000L;
+    private static final int MAX_METADATA_ENTRIES = 20000;
+    private static final int METADATA_SAVE_INTERVAL = 50;
+    private static final long METADATA_WRITE_TIMEOUT = 5000;
+
+    /**
+     * Freshness metadata of a cached tile
+     */
+    private static class TileMetadata {
+        long expires;
+        long lastModified;
+        String eTag;
+    }
+
+    private final KeepAliveHTTPRasterDataSource dataSource;
+    private final CacheRasterDataSource.CacheStore cacheStore;
+    private final File metadataFile;
+    private final Map<Long, TileMetadata> metadata;
+    private final Set<Long> pendingTiles = new HashSet<Long>();
+    private ExecutorService revalidator;
+    private ExecutorService metadataWriter;
+    private boolean open;
+    private long defaultMaxAge = DEFAULT_MAX_AGE;
+    private int unsavedChanges;
+    private boolean tilesChanged;
+
+    /**
+     * Default constructor.
+     *
+     * @param dataSource
+     *          online data source
+     * @param cacheStore
+     *          cache store for the tile bitmaps
+     * @param metadataFile
+     *          file for tile freshness metadata
+     */
+    @SuppressWarnings("serial")
+    public RevalidatingCacheRasterDataSource(KeepAliveHTTPRasterDataSource dataSource, CacheRasterDataSource.CacheStore cacheStore, File metadataFile) {
+        super(dataSource.getProjection(), dataSource.getMinZoom(), dataSource.getMaxZoom());
+        this.dataSource = dataSource;
+        this.cacheStore = cacheStore;
+        this.metadataFile = metadataFile;
+        this.metadata = new LinkedHashMap<Long, TileMetadata>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, TileMetadata> eldest) {
+                return size() > MAX_METADATA_ENTRIES;
+            }
+        };
+
+        dataSource.addOnChangeListener(new OnChangeListener() {
+            @Override
+            public void onTilesChanged() {
+                notifyTilesChanged();
+            }
+        });
+    }
+
+    /**
+     * Set how long tiles are considered fresh if the server does not send Cache-Control or Expires headers.
+     * Default is 24 hours.
+     *
+     * @param defaultMaxAge
+     *          max age in milliseconds
+     */
+    public void setDefaultMaxAge(long defaultMaxAge) {
+        this.defaultMaxAge = defaultMaxAge;
+    }
+
+    /**
+     * Open cache store and load tile metadata. Must be called before the data source is used.
+     */
+    public synchronized void open() {
+        if (open) {
+            return;
+        }
+        cacheStore.open();
+        loadMetadata();
+        revalidator = Executors.newSingleThreadExecutor();
+        metadataWriter = Executors.newSingleThreadExecutor();
+        open = true;
+    }
+
+    /**
+     * Stop revalidation, save tile metadata and close cache store.
+     */
+    public synchronized void close() {
+        if (!open) {
+            return;
+        }
+        open = false;
+        revalidator.shutdownNow();
+        revalidator = null;
+
+        // let pending background write finish, so it does not overwrite the final state
+        metadataWriter.shutdown();
+        try {
+            metadataWriter.awaitTermination(METADATA_WRITE_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        metadataWriter = null;
+        createMetadataWriter().run();
+        cacheStore.close();
+    }
+
+    @Override
+    public TileBitmap loadTile(final MapTile tile) {
+        TileBitmap tileBitmap;
+        final TileMetadata tileMetadata;
+        ExecutorService executor;
+        synchronized (this) {
+            executor = revalidator;
+            tileBitmap = open ? cacheStore.get(tile) : null;
+            if (tileBitmap != null) {
+                TileMetadata existing = metadata.get(tile.id);
+                if (existing == null) {
+                    existing = new TileMetadata();
+                    existing.expires = System.currentTimeMillis() + defaultMaxAge;
+                    updateMetadata(tile.id, existing);
+                }
+                if (existing.expires > System.currentTimeMillis() || !pendingTiles.add(tile.id)) {
+                    return tileBitmap;
+                }
+                tileMetadata = existing;
+            } else {
+                tileMetadata = null;
+            }
+        }
+
+        if (tileBitmap != null) {
+            // serve stale tile, check for update in background
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        revalidateTile(tile, tileMetadata);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // closed meanwhile
+            }
+            return tileBitmap;
+        }
+
+        KeepAliveHTTPRasterDataSource.TileResponse response = dataSource.loadTile(tile, null, 0);
+        if (response == null || response.tileBitmap == null) {
+            return null;
+        }
+        synchronized (this) {
+            if (open) {
+                cacheStore.put(tile, response.tileBitmap);
+                updateMetadata(tile.id, createMetadata(response));
+            }
+        }
+        return response.tileBitmap;
+    }
+
+    private void revalidateTile(MapTile tile, TileMetadata tileMetadata) {
+        KeepAliveHTTPRasterDataSource.TileResponse response = dataSource.loadTile(tile, tileMetadata.eTag, tileMetadata.lastModified);
+        boolean notify;
+        synchronized (this) {
+            pendingTiles.remove(tile.id);
+            if (!open) {
+                return;
+            }
+            if (response != null) {
+                TileMetadata newMetadata = createMetadata(response);
+                if (response.notModified) {
+                    // 304 may omit validators, keep the previous ones
+                    if (newMetadata.eTag == null) {
+                        newMetadata.eTag = tileMetadata.eTag;
+                    }
+                    if (newMetadata.lastModified == 0) {
+                        newMetadata.lastModified = tileMetadata.lastModified;
+                    }
+                    Log.debug("RevalidatingCacheRasterDataSource: tile not modified " + tile);
+                } else {
+                    cacheStore.put(tile, response.tileBitmap);
+                    tilesChanged = true;
+                    Log.debug("RevalidatingCacheRasterDataSource: tile updated " + tile);
+                }
+                updateMetadata(tile.id, newMetadata);
+            }
+
+            // refresh layer once, after all pending revalidations are done
+            notify = tilesChanged && pendingTiles.isEmpty();
+            if (notify) {
+                tilesChanged = false;
+            }
+        }
+        if (notify) {
+            notifyTilesChanged();
+        }
+    }
+
+    private TileMetadata createMetadata(KeepAliveHTTPRasterDataSource.TileResponse response) {
+        TileMetadata tileMetadata = new TileMetadata();
+        tileMetadata.eTag = response.eTag;
+        tileMetadata.lastModified = response.lastModified;
+        tileMetadata.expires = response.expires > 0 ? response.expires : System.currentTimeMillis() + defaultMaxAge;
+        return tileMetadata;
+    }
+
+    private void updateMetadata(long tileId, TileMetadata tileMetadata) {
+        metadata.put(tileId, tileMetadata);
+        if (++unsavedChanges >= METADATA_SAVE_INTERVAL) {
+            try {
+                metadataWriter.execute(createMetadataWriter());
+            } catch (RejectedExecutionException e) {
+                // closed meanwhile, metadata is saved on close
+            }
+        }
+    }
+
+    /**
+     * Take snapshot of the metadata and create task that writes it to the file. Must be called while holding the lock.
+     */
+    private Runnable createMetadataWriter() {
+        unsavedChanges = 0;
+        final long[] tileIds = new long[metadata.size()];
+        final TileMetadata[] tileMetadata = new TileMetadata[metadata.size()];
+        int i = 0;
+        for (Map.Entry<Long, TileMetadata> entry : metadata.entrySet()) {
+            tileIds[i] = entry.getKey();
+            tileMetadata[i] = entry.getValue();
+            i++;
+        }
+        return new Runnable() {
+            @Override
+            public void run() {
+                saveMetadata(tileIds, tileMetadata);
+            }
+        };
+    }
+
+    private void loadMetadata() {
+        metadata.clear();
+        if (!metadataFile.exists()) {
+            return;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(metadataFile)));
+            try {
+                if (in.readInt() != FORMAT_VERSION) {
+                    return;
+                }
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    long tileId = in.readLong();
+                    TileMetadata tileMetadata = new TileMetadata();
+                    tileMetadata.expires = in.readLong();
+                    tileMetadata.lastModified = in.readLong();
+                    tileMetadata.eTag = in.readBoolean() ? in.readUTF() : null;
+                    metadata.put(tileId, tileMetadata);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.error("RevalidatingCacheRasterDataSource: failed to read " + metadataFile + ": " + e.getMessage());
+        }
+    }
+
+    private void saveMetadata(long[] tileIds, TileMetadata[] tileMetadata) {
+        File tempFile = new File(metadataFile.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            try {
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(tileIds.length);
+                for (int i = 0; i < tileIds.length; i++) {
+                    out.writeLong(tileIds[i]);
+                    out.writeLong(tileMetadata[i].expires);
+                    out.writeLong(tileMetadata[i].lastModified);
+                    out.writeBoolean(tileMetadata[i].eTag != null);
+                    if (tileMetadata[i].eTag != null) {
+                        out.writeUTF(tileMetadata[i].eTag);
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            if (!tempFile.renameTo(metadataFile)) {
+                throw new IOException("Could not rename " + tempFile);
+            }
+        } catch (IOException e) {
+            Log.error("RevalidatingCacheRasterDataSource: failed to write " + metadataFile + ": " + e.getMessage());
+            tempFile.delete();
+        }
+    }
+
+}
@@ -0,0 +1,432 @@
+package com.nutiteq.advancedmap.datasources;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.nutiteq.components.Bounds;
+import com.nutiteq.components.CullState;
+import com.nutiteq.components.Envelope;
+import com.nutiteq.components.MutableEnvelope;
+import com.nutiteq.geometry.VectorElement;
+import com.nutiteq.log.Log;
+import com.nutiteq.vectordatasources.AbstractVectorDataSource;
+import com.nutiteq.vectordatasources.VectorDataSource;
+
+/**
+ *
+ * Vector data source wrapper that loads elements of the underlying data source tile by tile in a background thread.
+ *
+ * Visible area is split into tiles, tiles closest to the view center are loaded first. Each loaded tile is published
+ * immediately, and until the tile is available, elements of already loaded lower zoom tiles covering it are shown.
+ * When view moves, tiles that were requested but not loaded yet are dropped. Loaded tiles are kept in a LRU cache.
+ *
+ * As element limit of the underlying data source (like setMaxElements) applies per tile, large data sets
+ * are not cut off when whole view is loaded.
+ *
+ * Optional TileStore can be attached to persist loaded tiles, tiles found in the store are not loaded from the underlying data source.
+ *
+ * @param <T> element type
+ */
+public class StreamingVectorDataSource<T extends VectorElement> extends AbstractVectorDataSource<T> {
+    private static final int DEFAULT_MAX_CACHED_TILES = 128;
+    private static final int DEFAULT_TILE_ZOOM_OFFSET = 1;
+    private static final int MAX_PARENT_LEVELS = 4;
+    private static final int TILE_COORD_OFFSET = 1 << 26;
+    private static final int TILE_COORD_MASK = (1 << 28) - 1;
+    private static final int MAX_TILE_ZOOM = 26; // limited by tile key encoding
+
+    /**
+     * Persistent storage of loaded tiles. Methods are called from the tile loader thread.
+     *
+     * @param <T> element type
+     */
+    public interface TileStore<T extends VectorElement> {
+
+        /**
+         * Load stored tile.
+         *
+         * @param zoom
+         *          tile zoom
+         * @param x
+         *          tile column
+         * @param y
+         *          tile row
+         * @param envelope
+         *          tile envelope in data source projection
+         * @param viewZoom
+         *          current view zoom, for styling
+         * @return tile elements, or null if tile is not stored
+         */
+        Collection<T> loadTile(int zoom, int x, int y, Envelope envelope, int viewZoom);
+
+        /**
+         * Store tile loaded from the underlying data source.
+         */
+        void saveTile(int zoom, int x, int y, Envelope envelope, Collection<T> elements);
+
+        /**
+         * Remove stored tiles of the zoom level within the tile range, bounds are inclusive.
+         */
+        void removeTiles(int zoom, int minX, int minY, int maxX, int maxY);
+
+        /**
+         * Remove all stored tiles.
+         */
+        void clear();
+    }
+
+    /**
+     * Pending tile load request
+     */
+    private static class TileRequest {
+        final long key;
+        final int zoom;
+        final int x;
+        final int y;
+        final Envelope envelope;
+        final CullState cullState;
+        final double priority;
+
+        TileRequest(long key, int zoom, int x, int y, Envelope envelope, CullState cullState, double priority) {
+            this.key = key;
+            this.zoom = zoom;
+            this.x = x;
+            this.y = y;
+            this.envelope = envelope;
+            this.cullState = cullState;
+            this.priority = priority;
+        }
+    }
+
+    private final VectorDataSource<T> dataSource;
+    private final Map<Long, Collection<T>> tileCache;
+    private final List<TileRequest> pendingRequests = new ArrayList<TileRequest>();
+    private boolean loaderRunning;
+    private int tileZoomOffset = DEFAULT_TILE_ZOOM_OFFSET;
+    private volatile TileStore<T> tileStore;
+
+    /**
+     * Default constructor.
+     *
+     * @param dataSource
+     *          underlying data source. Must be able to load elements for arbitrary envelopes.
+     */
+    public StreamingVectorDataSource(VectorDataSource<T> dataSource) {
+        this(dataSource, DEFAULT_MAX_CACHED_TILES);
+    }
+
+    /**
+     * Constructor with custom cache size.
+     *
+     * @param dataSource
+     *          underlying data source. Must be able to load elements for arbitrary envelopes.
+     * @param maxCachedTiles
+     *          maximum number of loaded tiles kept in memory
+     */
+    @SuppressWarnings("serial")
+    public StreamingVectorDataSource(VectorDataSource<T> dataSource, final int maxCachedTiles) {
+        super(dataSource.getProjection());
+        this.dataSource = dataSource;
+        this.tileCache = new LinkedHashMap<Long, Collection<T>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Collection<T>> eldest) {
+                return size() > maxCachedTiles;
+            }
+        };
+
+        dataSource.addOnChangeListener(new OnChangeListener() {
+            @Override
+            public void onElementChanged(VectorElement element) {
+                invalidateElement(element.getId(), null);
+            }
+
+            @Override
+            public void onElementsChanged() {
+                clearTileStore();
+            }
+        });
+    }
+
+    public VectorDataSource<T> getDataSource() {
+        return dataSource;
+    }
+
+    /**
+     * Set difference between view zoom and tile zoom. Larger values mean fewer but larger tiles. Default is 1.
+     */
+    public void setTileZoomOffset(int tileZoomOffset) {
+        this.tileZoomOffset = tileZoomOffset;
+    }
+
+    /**
+     * Get approximate width of tiles in screen pixels, useful for configuring simplification of the underlying data source.
+     */
+    public int getTileScreenSize() {
+        return 256 << tileZoomOffset;
+    }
+
+    public TileStore<T> getTileStore() {
+        return tileStore;
+    }
+
+    /**
+     * Set persistent tile store, null to disable.
+     */
+    public void setTileStore(TileStore<T> tileStore) {
+        this.tileStore = tileStore;
+    }
+
+    /**
+     * Drop loaded tiles and reload visible area. Tiles in the tile store are kept.
+     */
+    public void invalidate() {
+        synchronized (tileCache) {
+            tileCache.clear();
+        }
+        notifyElementsChanged();
+    }
+
+    /**
+     * Drop all loaded and stored tiles and reload visible area. Needed when the underlying data is replaced.
+     */
+    public void clearTileStore() {
+        TileStore<T> tileStore = this.tileStore;
+        if (tileStore != null) {
+            tileStore.clear();
+        }
+        invalidate();
+    }
+
+    /**
+     * Drop loaded and stored tiles affected by a modified element and reload visible area.
+     *
+     * Old location of the element is taken from the loaded tiles containing it, at all zoom levels
+     * tiles overlapping these and the new envelope are dropped. If the element is not found in loaded
+     * tiles and has no new envelope, its stored tiles are unknown and the whole tile store is cleared.
+     *
+     * @param id
+     *          element id
+     * @param envelope
+     *          new envelope of the element in data source projection, null if element was deleted or envelope is not known
+     */
+    public void invalidateElement(long id, Envelope envelope) {
+        MutableEnvelope dirtyEnvelope = (envelope != null ? new MutableEnvelope(envelope) : null);
+        synchronized (tileCache) {
+            for (Map.Entry<Long, Collection<T>> entry : tileCache.entrySet()) {
+                if (containsElement(entry.getValue(), id)) {
+                    Envelope tileEnvelope = getTileEnvelope(entry.getKey());
+                    if (dirtyEnvelope == null) {
+                        dirtyEnvelope = new MutableEnvelope(tileEnvelope);
+                    } else {
+                        dirtyEnvelope.add(tileEnvelope);
+                    }
+                }
+            }
+            if (dirtyEnvelope != null) {
+                Envelope dirty = new Envelope(dirtyEnvelope);
+                for (Iterator<Long> it = tileCache.keySet().iterator(); it.hasNext(); ) {
+                    if (getTileEnvelope(it.next()).intersects(dirty)) {
+                        it.remove();
+                    }
+                }
+            }
+        }
+
+        TileStore<T> tileStore = this.tileStore;
+        if (tileStore != null) {
+            if (dirtyEnvelope == null) {
+                tileStore.clear();
+            } else {
+                Bounds bounds = projection.getBounds();
+                for (int zoom = 0; zoom <= MAX_TILE_ZOOM; zoom++) {
+                    double tileWidth = bounds.getWidth() / (1 << zoom);
+                    double tileHeight = bounds.getHeight() / (1 << zoom);
+                    tileStore.removeTiles(zoom, (int) Math.floor(dirtyEnvelope.minX / tileWidth), (int) Math.floor(dirtyEnvelope.minY / tileHeight),
+                            (int) Math.floor(dirtyEnvelope.maxX / tileWidth), (int) Math.floor(dirtyEnvelope.maxY / tileHeight));
+                }
+            }
+        }
+        notifyElementsChanged();
+    }
+
+    @Override
+    public Envelope getDataExtent() {
+        return dataSource.getDataExtent();
+    }
+
+    @Override
+    public Collection<T> loadElements(CullState cullState) {
+        int zoom = Math.max(0, cullState.zoom - tileZoomOffset);
+        Envelope envelope = projection.fromInternal(cullState.envelope);
+        Bounds bounds = projection.getBounds();
+        double tileWidth = bounds.getWidth() / (1 << zoom);
+        double tileHeight = bounds.getHeight() / (1 << zoom);
+        int minTileX = (int) Math.floor(envelope.minX / tileWidth);
+        int minTileY = (int) Math.floor(envelope.minY / tileHeight);
+        int maxTileX = (int) Math.ceil(envelope.maxX / tileWidth);
+        int maxTileY = (int) Math.ceil(envelope.maxY / tileHeight);
+        double centerX = (envelope.minX + envelope.maxX) / 2;
+        double centerY = (envelope.minY + envelope.maxY) / 2;
+
+        List<T> elements = new ArrayList<T>();
+        Map<Long, Collection<T>> elementTiles = new HashMap<Long, Collection<T>>();
+        Set<Long> parentKeys = new HashSet<Long>();
+        List<TileRequest> requests = new ArrayList<TileRequest>();
+        synchronized (tileCache) {
+            for (int tileY = minTileY; tileY < maxTileY; tileY++) {
+                for (int tileX = minTileX; tileX < maxTileX; tileX++) {
+                    Envelope tileEnvelope = new Envelope(tileX * tileWidth, (tileX + 1) * tileWidth, tileY * tileHeight, (tileY + 1) * tileHeight);
+                    if (!tileEnvelope.intersects(envelope)) {
+                        continue;
+                    }
+                    long key = getTileKey(zoom, tileX, tileY);
+                    Collection<T> tileElements = tileCache.get(key);
+                    if (tileElements != null) {
+                        addElements(elements, elementTiles, tileElements);
+                        continue;
+                    }
+
+                    // show coarser data until the tile is loaded
+                    for (int level = 1; level <= MAX_PARENT_LEVELS && level <= zoom; level++) {
+                        long parentKey = getTileKey(zoom - level, tileX >> level, tileY >> level);
+                        Collection<T> parentElements = tileCache.get(parentKey);
+                        if (parentElements != null) {
+                            if (parentKeys.add(parentKey)) {
+                                addElements(elements, elementTiles, parentElements);
+                            }
+                            break;
+                        }
+                    }
+
+                    double dx = (tileX + 0.5) * tileWidth - centerX, dy = (tileY + 0.5) * tileHeight - centerY;
+                    CullState tileCullState = new CullState(projection.toInternal(tileEnvelope), cullState.camera, cullState.renderProjection);
+                    requests.add(new TileRequest(key, zoom, tileX, tileY, tileEnvelope, tileCullState, dx * dx + dy * dy));
+                }
+            }
+        }
+
+        Collections.sort(requests, new Comparator<TileRequest>() {
+            @Override
+            public int compare(TileRequest request1, TileRequest request2) {
+                return Double.compare(request1.priority, request2.priority);
+            }
+        });
+
+        synchronized (pendingRequests) {
+            // requests for the previous view are superseded
+            pendingRequests.clear();
+            pendingRequests.addAll(requests);
+            if (!pendingRequests.isEmpty() && !loaderRunning) {
+                loaderRunning = true;
+                Thread loader = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        loadPendingTiles();
+                    }
+                });
+                loader.setPriority(Thread.MIN_PRIORITY);
+                loader.start();
+            }
+        }
+        return elements;
+    }
+
+    private void loadPendingTiles() {
+        while (true) {
+            TileRequest request;
+            synchronized (pendingRequests) {
+                if (pendingRequests.isEmpty()) {
+                    loaderRunning = false;
+                    return;
+                }
+                request = pendingRequests.remove(0);
+            }
+            synchronized (tileCache) {
+                if (tileCache.containsKey(request.key)) {
+                    continue;
+                }
+            }
+
+            TileStore<T> tileStore = this.tileStore;
+            Collection<T> tileElements = null;
+            try {
+                if (tileStore != null) {
+                    tileElements = tileStore.loadTile(request.zoom, request.x, request.y, request.envelope, request.cullState.zoom);
+                    if (tileElements != null) {
+                        for (T element : tileElements) {
+                            element.attachToDataSource(this);
+                        }
+                    }
+                }
+                if (tileElements == null) {
+                    tileElements = dataSource.loadElements(request.cullState);
+                    if (tileElements == null) {
+                        tileElements = new ArrayList<T>();
+                    }
+                    if (tileStore != null) {
+                        tileStore.saveTile(request.zoom, request.x, request.y, request.envelope, tileElements);
+                    }
+                }
+            } catch (RuntimeException e) {
+                Log.error("StreamingVectorDataSource: failed to load tile: " + e.getMessage());
+                continue;
+            }
+            synchronized (tileCache) {
+                tileCache.put(request.key, tileElements);
+            }
+
+            // publish partial result, layer will call loadElements again
+            notifyElementsChanged();
+        }
+    }
+
+    /**
+     * Add tile elements, skipping copies of features already added from another tile.
+     * Parts of a multi-geometry share the id of their feature, so all elements with the same id
+     * are taken from the first tile that contains the feature.
+     */
+    private static <T extends VectorElement> void addElements(List<T> elements, Map<Long, Collection<T>> elementTiles, Collection<T> tileElements) {
+        for (T element : tileElements) {
+            Collection<T> elementTile = elementTiles.get(element.getId());
+            if (elementTile == null) {
+                elementTiles.put(element.getId(), tileElements);
+            } else if (elementTile != tileElements) {
+                continue;
+            }
+            elements.add(element);
+        }
+    }
+
+    private Envelope getTileEnvelope(long key) {
+        int zoom = (int) (key >>> 56);
+        int tileX = (int) ((key >>> 28) & TILE_COORD_MASK) - TILE_COORD_OFFSET;
+        int tileY = (int) (key & TILE_COORD_MASK) - TILE_COORD_OFFSET;
+        Bounds bounds = projection.getBounds();
+        double tileWidth = bounds.getWidth() / (1 << zoom);
+        double tileHeight = bounds.getHeight() / (1 << zoom);
+        return new Envelope(tileX * tileWidth, (tileX + 1) * tileWidth, tileY * tileHeight, (tileY + 1) * tileHeight);
+    }
+
+    private static <T extends VectorElement> boolean containsElement(Collection<T> tileElements, long id) {
+        for (T element : tileElements) {
+            if (element.getId() == id) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long getTileKey(int zoom, int tileX, int tileY) {
+        return ((long) zoom << 56) | ((long) (tileX + TILE_COORD_OFFSET) << 28) | (long) (tileY + TILE_COORD_OFFSET);
+    }
+
+}
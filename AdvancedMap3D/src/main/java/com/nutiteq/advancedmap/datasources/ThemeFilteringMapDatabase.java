@@ -0,0 +1,88 @@
+package com.nutiteq.advancedmap.datasources;
+
+import java.util.List;
+
+import org.mapsforge.core.model.Tag;
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.map.reader.MapDatabase;
+import org.mapsforge.map.reader.MapReadResult;
+import org.mapsforge.map.reader.PointOfInterest;
+import org.mapsforge.map.reader.Way;
+
+/**
+ *
+ * MapDatabase which removes tags not used by the render theme from the read ways and POIs.
+ *
+ * Mapsforge caches rule matching results by the full tag list of an element. Map files carry many tags
+ * the theme never looks at (names, sources, addresses), which makes almost every tag list unique, so the
+ * cache misses and the rule tree is walked again for each element. With unused tags removed, elements
+ * of the same kind share the cached result, and the remaining walks compare fewer tags.
+ *
+ */
+public class ThemeFilteringMapDatabase extends MapDatabase {
+    private final RenderThemeIndex index;
+    private long readTags;
+    private long removedTags;
+
+    /**
+     * Default constructor.
+     *
+     * @param index
+     *          index of the theme used for rendering, from CompiledRenderTheme.getIndex()
+     */
+    public ThemeFilteringMapDatabase(RenderThemeIndex index) {
+        this.index = index;
+    }
+
+    public RenderThemeIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Get share of read tags which were removed.
+     *
+     * @return value in range 0..1
+     */
+    public synchronized double getRemovedTagRatio() {
+        return readTags > 0 ? (double) removedTags / readTags : 0;
+    }
+
+    @Override
+    public MapReadResult readMapData(Tile tile) {
+        MapReadResult result = super.readMapData(tile);
+        if (result == null) {
+            return null;
+        }
+        int tagCount = 0;
+        int removedCount = 0;
+        for (Way way : result.ways) {
+            tagCount += way.tags.size();
+            removedCount += filterTags(way.tags, tile.zoomLevel);
+        }
+        for (PointOfInterest poi : result.pointOfInterests) {
+            tagCount += poi.tags.size();
+            removedCount += filterTags(poi.tags, tile.zoomLevel);
+        }
+        synchronized (this) {
+            readTags += tagCount;
+            removedTags += removedCount;
+        }
+        return result;
+    }
+
+    private int filterTags(List<Tag> tags, byte zoom) {
+        int kept = 0;
+        for (int i = 0; i < tags.size(); i++) {
+            Tag tag = tags.get(i);
+            if (index.isRelevant(tag.key, tag.value, zoom)) {
+                tags.set(kept++, tag);
+            }
+        }
+        int removed = tags.size() - kept;
+        if (removed > 0) {
+            tags.subList(kept, tags.size()).clear();
+        }
+        return removed;
+    }
+
+}
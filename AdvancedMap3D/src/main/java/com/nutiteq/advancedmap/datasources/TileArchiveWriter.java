@@ -0,0 +1,428 @@
+package com.nutiteq.advancedmap.datasources;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.graphics.Bitmap;
+
+import com.nutiteq.components.MapTile;
+import com.nutiteq.components.TileBitmap;
+import com.nutiteq.log.Log;
+import com.nutiteq.rasterdatasources.CacheRasterDataSource;
+
+/**
+ *
+ * Writer for single file tile archives, read by MappedTileArchiveRasterDataSource.
+ *
+ * Archive format, all numbers big-endian:
+ * header (magic "NTTA", version, tile count), index of tile count entries (tile key, data offset, data length)
+ * sorted by tile key, followed by tile data. Tile key is zoom, x and y packed to a long, see getTileKey().
+ * Identical tiles, detected by MD5 of the data, share the same data.
+ *
+ * Tile data is collected to a temporary file, the archive is assembled on close.
+ * Writer is also a write-only cache store, so tiles can be exported from any raster data source with RasterTileSeeder.
+ * MBTiles files and StoredRasterDataSource directories are exported directly with exportMBTiles() and exportStoredMap().
+ *
+ */
+public class TileArchiveWriter implements CacheRasterDataSource.CacheStore {
+    static final int MAGIC = 0x4e545441; // "NTTA"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 12;
+    static final int INDEX_ENTRY_SIZE = 20;
+
+    /**
+     * Index entry of a tile
+     */
+    private static class TileEntry {
+        final long key;
+        final long offset;
+        final int length;
+
+        TileEntry(long key, long offset, int length) {
+            this.key = key;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final File file;
+    private final File dataFile;
+    private OutputStream dataOut;
+    private long dataSize;
+    private final Map<Long, TileEntry> entries = new HashMap<Long, TileEntry>();
+    private final Map<ByteBuffer, TileEntry> entriesByHash = new HashMap<ByteBuffer, TileEntry>();
+    private MessageDigest digest;
+    private int duplicateCount;
+
+    /**
+     * Default constructor.
+     *
+     * @param file
+     *          archive file, replaced on close
+     */
+    public TileArchiveWriter(File file) {
+        this.file = file;
+        this.dataFile = new File(file.getPath() + ".data");
+    }
+
+    /**
+     * Export all tiles of a MBTiles file. Tile data is copied as is, without decoding.
+     * If export fails, temporary files are deleted and existing archive file is kept.
+     *
+     * @param mbTilesFile
+     *          source MBTiles file
+     * @param archiveFile
+     *          archive file to create
+     */
+    public static void exportMBTiles(File mbTilesFile, File archiveFile) {
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(mbTilesFile.getPath(), null, SQLiteDatabase.OPEN_READONLY);
+        TileArchiveWriter writer = new TileArchiveWriter(archiveFile);
+        boolean written = false;
+        try {
+            writer.open();
+            Cursor cursor = db.rawQuery("SELECT zoom_level, tile_column, tile_row, tile_data FROM tiles", null);
+            try {
+                while (cursor.moveToNext()) {
+                    int zoom = cursor.getInt(0);
+                    // MBTiles rows are counted from the bottom
+                    writer.putTile(zoom, cursor.getInt(1), (1 << zoom) - 1 - cursor.getInt(2), cursor.getBlob(3));
+                }
+            } finally {
+                cursor.close();
+            }
+            writer.close();
+            written = true;
+        } finally {
+            if (!written) {
+                writer.abort();
+            }
+            db.close();
+        }
+    }
+
+    /**
+     * Export all tiles of a StoredRasterDataSource directory tree (cache.conf and .mgm files of Mobile GMaps format).
+     * Tile data is copied as is, without decoding.
+     * If export fails, temporary files are deleted and existing archive file is kept.
+     *
+     * @param dir
+     *          map directory, the same as given to StoredRasterDataSource
+     * @param name
+     *          map name, the same as given to StoredRasterDataSource
+     * @param archiveFile
+     *          archive file to create
+     * @throws IOException
+     *          if cache.conf or a tile file can not be read
+     */
+    public static void exportStoredMap(File dir, String name, File archiveFile) throws IOException {
+        int tilesPerFile = readTilesPerFile(new File(dir, "cache.conf"));
+        // tiles of a file form a block of tpfx * tpfy tiles
+        int log2 = 31 - Integer.numberOfLeadingZeros(tilesPerFile);
+        int tpfx = 1 << (log2 / 2 + log2 % 2);
+        int tpfy = 1 << (log2 / 2);
+
+        TileArchiveWriter writer = new TileArchiveWriter(archiveFile);
+        boolean written = false;
+        try {
+            writer.open();
+            File[] zoomDirs = dir.listFiles();
+            for (int i = 0; zoomDirs != null && i < zoomDirs.length; i++) {
+                String dirName = zoomDirs[i].getName();
+                if (!zoomDirs[i].isDirectory() || !dirName.startsWith(name + "_")) {
+                    continue;
+                }
+                int zoom;
+                try {
+                    zoom = Integer.parseInt(dirName.substring(name.length() + 1));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                List<File> files = new ArrayList<File>();
+                // tile files can be spread to hash subdirectories
+                findFiles(zoomDirs[i], ".mgm", files);
+                for (File file : files) {
+                    String[] fileXY = file.getName().substring(0, file.getName().length() - 4).split("_");
+                    if (fileXY.length != 2) {
+                        continue;
+                    }
+                    int fileX = Integer.parseInt(fileXY[0]);
+                    int fileY = Integer.parseInt(fileXY[1]);
+                    byte[] data = readFile(file);
+                    if (tilesPerFile == 1) {
+                        writer.putTile(zoom, fileX, fileY, data);
+                        continue;
+                    }
+                    // header: tile count, then tile column and row in the block and end offset of data for each tile
+                    ByteBuffer header = ByteBuffer.wrap(data);
+                    int count = header.getShort(0) & 0xffff;
+                    int start = 2 + 6 * tilesPerFile;
+                    for (int j = 0; j < count; j++) {
+                        int x = header.get(2 + j * 6) & 0xff;
+                        int y = header.get(3 + j * 6) & 0xff;
+                        int end = header.getInt(4 + j * 6);
+                        if (end < start || end > data.length) {
+                            throw new IOException("Invalid tile file " + file);
+                        }
+                        byte[] tileData = new byte[end - start];
+                        System.arraycopy(data, start, tileData, 0, tileData.length);
+                        writer.putTile(zoom, fileX * tpfx + x, fileY * tpfy + y, tileData);
+                        start = end;
+                    }
+                }
+            }
+            writer.close();
+            written = true;
+        } finally {
+            if (!written) {
+                writer.abort();
+            }
+        }
+    }
+
+    /**
+     * Pack zoom, x and y to a key. Keys are ordered by zoom, then x, then y.
+     */
+    public static long getTileKey(int zoom, int x, int y) {
+        return ((long) zoom << 58) | ((long) x << 29) | y;
+    }
+
+    public synchronized int getTileCount() {
+        return entries.size();
+    }
+
+    /**
+     * Get number of tiles which were identical to an already written tile.
+     */
+    public synchronized int getDuplicateCount() {
+        return duplicateCount;
+    }
+
+    @Override
+    public synchronized void open() {
+        if (dataOut != null) {
+            return;
+        }
+        try {
+            dataOut = new BufferedOutputStream(new FileOutputStream(dataFile), 64 * 1024);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not create " + dataFile, e);
+        }
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        dataSize = 0;
+        entries.clear();
+        entriesByHash.clear();
+    }
+
+    /**
+     * Write index and tile data to the archive file.
+     */
+    @Override
+    public synchronized void close() {
+        if (dataOut == null) {
+            return;
+        }
+        try {
+            dataOut.close();
+            dataOut = null;
+            writeArchive();
+            Log.debug("TileArchiveWriter: wrote " + entries.size() + " tiles, " + duplicateCount + " duplicates, " + dataSize + " bytes to " + file);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not write " + file, e);
+        } finally {
+            dataFile.delete();
+        }
+    }
+
+    /**
+     * Stop writing without creating the archive, e.g. after an error. Collected tile data is deleted.
+     */
+    public synchronized void abort() {
+        if (dataOut != null) {
+            try {
+                dataOut.close();
+            } catch (IOException e) {
+                Log.error("TileArchiveWriter: could not close " + dataFile + ": " + e.getMessage());
+            }
+            dataOut = null;
+        }
+        dataFile.delete();
+        entries.clear();
+        entriesByHash.clear();
+    }
+
+    /**
+     * Write tile.
+     *
+     * @param zoom
+     *          zoom level
+     * @param x
+     *          tile column
+     * @param y
+     *          tile row, counted from the top like in MapTile
+     * @param data
+     *          compressed tile image
+     */
+    public synchronized void putTile(int zoom, int x, int y, byte[] data) {
+        long key = getTileKey(zoom, x, y);
+        ByteBuffer hash = ByteBuffer.wrap(digest.digest(data));
+        TileEntry existing = entriesByHash.get(hash);
+        if (existing != null) {
+            entries.put(key, new TileEntry(key, existing.offset, existing.length));
+            duplicateCount++;
+            return;
+        }
+
+        TileEntry entry = new TileEntry(key, dataSize, data.length);
+        try {
+            dataOut.write(data);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not write " + dataFile, e);
+        }
+        dataSize += data.length;
+        entries.put(key, entry);
+        entriesByHash.put(hash, entry);
+    }
+
+    @Override
+    public void put(MapTile tile, TileBitmap tileBitmap) {
+        byte[] data = tileBitmap.getCompressed();
+        if (data == null) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            tileBitmap.getBitmap().compress(Bitmap.CompressFormat.PNG, 100, out);
+            data = out.toByteArray();
+        }
+        putTile(tile.zoom, tile.x, tile.y, data);
+    }
+
+    /**
+     * Archive is write-only, always returns null.
+     */
+    @Override
+    public TileBitmap get(MapTile tile) {
+        return null;
+    }
+
+    @Override
+    public synchronized void remove(MapTile tile) {
+        // data stays in the archive, only the index entry is removed
+        entries.remove(getTileKey(tile.zoom, tile.x, tile.y));
+    }
+
+    @Override
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    private static int readTilesPerFile(File configFile) throws IOException {
+        if (!configFile.exists()) {
+            return 1;
+        }
+        for (String line : new String(readFile(configFile)).split("\n")) {
+            String[] keyValue = line.trim().split("\\s*=\\s*", 2);
+            if (keyValue.length == 2 && keyValue[0].toLowerCase(Locale.US).equals("tiles_per_file")) {
+                int tilesPerFile = Integer.parseInt(keyValue[1]);
+                if (tilesPerFile <= 0 || (tilesPerFile & (tilesPerFile - 1)) != 0) {
+                    throw new IOException("Invalid tiles_per_file in " + configFile);
+                }
+                return tilesPerFile;
+            }
+        }
+        return 1;
+    }
+
+    private static void findFiles(File dir, String extension, List<File> files) {
+        File[] children = dir.listFiles();
+        for (int i = 0; children != null && i < children.length; i++) {
+            if (children[i].isDirectory()) {
+                findFiles(children[i], extension, files);
+            } else if (children[i].getName().endsWith(extension)) {
+                files.add(children[i]);
+            }
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(data);
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    private void writeArchive() throws IOException {
+        List<TileEntry> sortedEntries = new ArrayList<TileEntry>(entries.values());
+        Collections.sort(sortedEntries, new Comparator<TileEntry>() {
+            @Override
+            public int compare(TileEntry entry1, TileEntry entry2) {
+                return entry1.key < entry2.key ? -1 : (entry1.key > entry2.key ? 1 : 0);
+            }
+        });
+        long dataOffset = HEADER_SIZE + (long) sortedEntries.size() * INDEX_ENTRY_SIZE;
+        if (dataOffset + dataSize > Integer.MAX_VALUE) {
+            throw new IOException("Archive larger than 2GB can not be memory-mapped");
+        }
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 64 * 1024));
+        boolean written = false;
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(sortedEntries.size());
+            for (TileEntry entry : sortedEntries) {
+                out.writeLong(entry.key);
+                out.writeLong(dataOffset + entry.offset);
+                out.writeInt(entry.length);
+            }
+            InputStream in = new FileInputStream(dataFile);
+            try {
+                byte[] buffer = new byte[64 * 1024];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, n);
+                }
+            } finally {
+                in.close();
+            }
+            written = true;
+        } finally {
+            out.close();
+            if (!written) {
+                tempFile.delete();
+            }
+        }
+        file.delete();
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Could not rename " + tempFile);
+        }
+    }
+
+}
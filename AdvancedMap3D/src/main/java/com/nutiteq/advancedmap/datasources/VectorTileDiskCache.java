@@ -0,0 +1,362 @@
+package com.nutiteq.advancedmap.datasources;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.nutiteq.components.Envelope;
+import com.nutiteq.components.MapPos;
+import com.nutiteq.geometry.Geometry;
+import com.nutiteq.geometry.Line;
+import com.nutiteq.geometry.Point;
+import com.nutiteq.geometry.Polygon;
+import com.nutiteq.log.Log;
+import com.nutiteq.style.LineStyle;
+import com.nutiteq.style.PointStyle;
+import com.nutiteq.style.PolygonStyle;
+import com.nutiteq.style.StyleSet;
+import com.nutiteq.ui.Label;
+
+/**
+ *
+ * Persistent vector tile cache for StreamingVectorDataSource, stored as z/x/y files under cache directory.
+ *
+ * Tiles are stored in compact binary format: coordinates are quantized to a fixed grid relative to the tile
+ * origin and delta encoded as variable length integers, repeated vertices are dropped. Geometries loaded
+ * from the cache are already simplified for the tile zoom, so source query and simplification are skipped.
+ *
+ * Cache is dropped when modification time or size of the source file changes.
+ *
+ */
+public abstract class VectorTileDiskCache implements StreamingVectorDataSource.TileStore<Geometry> {
+    private static final int FORMAT_VERSION = 1;
+    private static final int TILE_EXTENT = 4096;
+    private static final double MAX_COORD = 1 << 28; // far outside vertices are clamped, so coordinates and deltas fit into int
+    private static final String STAMP_FILE = "source.stamp";
+
+    private static final int TYPE_POINT = 0;
+    private static final int TYPE_LINE = 1;
+    private static final int TYPE_POLYGON = 2;
+
+    private final File cacheDir;
+    private final String stamp;
+
+    /**
+     * Default constructor.
+     *
+     * @param cacheDir
+     *          directory for the tiles of this source. Should be unique for each source file and table.
+     * @param sourceFile
+     *          source data file, used for invalidation
+     */
+    public VectorTileDiskCache(File cacheDir, File sourceFile) {
+        this.cacheDir = cacheDir;
+        this.stamp = FORMAT_VERSION + " " + sourceFile.lastModified() + " " + sourceFile.length();
+
+        if (!stamp.equals(readStamp(new File(cacheDir, STAMP_FILE)))) {
+            Log.debug("VectorTileDiskCache: source changed, dropping cache " + cacheDir);
+            clear();
+        }
+    }
+
+    @Override
+    public synchronized Collection<Geometry> loadTile(int zoom, int x, int y, Envelope envelope, int viewZoom) {
+        File file = getTileFile(zoom, x, y);
+        if (!file.exists()) {
+            return null;
+        }
+        double scaleX = (envelope.maxX - envelope.minX) / TILE_EXTENT;
+        double scaleY = (envelope.maxY - envelope.minY) / TILE_EXTENT;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                int count = in.readInt();
+                List<Geometry> elements = new ArrayList<Geometry>(count);
+                for (int i = 0; i < count; i++) {
+                    long id = in.readLong();
+                    int type = in.readByte();
+                    int ringCount = readVarInt(in);
+                    List<List<MapPos>> rings = new ArrayList<List<MapPos>>(ringCount);
+                    int qx = 0, qy = 0;
+                    for (int j = 0; j < ringCount; j++) {
+                        int vertexCount = readVarInt(in);
+                        List<MapPos> ring = new ArrayList<MapPos>(vertexCount);
+                        for (int k = 0; k < vertexCount; k++) {
+                            qx += decodeZigZag(readVarInt(in));
+                            qy += decodeZigZag(readVarInt(in));
+                            ring.add(new MapPos(envelope.minX + qx * scaleX, envelope.minY + qy * scaleY));
+                        }
+                        rings.add(ring);
+                    }
+                    int attributeCount = readVarInt(in);
+                    Map<String, String> userData = new HashMap<String, String>();
+                    for (int j = 0; j < attributeCount; j++) {
+                        String key = in.readUTF();
+                        userData.put(key, in.readUTF());
+                    }
+
+                    Geometry element = createElement(type, rings, userData, viewZoom);
+                    if (element != null) {
+                        element.setId(id);
+                        elements.add(element);
+                    }
+                }
+                return elements;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.error("VectorTileDiskCache: failed to read tile " + file + ": " + e.getMessage());
+            file.delete();
+            return null;
+        }
+    }
+
+    @Override
+    public synchronized void saveTile(int zoom, int x, int y, Envelope envelope, Collection<Geometry> elements) {
+        File file = getTileFile(zoom, x, y);
+        File tempFile = new File(file.getPath() + ".tmp");
+        file.getParentFile().mkdirs();
+        double scaleX = TILE_EXTENT / (envelope.maxX - envelope.minX);
+        double scaleY = TILE_EXTENT / (envelope.maxY - envelope.minY);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            try {
+                List<Geometry> geometries = new ArrayList<Geometry>();
+                for (Geometry element : elements) {
+                    if (element instanceof Point || element instanceof Line || element instanceof Polygon) {
+                        geometries.add(element);
+                    }
+                }
+                out.writeInt(geometries.size());
+                for (Geometry element : geometries) {
+                    List<List<MapPos>> rings = new ArrayList<List<MapPos>>();
+                    int type;
+                    if (element instanceof Point) {
+                        type = TYPE_POINT;
+                        List<MapPos> ring = new ArrayList<MapPos>();
+                        ring.add(((Point) element).getMapPos());
+                        rings.add(ring);
+                    } else if (element instanceof Line) {
+                        type = TYPE_LINE;
+                        rings.add(((Line) element).getVertexList());
+                    } else {
+                        type = TYPE_POLYGON;
+                        Polygon polygon = (Polygon) element;
+                        rings.add(polygon.getVertexList());
+                        if (polygon.getHolePolygonList() != null) {
+                            rings.addAll(polygon.getHolePolygonList());
+                        }
+                    }
+
+                    out.writeLong(element.getId());
+                    out.writeByte(type);
+                    writeVarInt(out, rings.size());
+                    int qx = 0, qy = 0;
+                    for (List<MapPos> ring : rings) {
+                        // quantize and drop vertices that fall into the same grid point
+                        int[] coords = new int[ring.size() * 2];
+                        int count = 0;
+                        for (MapPos mapPos : ring) {
+                            int rx = (int) Math.round(clamp((mapPos.x - envelope.minX) * scaleX));
+                            int ry = (int) Math.round(clamp((mapPos.y - envelope.minY) * scaleY));
+                            if (count > 0 && coords[count * 2 - 2] == rx && coords[count * 2 - 1] == ry) {
+                                continue;
+                            }
+                            coords[count * 2 + 0] = rx;
+                            coords[count * 2 + 1] = ry;
+                            count++;
+                        }
+                        writeVarInt(out, count);
+                        for (int i = 0; i < count; i++) {
+                            writeVarInt(out, encodeZigZag(coords[i * 2 + 0] - qx));
+                            writeVarInt(out, encodeZigZag(coords[i * 2 + 1] - qy));
+                            qx = coords[i * 2 + 0];
+                            qy = coords[i * 2 + 1];
+                        }
+                    }
+
+                    Map<String, String> userData = new HashMap<String, String>();
+                    if (element.userData instanceof Map) {
+                        for (Map.Entry<?, ?> entry : ((Map<?, ?>) element.userData).entrySet()) {
+                            if (entry.getKey() != null && entry.getValue() != null) {
+                                userData.put(entry.getKey().toString(), entry.getValue().toString());
+                            }
+                        }
+                    }
+                    writeVarInt(out, userData.size());
+                    for (Map.Entry<String, String> entry : userData.entrySet()) {
+                        out.writeUTF(entry.getKey());
+                        out.writeUTF(entry.getValue());
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Could not rename " + tempFile);
+            }
+        } catch (IOException e) {
+            Log.error("VectorTileDiskCache: failed to write tile " + file + ": " + e.getMessage());
+            tempFile.delete();
+        }
+    }
+
+    @Override
+    public synchronized void removeTiles(int zoom, int minX, int minY, int maxX, int maxY) {
+        File[] columnDirs = new File(cacheDir, Integer.toString(zoom)).listFiles();
+        if (columnDirs == null) {
+            return;
+        }
+        for (File columnDir : columnDirs) {
+            int x = parseTileCoord(columnDir.getName());
+            if (x < minX || x > maxX) {
+                continue;
+            }
+            File[] tileFiles = columnDir.listFiles();
+            if (tileFiles == null) {
+                continue;
+            }
+            for (File tileFile : tileFiles) {
+                int y = parseTileCoord(tileFile.getName().replace(".bin", ""));
+                if (y >= minY && y <= maxY) {
+                    tileFile.delete();
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        deleteRecursively(cacheDir);
+        cacheDir.mkdirs();
+        writeStamp(new File(cacheDir, STAMP_FILE), stamp);
+    }
+
+    private Geometry createElement(int type, List<List<MapPos>> rings, Map<String, String> userData, int zoom) {
+        Label label = createLabel(userData);
+        switch (type) {
+        case TYPE_POINT:
+            return new Point(rings.get(0).get(0), label, createPointStyleSet(userData, zoom), userData);
+        case TYPE_LINE:
+            if (rings.get(0).size() < 2) {
+                return null;
+            }
+            return new Line(rings.get(0), label, createLineStyleSet(userData, zoom), userData);
+        case TYPE_POLYGON:
+            if (rings.get(0).size() < 3) {
+                return null;
+            }
+            List<List<MapPos>> holes = new ArrayList<List<MapPos>>();
+            for (int i = 1; i < rings.size(); i++) {
+                if (rings.get(i).size() >= 3) {
+                    holes.add(rings.get(i));
+                }
+            }
+            return new Polygon(rings.get(0), holes.isEmpty() ? null : holes, label, createPolygonStyleSet(userData, zoom), userData);
+        }
+        return null;
+    }
+
+    private File getTileFile(int zoom, int x, int y) {
+        return new File(cacheDir, zoom + File.separator + x + File.separator + y + ".bin");
+    }
+
+    protected abstract Label createLabel(Map<String, String> userData);
+
+    protected abstract StyleSet<PointStyle> createPointStyleSet(Map<String, String> userData, int zoom);
+
+    protected abstract StyleSet<LineStyle> createLineStyleSet(Map<String, String> userData, int zoom);
+
+    protected abstract StyleSet<PolygonStyle> createPolygonStyleSet(Map<String, String> userData, int zoom);
+
+    private static String readStamp(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                return in.readUTF();
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void writeStamp(File file, String stamp) {
+        try {
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+            try {
+                out.writeUTF(stamp);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.error("VectorTileDiskCache: failed to write " + file + ": " + e.getMessage());
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static int parseTileCoord(String name) {
+        try {
+            return Integer.parseInt(name);
+        } catch (NumberFormatException e) {
+            return Integer.MIN_VALUE;
+        }
+    }
+
+    private static double clamp(double value) {
+        return Math.max(-MAX_COORD, Math.min(MAX_COORD, value));
+    }
+
+    private static int encodeZigZag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int decodeZigZag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+}
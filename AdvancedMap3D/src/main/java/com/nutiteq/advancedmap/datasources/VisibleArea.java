@@ -0,0 +1,60 @@
+package com.nutiteq.advancedmap.datasources;
+
+import com.nutiteq.components.Bounds;
+import com.nutiteq.components.Envelope;
+import com.nutiteq.components.MapTile;
+import com.nutiteq.projections.Projection;
+
+/**
+ *
+ * Visible map area of a raster data source, used to drop and prioritize tile work.
+ *
+ */
+class VisibleArea {
+    // tiles this much outside of the visible area are still considered visible
+    private static final double MARGIN = 0.5;
+
+    private final Projection projection;
+    private final Envelope envelope;
+    private final Envelope extendedEnvelope;
+    private final int zoom;
+
+    VisibleArea(Projection projection, Envelope envelope, int zoom) {
+        this.projection = projection;
+        this.envelope = envelope;
+        this.zoom = zoom;
+        double marginX = (envelope.maxX - envelope.minX) * MARGIN;
+        double marginY = (envelope.maxY - envelope.minY) * MARGIN;
+        this.extendedEnvelope = new Envelope(envelope.minX - marginX, envelope.maxX + marginX, envelope.minY - marginY, envelope.maxY + marginY);
+    }
+
+    /**
+     * Check if tile is visible or close to the visible area. Tiles of finer zoom levels than view zoom are not visible.
+     */
+    boolean contains(MapTile tile) {
+        if (tile.zoom > zoom + 1) {
+            return false;
+        }
+        return getTileEnvelope(tile).intersects(extendedEnvelope);
+    }
+
+    /**
+     * Get tile priority, smaller is more important. Tiles of view zoom come first, ordered by distance from the view center.
+     */
+    double getPriority(MapTile tile) {
+        Envelope tileEnvelope = getTileEnvelope(tile);
+        double dx = (tileEnvelope.minX + tileEnvelope.maxX - envelope.minX - envelope.maxX) / 2;
+        double dy = (tileEnvelope.minY + tileEnvelope.maxY - envelope.minY - envelope.maxY) / 2;
+        double distance = Math.sqrt(dx * dx + dy * dy) / (envelope.maxX - envelope.minX);
+        return Math.abs(zoom - tile.zoom) + distance;
+    }
+
+    private Envelope getTileEnvelope(MapTile tile) {
+        Bounds bounds = projection.getBounds();
+        double tileWidth = bounds.getWidth() / (1 << tile.zoom);
+        double tileHeight = bounds.getHeight() / (1 << tile.zoom);
+        double top = Math.max(bounds.top, bounds.bottom);
+        return new Envelope(bounds.left + tile.x * tileWidth, bounds.left + (tile.x + 1) * tileWidth, top - (tile.y + 1) * tileHeight, top - tile.y * tileHeight);
+    }
+
+}
@@ -0,0 +1,198 @@
+package com.nutiteq.advancedmap.datasources;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.nutiteq.components.MapTile;
+import com.nutiteq.components.MutableMapPos;
+import com.nutiteq.datasources.raster.WMSRasterDataSource;
+import com.nutiteq.log.Log;
+
+/**
+ *
+ * GetFeatureInfo query service for a WMS data source.
+ *
+ * Queries are run on a small thread pool after a short delay, so that a new click cancels the previous query
+ * before it reaches the server. Responses of queries which are superseded while running are dropped.
+ * Responses are cached by tile and pixel bucket: clicks within a few pixels of a previous click are answered
+ * from the cache, without a request.
+ *
+ */
+public class WMSFeatureInfoService {
+    private static final int DEFAULT_THREAD_COUNT = 2;
+    private static final int DEFAULT_MAX_CACHED_RESPONSES = 64;
+    private static final int DEFAULT_BUCKET_SIZE = 4;
+    private static final long DEFAULT_DEBOUNCE_DELAY = 150;
+    private static final long THREAD_KEEP_ALIVE = 30;
+
+    /**
+     * Receiver of query results.
+     */
+    public interface FeatureInfoCallback {
+
+        /**
+         * Called with the feature info HTML, from a worker thread or from the calling thread if the response was cached.
+         * Not called if the query fails or is superseded by a newer query.
+         */
+        void onFeatureInfo(String featureInfo);
+    }
+
+    private final WMSRasterDataSource dataSource;
+    private final ScheduledThreadPoolExecutor executor;
+    private final Map<String, String> responses;
+    private final int bucketSize;
+    private long debounceDelay = DEFAULT_DEBOUNCE_DELAY;
+    private Future<?> pendingQuery;
+    private int queryCounter;
+
+    private long requestCount;
+    private long totalLatency;
+    private volatile long lastLatency;
+
+    /**
+     * Default constructor.
+     *
+     * @param dataSource
+     *          WMS data source to query
+     */
+    public WMSFeatureInfoService(WMSRasterDataSource dataSource) {
+        this(dataSource, DEFAULT_THREAD_COUNT, DEFAULT_MAX_CACHED_RESPONSES, DEFAULT_BUCKET_SIZE);
+    }
+
+    /**
+     * Constructor with custom pool and cache parameters.
+     *
+     * @param dataSource
+     *          WMS data source to query
+     * @param threadCount
+     *          maximum number of simultaneous requests
+     * @param maxCachedResponses
+     *          number of responses kept in the cache
+     * @param bucketSize
+     *          size of cache bucket in tile pixels, clicks in the same bucket share the response
+     */
+    @SuppressWarnings("serial")
+    public WMSFeatureInfoService(WMSRasterDataSource dataSource, int threadCount, final int maxCachedResponses, int bucketSize) {
+        this.dataSource = dataSource;
+        this.bucketSize = bucketSize;
+        this.executor = new ScheduledThreadPoolExecutor(threadCount);
+        // idle threads are stopped, so a discarded service does not keep threads alive
+        this.executor.setKeepAliveTime(THREAD_KEEP_ALIVE, TimeUnit.SECONDS);
+        this.executor.allowCoreThreadTimeOut(true);
+        this.responses = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > maxCachedResponses;
+            }
+        };
+    }
+
+    public WMSRasterDataSource getDataSource() {
+        return dataSource;
+    }
+
+    /**
+     * Set delay before query is sent, in milliseconds. Default is 150.
+     */
+    public void setDebounceDelay(long debounceDelay) {
+        this.debounceDelay = debounceDelay;
+    }
+
+    /**
+     * Query feature info of the clicked location. Previous query is cancelled, if not finished yet.
+     *
+     * @param tile
+     *          clicked tile of the WMS layer
+     * @param tilePos
+     *          clicked position in the tile, in range 0..1
+     * @param callback
+     *          receiver of the result
+     */
+    public void query(MapTile tile, MutableMapPos tilePos, final FeatureInfoCallback callback) {
+        int tileSize = dataSource.getTileSize();
+        int bucketX = Math.min(Math.max((int) (tilePos.x * tileSize), 0), tileSize - 1) / bucketSize;
+        int bucketY = Math.min(Math.max((int) (tilePos.y * tileSize), 0), tileSize - 1) / bucketSize;
+        final String key = tile.zoom + "/" + tile.x + "/" + tile.y + "/" + bucketX + "/" + bucketY;
+
+        String cached;
+        final int query;
+        synchronized (this) {
+            if (pendingQuery != null) {
+                pendingQuery.cancel(false);
+                pendingQuery = null;
+            }
+            query = ++queryCounter;
+            cached = responses.get(key);
+            if (cached == null) {
+                // query the bucket center, so the response is valid for the whole bucket
+                final MapTile queryTile = tile;
+                final MutableMapPos queryPos = new MutableMapPos((bucketX + 0.5) * bucketSize / tileSize, (bucketY + 0.5) * bucketSize / tileSize);
+                try {
+                    pendingQuery = executor.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            runQuery(query, key, queryTile, queryPos, callback);
+                        }
+                    }, debounceDelay, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    Log.debug("WMSFeatureInfoService: query after shutdown ignored");
+                }
+                return;
+            }
+        }
+        Log.debug("WMSFeatureInfoService: cached response for " + key);
+        callback.onFeatureInfo(cached);
+    }
+
+    /**
+     * Get average latency of GetFeatureInfo requests.
+     *
+     * @return latency in milliseconds, 0 if there are no requests yet
+     */
+    public synchronized long getAverageLatency() {
+        return requestCount > 0 ? totalLatency / requestCount : 0;
+    }
+
+    /**
+     * Get latency of the last GetFeatureInfo request.
+     *
+     * @return latency in milliseconds, 0 if there are no requests yet
+     */
+    public long getLastLatency() {
+        return lastLatency;
+    }
+
+    /**
+     * Cancel pending queries and stop worker threads. Service can not be used after this.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void runQuery(int query, String key, MapTile tile, MutableMapPos tilePos, FeatureInfoCallback callback) {
+        long startTime = System.currentTimeMillis();
+        String featureInfo = dataSource.getFeatureInfo(tile, tilePos);
+        long latency = System.currentTimeMillis() - startTime;
+
+        boolean current;
+        synchronized (this) {
+            lastLatency = latency;
+            totalLatency += latency;
+            requestCount++;
+            if (featureInfo != null) {
+                responses.put(key, featureInfo);
+            }
+            current = query == queryCounter;
+        }
+        Log.debug("WMSFeatureInfoService: GetFeatureInfo " + latency + " ms, average " + getAverageLatency() + " ms");
+
+        if (featureInfo != null && current) {
+            callback.onFeatureInfo(featureInfo);
+        }
+    }
+
+}
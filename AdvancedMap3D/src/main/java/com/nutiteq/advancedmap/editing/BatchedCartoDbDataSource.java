@@ -0,0 +1,309 @@
+package com.nutiteq.advancedmap.editing;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import com.nutiteq.components.CullState;
+import com.nutiteq.editable.datasources.EditableCartoDbDataSource;
+import com.nutiteq.geometry.Geometry;
+import com.nutiteq.geometry.Line;
+import com.nutiteq.geometry.Point;
+import com.nutiteq.geometry.Polygon;
+import com.nutiteq.log.Log;
+import com.nutiteq.projections.Projection;
+import com.nutiteq.utils.WktWriter;
+
+/**
+ *
+ * Editable CartoDB data source that queues updates and deletes, and commits them as
+ * multi-statement transactions via CartoDB SQL API. Each batch is sent as single HTTP POST
+ * and retried with exponential backoff if the network or the server fails. Rejected batches
+ * (HTTP 4xx) are not retried.
+ *
+ * Layer reloads the data source when it saves its changes, before the queued statements are committed.
+ * Loading waits while a commit is running, and the layer is notified to reload again after the commit.
+ *
+ * Inserts are still executed one by one, as the layer needs the generated cartodb_id immediately.
+ *
+ */
+public abstract class BatchedCartoDbDataSource extends EditableCartoDbDataSource implements BatchedDataSource {
+    private static final String PLACEHOLDER_ID = "!id!";
+    private static final String PLACEHOLDER_GEOM = "!geom!";
+
+    private static final int DEFAULT_BATCH_SIZE = 100;
+    private static final int DEFAULT_MAX_RETRIES = 3;
+    private static final long INITIAL_RETRY_DELAY = 500;
+    private static final int TIMEOUT = 30 * 1000;
+
+    @SuppressWarnings("serial")
+    private static class HttpStatusException extends IOException {
+        final int statusCode;
+
+        HttpStatusException(int statusCode) {
+            super("HTTP response " + statusCode);
+            this.statusCode = statusCode;
+        }
+    }
+
+    private final String apiKey;
+    private final String updateSql;
+    private final String deleteSql;
+    private final boolean multiGeometry;
+    private final LinkedList<String> pendingStatements = new LinkedList<String>();
+    private boolean committing;
+    private String sqlApiUrl;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private int maxRetries = DEFAULT_MAX_RETRIES;
+
+    /**
+     * Default constructor, parameters are the same as for EditableCartoDbDataSource.
+     */
+    public BatchedCartoDbDataSource(Projection proj, String account, String apiKey, String querySql, String insertSql, String updateSql, String deleteSql, boolean multiGeometry) {
+        super(proj, account, apiKey, querySql, insertSql, updateSql, deleteSql, multiGeometry);
+        this.apiKey = apiKey;
+        this.updateSql = updateSql;
+        this.deleteSql = deleteSql;
+        this.multiGeometry = multiGeometry;
+        this.sqlApiUrl = "http://" + account + ".cartodb.com/api/v2/sql";
+    }
+
+    /**
+     * Set SQL API endpoint URL. Default is the CartoDB endpoint of the account.
+     */
+    public void setSqlApiUrl(String sqlApiUrl) {
+        this.sqlApiUrl = sqlApiUrl;
+    }
+
+    /**
+     * Set maximum number of statements in a single transaction. Default is 100.
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Set how many times failed batch is retried before giving up. Default is 3.
+     */
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    @Override
+    public void updateElement(long id, Geometry element) {
+        String wkt = WktWriter.writeWkt(element, getGeometryType(element));
+        String sql = updateSql.replace(PLACEHOLDER_GEOM, "GeometryFromText('" + wkt + "',3857)").replace(PLACEHOLDER_ID, Long.toString(id));
+        if (element.userData instanceof Map) {
+            @SuppressWarnings("unchecked")
+            Map<String, String> userData = (Map<String, String>) element.userData;
+            sql = replaceSqlMap(sql, userData);
+        }
+        enqueue(sql);
+    }
+
+    @Override
+    public void deleteElement(long id) {
+        enqueue(deleteSql.replace(PLACEHOLDER_ID, Long.toString(id)));
+    }
+
+    @Override
+    public int getPendingStatementCount() {
+        synchronized (pendingStatements) {
+            return pendingStatements.size();
+        }
+    }
+
+    @Override
+    public Collection<Geometry> loadElements(CullState cullState) {
+        // table does not contain the saved changes before the commit
+        synchronized (pendingStatements) {
+            while (committing) {
+                try {
+                    pendingStatements.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        return super.loadElements(cullState);
+    }
+
+    @Override
+    public void commitPendingStatements(ProgressListener listener) {
+        synchronized (pendingStatements) {
+            if (pendingStatements.isEmpty()) {
+                return;
+            }
+            committing = true;
+        }
+        try {
+            commitBatches(listener);
+        } finally {
+            synchronized (pendingStatements) {
+                committing = false;
+                pendingStatements.notifyAll();
+            }
+        }
+        // reload committed state, also if the layer loaded before the commit started
+        notifyElementsChanged();
+    }
+
+    private void commitBatches(ProgressListener listener) {
+        while (true) {
+            List<String> batch = new ArrayList<String>();
+            synchronized (pendingStatements) {
+                for (String sql : pendingStatements) {
+                    if (batch.size() >= batchSize) {
+                        break;
+                    }
+                    batch.add(sql);
+                }
+            }
+            if (batch.isEmpty()) {
+                break;
+            }
+
+            commitBatch(batch);
+
+            synchronized (pendingStatements) {
+                for (int i = 0; i < batch.size(); i++) {
+                    pendingStatements.removeFirst();
+                }
+            }
+            if (listener != null) {
+                listener.onBatchCommitted(batch.size());
+            }
+        }
+    }
+
+    private void enqueue(String sql) {
+        Log.debug("BatchedCartoDbDataSource: queued sql: " + sql);
+        synchronized (pendingStatements) {
+            pendingStatements.add(sql);
+        }
+    }
+
+    private void commitBatch(List<String> batch) {
+        StringBuilder sql = new StringBuilder("BEGIN;");
+        for (String statement : batch) {
+            sql.append(statement).append(";");
+        }
+        sql.append("COMMIT;");
+
+        long delay = INITIAL_RETRY_DELAY;
+        for (int attempt = 0; ; attempt++) {
+            try {
+                long startTime = System.currentTimeMillis();
+                postSql(sql.toString());
+                Log.debug("BatchedCartoDbDataSource: committed " + batch.size() + " statements, " + sql.length() + " chars in "
+                        + (System.currentTimeMillis() - startTime) + " ms, attempt " + (attempt + 1));
+                return;
+            } catch (HttpStatusException e) {
+                Log.error("BatchedCartoDbDataSource: batch commit failed: " + e.getMessage());
+                if (e.statusCode < HttpURLConnection.HTTP_INTERNAL_ERROR) {
+                    // request was rejected, e.g. invalid SQL or API key, retrying gives the same result
+                    throw new RuntimeException("CartoDB rejected changes: " + e.getMessage());
+                }
+                if (attempt >= maxRetries) {
+                    throw new RuntimeException("Could not commit changes to CartoDB table");
+                }
+            } catch (IOException e) {
+                Log.error("BatchedCartoDbDataSource: batch commit failed: " + e.getMessage());
+                if (attempt >= maxRetries) {
+                    throw new RuntimeException("Could not commit changes to CartoDB table");
+                }
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Commit interrupted");
+            }
+            delay *= 2;
+        }
+    }
+
+    private void postSql(String sql) throws IOException {
+        byte[] body = ("q=" + URLEncoder.encode(sql, "UTF-8") + "&api_key=" + URLEncoder.encode(apiKey, "UTF-8")).getBytes("UTF-8");
+
+        HttpURLConnection conn = (HttpURLConnection) new URL(sqlApiUrl).openConnection();
+        try {
+            conn.setConnectTimeout(TIMEOUT);
+            conn.setReadTimeout(TIMEOUT);
+            conn.setDoOutput(true);
+            conn.setRequestMethod("POST");
+            conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+            conn.setFixedLengthStreamingMode(body.length);
+            OutputStream out = conn.getOutputStream();
+            try {
+                out.write(body);
+            } finally {
+                out.close();
+            }
+
+            int responseCode = conn.getResponseCode();
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                throw new HttpStatusException(responseCode);
+            }
+            // drain response, so connection can be reused
+            InputStream in = conn.getInputStream();
+            try {
+                byte[] buf = new byte[4096];
+                while (in.read(buf) != -1) {
+                }
+            } finally {
+                in.close();
+            }
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    // Copies of private methods of EditableCartoDbDataSource (AdvancedLayers), keep them in sync with the library.
+    // The library builds and executes the statement in updateElement() and has no protected hook for building it only,
+    // so the SQL can not be reused without the copy, and calling super.updateElement() would send a request per element.
+    private String getGeometryType(Geometry element) {
+        String prefix = multiGeometry ? "MULTI" : "";
+        if (element instanceof Point) {
+            return prefix + "POINT";
+        } else if (element instanceof Line) {
+            return prefix + "LINE";
+        } else if (element instanceof Polygon) {
+            return prefix + "POLYGON";
+        }
+        return null;
+    }
+
+    private static String replaceSqlMap(String sql, Map<String, String> userData) {
+        for (Map.Entry<String, String> entry : userData.entrySet()) {
+            String value = entry.getValue();
+            String sqlValue;
+            if (value == null) {
+                sqlValue = "NULL";
+            } else {
+                StringBuilder hex = new StringBuilder();
+                try {
+                    for (byte b : value.getBytes("UTF-8")) {
+                        hex.append(String.format("%02x", b & 0xff));
+                    }
+                } catch (UnsupportedEncodingException e) {
+                    throw new RuntimeException("Unsupported character");
+                }
+                sqlValue = "convert_from('\\x" + hex + "', 'UTF8')";
+            }
+            sql = sql.replace("!" + entry.getKey() + "!", sqlValue);
+        }
+        return sql;
+    }
+
+}
@@ -0,0 +1,33 @@
+package com.nutiteq.advancedmap.editing;
+
+/**
+ *
+ * Editable data source that queues modifications and commits them in batches,
+ * instead of doing a round-trip per element.
+ *
+ */
+public interface BatchedDataSource {
+
+    /**
+     * Listener for batch commit progress. Called from the committing thread.
+     */
+    public interface ProgressListener {
+        void onBatchCommitted(int statementCount);
+    }
+
+    /**
+     * Get number of queued statements that are not yet committed.
+     */
+    int getPendingStatementCount();
+
+    /**
+     * Commit all queued statements. Failed batches are retried, if a batch still fails
+     * RuntimeException is thrown and uncommitted statements remain in the queue.
+     * Change listeners of the data source are notified after the commit, so layers reload the committed state.
+     *
+     * @param listener
+     *          progress listener, can be null
+     */
+    void commitPendingStatements(ProgressListener listener);
+
+}
@@ -0,0 +1,489 @@
+package com.nutiteq.advancedmap.editing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.nutiteq.components.MapPos;
+import com.nutiteq.editable.layers.EditableGeometryLayer;
+import com.nutiteq.geometry.Geometry;
+import com.nutiteq.geometry.Line;
+import com.nutiteq.geometry.Point;
+import com.nutiteq.geometry.Polygon;
+
+/**
+ *
+ * Undo/redo journal for editable layers.
+ *
+ * Instead of cloning the pending state of every layer on each change, the journal
+ * records commands that reference only the touched element: created and deleted elements,
+ * and for modified elements the indices and positions of changed vertices, including polygon
+ * holes, plus the previous user data. Journal memory is capped, oldest undo steps are evicted first.
+ *
+ * Undoing a deletion restores the element under its original key in the pending changes of the layer.
+ * When all steps since the last clear() are undone, pending changes of the layers are dropped,
+ * so the layers report no pending changes.
+ *
+ * Journal is not thread safe, it is expected to be used from the UI thread.
+ *
+ */
+public class EditJournal {
+
+    // rough per-object sizes used for memory accounting
+    private static final int COMMAND_SIZE = 48;
+    private static final int MAPPOS_SIZE = 40;
+    private static final int REFERENCE_SIZE = 4;
+    private static final int USERDATA_ENTRY_SIZE = 64;
+
+    /**
+     * Single undoable editing operation
+     */
+    private static abstract class Command {
+        protected final EditableGeometryLayer layer;
+        protected final Geometry element;
+
+        Command(EditableGeometryLayer layer, Geometry element) {
+            this.layer = layer;
+            this.element = element;
+        }
+
+        /**
+         * Called once no further changes will be recorded into this command.
+         *
+         * @return false if the command turned out to be empty and can be dropped
+         */
+        boolean seal() {
+            return true;
+        }
+
+        abstract void undo();
+
+        abstract void redo();
+
+        abstract long getSize();
+    }
+
+    private static class CreateCommand extends Command {
+        CreateCommand(EditableGeometryLayer layer, Geometry element) {
+            super(layer, element);
+        }
+
+        @Override
+        void undo() {
+            layer.remove(element);
+        }
+
+        @Override
+        void redo() {
+            layer.add(element);
+        }
+
+        @Override
+        long getSize() {
+            return COMMAND_SIZE;
+        }
+    }
+
+    private static class DeleteCommand extends Command {
+        private final long key;
+        private final boolean changed;
+
+        DeleteCommand(EditableGeometryLayer layer, Geometry element) {
+            super(layer, element);
+            // created elements share id -1, layer keeps them under their own keys
+            Long key = PendingChanges.getKey(layer, element);
+            if (key == null) {
+                throw new IllegalArgumentException("Element is not in the layer");
+            }
+            this.key = key;
+            this.changed = PendingChanges.isChanged(layer, key);
+        }
+
+        @Override
+        void undo() {
+            PendingChanges.restoreDeleted(layer, key, element, changed);
+        }
+
+        @Override
+        void redo() {
+            layer.remove(element);
+        }
+
+        @Override
+        long getSize() {
+            return COMMAND_SIZE;
+        }
+    }
+
+    /**
+     * Vertex and user data changes of a single element. Vertices of polygon holes follow the outer ring.
+     * Before sealing, full copy of the original vertex list is kept. Sealing reduces it to changed vertices
+     * only, unless the vertex count of a ring or the number of holes was changed.
+     */
+    private static class ChangeCommand extends Command {
+        private List<MapPos> initialVertices;
+        private int[] initialRingSizes;
+        private Map<String, String> initialUserData;
+
+        // sealed state: either vertex delta (indices != null) or full vertex lists
+        private int[] indices;
+        private MapPos[] beforePoses;
+        private MapPos[] afterPoses;
+        private List<MapPos> beforeVertices;
+        private int[] beforeRingSizes;
+        private List<MapPos> afterVertices;
+        private int[] afterRingSizes;
+        private Map<String, String> beforeUserData;
+        private Map<String, String> afterUserData;
+
+        ChangeCommand(EditableGeometryLayer layer, Geometry element) {
+            super(layer, element);
+            this.initialVertices = getVertices(element);
+            this.initialRingSizes = getRingSizes(element);
+            this.initialUserData = copyUserData(element.userData);
+        }
+
+        @Override
+        boolean seal() {
+            List<MapPos> vertices = getVertices(element);
+            if (Arrays.equals(initialRingSizes, getRingSizes(element))) {
+                int count = 0;
+                for (int i = 0; i < vertices.size(); i++) {
+                    if (!initialVertices.get(i).equals(vertices.get(i))) {
+                        count++;
+                    }
+                }
+                indices = new int[count];
+                beforePoses = new MapPos[count];
+                afterPoses = new MapPos[count];
+                int n = 0;
+                for (int i = 0; i < vertices.size(); i++) {
+                    if (!initialVertices.get(i).equals(vertices.get(i))) {
+                        indices[n] = i;
+                        beforePoses[n] = initialVertices.get(i);
+                        n++;
+                    }
+                }
+            } else {
+                beforeVertices = initialVertices;
+                beforeRingSizes = initialRingSizes;
+            }
+            initialVertices = null;
+            initialRingSizes = null;
+
+            Map<String, String> userData = copyUserData(element.userData);
+            if (initialUserData != null && !initialUserData.equals(userData)) {
+                beforeUserData = initialUserData;
+            }
+            initialUserData = null;
+
+            return beforeVertices != null || indices.length > 0 || beforeUserData != null;
+        }
+
+        @Override
+        void undo() {
+            List<MapPos> vertices = getVertices(element);
+            int[] ringSizes = getRingSizes(element);
+            if (indices != null) {
+                for (int i = 0; i < indices.length; i++) {
+                    afterPoses[i] = vertices.get(indices[i]);
+                    vertices.set(indices[i], beforePoses[i]);
+                }
+            } else {
+                afterVertices = vertices;
+                afterRingSizes = ringSizes;
+                vertices = beforeVertices;
+                ringSizes = beforeRingSizes;
+                beforeVertices = null;
+                beforeRingSizes = null;
+            }
+            if (beforeUserData != null) {
+                afterUserData = copyUserData(element.userData);
+                restoreUserData(element, beforeUserData);
+                beforeUserData = null;
+            }
+            setVertices(element, vertices, ringSizes);
+            layer.update(element);
+        }
+
+        @Override
+        void redo() {
+            List<MapPos> vertices = getVertices(element);
+            int[] ringSizes = getRingSizes(element);
+            if (indices != null) {
+                for (int i = 0; i < indices.length; i++) {
+                    beforePoses[i] = vertices.get(indices[i]);
+                    vertices.set(indices[i], afterPoses[i]);
+                }
+            } else {
+                beforeVertices = vertices;
+                beforeRingSizes = ringSizes;
+                vertices = afterVertices;
+                ringSizes = afterRingSizes;
+                afterVertices = null;
+                afterRingSizes = null;
+            }
+            if (afterUserData != null) {
+                beforeUserData = copyUserData(element.userData);
+                restoreUserData(element, afterUserData);
+                afterUserData = null;
+            }
+            setVertices(element, vertices, ringSizes);
+            layer.update(element);
+        }
+
+        @Override
+        long getSize() {
+            long size = COMMAND_SIZE;
+            if (initialVertices != null) {
+                size += (long) initialVertices.size() * (MAPPOS_SIZE + REFERENCE_SIZE);
+            }
+            if (indices != null) {
+                size += (long) indices.length * (4 + 2 * MAPPOS_SIZE + 2 * REFERENCE_SIZE);
+            }
+            List<MapPos> fullVertices = beforeVertices != null ? beforeVertices : afterVertices;
+            if (fullVertices != null) {
+                size += (long) fullVertices.size() * (MAPPOS_SIZE + REFERENCE_SIZE);
+            }
+            int[] ringSizes = initialRingSizes != null ? initialRingSizes : (beforeRingSizes != null ? beforeRingSizes : afterRingSizes);
+            if (ringSizes != null) {
+                size += (long) ringSizes.length * 4;
+            }
+            Map<String, String> userData = initialUserData != null ? initialUserData : (beforeUserData != null ? beforeUserData : afterUserData);
+            if (userData != null) {
+                size += (long) userData.size() * USERDATA_ENTRY_SIZE;
+            }
+            return size;
+        }
+    }
+
+    private final LinkedList<Command> undoList = new LinkedList<Command>();
+    private final LinkedList<Command> redoList = new LinkedList<Command>();
+    private ChangeCommand openChange;
+    private long maxSize;
+    private long size;
+    // steps were evicted after the last clear, so undoing all steps does not return to the saved state
+    private boolean evicted;
+
+    /**
+     * Default constructor.
+     *
+     * @param maxSize
+     *          maximum estimated memory usage of the journal in bytes. Oldest undo steps are dropped when exceeded.
+     */
+    public EditJournal(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+        evict();
+    }
+
+    /**
+     * Get estimated memory usage of the journal in bytes.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    public boolean canUndo() {
+        return openChange != null || !undoList.isEmpty();
+    }
+
+    public boolean canRedo() {
+        return !redoList.isEmpty();
+    }
+
+    /**
+     * Record new element, must be called after the element is attached to the layer.
+     */
+    public void recordCreate(EditableGeometryLayer layer, Geometry element) {
+        push(new CreateCommand(layer, element));
+    }
+
+    /**
+     * Record element deletion, must be called before the element is removed from the layer.
+     */
+    public void recordDelete(EditableGeometryLayer layer, Geometry element) {
+        push(new DeleteCommand(layer, element));
+    }
+
+    /**
+     * Start recording changes of the element. Must be called before the element is modified.
+     * The change is finished when next operation is recorded or undo is performed.
+     */
+    public void beginChange(EditableGeometryLayer layer, Geometry element) {
+        ChangeCommand change = new ChangeCommand(layer, element);
+        push(change);
+        openChange = change;
+    }
+
+    public void undo() {
+        sealOpenChange();
+        if (undoList.isEmpty()) {
+            return;
+        }
+        Command command = undoList.removeLast();
+        size -= command.getSize();
+        command.undo();
+        redoList.addLast(command);
+        size += command.getSize();
+        evict();
+        if (undoList.isEmpty() && !evicted) {
+            // all changes are undone, remaining pending changes of the layers restore the loaded state
+            Set<EditableGeometryLayer> layers = new HashSet<EditableGeometryLayer>();
+            for (Command redoCommand : redoList) {
+                layers.add(redoCommand.layer);
+            }
+            for (EditableGeometryLayer layer : layers) {
+                PendingChanges.clear(layer);
+            }
+        }
+    }
+
+    public void redo() {
+        sealOpenChange();
+        if (redoList.isEmpty()) {
+            return;
+        }
+        Command command = redoList.removeLast();
+        size -= command.getSize();
+        command.redo();
+        undoList.addLast(command);
+        size += command.getSize();
+        evict();
+    }
+
+    /**
+     * Remove all steps, e.g. after the changes are saved or discarded.
+     */
+    public void clear() {
+        openChange = null;
+        undoList.clear();
+        redoList.clear();
+        size = 0;
+        evicted = false;
+    }
+
+    private void push(Command command) {
+        sealOpenChange();
+        for (Command redoCommand : redoList) {
+            size -= redoCommand.getSize();
+        }
+        redoList.clear();
+        undoList.addLast(command);
+        size += command.getSize();
+        evict();
+    }
+
+    private void sealOpenChange() {
+        if (openChange == null) {
+            return;
+        }
+        ChangeCommand change = openChange;
+        openChange = null;
+        size -= change.getSize();
+        if (change.seal()) {
+            size += change.getSize();
+        } else {
+            undoList.remove(change);
+        }
+    }
+
+    private void evict() {
+        while (size > maxSize && !undoList.isEmpty()) {
+            Command command = undoList.getFirst();
+            if (command == openChange) {
+                break;
+            }
+            undoList.removeFirst();
+            size -= command.getSize();
+            evicted = true;
+        }
+    }
+
+    private static List<MapPos> getVertices(Geometry element) {
+        List<MapPos> vertices = new ArrayList<MapPos>();
+        if (element instanceof Point) {
+            vertices.add(((Point) element).getMapPos());
+        } else if (element instanceof Line) {
+            vertices.addAll(((Line) element).getVertexList());
+        } else if (element instanceof Polygon) {
+            Polygon polygon = (Polygon) element;
+            vertices.addAll(polygon.getVertexList());
+            if (polygon.getHolePolygonList() != null) {
+                for (List<MapPos> hole : polygon.getHolePolygonList()) {
+                    vertices.addAll(hole);
+                }
+            }
+        }
+        return vertices;
+    }
+
+    /**
+     * Get vertex counts of the outer ring and the holes of a polygon, or the vertex count of other elements.
+     */
+    private static int[] getRingSizes(Geometry element) {
+        if (element instanceof Polygon) {
+            Polygon polygon = (Polygon) element;
+            List<List<MapPos>> holes = polygon.getHolePolygonList();
+            int[] ringSizes = new int[1 + (holes != null ? holes.size() : 0)];
+            ringSizes[0] = polygon.getVertexList().size();
+            for (int i = 1; i < ringSizes.length; i++) {
+                ringSizes[i] = holes.get(i - 1).size();
+            }
+            return ringSizes;
+        } else if (element instanceof Line) {
+            return new int[] { ((Line) element).getVertexList().size() };
+        }
+        return new int[] { 1 };
+    }
+
+    private static void setVertices(Geometry element, List<MapPos> vertices, int[] ringSizes) {
+        if (element instanceof Point) {
+            ((Point) element).setMapPos(vertices.get(0));
+        } else if (element instanceof Line) {
+            ((Line) element).setVertexList(vertices);
+        } else if (element instanceof Polygon) {
+            Polygon polygon = (Polygon) element;
+            polygon.setVertexList(new ArrayList<MapPos>(vertices.subList(0, ringSizes[0])));
+            if (ringSizes.length > 1 || polygon.getHolePolygonList() != null) {
+                List<List<MapPos>> holes = new ArrayList<List<MapPos>>();
+                int offset = ringSizes[0];
+                for (int i = 1; i < ringSizes.length; i++) {
+                    holes.add(new ArrayList<MapPos>(vertices.subList(offset, offset + ringSizes[i])));
+                    offset += ringSizes[i];
+                }
+                polygon.setHolePolygonList(holes);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, String> copyUserData(Object userData) {
+        if (userData instanceof Map) {
+            return new HashMap<String, String>((Map<String, String>) userData);
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void restoreUserData(Geometry element, Map<String, String> userData) {
+        if (element.userData instanceof Map) {
+            Map<String, String> elementUserData = (Map<String, String>) element.userData;
+            elementUserData.clear();
+            elementUserData.putAll(userData);
+        }
+    }
+
+}
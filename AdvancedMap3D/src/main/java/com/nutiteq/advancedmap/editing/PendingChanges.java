@@ -0,0 +1,115 @@
+package com.nutiteq.advancedmap.editing;
+
+import java.lang.reflect.Field;
+import java.util.Iterator;
+
+import com.nutiteq.editable.layers.EditableGeometryLayer;
+import com.nutiteq.geometry.Geometry;
+import com.nutiteq.utils.LongHashMap;
+import com.nutiteq.utils.LongMap;
+
+/**
+ *
+ * Access to the pending changes of EditableGeometryLayer, which are needed to undo changes exactly.
+ *
+ * Layer keeps loaded elements by key and pending changes by key: changed or created element, or null for a
+ * deleted element. Key is the id of a loaded element, created elements all keep id -1 and get unique negative
+ * keys from the layer, so elements are identified by their key, not by getId(). Public API of the layer can only
+ * add changes, e.g. adding a deleted element back creates a new row with a new key, so pending changes are
+ * modified directly. Calls are synchronized on the layer like its own methods.
+ *
+ */
+class PendingChanges {
+    private static final Field currentElementMapField = getField("currentElementMap");
+    private static final Field editedElementMapField = getField("editedElementMap");
+
+    private PendingChanges() {
+    }
+
+    /**
+     * Find the key of the element in the layer.
+     *
+     * @return key of the element, or null if the element is not in the layer
+     */
+    static Long getKey(EditableGeometryLayer layer, Geometry element) {
+        synchronized (layer) {
+            for (Iterator<LongMap.Entry<Geometry>> it = getCurrentElements(layer).entrySetIterator(); it.hasNext(); ) {
+                LongMap.Entry<Geometry> entry = it.next();
+                if (entry.getValue() == element) {
+                    return entry.getKey();
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Check if the element with given key has a pending change or was created, and is not deleted.
+     */
+    static boolean isChanged(EditableGeometryLayer layer, long key) {
+        synchronized (layer) {
+            return getEditedElements(layer).get(key) != null;
+        }
+    }
+
+    /**
+     * Undo pending deletion of an element, so it gets its key back.
+     *
+     * @param key
+     *          key of the element in the layer before it was deleted
+     * @param changed
+     *          true if the element had a pending change or was created before it was deleted
+     */
+    static void restoreDeleted(EditableGeometryLayer layer, long key, Geometry element, boolean changed) {
+        synchronized (layer) {
+            LongHashMap<Geometry> editedElements = getEditedElements(layer);
+            if (changed) {
+                editedElements.put(key, element);
+            } else {
+                editedElements.remove(key);
+            }
+            getCurrentElements(layer).put(key, element);
+            element.attachToLayer(layer);
+            element.setActiveStyle(layer.getCurrentZoomLevel());
+        }
+        layer.updateVisibleElements();
+    }
+
+    /**
+     * Drop all pending changes. Only valid when the elements are in their loaded state again.
+     */
+    static void clear(EditableGeometryLayer layer) {
+        synchronized (layer) {
+            getEditedElements(layer).clear();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static LongHashMap<Geometry> getEditedElements(EditableGeometryLayer layer) {
+        try {
+            return (LongHashMap<Geometry>) editedElementMapField.get(layer);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static LongHashMap<Geometry> getCurrentElements(EditableGeometryLayer layer) {
+        try {
+            return (LongHashMap<Geometry>) currentElementMapField.get(layer);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static Field getField(String name) {
+        try {
+            Field field = EditableGeometryLayer.class.getDeclaredField(name);
+            field.setAccessible(true);
+            return field;
+        } catch (NoSuchFieldException e) {
+            throw new RuntimeException("Unsupported EditableGeometryLayer version", e);
+        }
+    }
+
+}
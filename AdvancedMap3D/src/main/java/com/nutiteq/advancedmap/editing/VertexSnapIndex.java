@@ -0,0 +1,273 @@
+package com.nutiteq.advancedmap.editing;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.nutiteq.components.MapPos;
+import com.nutiteq.geometry.Geometry;
+import com.nutiteq.geometry.Line;
+import com.nutiteq.geometry.Point;
+import com.nutiteq.geometry.Polygon;
+
+/**
+ *
+ * Uniform grid index of geometry vertices, used for vertex snapping while editing.
+ *
+ * Index is maintained incrementally: elements can be added, updated and removed one by one,
+ * nearest vertex query touches only the grid cells within the search distance.
+ * Coordinates are in the projection of the indexed elements.
+ *
+ * Index is not thread safe.
+ *
+ */
+public class VertexSnapIndex {
+
+    private static final int INITIAL_CELL_CAPACITY = 8;
+
+    /**
+     * Vertices of a single grid cell, stored in packed arrays
+     */
+    private static class Cell {
+        double[] coords = new double[INITIAL_CELL_CAPACITY * 2];
+        Geometry[] elements = new Geometry[INITIAL_CELL_CAPACITY];
+        int count;
+
+        void add(Geometry element, double x, double y) {
+            if (count == elements.length) {
+                int capacity = elements.length * 2;
+                double[] newCoords = new double[capacity * 2];
+                System.arraycopy(coords, 0, newCoords, 0, count * 2);
+                coords = newCoords;
+                Geometry[] newElements = new Geometry[capacity];
+                System.arraycopy(elements, 0, newElements, 0, count);
+                elements = newElements;
+            }
+            coords[count * 2 + 0] = x;
+            coords[count * 2 + 1] = y;
+            elements[count] = element;
+            count++;
+        }
+
+        void remove(Geometry element) {
+            int i = 0;
+            while (i < count) {
+                if (elements[i] == element) {
+                    count--;
+                    coords[i * 2 + 0] = coords[count * 2 + 0];
+                    coords[i * 2 + 1] = coords[count * 2 + 1];
+                    elements[i] = elements[count];
+                    elements[count] = null;
+                } else {
+                    i++;
+                }
+            }
+        }
+    }
+
+    private final Map<Long, Cell> cells = new HashMap<Long, Cell>();
+    private final Map<Geometry, double[]> elementCoords = new IdentityHashMap<Geometry, double[]>();
+    private double cellSize;
+    private int vertexCount;
+
+    /**
+     * Default constructor.
+     *
+     * @param cellSize
+     *          size of grid cell. Best performance is achieved if it is close to typical snapping distance.
+     */
+    public VertexSnapIndex(double cellSize) {
+        this.cellSize = cellSize;
+    }
+
+    public double getCellSize() {
+        return cellSize;
+    }
+
+    /**
+     * Change grid cell size. Rebuilds the index.
+     */
+    public void setCellSize(double cellSize) {
+        this.cellSize = cellSize;
+        cells.clear();
+        vertexCount = 0;
+        for (Map.Entry<Geometry, double[]> entry : elementCoords.entrySet()) {
+            addCoords(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public int getVertexCount() {
+        return vertexCount;
+    }
+
+    public boolean contains(Geometry element) {
+        return elementCoords.containsKey(element);
+    }
+
+    /**
+     * Synchronize index with given element set: elements not in the index are added, indexed elements
+     * not in the set are removed. Already indexed elements are not reindexed, use update() for this.
+     */
+    public void sync(Collection<? extends Geometry> elements) {
+        Map<Geometry, Boolean> elementSet = new IdentityHashMap<Geometry, Boolean>();
+        for (Geometry element : elements) {
+            elementSet.put(element, Boolean.TRUE);
+        }
+        for (Geometry element : new ArrayList<Geometry>(elementCoords.keySet())) {
+            if (!elementSet.containsKey(element)) {
+                remove(element);
+            }
+        }
+        for (Geometry element : elementSet.keySet()) {
+            if (!elementCoords.containsKey(element)) {
+                update(element);
+            }
+        }
+    }
+
+    /**
+     * Add element to the index or reindex its vertices if it is already indexed.
+     */
+    public void update(Geometry element) {
+        remove(element);
+        double[] coords = getCoords(element);
+        elementCoords.put(element, coords);
+        addCoords(element, coords);
+    }
+
+    public void remove(Geometry element) {
+        double[] coords = elementCoords.remove(element);
+        if (coords == null) {
+            return;
+        }
+        for (int i = 0; i < coords.length; i += 2) {
+            Cell cell = cells.get(getCellKey(coords[i + 0], coords[i + 1]));
+            if (cell == null) {
+                continue;
+            }
+            int count = cell.count;
+            cell.remove(element);
+            vertexCount -= count - cell.count;
+            if (cell.count == 0) {
+                cells.remove(getCellKey(coords[i + 0], coords[i + 1]));
+            }
+        }
+    }
+
+    public void clear() {
+        cells.clear();
+        elementCoords.clear();
+        vertexCount = 0;
+    }
+
+    /**
+     * Find nearest indexed vertex within given distance.
+     *
+     * @param x
+     *          x coordinate of query point
+     * @param y
+     *          y coordinate of query point
+     * @param maxDistance
+     *          maximum distance from query point
+     * @param exclude
+     *          element whose vertices are ignored, can be null
+     * @return nearest vertex or null if no vertex is within given distance
+     */
+    public MapPos findNearest(double x, double y, double maxDistance, Geometry exclude) {
+        long minCellX = (long) Math.floor((x - maxDistance) / cellSize);
+        long maxCellX = (long) Math.floor((x + maxDistance) / cellSize);
+        long minCellY = (long) Math.floor((y - maxDistance) / cellSize);
+        long maxCellY = (long) Math.floor((y + maxDistance) / cellSize);
+
+        double bestDist2 = maxDistance * maxDistance;
+        double bestX = 0, bestY = 0;
+        boolean found = false;
+        if ((maxCellX - minCellX + 1) * (maxCellY - minCellY + 1) > cells.size()) {
+            // query covers more cells than there are in the index, scan all of them
+            for (Cell cell : cells.values()) {
+                for (int i = 0; i < cell.count; i++) {
+                    if (cell.elements[i] == exclude) {
+                        continue;
+                    }
+                    double dx = cell.coords[i * 2 + 0] - x, dy = cell.coords[i * 2 + 1] - y;
+                    if (dx * dx + dy * dy <= bestDist2) {
+                        bestDist2 = dx * dx + dy * dy;
+                        bestX = cell.coords[i * 2 + 0];
+                        bestY = cell.coords[i * 2 + 1];
+                        found = true;
+                    }
+                }
+            }
+        } else {
+            for (long cellY = minCellY; cellY <= maxCellY; cellY++) {
+                for (long cellX = minCellX; cellX <= maxCellX; cellX++) {
+                    Cell cell = cells.get(getCellKey(cellX, cellY));
+                    if (cell == null) {
+                        continue;
+                    }
+                    for (int i = 0; i < cell.count; i++) {
+                        if (cell.elements[i] == exclude) {
+                            continue;
+                        }
+                        double dx = cell.coords[i * 2 + 0] - x, dy = cell.coords[i * 2 + 1] - y;
+                        if (dx * dx + dy * dy <= bestDist2) {
+                            bestDist2 = dx * dx + dy * dy;
+                            bestX = cell.coords[i * 2 + 0];
+                            bestY = cell.coords[i * 2 + 1];
+                            found = true;
+                        }
+                    }
+                }
+            }
+        }
+        return found ? new MapPos(bestX, bestY) : null;
+    }
+
+    private void addCoords(Geometry element, double[] coords) {
+        for (int i = 0; i < coords.length; i += 2) {
+            long key = getCellKey(coords[i + 0], coords[i + 1]);
+            Cell cell = cells.get(key);
+            if (cell == null) {
+                cell = new Cell();
+                cells.put(key, cell);
+            }
+            cell.add(element, coords[i + 0], coords[i + 1]);
+            vertexCount++;
+        }
+    }
+
+    private long getCellKey(double x, double y) {
+        return getCellKey((long) Math.floor(x / cellSize), (long) Math.floor(y / cellSize));
+    }
+
+    private static long getCellKey(long cellX, long cellY) {
+        return (cellX << 32) ^ (cellY & 0xffffffffL);
+    }
+
+    private static double[] getCoords(Geometry element) {
+        List<MapPos> vertices = new ArrayList<MapPos>();
+        if (element instanceof Point) {
+            vertices.add(((Point) element).getMapPos());
+        } else if (element instanceof Line) {
+            vertices.addAll(((Line) element).getVertexList());
+        } else if (element instanceof Polygon) {
+            Polygon polygon = (Polygon) element;
+            vertices.addAll(polygon.getVertexList());
+            if (polygon.getHolePolygonList() != null) {
+                for (List<MapPos> hole : polygon.getHolePolygonList()) {
+                    vertices.addAll(hole);
+                }
+            }
+        }
+        double[] coords = new double[vertices.size() * 2];
+        for (int i = 0; i < vertices.size(); i++) {
+            coords[i * 2 + 0] = vertices.get(i).x;
+            coords[i * 2 + 1] = vertices.get(i).y;
+        }
+        return coords;
+    }
+
+}
@@ -0,0 +1,632 @@
+package com.nutiteq.advancedmap.geocode;
+
+import gnu.trove.map.hash.TIntIntHashMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ *
+ * Memory-mapped offline geocoding index, written by GeocodeIndexBuilder.
+ *
+ * Index contains places sorted by importance, a sorted dictionary of normalized words with postings of places
+ * containing them, and trigram postings of the words. Every query word must match a word of the place: as a prefix
+ * through a binary search in the dictionary (words with a common prefix are a continuous range), or, if no word has
+ * the prefix, through shared trigrams to tolerate typos. Candidates are taken from the postings of the most selective
+ * query word and checked against the others using the word lists of places, so no per-query index structures are built.
+ * Postings of all words matching the selective query word are merged in order of place importance, so a limit of scanned
+ * postings drops the least important places, not words late in the dictionary.
+ *
+ * Instance is thread-safe, only absolute reads of the mapped buffer are used.
+ *
+ */
+public class GeocodeIndex {
+    static final int MAGIC = 0x4E544743; // "NTGC"
+    static final int VERSION = 1;
+    static final int FIELD_COUNT = 5;
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // sections, in file order after the header
+    static final int RECORD_STRING_STARTS = 0;
+    static final int RECORD_STRINGS = 1;
+    static final int RECORD_LATS = 2;
+    static final int RECORD_LONS = 3;
+    static final int RECORD_IMPORTANCES = 4;
+    static final int RECORD_TERM_STARTS = 5;
+    static final int RECORD_TERMS = 6;
+    static final int TERM_STARTS = 7;
+    static final int TERM_BYTES = 8;
+    static final int POSTING_STARTS = 9;
+    static final int POSTINGS = 10;
+    static final int TRIGRAM_KEYS = 11;
+    static final int TRIGRAM_STARTS = 12;
+    static final int TRIGRAM_TERMS = 13;
+    static final int SECTION_COUNT = 14;
+    static final int HEADER_SIZE = 4 * (5 + SECTION_COUNT);
+
+    private static final int MAX_QUERY_WORDS = 8;
+    private static final int MAX_SCANNED_POSTINGS = 50000;
+    private static final int MAX_FUZZY_TERMS = 16;
+    private static final double MIN_SHARED_TRIGRAMS = 0.6;
+    private static final Pattern DIACRITICS = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
+
+    /**
+     * Found place. Fields follow the MapQuest geocoder result, so places can be shown with the same code.
+     */
+    public static class Place {
+        private final int id;
+        private final String name;
+        private final String city;
+        private final String county;
+        private final String state;
+        private final String country;
+        private final double lat;
+        private final double lon;
+        private final double score;
+
+        Place(int id, String[] fields, double lat, double lon, double score) {
+            this.id = id;
+            this.name = fields[0];
+            this.city = fields[1];
+            this.county = fields[2];
+            this.state = fields[3];
+            this.country = fields[4];
+            this.lat = lat;
+            this.lon = lon;
+            this.score = score;
+        }
+
+        /**
+         * Get place index, places with smaller index are at least as important.
+         */
+        public int getId() {
+            return id;
+        }
+
+        /**
+         * Get place name, or street and house number of an address.
+         */
+        public String getName() {
+            return name;
+        }
+
+        public String getCity() {
+            return city;
+        }
+
+        public String getCounty() {
+            return county;
+        }
+
+        public String getState() {
+            return state;
+        }
+
+        public String getCountry() {
+            return country;
+        }
+
+        public double getLat() {
+            return lat;
+        }
+
+        public double getLon() {
+            return lon;
+        }
+
+        public double getScore() {
+            return score;
+        }
+
+        /**
+         * Convert to a location object of MapQuest geocoder response.
+         */
+        public JSONObject toJSON() {
+            try {
+                JSONObject latLng = new JSONObject();
+                latLng.put("lat", lat);
+                latLng.put("lng", lon);
+                JSONObject location = new JSONObject();
+                location.put("street", name);
+                location.put("adminArea5", city);
+                location.put("adminArea4", county);
+                location.put("adminArea3", state);
+                location.put("adminArea1", country);
+                location.put("latLng", latLng);
+                return location;
+            } catch (JSONException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return name + ", " + city + ", " + country + " (" + score + ")";
+        }
+    }
+
+    /**
+     * Words of the dictionary matching a query word.
+     */
+    private static class WordMatch {
+        final int length;
+        int firstTerm;
+        int lastTerm; // exclusive
+        boolean exact;
+        int[] fuzzyTerms;
+        int postingCount;
+
+        WordMatch(int length) {
+            this.length = length;
+        }
+
+        boolean matches(int term) {
+            if (fuzzyTerms == null) {
+                return term >= firstTerm && term < lastTerm;
+            }
+            return Arrays.binarySearch(fuzzyTerms, term) >= 0;
+        }
+    }
+
+    /**
+     * Merge of the postings of all terms matching a query word, in increasing place index (decreasing importance).
+     * Posting lists of the terms are sorted, a binary heap keeps the list with the smallest next place on top.
+     */
+    private class PostingMerge {
+        final double maxWordScore;
+        private final int[] positions;
+        private final int[] ends;
+        private final int[] heads;
+        private int size;
+
+        PostingMerge(WordMatch match) {
+            int termCount = match.fuzzyTerms != null ? match.fuzzyTerms.length : match.lastTerm - match.firstTerm;
+            positions = new int[termCount];
+            ends = new int[termCount];
+            heads = new int[termCount];
+            double maxScore = 0;
+            for (int t = 0; t < termCount; t++) {
+                int term = match.fuzzyTerms != null ? match.fuzzyTerms[t] : match.firstTerm + t;
+                maxScore = Math.max(maxScore, getWordScore(match, term));
+                int start = getInt(POSTING_STARTS, term);
+                int end = getInt(POSTING_STARTS, term + 1);
+                if (start < end) {
+                    positions[size] = start;
+                    ends[size] = end;
+                    heads[size] = getInt(POSTINGS, start);
+                    size++;
+                }
+            }
+            maxWordScore = maxScore;
+            for (int i = size / 2 - 1; i >= 0; i--) {
+                siftDown(i);
+            }
+        }
+
+        /**
+         * Get next place, equal places of different terms follow each other.
+         *
+         * @return place index, -1 if all postings are merged
+         */
+        int next() {
+            if (size == 0) {
+                return -1;
+            }
+            int record = heads[0];
+            if (++positions[0] < ends[0]) {
+                heads[0] = getInt(POSTINGS, positions[0]);
+            } else {
+                size--;
+                positions[0] = positions[size];
+                ends[0] = ends[size];
+                heads[0] = heads[size];
+            }
+            siftDown(0);
+            return record;
+        }
+
+        private void siftDown(int i) {
+            while (true) {
+                int smallest = i;
+                int left = 2 * i + 1;
+                int right = left + 1;
+                if (left < size && heads[left] < heads[smallest]) {
+                    smallest = left;
+                }
+                if (right < size && heads[right] < heads[smallest]) {
+                    smallest = right;
+                }
+                if (smallest == i) {
+                    return;
+                }
+                swap(positions, i, smallest);
+                swap(ends, i, smallest);
+                swap(heads, i, smallest);
+                i = smallest;
+            }
+        }
+
+        private void swap(int[] array, int i, int j) {
+            int value = array[i];
+            array[i] = array[j];
+            array[j] = value;
+        }
+    }
+
+    private final ByteBuffer buffer;
+    private final int recordCount;
+    private final int termCount;
+    private final int trigramCount;
+    private final int[] sections = new int[SECTION_COUNT];
+
+    /**
+     * Memory-map index file.
+     *
+     * @throws IOException
+     *          if the file can not be read or is not a geocoding index
+     */
+    public GeocodeIndex(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a geocoding index: " + file);
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported geocoding index version " + buffer.getInt(4) + ": " + file);
+        }
+        recordCount = buffer.getInt(8);
+        termCount = buffer.getInt(12);
+        trigramCount = buffer.getInt(16);
+        for (int i = 0; i < SECTION_COUNT; i++) {
+            sections[i] = buffer.getInt(20 + 4 * i);
+        }
+    }
+
+    /**
+     * Get number of places in the index.
+     */
+    public int getPlaceCount() {
+        return recordCount;
+    }
+
+    /**
+     * Get number of distinct words in the index.
+     */
+    public int getWordCount() {
+        return termCount;
+    }
+
+    /**
+     * Find places matching all words of the query. Last word can be incomplete.
+     *
+     * @param query
+     *          free form query, e.g. "narva mnt tallinn"
+     * @param maxResults
+     *          maximum number of results
+     * @return places ordered by score, best first
+     */
+    public List<Place> search(String query, int maxResults) {
+        List<String> words = tokenize(query);
+        if (words.isEmpty() || maxResults <= 0) {
+            return new ArrayList<Place>();
+        }
+        if (words.size() > MAX_QUERY_WORDS) {
+            words = words.subList(0, MAX_QUERY_WORDS);
+        }
+
+        WordMatch[] matches = new WordMatch[words.size()];
+        int driver = 0;
+        for (int i = 0; i < matches.length; i++) {
+            matches[i] = findWord(words.get(i));
+            if (matches[i].postingCount == 0) {
+                return new ArrayList<Place>();
+            }
+            if (matches[i].postingCount < matches[driver].postingCount) {
+                driver = i;
+            }
+        }
+
+        // best results so far, ordered by score
+        int[] resultIds = new int[maxResults];
+        double[] resultScores = new double[maxResults];
+        int resultCount = 0;
+        WordMatch driverMatch = matches[driver];
+        PostingMerge merge = new PostingMerge(driverMatch);
+        // other query words score at most 1, merged postings are in order of decreasing importance
+        double maxWordsScore = merge.maxWordScore + matches.length - 1;
+        int lastRecord = -1;
+        for (int scanned = 0; scanned < MAX_SCANNED_POSTINGS; scanned++) {
+            int record = merge.next();
+            if (record < 0) {
+                break;
+            }
+            if (resultCount == maxResults && maxWordsScore + getImportanceScore(record) <= resultScores[resultCount - 1]) {
+                break;
+            }
+            // same place in postings of several matching words
+            if (record == lastRecord) {
+                continue;
+            }
+            lastRecord = record;
+            double score = score(record, matches);
+            if (score < 0 || (resultCount == maxResults && score <= resultScores[resultCount - 1])) {
+                continue;
+            }
+            int i = resultCount < maxResults ? resultCount++ : resultCount - 1;
+            for (; i > 0 && resultScores[i - 1] < score; i--) {
+                resultIds[i] = resultIds[i - 1];
+                resultScores[i] = resultScores[i - 1];
+            }
+            resultIds[i] = record;
+            resultScores[i] = score;
+        }
+
+        List<Place> places = new ArrayList<Place>(resultCount);
+        for (int i = 0; i < resultCount; i++) {
+            places.add(getPlace(resultIds[i], resultScores[i]));
+        }
+        return places;
+    }
+
+    /**
+     * Get place by index.
+     */
+    public Place getPlace(int id) {
+        return getPlace(id, 0);
+    }
+
+    /**
+     * Normalize text for indexing and search: lower case, without diacritics.
+     */
+    static String normalize(String text) {
+        String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+        return DIACRITICS.matcher(decomposed).replaceAll("").toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Split text to normalized words.
+     */
+    static List<String> tokenize(String text) {
+        List<String> words = new ArrayList<String>();
+        String normalized = normalize(text);
+        int start = -1;
+        for (int i = 0; i <= normalized.length(); i++) {
+            boolean wordChar = i < normalized.length() && Character.isLetterOrDigit(normalized.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                words.add(normalized.substring(start, i));
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    /**
+     * Get trigrams of a word with a start marker, and optionally with an end marker.
+     */
+    static long[] getTrigrams(String word, boolean endMarker) {
+        String marked = "$" + word + (endMarker ? "$" : "");
+        if (marked.length() < 3) {
+            return new long[0];
+        }
+        long[] trigrams = new long[marked.length() - 2];
+        for (int i = 0; i < trigrams.length; i++) {
+            trigrams[i] = ((long) marked.charAt(i) << 32) | ((long) marked.charAt(i + 1) << 16) | marked.charAt(i + 2);
+        }
+        return trigrams;
+    }
+
+    /**
+     * Compare UTF-8 strings as unsigned bytes, which is the order of dictionary words.
+     */
+    static int compareBytes(byte[] a, byte[] b) {
+        int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i++) {
+            int diff = (a[i] & 0xff) - (b[i] & 0xff);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    private WordMatch findWord(String word) {
+        byte[] bytes = word.getBytes(UTF8);
+        WordMatch match = new WordMatch(bytes.length);
+        match.firstTerm = findFirstTerm(bytes, false);
+        match.lastTerm = findFirstTerm(bytes, true);
+        if (match.firstTerm < match.lastTerm) {
+            match.exact = getTermLength(match.firstTerm) == bytes.length;
+            match.postingCount = getInt(POSTING_STARTS, match.lastTerm) - getInt(POSTING_STARTS, match.firstTerm);
+        } else {
+            match.fuzzyTerms = findFuzzyTerms(word, bytes.length);
+            for (int term : match.fuzzyTerms) {
+                match.postingCount += getInt(POSTING_STARTS, term + 1) - getInt(POSTING_STARTS, term);
+            }
+        }
+        return match;
+    }
+
+    /**
+     * Binary search for the first term not less than the prefix, or with afterPrefix the first term greater
+     * than all terms starting with the prefix.
+     */
+    private int findFirstTerm(byte[] prefix, boolean afterPrefix) {
+        int low = 0;
+        int high = termCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareTerm(mid, prefix);
+            if (cmp < 0 || (afterPrefix && cmp == 0)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Compare start of a term with the prefix.
+     *
+     * @return negative if less, 0 if the term starts with the prefix, positive if greater
+     */
+    private int compareTerm(int term, byte[] prefix) {
+        int start = sections[TERM_BYTES] + getInt(TERM_STARTS, term);
+        int length = getTermLength(term);
+        for (int i = 0; i < prefix.length; i++) {
+            if (i == length) {
+                return -1;
+            }
+            int diff = (buffer.get(start + i) & 0xff) - (prefix[i] & 0xff);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return 0;
+    }
+
+    private int[] findFuzzyTerms(String word, int length) {
+        long[] trigrams = getTrigrams(word, false);
+        if (trigrams.length < 3) {
+            return new int[0];
+        }
+        TIntIntHashMap sharedCounts = new TIntIntHashMap();
+        for (long trigram : trigrams) {
+            int index = findTrigram(trigram);
+            if (index < 0) {
+                continue;
+            }
+            int end = getInt(TRIGRAM_STARTS, index + 1);
+            for (int i = getInt(TRIGRAM_STARTS, index); i < end; i++) {
+                sharedCounts.adjustOrPutValue(getInt(TRIGRAM_TERMS, i), 1, 1);
+            }
+        }
+
+        int minShared = (int) Math.ceil(trigrams.length * MIN_SHARED_TRIGRAMS);
+        int[] terms = new int[MAX_FUZZY_TERMS];
+        int[] termShared = new int[MAX_FUZZY_TERMS];
+        int count = 0;
+        for (int term : sharedCounts.keys()) {
+            int shared = sharedCounts.get(term);
+            // query word can be incomplete, so only too short terms are excluded
+            if (shared < minShared || getTermLength(term) < length - 1) {
+                continue;
+            }
+            if (count == MAX_FUZZY_TERMS && shared <= termShared[count - 1]) {
+                continue;
+            }
+            int i = count < MAX_FUZZY_TERMS ? count++ : count - 1;
+            for (; i > 0 && termShared[i - 1] < shared; i--) {
+                terms[i] = terms[i - 1];
+                termShared[i] = termShared[i - 1];
+            }
+            terms[i] = term;
+            termShared[i] = shared;
+        }
+        int[] result = Arrays.copyOf(terms, count);
+        Arrays.sort(result);
+        return result;
+    }
+
+    private int findTrigram(long trigram) {
+        int low = 0;
+        int high = trigramCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long key = buffer.getLong(sections[TRIGRAM_KEYS] + 8 * mid);
+            if (key < trigram) {
+                low = mid + 1;
+            } else if (key > trigram) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Score a place: every query word adds up to 1 for the best matching word of the place, place importance adds
+     * up to 1. Exact words score higher than prefixes, prefixes higher than similar words.
+     *
+     * @return score, -1 if some query word does not match
+     */
+    private double score(int record, WordMatch[] matches) {
+        int start = getInt(RECORD_TERM_STARTS, record);
+        int end = getInt(RECORD_TERM_STARTS, record + 1);
+        double score = getImportanceScore(record);
+        for (WordMatch match : matches) {
+            double best = -1;
+            for (int i = start; i < end; i++) {
+                int term = getInt(RECORD_TERMS, i);
+                if (match.matches(term)) {
+                    best = Math.max(best, getWordScore(match, term));
+                }
+            }
+            if (best < 0) {
+                return -1;
+            }
+            score += best;
+        }
+        return score;
+    }
+
+    private double getWordScore(WordMatch match, int term) {
+        if (match.fuzzyTerms != null) {
+            return 0.3;
+        }
+        if (match.exact && term == match.firstTerm) {
+            return 1.0;
+        }
+        return 0.5 + 0.4 * match.length / getTermLength(term);
+    }
+
+    private double getImportanceScore(int record) {
+        return buffer.getFloat(sections[RECORD_IMPORTANCES] + 4 * record);
+    }
+
+    private Place getPlace(int id, double score) {
+        int offset = sections[RECORD_STRINGS] + getInt(RECORD_STRING_STARTS, id);
+        String[] fields = new String[FIELD_COUNT];
+        for (int i = 0; i < FIELD_COUNT; i++) {
+            int length = buffer.getShort(offset) & 0xffff;
+            byte[] bytes = new byte[length];
+            for (int j = 0; j < length; j++) {
+                bytes[j] = buffer.get(offset + 2 + j);
+            }
+            fields[i] = new String(bytes, UTF8);
+            offset += 2 + length;
+        }
+        double lat = buffer.getFloat(sections[RECORD_LATS] + 4 * id);
+        double lon = buffer.getFloat(sections[RECORD_LONS] + 4 * id);
+        return new Place(id, fields, lat, lon, score);
+    }
+
+    private int getTermLength(int term) {
+        return getInt(TERM_STARTS, term + 1) - getInt(TERM_STARTS, term);
+    }
+
+    private int getInt(int section, int index) {
+        return buffer.getInt(sections[section] + 4 * index);
+    }
+
+}
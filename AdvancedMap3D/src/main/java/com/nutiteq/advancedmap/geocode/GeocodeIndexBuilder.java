@@ -0,0 +1,307 @@
+package com.nutiteq.advancedmap.geocode;
+
+import gnu.trove.list.array.TIntArrayList;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.nutiteq.log.Log;
+
+/**
+ *
+ * Builds offline geocoding index file for GeocodeIndex, from places and addresses extracted from OSM data.
+ *
+ * Places are added one by one or read from a tab separated file with columns:
+ * name (place name, or street and house number), city, county, state, country, latitude, longitude, importance.
+ * Importance is any non-negative number, e.g. based on the OSM place type or population; more important places
+ * are ranked higher for the same query.
+ *
+ */
+public class GeocodeIndexBuilder {
+    private static final int COLUMN_COUNT = GeocodeIndex.FIELD_COUNT + 3;
+    // UTF-8 length of a field is stored as unsigned short, at most 3 bytes per char
+    private static final int MAX_FIELD_LENGTH = 0xffff / 3;
+
+    private static class Entry {
+        final String[] fields;
+        final float lat;
+        final float lon;
+        final double importance;
+
+        Entry(String[] fields, float lat, float lon, double importance) {
+            this.fields = fields;
+            this.lat = lat;
+            this.lon = lon;
+            this.importance = importance;
+        }
+    }
+
+    private static final Comparator<byte[]> BYTE_ORDER = new Comparator<byte[]>() {
+        @Override
+        public int compare(byte[] a, byte[] b) {
+            return GeocodeIndex.compareBytes(a, b);
+        }
+    };
+
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    /**
+     * Add place or address.
+     *
+     * @param name
+     *          place name, or street and house number of an address
+     * @param city
+     *          city, can be empty
+     * @param county
+     *          county, can be empty
+     * @param state
+     *          state, can be empty
+     * @param country
+     *          country, can be empty
+     * @param lat
+     *          latitude in WGS84
+     * @param lon
+     *          longitude in WGS84
+     * @param importance
+     *          ranking weight, larger is more important
+     */
+    public void addPlace(String name, String city, String county, String state, String country, double lat, double lon, double importance) {
+        String[] fields = new String[] { notNull(name), notNull(city), notNull(county), notNull(state), notNull(country) };
+        for (String field : fields) {
+            if (field.length() > MAX_FIELD_LENGTH) {
+                throw new IllegalArgumentException("Too long field: " + field);
+            }
+        }
+        entries.add(new Entry(fields, (float) lat, (float) lon, importance));
+    }
+
+    /**
+     * Add places from tab separated data. Empty lines and lines starting with # are skipped.
+     *
+     * @throws IOException
+     *          if the data can not be read
+     * @throws RuntimeException
+     *          if a line has wrong number of columns or invalid numbers
+     */
+    public void addPlaces(Reader reader) throws IOException {
+        BufferedReader lines = new BufferedReader(reader);
+        String line;
+        int lineNumber = 0;
+        while ((line = lines.readLine()) != null) {
+            lineNumber++;
+            if (line.length() == 0 || line.startsWith("#")) {
+                continue;
+            }
+            String[] columns = line.split("\t", -1);
+            if (columns.length != COLUMN_COUNT) {
+                throw new RuntimeException("Line " + lineNumber + ": expected " + COLUMN_COUNT + " columns, found " + columns.length);
+            }
+            try {
+                addPlace(columns[0], columns[1], columns[2], columns[3], columns[4],
+                        Double.parseDouble(columns[5]), Double.parseDouble(columns[6]), Double.parseDouble(columns[7]));
+            } catch (NumberFormatException e) {
+                throw new RuntimeException("Line " + lineNumber + ": " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Get number of added places.
+     */
+    public int getPlaceCount() {
+        return entries.size();
+    }
+
+    /**
+     * Write index file.
+     *
+     * @throws IOException
+     *          if the file can not be written
+     */
+    public void write(File file) throws IOException {
+        long startTime = System.currentTimeMillis();
+
+        // place id is the rank by importance, stable for equal importance
+        List<Entry> places = new ArrayList<Entry>(entries);
+        Collections.sort(places, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return Double.compare(b.importance, a.importance);
+            }
+        });
+
+        // distinct words of each place, and the dictionary in byte order
+        List<Set<String>> placeWords = new ArrayList<Set<String>>(places.size());
+        Map<String, TIntArrayList> postings = new HashMap<String, TIntArrayList>();
+        for (int id = 0; id < places.size(); id++) {
+            Set<String> words = new LinkedHashSet<String>();
+            for (String field : places.get(id).fields) {
+                words.addAll(GeocodeIndex.tokenize(field));
+            }
+            placeWords.add(words);
+            for (String word : words) {
+                TIntArrayList list = postings.get(word);
+                if (list == null) {
+                    list = new TIntArrayList();
+                    postings.put(word, list);
+                }
+                list.add(id);
+            }
+        }
+        TreeMap<byte[], String> sortedWords = new TreeMap<byte[], String>(BYTE_ORDER);
+        for (String word : postings.keySet()) {
+            sortedWords.put(word.getBytes(GeocodeIndex.UTF8), word);
+        }
+        Map<String, Integer> termIds = new HashMap<String, Integer>();
+        List<String> terms = new ArrayList<String>(sortedWords.values());
+        for (int i = 0; i < terms.size(); i++) {
+            termIds.put(terms.get(i), i);
+        }
+
+        // trigram postings of terms
+        TreeMap<Long, TIntArrayList> trigrams = new TreeMap<Long, TIntArrayList>();
+        for (int term = 0; term < terms.size(); term++) {
+            for (long trigram : GeocodeIndex.getTrigrams(terms.get(term), true)) {
+                TIntArrayList list = trigrams.get(trigram);
+                if (list == null) {
+                    list = new TIntArrayList();
+                    trigrams.put(trigram, list);
+                }
+                // terms are added in order, so a repeated trigram of the term is the last item
+                if (list.isEmpty() || list.get(list.size() - 1) != term) {
+                    list.add(term);
+                }
+            }
+        }
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(body);
+        int[] sections = new int[GeocodeIndex.SECTION_COUNT];
+
+        ByteArrayOutputStream strings = new ByteArrayOutputStream();
+        DataOutputStream stringsOut = new DataOutputStream(strings);
+        sections[GeocodeIndex.RECORD_STRING_STARTS] = GeocodeIndex.HEADER_SIZE + out.size();
+        for (Entry place : places) {
+            out.writeInt(strings.size());
+            for (String field : place.fields) {
+                byte[] bytes = field.getBytes(GeocodeIndex.UTF8);
+                stringsOut.writeShort(bytes.length);
+                stringsOut.write(bytes);
+            }
+        }
+        out.writeInt(strings.size());
+        sections[GeocodeIndex.RECORD_STRINGS] = GeocodeIndex.HEADER_SIZE + out.size();
+        strings.writeTo(out);
+        sections[GeocodeIndex.RECORD_LATS] = GeocodeIndex.HEADER_SIZE + out.size();
+        for (Entry place : places) {
+            out.writeFloat(place.lat);
+        }
+        sections[GeocodeIndex.RECORD_LONS] = GeocodeIndex.HEADER_SIZE + out.size();
+        for (Entry place : places) {
+            out.writeFloat(place.lon);
+        }
+
+        // importance is scaled logarithmically to 0..1, as it can be e.g. population
+        sections[GeocodeIndex.RECORD_IMPORTANCES] = GeocodeIndex.HEADER_SIZE + out.size();
+        double maxImportance = places.isEmpty() ? 0 : Math.max(places.get(0).importance, 0);
+        for (Entry place : places) {
+            out.writeFloat(maxImportance > 0 ? (float) (Math.log1p(Math.max(place.importance, 0)) / Math.log1p(maxImportance)) : 0);
+        }
+
+        sections[GeocodeIndex.RECORD_TERM_STARTS] = GeocodeIndex.HEADER_SIZE + out.size();
+        int termStart = 0;
+        for (Set<String> words : placeWords) {
+            out.writeInt(termStart);
+            termStart += words.size();
+        }
+        out.writeInt(termStart);
+        sections[GeocodeIndex.RECORD_TERMS] = GeocodeIndex.HEADER_SIZE + out.size();
+        for (Set<String> words : placeWords) {
+            for (String word : words) {
+                out.writeInt(termIds.get(word));
+            }
+        }
+
+        sections[GeocodeIndex.TERM_STARTS] = GeocodeIndex.HEADER_SIZE + out.size();
+        int byteStart = 0;
+        for (byte[] bytes : sortedWords.keySet()) {
+            out.writeInt(byteStart);
+            byteStart += bytes.length;
+        }
+        out.writeInt(byteStart);
+        sections[GeocodeIndex.TERM_BYTES] = GeocodeIndex.HEADER_SIZE + out.size();
+        for (byte[] bytes : sortedWords.keySet()) {
+            out.write(bytes);
+        }
+
+        sections[GeocodeIndex.POSTING_STARTS] = GeocodeIndex.HEADER_SIZE + out.size();
+        int postingStart = 0;
+        for (String term : terms) {
+            out.writeInt(postingStart);
+            postingStart += postings.get(term).size();
+        }
+        out.writeInt(postingStart);
+        sections[GeocodeIndex.POSTINGS] = GeocodeIndex.HEADER_SIZE + out.size();
+        for (String term : terms) {
+            TIntArrayList list = postings.get(term);
+            for (int i = 0; i < list.size(); i++) {
+                out.writeInt(list.get(i));
+            }
+        }
+
+        sections[GeocodeIndex.TRIGRAM_KEYS] = GeocodeIndex.HEADER_SIZE + out.size();
+        for (long trigram : trigrams.keySet()) {
+            out.writeLong(trigram);
+        }
+        sections[GeocodeIndex.TRIGRAM_STARTS] = GeocodeIndex.HEADER_SIZE + out.size();
+        int trigramStart = 0;
+        for (TIntArrayList list : trigrams.values()) {
+            out.writeInt(trigramStart);
+            trigramStart += list.size();
+        }
+        out.writeInt(trigramStart);
+        sections[GeocodeIndex.TRIGRAM_TERMS] = GeocodeIndex.HEADER_SIZE + out.size();
+        for (TIntArrayList list : trigrams.values()) {
+            for (int i = 0; i < list.size(); i++) {
+                out.writeInt(list.get(i));
+            }
+        }
+        out.flush();
+
+        DataOutputStream fileOut = new DataOutputStream(new FileOutputStream(file));
+        try {
+            fileOut.writeInt(GeocodeIndex.MAGIC);
+            fileOut.writeInt(GeocodeIndex.VERSION);
+            fileOut.writeInt(places.size());
+            fileOut.writeInt(terms.size());
+            fileOut.writeInt(trigrams.size());
+            for (int section : sections) {
+                fileOut.writeInt(section);
+            }
+            body.writeTo(fileOut);
+        } finally {
+            fileOut.close();
+        }
+        Log.debug("GeocodeIndexBuilder: " + places.size() + " places, " + terms.size() + " words, " + trigrams.size()
+                + " trigrams, " + file.length() / 1024 + " KB in " + (System.currentTimeMillis() - startTime) + " ms");
+    }
+
+    private static String notNull(String text) {
+        return text == null ? "" : text.trim();
+    }
+
+}
@@ -0,0 +1,101 @@
+package com.nutiteq.advancedmap.geocode;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+
+import android.os.AsyncTask;
+
+import com.nutiteq.log.Log;
+import com.nutiteq.services.geocode.SearchQueryResults;
+
+/**
+ *
+ * Offline replacement of MapQuestGeocoder, searches a GeocodeIndex file on the device.
+ *
+ * Results are delivered to SearchQueryResults as a JSONArray of MapQuest location objects,
+ * so the same result handling code works with both geocoders.
+ * Index is memory-mapped once per file and shared, so only the first use pays for opening it.
+ *
+ */
+public class OfflineGeocoder {
+    private static final int DEFAULT_MAX_RESULTS = 20;
+
+    private static final Map<String, OfflineGeocoder> geocoders = new HashMap<String, OfflineGeocoder>();
+
+    private final GeocodeIndex index;
+
+    /**
+     * Get shared geocoder for an index file.
+     *
+     * @param indexFile
+     *          index written by GeocodeIndexBuilder
+     * @return geocoder, same instance for the same file
+     * @throws IOException
+     *          if the index can not be opened
+     */
+    public static OfflineGeocoder getInstance(File indexFile) throws IOException {
+        synchronized (geocoders) {
+            OfflineGeocoder geocoder = geocoders.get(indexFile.getAbsolutePath());
+            if (geocoder == null) {
+                long startTime = System.currentTimeMillis();
+                geocoder = new OfflineGeocoder(new GeocodeIndex(indexFile));
+                geocoders.put(indexFile.getAbsolutePath(), geocoder);
+                Log.debug("OfflineGeocoder: opened " + indexFile + " with " + geocoder.index.getPlaceCount() + " places in "
+                        + (System.currentTimeMillis() - startTime) + " ms");
+            }
+            return geocoder;
+        }
+    }
+
+    private OfflineGeocoder(GeocodeIndex index) {
+        this.index = index;
+    }
+
+    public GeocodeIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Search in the calling thread.
+     *
+     * @return MapQuest location objects, best match first
+     */
+    public JSONArray search(String query, int maxResults) {
+        long startTime = System.nanoTime();
+        List<GeocodeIndex.Place> places = index.search(query, maxResults);
+        JSONArray locations = new JSONArray();
+        for (GeocodeIndex.Place place : places) {
+            locations.put(place.toJSON());
+        }
+        Log.debug("OfflineGeocoder: '" + query + "' " + places.size() + " results in " + (System.nanoTime() - startTime) / 1000 + " us");
+        return locations;
+    }
+
+    /**
+     * Search in background, same contract as MapQuestGeocoder.geocode().
+     *
+     * @param query
+     *          free form query
+     * @param results
+     *          receives the results in the UI thread
+     */
+    public void geocode(final String query, final SearchQueryResults results) {
+        new AsyncTask<Void, Void, JSONArray>() {
+            @Override
+            protected JSONArray doInBackground(Void... params) {
+                return search(query, DEFAULT_MAX_RESULTS);
+            }
+
+            @Override
+            protected void onPostExecute(JSONArray locations) {
+                results.searchResults(locations);
+            }
+        }.execute();
+    }
+
+}
@@ -0,0 +1,376 @@
+package com.nutiteq.advancedmap.geocode;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.nutiteq.log.Log;
+
+/**
+ *
+ * As-you-type search suggestions on top of a geocoder.
+ *
+ * Result sets are cached by normalized query. For prefix search sources, where every query word must be a prefix
+ * of a word of the result, results of a longer query are a subset of the results of its prefix ("talli" of "tall"):
+ * a new query is first narrowed locally from the longest cached prefix, and if the cached set was complete (less
+ * results than the geocoder limit) or enough results remain, the geocoder is not called at all. An empty narrowed
+ * set always goes to the geocoder, which may still find the place, e.g. with typo tolerance. Results of other
+ * sources are only reused for the same query.
+ * Otherwise the call is debounced: it waits for a short pause in typing and is dropped if a newer query arrived
+ * meanwhile, so only the last of fast keystrokes reaches the geocoder. Results are ordered by distance from the
+ * map focus point.
+ *
+ * Methods are thread-safe and block, they are meant to be called from suggestion provider threads.
+ *
+ */
+public class SuggestionEngine {
+    private static final long DEFAULT_DEBOUNCE_TIME = 250; // ms
+    private static final int DEFAULT_MIN_LOCAL_RESULTS = 5;
+    private static final int MAX_CACHED_QUERIES = 64;
+    private static final double METERS_PER_DEGREE = 111320;
+
+    /**
+     * Geocoder behind the suggestions.
+     */
+    public interface Source {
+
+        /**
+         * Search places.
+         *
+         * @param query
+         *          free form query
+         * @param maxResults
+         *          maximum number of results
+         * @return MapQuest location objects
+         * @throws Exception
+         *          if the search fails, e.g. network is not available
+         */
+        JSONArray search(String query, int maxResults) throws Exception;
+
+        /**
+         * Check if the source is a prefix search: every query word matches a word of each result as a prefix,
+         * and results are the best matches of all places, so results of a longer query can be narrowed from
+         * the results of its prefix.
+         */
+        boolean isPrefixSearch();
+    }
+
+    /**
+     * Suggested place.
+     */
+    public static class Suggestion {
+        private final JSONObject location;
+        private final String[] words;
+        private final String text1;
+        private final String text2;
+        private final double lat;
+        private final double lon;
+
+        Suggestion(JSONObject location) throws JSONException {
+            this.location = location;
+            String street = location.optString("street");
+            String city = location.optString("adminArea5");
+            String county = location.optString("adminArea4");
+            String state = location.optString("adminArea3");
+            String country = location.optString("adminArea1");
+            this.text1 = (street + " " + city).trim();
+            this.text2 = (county + " " + state + " " + country).trim();
+            List<String> wordList = GeocodeIndex.tokenize(street + " " + city + " " + county + " " + state + " " + country);
+            this.words = wordList.toArray(new String[wordList.size()]);
+            JSONObject latLng = location.getJSONObject("latLng");
+            this.lat = latLng.getDouble("lat");
+            this.lon = latLng.getDouble("lng");
+        }
+
+        /**
+         * Get location object, as returned by the geocoder.
+         */
+        public JSONObject getLocation() {
+            return location;
+        }
+
+        /**
+         * Get first line of the suggestion: street or name, and city.
+         */
+        public String getText1() {
+            return text1;
+        }
+
+        /**
+         * Get second line of the suggestion: county, state and country.
+         */
+        public String getText2() {
+            return text2;
+        }
+
+        public double getLat() {
+            return lat;
+        }
+
+        public double getLon() {
+            return lon;
+        }
+
+        boolean matches(List<String> queryWords) {
+            for (String queryWord : queryWords) {
+                boolean found = false;
+                for (String word : words) {
+                    if (word.startsWith(queryWord)) {
+                        found = true;
+                        break;
+                    }
+                }
+                if (!found) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static class ResultSet {
+        final List<Suggestion> suggestions;
+        final boolean complete;
+
+        ResultSet(List<Suggestion> suggestions, boolean complete) {
+            this.suggestions = suggestions;
+            this.complete = complete;
+        }
+    }
+
+    private final Source source;
+    private final int maxResults;
+    private final long debounceTime;
+    private final int minLocalResults;
+    private final Map<String, ResultSet> cache;
+    private final AtomicLong generation = new AtomicLong();
+
+    private volatile double focusLat = Double.NaN;
+    private volatile double focusLon = Double.NaN;
+
+    private long queryCount;
+    private long sourceCallCount;
+    private long localAnswerCount;
+    private long supersededCount;
+
+    /**
+     * Default constructor, with 250 ms debounce time.
+     *
+     * @param source
+     *          geocoder
+     * @param maxResults
+     *          number of results requested from the geocoder
+     */
+    public SuggestionEngine(Source source, int maxResults) {
+        this(source, maxResults, DEFAULT_DEBOUNCE_TIME, DEFAULT_MIN_LOCAL_RESULTS);
+    }
+
+    /**
+     * Constructor with custom timing.
+     *
+     * @param source
+     *          geocoder
+     * @param maxResults
+     *          number of results requested from the geocoder
+     * @param debounceTime
+     *          pause in typing before the geocoder is called, in milliseconds
+     * @param minLocalResults
+     *          minimum number of results narrowed from an incomplete cached set, to skip the geocoder call
+     */
+    @SuppressWarnings("serial")
+    public SuggestionEngine(Source source, int maxResults, long debounceTime, int minLocalResults) {
+        this.source = source;
+        this.maxResults = maxResults;
+        this.debounceTime = debounceTime;
+        this.minLocalResults = minLocalResults;
+        this.cache = new LinkedHashMap<String, ResultSet>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ResultSet> eldest) {
+                return size() > MAX_CACHED_QUERIES;
+            }
+        };
+    }
+
+    /**
+     * Set point for ordering suggestions, usually the map focus point.
+     */
+    public void setFocusPoint(double lat, double lon) {
+        focusLat = lat;
+        focusLon = lon;
+    }
+
+    /**
+     * Get suggestions for a query being typed. Blocks for the debounce time and the geocoder call,
+     * if the query can not be answered from the cache.
+     *
+     * @return suggestions ordered by distance from the focus point, empty if the query was superseded
+     *          before any results were available
+     */
+    public List<Suggestion> suggest(String query) {
+        long queryGeneration = generation.incrementAndGet();
+        long startTime = System.nanoTime();
+        List<String> words = GeocodeIndex.tokenize(query);
+        if (words.isEmpty()) {
+            return new ArrayList<Suggestion>();
+        }
+        String key = join(words);
+
+        List<Suggestion> localSuggestions;
+        synchronized (this) {
+            queryCount++;
+            ResultSet cached = cache.get(key);
+            ResultSet narrowed = null;
+            if (cached == null && source.isPrefixSearch()) {
+                narrowed = narrow(key, words);
+                // empty set is never trusted, the geocoder may still find the place
+                if (narrowed != null && !narrowed.suggestions.isEmpty()
+                        && (narrowed.complete || narrowed.suggestions.size() >= minLocalResults)) {
+                    // needed again when typing goes on
+                    cache.put(key, narrowed);
+                    cached = narrowed;
+                }
+            }
+            if (cached != null) {
+                localAnswerCount++;
+                Log.debug("SuggestionEngine: '" + key + "' from cache in " + (System.nanoTime() - startTime) / 1000 + " us");
+                return sortByDistance(cached.suggestions);
+            }
+            localSuggestions = narrowed != null ? narrowed.suggestions : new ArrayList<Suggestion>();
+        }
+
+        // wait for a pause in typing, newer query supersedes this one
+        try {
+            Thread.sleep(debounceTime);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return sortByDistance(localSuggestions);
+        }
+        if (generation.get() != queryGeneration) {
+            synchronized (this) {
+                supersededCount++;
+            }
+            return sortByDistance(localSuggestions);
+        }
+
+        List<Suggestion> suggestions = new ArrayList<Suggestion>();
+        try {
+            synchronized (this) {
+                sourceCallCount++;
+            }
+            JSONArray locations = source.search(query, maxResults);
+            for (int i = 0; locations != null && i < locations.length(); i++) {
+                try {
+                    suggestions.add(new Suggestion(locations.getJSONObject(i)));
+                } catch (JSONException e) {
+                    Log.error("SuggestionEngine: invalid location " + e.getMessage());
+                }
+            }
+        } catch (Exception e) {
+            Log.error("SuggestionEngine: search failed: " + e.getMessage());
+            return sortByDistance(localSuggestions);
+        }
+        synchronized (this) {
+            cache.put(key, new ResultSet(suggestions, source.isPrefixSearch() && suggestions.size() < maxResults));
+        }
+        Log.debug("SuggestionEngine: '" + key + "' from geocoder in " + (System.nanoTime() - startTime) / 1000000 + " ms");
+        return sortByDistance(suggestions);
+    }
+
+    /**
+     * Remove cached results, e.g. when the geocoder data changes.
+     */
+    public synchronized void clearCache() {
+        cache.clear();
+    }
+
+    /**
+     * Get number of suggest() calls.
+     */
+    public synchronized long getQueryCount() {
+        return queryCount;
+    }
+
+    /**
+     * Get number of geocoder calls.
+     */
+    public synchronized long getSourceCallCount() {
+        return sourceCallCount;
+    }
+
+    /**
+     * Get number of queries answered from cached results.
+     */
+    public synchronized long getLocalAnswerCount() {
+        return localAnswerCount;
+    }
+
+    /**
+     * Get number of queries dropped because a newer query arrived during the debounce time.
+     */
+    public synchronized long getSupersededCount() {
+        return supersededCount;
+    }
+
+    /**
+     * Narrow results of the query from the longest cached prefix. Only valid for prefix search sources.
+     */
+    private ResultSet narrow(String key, List<String> words) {
+        for (int length = key.length() - 1; length > 0; length--) {
+            ResultSet prefixResults = cache.get(key.substring(0, length));
+            if (prefixResults == null) {
+                continue;
+            }
+            List<Suggestion> narrowed = new ArrayList<Suggestion>();
+            for (Suggestion suggestion : prefixResults.suggestions) {
+                if (suggestion.matches(words)) {
+                    narrowed.add(suggestion);
+                }
+            }
+            return new ResultSet(narrowed, prefixResults.complete);
+        }
+        return null;
+    }
+
+    private List<Suggestion> sortByDistance(List<Suggestion> suggestions) {
+        List<Suggestion> sorted = new ArrayList<Suggestion>(suggestions);
+        final double lat = focusLat;
+        final double lon = focusLon;
+        if (Double.isNaN(lat) || Double.isNaN(lon)) {
+            return sorted;
+        }
+        final double lonScale = Math.cos(Math.toRadians(lat));
+        Collections.sort(sorted, new Comparator<Suggestion>() {
+            @Override
+            public int compare(Suggestion a, Suggestion b) {
+                return Double.compare(getDistance(a), getDistance(b));
+            }
+
+            private double getDistance(Suggestion suggestion) {
+                double dx = (suggestion.lon - lon) * lonScale;
+                double dy = suggestion.lat - lat;
+                return Math.sqrt(dx * dx + dy * dy) * METERS_PER_DEGREE;
+            }
+        });
+        return sorted;
+    }
+
+    private static String join(List<String> words) {
+        StringBuilder builder = new StringBuilder();
+        for (String word : words) {
+            if (builder.length() > 0) {
+                builder.append(' ');
+            }
+            builder.append(word);
+        }
+        return builder.toString();
+    }
+
+}
@@ -0,0 +1,293 @@
+package com.nutiteq.advancedmap.graphhopper;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.graphhopper.GHRequest;
+import com.graphhopper.GHResponse;
+import com.graphhopper.GraphHopper;
+import com.graphhopper.routing.util.EdgeFilter;
+import com.graphhopper.storage.Graph;
+import com.graphhopper.storage.LevelGraph;
+import com.graphhopper.storage.index.LocationIDResult;
+import com.nutiteq.log.Log;
+
+/**
+ *
+ * Process-wide GraphHopper routing service.
+ *
+ * Graph is memory-mapped once per graph folder and kept for the lifetime of the process, so activities
+ * started later (or recreated after rotation) can route immediately. Contraction hierarchies are used
+ * when the graph has shortcuts, otherwise bidirectional A*.
+ *
+ * Snapped graph nodes of recent locations and routes between recent node pairs are kept in LRU caches.
+ * Moving only the route end point snaps only the new point, and repeated routes need no search at all.
+ *
+ */
+public class GraphHopperService {
+    private static final int DEFAULT_MAX_CACHED_ROUTES = 32;
+    private static final int DEFAULT_MAX_CACHED_LOCATIONS = 128;
+    // snapped locations are cached with 1e-6 degree (about 10 cm) precision
+    private static final double LOCATION_PRECISION = 1e6;
+
+    private static final Map<String, GraphHopperService> services = new HashMap<String, GraphHopperService>();
+
+    private final String graphLocation;
+    private GraphHopper hopper;
+    private boolean contractionHierarchies;
+    private final Map<Long, GHResponse> routes;
+    private final Map<Long, Integer> snappedNodes;
+    private final Map<String, RoutingGraph> routingGraphs = new HashMap<String, RoutingGraph>();
+    private int[][] nodeCoordinates;
+
+    private long loadTime = -1;
+    private long firstRouteTime = -1;
+    private long warmRouteCount;
+    private long warmRouteTime;
+    private long cacheHits;
+
+    /**
+     * Get shared service for a graph. Graph is not loaded yet, call load() from a background thread.
+     *
+     * @param graphLocation
+     *          GraphHopper graph folder
+     * @return service, same instance for the same folder
+     */
+    public static GraphHopperService getInstance(String graphLocation) {
+        synchronized (services) {
+            GraphHopperService service = services.get(graphLocation);
+            if (service == null) {
+                service = new GraphHopperService(graphLocation);
+                services.put(graphLocation, service);
+            }
+            return service;
+        }
+    }
+
+    /**
+     * Get any shared service with a loaded graph, for features which can use offline routing when it is available.
+     *
+     * @return loaded service, null if no graph is loaded
+     */
+    public static GraphHopperService getLoadedInstance() {
+        synchronized (services) {
+            for (GraphHopperService service : services.values()) {
+                if (service.isLoaded()) {
+                    return service;
+                }
+            }
+            return null;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private GraphHopperService(String graphLocation) {
+        this.graphLocation = graphLocation;
+        this.routes = new LinkedHashMap<Long, GHResponse>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, GHResponse> eldest) {
+                return size() > DEFAULT_MAX_CACHED_ROUTES;
+            }
+        };
+        this.snappedNodes = new LinkedHashMap<Long, Integer>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Integer> eldest) {
+                return size() > DEFAULT_MAX_CACHED_LOCATIONS;
+            }
+        };
+    }
+
+    /**
+     * Load graph, if not loaded yet. Blocks until the graph is loaded, also when loading was started by another thread.
+     * Must not be called from the UI thread.
+     *
+     * @throws RuntimeException
+     *          if the graph can not be loaded
+     */
+    public synchronized void load() {
+        if (hopper != null) {
+            return;
+        }
+        long startTime = System.currentTimeMillis();
+        GraphHopper tmpHopp = new GraphHopper().forMobile();
+        // shortcuts prepared with the fastest weighting
+        tmpHopp.setCHShortcuts(true, true);
+        if (!tmpHopp.load(graphLocation)) {
+            throw new RuntimeException("Could not load graph from " + graphLocation);
+        }
+        contractionHierarchies = tmpHopp.getGraph() instanceof LevelGraph;
+        hopper = tmpHopp;
+        loadTime = System.currentTimeMillis() - startTime;
+        Log.debug("GraphHopperService: loaded graph with " + hopper.getGraph().getNodes() + " nodes in " + loadTime + " ms, "
+                + (contractionHierarchies ? "using contraction hierarchies" : "no shortcuts, using bidirectional A*"));
+    }
+
+    public synchronized boolean isLoaded() {
+        return hopper != null;
+    }
+
+    public String getGraphLocation() {
+        return graphLocation;
+    }
+
+    /**
+     * Get loaded GraphHopper instance. Calls to it must be synchronized on this service.
+     */
+    public synchronized GraphHopper getGraphHopper() {
+        return hopper;
+    }
+
+    public synchronized boolean hasContractionHierarchies() {
+        return contractionHierarchies;
+    }
+
+    /**
+     * Get copy of the road network of a vehicle for searches which run without locking the service.
+     * Copy is made on the first call for the vehicle and kept until releaseRoutingGraphs(), node coordinates
+     * are copied once for all vehicles. Must not be called from the UI thread.
+     *
+     * @param vehicle
+     *          vehicle supported by the graph, e.g. EncodingManager.CAR
+     * @throws IllegalStateException
+     *          if the graph is not loaded
+     */
+    synchronized RoutingGraph getRoutingGraph(String vehicle) {
+        if (hopper == null) {
+            throw new IllegalStateException("Graph not loaded");
+        }
+        RoutingGraph routingGraph = routingGraphs.get(vehicle);
+        if (routingGraph == null) {
+            long startTime = System.currentTimeMillis();
+            if (nodeCoordinates == null) {
+                nodeCoordinates = RoutingGraph.copyCoordinates(hopper.getGraph());
+            }
+            routingGraph = new RoutingGraph(hopper.getGraph(), nodeCoordinates, hopper.getEncodingManager().getEncoder(vehicle), contractionHierarchies);
+            routingGraphs.put(vehicle, routingGraph);
+            Log.debug("GraphHopperService: " + vehicle + " routing graph copied in " + (System.currentTimeMillis() - startTime) + " ms");
+        }
+        return routingGraph;
+    }
+
+    /**
+     * Release copies of the road network made for matrix and isochrone calculations. Calculations already running
+     * keep their copy, next calculation makes a new copy. Memory-mapped graph stays loaded.
+     */
+    public synchronized void releaseRoutingGraphs() {
+        routingGraphs.clear();
+        nodeCoordinates = null;
+    }
+
+    /**
+     * Calculate route. Points are snapped to the nearest graph nodes, route is calculated between the nodes.
+     *
+     * @return route, check GHResponse.isFound() and hasErrors()
+     * @throws IllegalStateException
+     *          if the graph is not loaded
+     */
+    public synchronized GHResponse route(double fromLat, double fromLon, double toLat, double toLon) {
+        if (hopper == null) {
+            throw new IllegalStateException("Graph not loaded");
+        }
+        long startTime = System.nanoTime();
+        int fromNode = snap(fromLat, fromLon);
+        int toNode = snap(toLat, toLon);
+        if (fromNode < 0 || toNode < 0) {
+            // let GraphHopper report the error
+            return hopper.route(createRequest(fromLat, fromLon, toLat, toLon));
+        }
+
+        long routeKey = ((long) fromNode << 32) | (toNode & 0xffffffffL);
+        GHResponse response = routes.get(routeKey);
+        if (response != null) {
+            cacheHits++;
+            Log.debug("GraphHopperService: cached route " + fromNode + " -> " + toNode);
+            return response;
+        }
+
+        // route from the snapped nodes, so the response is valid for all points snapped to them
+        Graph graph = hopper.getGraph();
+        response = hopper.route(createRequest(graph.getLatitude(fromNode), graph.getLongitude(fromNode),
+                graph.getLatitude(toNode), graph.getLongitude(toNode)));
+        if (!response.hasErrors()) {
+            routes.put(routeKey, response);
+        }
+        updateStats((System.nanoTime() - startTime) / 1000000);
+        return response;
+    }
+
+    /**
+     * Get graph loading time.
+     *
+     * @return time in milliseconds, -1 if not loaded
+     */
+    public synchronized long getLoadTime() {
+        return loadTime;
+    }
+
+    /**
+     * Get time of the first calculated route, which includes warming up the memory-mapped graph.
+     *
+     * @return time in milliseconds, -1 if no route is calculated yet
+     */
+    public synchronized long getFirstRouteTime() {
+        return firstRouteTime;
+    }
+
+    /**
+     * Get average time of calculated routes after the first one. Routes from the cache are not counted.
+     *
+     * @return time in milliseconds, -1 if there are no such routes yet
+     */
+    public synchronized long getWarmRouteTime() {
+        return warmRouteCount > 0 ? warmRouteTime / warmRouteCount : -1;
+    }
+
+    public synchronized long getCacheHits() {
+        return cacheHits;
+    }
+
+    /**
+     * Remove cached routes and snapped locations.
+     */
+    public synchronized void clearCache() {
+        routes.clear();
+        snappedNodes.clear();
+    }
+
+    /**
+     * Find graph node nearest to the location, using the location cache.
+     *
+     * @return node index, -1 if no node is found
+     */
+    synchronized int snap(double lat, double lon) {
+        long locationKey = (Math.round(lat * LOCATION_PRECISION) << 32) ^ Math.round(lon * LOCATION_PRECISION);
+        Integer node = snappedNodes.get(locationKey);
+        if (node == null) {
+            LocationIDResult result = hopper.getIndex().findClosest(lat, lon, EdgeFilter.ALL_EDGES);
+            node = result != null && result.isValid() ? result.getClosestNode() : -1;
+            snappedNodes.put(locationKey, node);
+        }
+        return node;
+    }
+
+    private GHRequest createRequest(double fromLat, double fromLon, double toLat, double toLon) {
+        // with contraction hierarchies GraphHopper runs "dijkstrabi" on the shortcut graph
+        return new GHRequest(fromLat, fromLon, toLat, toLon)
+                .setAlgorithm(contractionHierarchies ? "dijkstrabi" : "astarbi")
+                .putHint("instructions", false)
+                .putHint("douglas.minprecision", 1);
+    }
+
+    private void updateStats(long time) {
+        if (firstRouteTime < 0) {
+            firstRouteTime = time;
+            Log.debug("GraphHopperService: first route " + time + " ms");
+        } else {
+            warmRouteCount++;
+            warmRouteTime += time;
+            Log.debug("GraphHopperService: route " + time + " ms, average warm route " + getWarmRouteTime() + " ms");
+        }
+    }
+
+}
@@ -0,0 +1,313 @@
+package com.nutiteq.advancedmap.graphhopper;
+
+import gnu.trove.map.hash.TIntIntHashMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.graphhopper.routing.util.EncodingManager;
+import com.nutiteq.log.Log;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.operation.union.CascadedPolygonUnion;
+import com.vividsolutions.jts.simplify.TopologyPreservingSimplifier;
+
+/**
+ *
+ * Isochrones (areas reachable within a travel time) on the graph of a GraphHopperService.
+ *
+ * Shortest path tree from the origin is expanded lazily, only up to the largest time requested so far, and keeps
+ * arrival times and tree edges of all reached nodes in order of arrival. Requesting a larger time resumes the
+ * same search, a smaller time needs no search at all. Tree is restarted only when the origin snaps to another node.
+ * Isochrone is built from the tree: tree edges reached within the time are drawn to a grid, the cells are merged
+ * to polygons and simplified, which gives a concave hull following the road network. Recent isochrones are cached.
+ *
+ */
+public class IsochroneEngine {
+    private static final double DEFAULT_MAX_TIME = 8 * 3600;
+    private static final int GRID_CELLS = 100;
+    private static final double MIN_CELL_SIZE = 50; // meters
+    private static final double METERS_PER_DEGREE = 111320;
+    private static final int MAX_CACHED_ISOCHRONES = 16;
+
+    private final GraphHopperService service;
+    private final String vehicle;
+    private final double maxTime;
+    private RoutingGraph graph;
+    private ShortestPathSearch search;
+    private final GeometryFactory geometryFactory = new GeometryFactory();
+    private final Map<Double, Geometry> isochrones;
+
+    private int originNode = -1;
+    private double expandedTime;
+    private int treeSize;
+    private int[] treeNodes = new int[1024];
+    private int[] treeParents = new int[1024];
+    private double[] treeTimes = new double[1024];
+    private final TIntIntHashMap treeIndices = new TIntIntHashMap();
+
+    /**
+     * Default constructor, uses car profile and 8 hour maximum time. Tree is expanded only up to the requested times.
+     *
+     * @param service
+     *          loaded routing service
+     */
+    public IsochroneEngine(GraphHopperService service) {
+        this(service, EncodingManager.CAR, DEFAULT_MAX_TIME);
+    }
+
+    /**
+     * Constructor with custom vehicle and maximum time.
+     *
+     * @param service
+     *          loaded routing service
+     * @param vehicle
+     *          vehicle supported by the graph, e.g. EncodingManager.CAR
+     * @param maxTime
+     *          largest isochrone time in seconds, larger requested times are limited to it
+     */
+    @SuppressWarnings("serial")
+    public IsochroneEngine(GraphHopperService service, String vehicle, double maxTime) {
+        if (!service.isLoaded()) {
+            throw new IllegalStateException("Graph not loaded");
+        }
+        boolean supported;
+        synchronized (service) {
+            supported = service.getGraphHopper().getEncodingManager().supports(vehicle);
+        }
+        if (!supported) {
+            throw new IllegalArgumentException("Vehicle " + vehicle + " not supported by the graph");
+        }
+        this.service = service;
+        this.vehicle = vehicle;
+        this.maxTime = maxTime;
+        this.isochrones = new LinkedHashMap<Double, Geometry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Double, Geometry> eldest) {
+                return size() > MAX_CACHED_ISOCHRONES;
+            }
+        };
+    }
+
+    /**
+     * Set isochrone origin. Shortest path tree is restarted if the origin snaps to a different node than before,
+     * it is expanded by the following requests. Must not be called from the UI thread, the first call copies
+     * the routing graph.
+     *
+     * @return true if the tree was restarted
+     */
+    public synchronized boolean setOrigin(double lat, double lon) {
+        int node = service.snap(lat, lon);
+        if (node == originNode) {
+            return false;
+        }
+        originNode = node;
+        isochrones.clear();
+        treeIndices.clear();
+        treeSize = 0;
+        expandedTime = 0;
+        if (node < 0) {
+            Log.debug("IsochroneEngine: origin " + lat + "," + lon + " not on the graph");
+            return true;
+        }
+        if (search == null) {
+            graph = service.getRoutingGraph(vehicle);
+            search = new ShortestPathSearch(graph);
+        }
+        search.start(node);
+        return true;
+    }
+
+    /**
+     * Check if setOrigin() and getIsochrone() with the same values would be answered without calculations.
+     */
+    public synchronized boolean isCached(double lat, double lon, double time) {
+        return service.snap(lat, lon) == originNode && isochrones.containsKey(time);
+    }
+
+    /**
+     * Get travel time from the origin to a graph node. Tree is expanded until the node is reached.
+     *
+     * @return time in seconds, Double.POSITIVE_INFINITY if the node is not reachable within the maximum time
+     */
+    public synchronized double getArrivalTime(int node) {
+        if (originNode < 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        while (!treeIndices.containsKey(node) && expandNext(maxTime)) {
+            // tree order is kept, later expansions continue from here
+        }
+        return treeIndices.containsKey(node) ? treeTimes[treeIndices.get(node)] : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Get number of graph nodes reachable within the time.
+     */
+    public synchronized int getReachableNodeCount(double time) {
+        expand(time);
+        return countReachable(time);
+    }
+
+    /**
+     * Get area reachable from the origin within the time.
+     *
+     * @param time
+     *          travel time in seconds, up to the maximum time of the engine
+     * @return polygon or multipolygon in WGS84 coordinates, null if the origin is not set or not on the graph
+     */
+    public synchronized Geometry getIsochrone(double time) {
+        if (originNode < 0) {
+            return null;
+        }
+        Geometry isochrone = isochrones.get(time);
+        if (isochrone == null) {
+            long startTime = System.currentTimeMillis();
+            expand(time);
+            isochrone = buildIsochrone(countReachable(time));
+            isochrones.put(time, isochrone);
+            Log.debug("IsochroneEngine: isochrone of " + time + " s with " + isochrone.getNumPoints() + " points in "
+                    + (System.currentTimeMillis() - startTime) + " ms");
+        }
+        return isochrone;
+    }
+
+    private void expand(double time) {
+        time = Math.min(time, maxTime);
+        if (originNode < 0 || time <= expandedTime) {
+            return;
+        }
+        long startTime = System.currentTimeMillis();
+        int oldSize = treeSize;
+        while (expandNext(time)) {
+            // nodes are added to the tree
+        }
+        expandedTime = time;
+        Log.debug("IsochroneEngine: tree expanded to " + time + " s, " + (treeSize - oldSize) + " new nodes in "
+                + (System.currentTimeMillis() - startTime) + " ms");
+    }
+
+    private boolean expandNext(double time) {
+        int settled = search.next(time);
+        if (settled < 0) {
+            return false;
+        }
+        if (treeSize == treeNodes.length) {
+            treeNodes = Arrays.copyOf(treeNodes, treeSize * 2);
+            treeParents = Arrays.copyOf(treeParents, treeSize * 2);
+            treeTimes = Arrays.copyOf(treeTimes, treeSize * 2);
+        }
+        int parent = search.getParent(settled);
+        // parent is always settled before the node
+        treeParents[treeSize] = parent >= 0 ? treeIndices.get(parent) : -1;
+        treeNodes[treeSize] = settled;
+        treeTimes[treeSize] = search.getTime(settled);
+        treeIndices.put(settled, treeSize);
+        treeSize++;
+        return true;
+    }
+
+    private int countReachable(double time) {
+        // tree nodes are in order of arrival time
+        int low = 0;
+        int high = treeSize;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (treeTimes[mid] <= time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private Geometry buildIsochrone(int nodeCount) {
+        double[] lons = new double[nodeCount];
+        double[] lats = new double[nodeCount];
+        double minLon = Double.MAX_VALUE, minLat = Double.MAX_VALUE, maxLon = -Double.MAX_VALUE, maxLat = -Double.MAX_VALUE;
+        for (int i = 0; i < nodeCount; i++) {
+            lons[i] = graph.getLongitude(treeNodes[i]);
+            lats[i] = graph.getLatitude(treeNodes[i]);
+            minLon = Math.min(minLon, lons[i]);
+            maxLon = Math.max(maxLon, lons[i]);
+            minLat = Math.min(minLat, lats[i]);
+            maxLat = Math.max(maxLat, lats[i]);
+        }
+
+        // grid in degrees, with square cells in meters and a free border for dilation
+        double lonScale = Math.cos(Math.toRadians((minLat + maxLat) / 2));
+        double cellSize = Math.max(Math.max((maxLon - minLon) * lonScale, maxLat - minLat) / GRID_CELLS, MIN_CELL_SIZE / METERS_PER_DEGREE);
+        double cellLat = cellSize;
+        double cellLon = cellSize / lonScale;
+        double originLon = minLon - 2 * cellLon;
+        double originLat = minLat - 2 * cellLat;
+        int columns = (int) ((maxLon - minLon) / cellLon) + 5;
+        int rows = (int) ((maxLat - minLat) / cellLat) + 5;
+
+        boolean[] cells = new boolean[rows * columns];
+        for (int i = 0; i < nodeCount; i++) {
+            int parent = treeParents[i] >= 0 ? treeParents[i] : i;
+            double fromX = (lons[parent] - originLon) / cellLon;
+            double fromY = (lats[parent] - originLat) / cellLat;
+            double toX = (lons[i] - originLon) / cellLon;
+            double toY = (lats[i] - originLat) / cellLat;
+            // sample the tree edge with half cell steps
+            int steps = (int) Math.ceil(2 * Math.max(Math.abs(toX - fromX), Math.abs(toY - fromY))) + 1;
+            for (int step = 0; step <= steps; step++) {
+                double t = (double) step / steps;
+                int x = (int) (fromX + (toX - fromX) * t);
+                int y = (int) (fromY + (toY - fromY) * t);
+                cells[y * columns + x] = true;
+            }
+        }
+        boolean[] dilatedCells = dilate(cells, rows, columns);
+
+        // cells are merged to a rectangle per run in a row before the union
+        List<Geometry> rectangles = new ArrayList<Geometry>();
+        for (int y = 0; y < rows; y++) {
+            int x = 0;
+            while (x < columns) {
+                if (!dilatedCells[y * columns + x]) {
+                    x++;
+                    continue;
+                }
+                int runStart = x;
+                while (x < columns && dilatedCells[y * columns + x]) {
+                    x++;
+                }
+                rectangles.add(createRectangle(originLon + runStart * cellLon, originLat + y * cellLat,
+                        originLon + x * cellLon, originLat + (y + 1) * cellLat));
+            }
+        }
+        Geometry union = CascadedPolygonUnion.union(rectangles);
+        return TopologyPreservingSimplifier.simplify(union, cellLat);
+    }
+
+    private Geometry createRectangle(double minX, double minY, double maxX, double maxY) {
+        return geometryFactory.createPolygon(geometryFactory.createLinearRing(new Coordinate[] {
+                new Coordinate(minX, minY), new Coordinate(maxX, minY), new Coordinate(maxX, maxY),
+                new Coordinate(minX, maxY), new Coordinate(minX, minY) }), null);
+    }
+
+    private static boolean[] dilate(boolean[] cells, int rows, int columns) {
+        boolean[] dilatedCells = new boolean[cells.length];
+        for (int y = 1; y < rows - 1; y++) {
+            for (int x = 1; x < columns - 1; x++) {
+                if (cells[y * columns + x]) {
+                    for (int dy = -1; dy <= 1; dy++) {
+                        int rowOffset = (y + dy) * columns;
+                        dilatedCells[rowOffset + x - 1] = true;
+                        dilatedCells[rowOffset + x] = true;
+                        dilatedCells[rowOffset + x + 1] = true;
+                    }
+                }
+            }
+        }
+        return dilatedCells;
+    }
+
+}
@@ -0,0 +1,117 @@
+package com.nutiteq.advancedmap.graphhopper;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import com.nutiteq.components.Envelope;
+import com.nutiteq.components.MapPos;
+import com.nutiteq.geometry.Geometry;
+import com.nutiteq.geometry.Polygon;
+import com.nutiteq.layers.vector.DriveTimeRegionLayer;
+import com.nutiteq.log.Log;
+import com.nutiteq.projections.Projection;
+import com.nutiteq.style.PolygonStyle;
+import com.nutiteq.style.StyleSet;
+import com.nutiteq.ui.DefaultLabel;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.LineString;
+
+/**
+ *
+ * DriveTimeRegionLayer which calculates drive time regions on device with IsochroneEngine, instead of the online service.
+ *
+ * Moving the location calculates a new shortest path tree only when the location snaps to another graph node,
+ * changing the drive time builds the region from the existing tree, or takes it from the cache.
+ *
+ */
+public class OfflineDriveTimeRegionLayer extends DriveTimeRegionLayer {
+    private final IsochroneEngine engine;
+    private final StyleSet<PolygonStyle> polygonStyleSet;
+    private volatile List<Geometry> regionElements = new LinkedList<Geometry>();
+
+    /**
+     * Default constructor.
+     *
+     * @param projection
+     *          layer projection
+     * @param polygonStyleSet
+     *          style of the drive time region
+     * @param engine
+     *          isochrone engine of the routing graph
+     */
+    public OfflineDriveTimeRegionLayer(Projection projection, StyleSet<PolygonStyle> polygonStyleSet, IsochroneEngine engine) {
+        super(projection, polygonStyleSet);
+        this.engine = engine;
+        this.polygonStyleSet = polygonStyleSet;
+    }
+
+    @Override
+    public void calculateVisibleElements(Envelope envelope, int zoom) {
+        List<Geometry> elements = regionElements;
+        for (Geometry element : elements) {
+            element.setActiveStyle(zoom);
+        }
+        setVisibleElements(elements);
+    }
+
+    /**
+     * Calculate drive time region.
+     *
+     * @param mapPos
+     *          location in WGS84
+     * @param distance
+     *          drive time in hours
+     */
+    @Override
+    protected void loadData(MapPos mapPos, float distance) {
+        if (mapPos == null) {
+            return;
+        }
+        double time = distance * 3600.0;
+        boolean calculating = !engine.isCached(mapPos.y, mapPos.x, time);
+        if (calculating) {
+            setRunningState(true);
+        }
+        try {
+            engine.setOrigin(mapPos.y, mapPos.x);
+            com.vividsolutions.jts.geom.Geometry isochrone = engine.getIsochrone(time);
+            List<Geometry> elements = new ArrayList<Geometry>();
+            if (isochrone != null) {
+                for (int i = 0; i < isochrone.getNumGeometries(); i++) {
+                    elements.add(createPolygon((com.vividsolutions.jts.geom.Polygon) isochrone.getGeometryN(i), distance));
+                }
+            } else {
+                Log.debug("OfflineDriveTimeRegionLayer: location is not on the routing graph");
+            }
+            regionElements = elements;
+        } finally {
+            if (calculating) {
+                setRunningState(false);
+            }
+        }
+        updateVisibleElements();
+    }
+
+    private Polygon createPolygon(com.vividsolutions.jts.geom.Polygon isochrone, float distance) {
+        List<MapPos> vertices = toMapPosList(isochrone.getExteriorRing());
+        List<List<MapPos>> holes = new ArrayList<List<MapPos>>();
+        for (int i = 0; i < isochrone.getNumInteriorRing(); i++) {
+            holes.add(toMapPosList(isochrone.getInteriorRingN(i)));
+        }
+        Polygon polygon = new Polygon(vertices, holes, new DefaultLabel("Drive time", distance * 60 + " min"), polygonStyleSet, null);
+        polygon.attachToLayer(this);
+        return polygon;
+    }
+
+    private List<MapPos> toMapPosList(LineString ring) {
+        Coordinate[] coordinates = ring.getCoordinates();
+        // closing point is not needed
+        List<MapPos> mapPoses = new ArrayList<MapPos>(coordinates.length - 1);
+        for (int i = 0; i < coordinates.length - 1; i++) {
+            mapPoses.add(projection.fromWgs84(coordinates[i].x, coordinates[i].y));
+        }
+        return mapPoses;
+    }
+
+}
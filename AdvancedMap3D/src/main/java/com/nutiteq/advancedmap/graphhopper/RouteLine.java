@@ -0,0 +1,221 @@
+package com.nutiteq.advancedmap.graphhopper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.graphhopper.util.PointList;
+import com.nutiteq.components.MapPos;
+import com.nutiteq.geometry.Line;
+import com.nutiteq.projections.EPSG3857;
+import com.nutiteq.projections.Projection;
+import com.nutiteq.style.LineStyle;
+import com.nutiteq.style.StyleSet;
+import com.nutiteq.ui.Label;
+
+/**
+ *
+ * Line of a long route, with vertices simplified for the current zoom level.
+ *
+ * Route points are projected in bulk to double arrays, then a single Douglas-Peucker pass stores for each point
+ * the largest tolerance which still keeps it. Vertex list of a zoom level contains the points kept with the tolerance
+ * of about one pixel at the zoom, so it is the same as Douglas-Peucker simplification with that tolerance.
+ * Vertex lists are built only for zoom levels which are actually shown and only when the zoom level changes,
+ * MapPos objects are created only for points which are included in some shown vertex list.
+ *
+ */
+public class RouteLine extends Line {
+    private static final int MAX_ZOOM = 24;
+    // EPSG3857 constants, as in EPSG3857.fromWgs84()
+    private static final double EARTH_RADIUS = 6378137.0;
+    private static final double METERS_PER_DEGREE = EARTH_RADIUS * Math.PI / 180;
+    private static final double WORLD_SIZE = 2 * Math.PI * EARTH_RADIUS;
+    private static final double TILE_SIZE = 256;
+
+    private final double[] xs;
+    private final double[] ys;
+    private final double[] tolerances;
+    private final MapPos[] mapPoses;
+    @SuppressWarnings("unchecked")
+    private final List<MapPos>[] zoomVertices = new List[MAX_ZOOM + 1];
+    private volatile int activeZoom = -1;
+
+    /**
+     * Default constructor.
+     *
+     * @param start
+     *          route start in the projection, added before the route points
+     * @param end
+     *          route end in the projection, added after the route points
+     * @param points
+     *          route points in WGS84
+     * @param projection
+     *          projection of the layer
+     * @param label
+     *          label for the line
+     * @param styleSet
+     *          style set for the line
+     * @param userData
+     *          custom user data
+     */
+    public RouteLine(MapPos start, MapPos end, PointList points, Projection projection, Label label,
+            StyleSet<LineStyle> styleSet, Object userData) {
+        super(Arrays.asList(start, end), label, styleSet, userData);
+
+        int count = points.getSize() + 2;
+        xs = new double[count];
+        ys = new double[count];
+        xs[0] = start.x;
+        ys[0] = start.y;
+        project(points, projection, xs, ys, 1);
+        xs[count - 1] = end.x;
+        ys[count - 1] = end.y;
+
+        tolerances = calculateTolerances(xs, ys);
+        mapPoses = new MapPos[count];
+        mapPoses[0] = start;
+        mapPoses[count - 1] = end;
+        activeZoom = 0;
+        setVertexList(getZoomVertices(0));
+    }
+
+    /**
+     * Get number of route points, including start and end.
+     */
+    public int getPointCount() {
+        return xs.length;
+    }
+
+    /**
+     * Get number of vertices shown at a zoom level. Builds the vertex list of the zoom if needed.
+     */
+    public int getVertexCount(int zoom) {
+        return getZoomVertices(Math.max(0, Math.min(zoom, MAX_ZOOM))).size();
+    }
+
+    @Override
+    public void setActiveStyle(int zoom) {
+        // vertex list must be changed before the style, as changing it recalculates the internal state
+        int level = Math.max(0, Math.min(zoom, MAX_ZOOM));
+        if (level != activeZoom) {
+            activeZoom = level;
+            setVertexList(getZoomVertices(level));
+        }
+        super.setActiveStyle(zoom);
+    }
+
+    private List<MapPos> getZoomVertices(int zoom) {
+        synchronized (zoomVertices) {
+            List<MapPos> vertices = zoomVertices[zoom];
+            if (vertices == null) {
+                double tolerance = WORLD_SIZE / (TILE_SIZE * (1 << zoom));
+                int count = 0;
+                for (int i = 0; i < tolerances.length; i++) {
+                    if (tolerances[i] > tolerance) {
+                        count++;
+                    }
+                }
+                vertices = new ArrayList<MapPos>(count);
+                for (int i = 0; i < tolerances.length; i++) {
+                    if (tolerances[i] > tolerance) {
+                        if (mapPoses[i] == null) {
+                            mapPoses[i] = new MapPos(xs[i], ys[i]);
+                        }
+                        vertices.add(mapPoses[i]);
+                    }
+                }
+                zoomVertices[zoom] = vertices;
+            }
+            return vertices;
+        }
+    }
+
+    private static void project(PointList points, Projection projection, double[] xs, double[] ys, int offset) {
+        int count = points.getSize();
+        if (projection instanceof EPSG3857) {
+            for (int i = 0; i < count; i++) {
+                xs[offset + i] = points.getLongitude(i) * METERS_PER_DEGREE;
+                ys[offset + i] = Math.log(Math.max(0, Math.tan(points.getLatitude(i) * Math.PI / 360 + Math.PI / 4))) * EARTH_RADIUS;
+            }
+        } else {
+            for (int i = 0; i < count; i++) {
+                MapPos mapPos = projection.fromWgs84(points.getLongitude(i), points.getLatitude(i));
+                xs[offset + i] = mapPos.x;
+                ys[offset + i] = mapPos.y;
+            }
+        }
+    }
+
+    /**
+     * Douglas-Peucker simplification with all tolerances at once. Point is kept with a tolerance smaller than
+     * its distance from the segment it splits, and smaller than the distances of all points splitting before it.
+     */
+    private static double[] calculateTolerances(double[] xs, double[] ys) {
+        int count = xs.length;
+        double[] tolerances = new double[count];
+        tolerances[0] = Double.POSITIVE_INFINITY;
+        tolerances[count - 1] = Double.POSITIVE_INFINITY;
+
+        // explicit stack of segments, recursion would be too deep for long routes
+        int[] firsts = new int[64];
+        int[] lasts = new int[64];
+        double[] parentTolerances = new double[64];
+        int stackSize = 0;
+        firsts[0] = 0;
+        lasts[0] = count - 1;
+        parentTolerances[0] = Double.POSITIVE_INFINITY;
+        stackSize++;
+        while (stackSize > 0) {
+            stackSize--;
+            int first = firsts[stackSize];
+            int last = lasts[stackSize];
+            double parentTolerance = parentTolerances[stackSize];
+
+            int split = -1;
+            double maxDistance = -1;
+            for (int i = first + 1; i < last; i++) {
+                double distance = segmentDistance(xs[i], ys[i], xs[first], ys[first], xs[last], ys[last]);
+                if (distance > maxDistance) {
+                    maxDistance = distance;
+                    split = i;
+                }
+            }
+            if (split < 0) {
+                continue;
+            }
+            double tolerance = Math.min(maxDistance, parentTolerance);
+            tolerances[split] = tolerance;
+
+            if (stackSize + 2 > firsts.length) {
+                firsts = Arrays.copyOf(firsts, firsts.length * 2);
+                lasts = Arrays.copyOf(lasts, lasts.length * 2);
+                parentTolerances = Arrays.copyOf(parentTolerances, parentTolerances.length * 2);
+            }
+            if (split - first > 1) {
+                firsts[stackSize] = first;
+                lasts[stackSize] = split;
+                parentTolerances[stackSize] = tolerance;
+                stackSize++;
+            }
+            if (last - split > 1) {
+                firsts[stackSize] = split;
+                lasts[stackSize] = last;
+                parentTolerances[stackSize] = tolerance;
+                stackSize++;
+            }
+        }
+        return tolerances;
+    }
+
+    private static double segmentDistance(double x, double y, double x1, double y1, double x2, double y2) {
+        double dx = x2 - x1;
+        double dy = y2 - y1;
+        double lengthSquared = dx * dx + dy * dy;
+        double t = lengthSquared > 0 ? ((x - x1) * dx + (y - y1) * dy) / lengthSquared : 0;
+        t = Math.max(0, Math.min(1, t));
+        double px = x1 + t * dx - x;
+        double py = y1 + t * dy - y;
+        return Math.sqrt(px * px + py * py);
+    }
+
+}
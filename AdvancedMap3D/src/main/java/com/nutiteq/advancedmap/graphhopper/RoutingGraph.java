@@ -0,0 +1,163 @@
+package com.nutiteq.advancedmap.graphhopper;
+
+import com.graphhopper.routing.util.AllEdgesIterator;
+import com.graphhopper.routing.util.FlagEncoder;
+import com.graphhopper.storage.Graph;
+import com.graphhopper.util.EdgeSkipIterator;
+import com.graphhopper.util.Helper;
+
+/**
+ *
+ * Immutable in-memory copy of the road network of one vehicle, for searches outside of GraphHopper.
+ *
+ * Only original edges are copied, shortcuts of contraction hierarchies are skipped. Contraction also removes
+ * edges from higher to lower level nodes from the adjacency lists of the graph, so the arcs are collected from
+ * all edges instead. Arcs are kept per source node in compressed sparse rows, with travel time and distance.
+ *
+ * Edge distances of a graph with shortcuts are fastest weights (meters divided by km/h), otherwise meters.
+ * Node coordinates are copied once per graph, in the integer format of GraphHopper storage, and shared by the
+ * copies of all vehicles, see copyCoordinates(). So the copy can be used by any number of threads without locking the service.
+ *
+ */
+class RoutingGraph {
+    private static final double SPEED_CONVERSION = 3.6; // km/h to m/s
+
+    private final int nodeCount;
+    private final int[] lats;
+    private final int[] lons;
+    private final int[] firstArcs;
+    private final int[] arcTargets;
+    private final float[] arcTimes;
+    private final float[] arcDistances;
+
+    /**
+     * Copy node coordinates of a graph, for any number of vehicle copies. Caller must hold the lock of the service owning the graph.
+     *
+     * @return latitudes and longitudes, in the integer format of GraphHopper storage
+     */
+    static int[][] copyCoordinates(Graph graph) {
+        int nodeCount = graph.getNodes();
+        int[] lats = new int[nodeCount];
+        int[] lons = new int[nodeCount];
+        for (int node = 0; node < nodeCount; node++) {
+            lats[node] = Helper.degreeToInt(graph.getLatitude(node));
+            lons[node] = Helper.degreeToInt(graph.getLongitude(node));
+        }
+        return new int[][] { lats, lons };
+    }
+
+    /**
+     * Copy graph. Caller must hold the lock of the service owning the graph.
+     *
+     * @param graph
+     *          graph to copy
+     * @param coordinates
+     *          node coordinates from copyCoordinates(), not copied
+     * @param encoder
+     *          vehicle encoder, gives directions and speeds of the edges
+     * @param contractionHierarchies
+     *          true if edge distances are fastest weights of contraction hierarchies
+     */
+    RoutingGraph(Graph graph, int[][] coordinates, FlagEncoder encoder, boolean contractionHierarchies) {
+        nodeCount = graph.getNodes();
+        lats = coordinates[0];
+        lons = coordinates[1];
+
+        // first pass counts arcs per source node
+        firstArcs = new int[nodeCount + 1];
+        AllEdgesIterator edges = graph.getAllEdges();
+        while (edges.next()) {
+            int flags = edges.getFlags();
+            if (isOriginal(edges) && encoder.getSpeed(flags) > 0) {
+                if (encoder.isForward(flags)) {
+                    firstArcs[edges.getBaseNode() + 1]++;
+                }
+                if (encoder.isBackward(flags)) {
+                    firstArcs[edges.getAdjNode() + 1]++;
+                }
+            }
+        }
+        for (int node = 0; node < nodeCount; node++) {
+            firstArcs[node + 1] += firstArcs[node];
+        }
+
+        int arcCount = firstArcs[nodeCount];
+        arcTargets = new int[arcCount];
+        arcTimes = new float[arcCount];
+        arcDistances = new float[arcCount];
+        int[] nextArcs = new int[nodeCount];
+        System.arraycopy(firstArcs, 0, nextArcs, 0, nodeCount);
+        edges = graph.getAllEdges();
+        while (edges.next()) {
+            int flags = edges.getFlags();
+            int speed = encoder.getSpeed(flags);
+            if (!isOriginal(edges) || speed <= 0) {
+                continue;
+            }
+            double time;
+            double distance;
+            if (contractionHierarchies) {
+                time = edges.getDistance() * SPEED_CONVERSION;
+                distance = edges.getDistance() * speed;
+            } else {
+                time = edges.getDistance() * SPEED_CONVERSION / speed;
+                distance = edges.getDistance();
+            }
+            if (encoder.isForward(flags)) {
+                addArc(nextArcs, edges.getBaseNode(), edges.getAdjNode(), time, distance);
+            }
+            if (encoder.isBackward(flags)) {
+                addArc(nextArcs, edges.getAdjNode(), edges.getBaseNode(), time, distance);
+            }
+        }
+    }
+
+    int getNodeCount() {
+        return nodeCount;
+    }
+
+    double getLatitude(int node) {
+        return Helper.intToDegree(lats[node]);
+    }
+
+    double getLongitude(int node) {
+        return Helper.intToDegree(lons[node]);
+    }
+
+    /**
+     * Get index of the first arc starting from the node. Arcs of the node end before getFirstArc(node + 1).
+     */
+    int getFirstArc(int node) {
+        return firstArcs[node];
+    }
+
+    int getArcTarget(int arc) {
+        return arcTargets[arc];
+    }
+
+    /**
+     * Get travel time of the arc in seconds.
+     */
+    double getArcTime(int arc) {
+        return arcTimes[arc];
+    }
+
+    /**
+     * Get length of the arc in meters.
+     */
+    double getArcDistance(int arc) {
+        return arcDistances[arc];
+    }
+
+    private void addArc(int[] nextArcs, int from, int to, double time, double distance) {
+        int arc = nextArcs[from]++;
+        arcTargets[arc] = to;
+        arcTimes[arc] = (float) time;
+        arcDistances[arc] = (float) distance;
+    }
+
+    private static boolean isOriginal(AllEdgesIterator edges) {
+        return !(edges instanceof EdgeSkipIterator) || !((EdgeSkipIterator) edges).isShortcut();
+    }
+
+}
@@ -0,0 +1,241 @@
+package com.nutiteq.advancedmap.graphhopper;
+
+import gnu.trove.map.hash.TIntIntHashMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.graphhopper.routing.util.EncodingManager;
+import com.nutiteq.log.Log;
+
+/**
+ *
+ * Many-to-many distance and time matrix on the graph of a GraphHopperService.
+ *
+ * Each row is calculated with a single ShortestPathSearch, which stops when all targets are settled.
+ * Searches run on the RoutingGraph copy of the service, so contraction hierarchy graphs give exact results
+ * and the threads do not need the service lock. Rows are spread over a thread pool created for each calculation,
+ * each thread reuses its search arrays for all its rows. Results are returned as packed row-major arrays,
+ * without building route geometries.
+ *
+ */
+public class RoutingMatrix {
+    private static final int MAX_DEFAULT_THREADS = 4;
+
+    /**
+     * Calculated matrix. Value of row i and column j is at index i * columns + j.
+     * Unreachable cells and cells of points which could not be snapped to the graph are Double.POSITIVE_INFINITY.
+     */
+    public static class Result {
+        private final int rows;
+        private final int columns;
+        private final double[] distances;
+        private final double[] times;
+
+        Result(int rows, int columns) {
+            this.rows = rows;
+            this.columns = columns;
+            this.distances = new double[rows * columns];
+            this.times = new double[rows * columns];
+            Arrays.fill(distances, Double.POSITIVE_INFINITY);
+            Arrays.fill(times, Double.POSITIVE_INFINITY);
+        }
+
+        public int getRows() {
+            return rows;
+        }
+
+        public int getColumns() {
+            return columns;
+        }
+
+        /**
+         * Get packed distances in meters.
+         */
+        public double[] getDistances() {
+            return distances;
+        }
+
+        /**
+         * Get packed travel times in seconds.
+         */
+        public double[] getTimes() {
+            return times;
+        }
+
+        public double getDistance(int row, int column) {
+            return distances[row * columns + column];
+        }
+
+        public double getTime(int row, int column) {
+            return times[row * columns + column];
+        }
+    }
+
+    private final GraphHopperService service;
+    private final String vehicle;
+    private final int threadCount;
+    private long lastCalculationTime = -1;
+
+    /**
+     * Default constructor, uses car profile and one thread per CPU core, up to 4 threads.
+     *
+     * @param service
+     *          loaded routing service
+     */
+    public RoutingMatrix(GraphHopperService service) {
+        this(service, EncodingManager.CAR, Math.min(MAX_DEFAULT_THREADS, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Constructor with custom vehicle and thread count.
+     *
+     * @param service
+     *          loaded routing service
+     * @param vehicle
+     *          vehicle supported by the graph, e.g. EncodingManager.CAR
+     * @param threadCount
+     *          number of search threads, each needs 24 bytes per graph node
+     */
+    public RoutingMatrix(GraphHopperService service, String vehicle, int threadCount) {
+        if (!service.isLoaded()) {
+            throw new IllegalStateException("Graph not loaded");
+        }
+        this.service = service;
+        boolean supported;
+        synchronized (service) {
+            supported = service.getGraphHopper().getEncodingManager().supports(vehicle);
+        }
+        if (!supported) {
+            throw new IllegalArgumentException("Vehicle " + vehicle + " not supported by the graph");
+        }
+        this.vehicle = vehicle;
+        this.threadCount = threadCount;
+    }
+
+    /**
+     * Calculate distance and time from every origin to every destination. Must not be called from the UI thread.
+     *
+     * @param fromLats
+     *          latitudes of origins
+     * @param fromLons
+     *          longitudes of origins
+     * @param toLats
+     *          latitudes of destinations
+     * @param toLons
+     *          longitudes of destinations
+     * @return matrix with a row per origin and a column per destination
+     */
+    public Result calculate(double[] fromLats, double[] fromLons, double[] toLats, double[] toLons) {
+        long startTime = System.currentTimeMillis();
+        final int[] fromNodes = new int[fromLats.length];
+        for (int i = 0; i < fromNodes.length; i++) {
+            fromNodes[i] = service.snap(fromLats[i], fromLons[i]);
+        }
+
+        // duplicate destinations are searched once
+        final TIntIntHashMap targetIndices = new TIntIntHashMap();
+        final int[] columnTargets = new int[toLats.length];
+        for (int j = 0; j < columnTargets.length; j++) {
+            int node = service.snap(toLats[j], toLons[j]);
+            if (node < 0) {
+                columnTargets[j] = -1;
+            } else if (targetIndices.containsKey(node)) {
+                columnTargets[j] = targetIndices.get(node);
+            } else {
+                columnTargets[j] = targetIndices.size();
+                targetIndices.put(node, columnTargets[j]);
+            }
+        }
+
+        final Result result = new Result(fromNodes.length, columnTargets.length);
+        final RoutingGraph graph = service.getRoutingGraph(vehicle);
+        final AtomicInteger nextRow = new AtomicInteger();
+        int rowThreads = Math.max(1, Math.min(threadCount, fromNodes.length));
+        ExecutorService executor = Executors.newFixedThreadPool(rowThreads);
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int i = 0; i < rowThreads; i++) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    ShortestPathSearch search = new ShortestPathSearch(graph);
+                    double[] targetDistances = new double[targetIndices.size()];
+                    double[] targetTimes = new double[targetIndices.size()];
+                    int row;
+                    while ((row = nextRow.getAndIncrement()) < fromNodes.length) {
+                        if (fromNodes[row] >= 0) {
+                            searchRow(search, fromNodes[row], targetIndices, targetDistances, targetTimes);
+                            copyRow(result, row, columnTargets, targetDistances, targetTimes);
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        try {
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Matrix calculation interrupted", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Matrix calculation failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        long time = System.currentTimeMillis() - startTime;
+        synchronized (this) {
+            lastCalculationTime = time;
+        }
+        Log.debug("RoutingMatrix: " + fromNodes.length + "x" + columnTargets.length + " matrix in " + time + " ms, "
+                + rowThreads + " threads");
+        return result;
+    }
+
+    /**
+     * Get time of the last calculation, including snapping.
+     *
+     * @return time in milliseconds, -1 if nothing is calculated yet
+     */
+    public synchronized long getLastCalculationTime() {
+        return lastCalculationTime;
+    }
+
+    private static void searchRow(ShortestPathSearch search, int source, TIntIntHashMap targetIndices,
+            double[] targetDistances, double[] targetTimes) {
+        Arrays.fill(targetDistances, Double.POSITIVE_INFINITY);
+        Arrays.fill(targetTimes, Double.POSITIVE_INFINITY);
+        int remainingTargets = targetIndices.size();
+        search.start(source);
+        int node;
+        while (remainingTargets > 0 && (node = search.next(Double.POSITIVE_INFINITY)) >= 0) {
+            if (targetIndices.containsKey(node)) {
+                int target = targetIndices.get(node);
+                targetDistances[target] = search.getDistance(node);
+                targetTimes[target] = search.getTime(node);
+                remainingTargets--;
+            }
+        }
+    }
+
+    private static void copyRow(Result result, int row, int[] columnTargets, double[] targetDistances, double[] targetTimes) {
+        int offset = row * result.columns;
+        for (int j = 0; j < columnTargets.length; j++) {
+            int target = columnTargets[j];
+            if (target >= 0) {
+                result.distances[offset + j] = targetDistances[target];
+                result.times[offset + j] = targetTimes[target];
+            }
+        }
+    }
+
+}
@@ -0,0 +1,156 @@
+package com.nutiteq.advancedmap.graphhopper;
+
+import java.util.Arrays;
+
+/**
+ *
+ * One-to-many Dijkstra search on a RoutingGraph, settling nodes one by one in order of travel time.
+ * Search can be continued with a larger time limit after next() has returned -1.
+ *
+ * Search arrays are allocated once and reused for all searches of the instance: nodes are stamped with the
+ * search number instead of clearing the arrays, stamp 2 * search means visited, 2 * search + 1 settled.
+ * Needs 24 bytes per graph node. Instance must be used by one thread at a time, routing graph can be shared.
+ *
+ */
+class ShortestPathSearch {
+    private final RoutingGraph graph;
+    private final double[] distances;
+    private final double[] times;
+    private final int[] parents;
+    private final int[] stamps;
+    private int search;
+
+    private int[] heapNodes = new int[1024];
+    private double[] heapTimes = new double[1024];
+    private int heapSize;
+
+    ShortestPathSearch(RoutingGraph graph) {
+        this.graph = graph;
+        int nodeCount = graph.getNodeCount();
+        distances = new double[nodeCount];
+        times = new double[nodeCount];
+        parents = new int[nodeCount];
+        stamps = new int[nodeCount];
+    }
+
+    /**
+     * Start a new search.
+     */
+    void start(int source) {
+        search++;
+        heapSize = 0;
+        visit(source, -1, 0, 0);
+    }
+
+    /**
+     * Settle next node.
+     *
+     * @param maxTime
+     *          time limit in seconds
+     * @return settled node, -1 if no more nodes can be reached within the limit
+     */
+    int next(double maxTime) {
+        int visited = 2 * search;
+        int settled = visited + 1;
+        while (heapSize > 0) {
+            if (heapTimes[0] > maxTime) {
+                return -1;
+            }
+            int node = pop();
+            if (stamps[node] == settled) {
+                // outdated heap entry
+                continue;
+            }
+            stamps[node] = settled;
+
+            int lastArc = graph.getFirstArc(node + 1);
+            for (int arc = graph.getFirstArc(node); arc < lastArc; arc++) {
+                int adjNode = graph.getArcTarget(arc);
+                if (stamps[adjNode] == settled) {
+                    continue;
+                }
+                double adjTime = times[node] + graph.getArcTime(arc);
+                if (stamps[adjNode] != visited || adjTime < times[adjNode]) {
+                    visit(adjNode, node, distances[node] + graph.getArcDistance(arc), adjTime);
+                }
+            }
+            return node;
+        }
+        return -1;
+    }
+
+    /**
+     * Get distance of a node settled in the current search, in meters.
+     */
+    double getDistance(int node) {
+        return distances[node];
+    }
+
+    /**
+     * Get travel time of a node settled in the current search, in seconds.
+     */
+    double getTime(int node) {
+        return times[node];
+    }
+
+    /**
+     * Get previous node on the path to a node settled in the current search, -1 for the source.
+     */
+    int getParent(int node) {
+        return parents[node];
+    }
+
+    private void visit(int node, int parent, double distance, double time) {
+        stamps[node] = 2 * search;
+        parents[node] = parent;
+        distances[node] = distance;
+        times[node] = time;
+        push(node, time);
+    }
+
+    private void push(int node, double time) {
+        if (heapSize == heapNodes.length) {
+            heapNodes = Arrays.copyOf(heapNodes, heapSize * 2);
+            heapTimes = Arrays.copyOf(heapTimes, heapSize * 2);
+        }
+        int i = heapSize++;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heapTimes[parent] <= time) {
+                break;
+            }
+            heapNodes[i] = heapNodes[parent];
+            heapTimes[i] = heapTimes[parent];
+            i = parent;
+        }
+        heapNodes[i] = node;
+        heapTimes[i] = time;
+    }
+
+    private int pop() {
+        int top = heapNodes[0];
+        heapSize--;
+        int node = heapNodes[heapSize];
+        double time = heapTimes[heapSize];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && heapTimes[child + 1] < heapTimes[child]) {
+                child++;
+            }
+            if (time <= heapTimes[child]) {
+                break;
+            }
+            heapNodes[i] = heapNodes[child];
+            heapTimes[i] = heapTimes[child];
+            i = child;
+        }
+        heapNodes[i] = node;
+        heapTimes[i] = time;
+        return top;
+    }
+
+}
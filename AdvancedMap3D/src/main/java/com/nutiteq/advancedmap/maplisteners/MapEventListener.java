@@ -70,6 +70,7 @@ public class MapEventListener extends MapListener {
 	@Override
 	public void onMapMoved() {
 		// this method is also called from non-UI thread
+		activity.updateVisibleArea();
 	}
 
 	// Progress indication handlers
@@ -10,6 +10,7 @@ import android.net.Uri;
 import android.webkit.WebView;
 
 import com.nutiteq.MapView;
+import com.nutiteq.advancedmap.datasources.IndexedUTFGridDataSource;
 import com.nutiteq.components.MapPos;
 import com.nutiteq.components.MapTile;
 import com.nutiteq.components.MutableMapPos;
@@ -22,6 +23,8 @@ import com.nutiteq.ui.MapListener;
 import com.nutiteq.ui.ViewLabel;
 import com.nutiteq.utils.UiUtils;
 import com.nutiteq.utils.UtfGridHelper;
+import com.samskivert.mustache.Mustache;
+import com.samskivert.mustache.Template;
 
 /**
  * 
@@ -31,6 +34,9 @@ import com.nutiteq.utils.UtfGridHelper;
  * 
  * WebView is created and used inside Label, this enables HTML for labels.
  * 
+ * If the layer uses IndexedUTFGridDataSource, clicks are resolved from its decoded grids
+ * and the template is compiled only once.
+ * 
  * @author jaak
  *
  */
@@ -39,6 +45,7 @@ public class UTFGridLayerEventListener extends MapListener {
     private Activity activity;
     private UTFGridRasterLayer layer;
     private String template;
+    private Template compiledTemplate;
     private Marker clickMarker;
     private MapView mapView;
 
@@ -104,7 +111,13 @@ public class UTFGridLayerEventListener extends MapListener {
 
         Log.debug("clicked tile "+clickedTile+" pos:"+tilePos);
 
-        Map<String, String> toolTips =  layer.getUTFGridTooltips(clickedTile, tilePos, this.template);
+        Map<String, String> toolTips;
+        if(layer.getUTFGridDataSource() instanceof IndexedUTFGridDataSource
+                && ((IndexedUTFGridDataSource) layer.getUTFGridDataSource()).hasGrid(clickedTile)){
+            toolTips = ((IndexedUTFGridDataSource) layer.getUTFGridDataSource()).getTooltips(clickedTile, tilePos, this.compiledTemplate);
+        }else{
+            toolTips = layer.getUTFGridTooltips(clickedTile, tilePos, this.template);
+        }
         if(toolTips == null){
             return;
         }
@@ -148,6 +161,7 @@ public class UTFGridLayerEventListener extends MapListener {
 
     public void setTemplate(String template) {
         this.template = template;
+        this.compiledTemplate = template != null ? Mustache.compiler().compile(template) : null;
     }
 
     public UTFGridRasterLayer getLayer() {
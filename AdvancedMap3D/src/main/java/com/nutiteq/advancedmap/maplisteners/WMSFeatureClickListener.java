@@ -5,6 +5,7 @@ import android.os.Handler;
 import android.webkit.WebView;
 
 import com.nutiteq.MapView;
+import com.nutiteq.advancedmap.datasources.WMSFeatureInfoService;
 import com.nutiteq.components.MapPos;
 import com.nutiteq.components.MapTile;
 import com.nutiteq.components.MutableMapPos;
@@ -23,19 +24,27 @@ import com.nutiteq.utils.UiUtils;
  * HTTP request to server to get additional metadata as HTML. Then WebView is embed to a Label and shown
  * on map.
  * 
+ * Queries go through WMSFeatureInfoService, which cancels superseded queries and answers
+ * repeated clicks near the same location from its cache.
+ * 
  * @author jaak
  *
  */
 public class WMSFeatureClickListener extends MapListener {
 
-    private WMSRasterDataSource dataSource;
+    private WMSFeatureInfoService featureInfoService;
     private Marker clickMarker;
     private MapView mapView;
     private Handler handler = new Handler();
 
     // activity is often useful to handle click events
     public WMSFeatureClickListener(Activity activity, MapView mapView, WMSRasterDataSource dataSource, Marker clickMarker) {
-        this.dataSource = dataSource;
+        this(activity, mapView, new WMSFeatureInfoService(dataSource), clickMarker);
+    }
+
+    // use existing service, e.g. to keep its cache after device rotation
+    public WMSFeatureClickListener(Activity activity, MapView mapView, WMSFeatureInfoService featureInfoService, Marker clickMarker) {
+        this.featureInfoService = featureInfoService;
         this.clickMarker = clickMarker;
         this.mapView = mapView;
     }
@@ -64,25 +73,19 @@ public class WMSFeatureClickListener extends MapListener {
 
         Log.debug("clicked tile "+clickedTile+" pos:"+tilePos);
 
-        // perform network query to get feature info. This must be done in separate thread!
-        new Thread(new Runnable() {
+        // network query is done in background by the service, result comes in worker thread
+        featureInfoService.query(clickedTile, tilePos, new WMSFeatureInfoService.FeatureInfoCallback() {
             @Override
-            public void run() {
-                final String featureInfo = dataSource.getFeatureInfo(clickedTile, tilePos);
-
-                if (featureInfo == null) {
-                    return;
-                } else {
-                    // update marker in UI thread 
-                    handler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            updateMarker(new MapPos(x, y), featureInfo);
-                        }
-                    });
-                }
+            public void onFeatureInfo(final String featureInfo) {
+                // update marker in UI thread 
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        updateMarker(new MapPos(x, y), featureInfo);
+                    }
+                });
             }
-        }).start();
+        });
     }
 
     private void updateMarker(MapPos pos, String text) {
@@ -105,6 +108,10 @@ public class WMSFeatureClickListener extends MapListener {
     }
 
     public WMSRasterDataSource getDataSource() {
-        return dataSource;
+        return featureInfoService.getDataSource();
+    }
+
+    public WMSFeatureInfoService getFeatureInfoService() {
+        return featureInfoService;
     }
 }
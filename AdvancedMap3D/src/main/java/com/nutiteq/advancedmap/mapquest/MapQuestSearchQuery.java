@@ -1,5 +1,7 @@
 package com.nutiteq.advancedmap.mapquest;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 
@@ -14,6 +16,7 @@ import android.app.SearchManager;
 import android.content.Intent;
 import android.graphics.Bitmap;
 import android.os.Bundle;
+import android.os.Environment;
 import android.os.Handler;
 import android.os.Message;
 import android.provider.SearchRecentSuggestions;
@@ -24,6 +27,7 @@ import android.widget.Toast;
 
 import com.nutiteq.advancedmap.R;
 import com.nutiteq.advancedmap.activity.AddressSearchActivity;
+import com.nutiteq.advancedmap.geocode.OfflineGeocoder;
 import com.nutiteq.components.Color;
 import com.nutiteq.geometry.Marker;
 import com.nutiteq.log.Log;
@@ -41,7 +45,10 @@ public class MapQuestSearchQuery extends ListActivity implements SearchQueryResu
 {  
     private static final int SEARCH_DIALOG = 1;
 
-    private static final String MAPQUEST_KEY = "Fmjtd%7Cluub2qu82q%2C70%3Do5-961w1w";
+    static final String MAPQUEST_KEY = "Fmjtd%7Cluub2qu82q%2C70%3Do5-961w1w";
+
+    // index written by GeocodeIndexBuilder, relative to external storage
+    public static final String OFFLINE_INDEX_FILE = "mapxt/geocode.idx";
 
     // UI elements
     private ProgressDialog progressDialog;
@@ -119,10 +126,30 @@ public class MapQuestSearchQuery extends ListActivity implements SearchQueryResu
         // Do the actual search, write to searchResults field
          showDialog(SEARCH_DIALOG);
          
+         // offline index is used if available, it answers without network
+         OfflineGeocoder offlineGeocoder = getOfflineGeocoder();
+         if (offlineGeocoder != null) {
+             offlineGeocoder.geocode(queryString, this);
+             return;
+         }
+
          MapQuestGeocoder geocoder = new MapQuestGeocoder();
          geocoder.geocode(queryString, null, this, MAPQUEST_KEY);
     }
 
+    static OfflineGeocoder getOfflineGeocoder() {
+        File indexFile = new File(Environment.getExternalStorageDirectory(), OFFLINE_INDEX_FILE);
+        if (!indexFile.exists()) {
+            return null;
+        }
+        try {
+            return OfflineGeocoder.getInstance(indexFile);
+        } catch (IOException e) {
+            Log.error("could not open offline geocoder index " + indexFile + ": " + e.getMessage());
+            return null;
+        }
+    }
+
     // handler to send search results to UI thread
     final Handler handler = new Handler() {
         public void handleMessage(Message msg) {
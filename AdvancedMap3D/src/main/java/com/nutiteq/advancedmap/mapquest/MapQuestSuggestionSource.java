@@ -0,0 +1,45 @@
+package com.nutiteq.advancedmap.mapquest;
+
+import java.net.URLEncoder;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.nutiteq.advancedmap.geocode.SuggestionEngine;
+import com.nutiteq.utils.NetUtils;
+
+/**
+ *
+ * Synchronous MapQuest Open geocoding request for SuggestionEngine, same service as MapQuestGeocoder uses.
+ * Not a prefix search, so results are reused only for repeated queries.
+ *
+ */
+public class MapQuestSuggestionSource implements SuggestionEngine.Source {
+    private static final String GEOCODE_URL = "http://open.mapquestapi.com/geocoding/v1/address";
+
+    private final String key;
+
+    /**
+     * Default constructor.
+     *
+     * @param key
+     *          MapQuest API key, URL encoded
+     */
+    public MapQuestSuggestionSource(String key) {
+        this.key = key;
+    }
+
+    @Override
+    public JSONArray search(String query, int maxResults) throws Exception {
+        String url = GEOCODE_URL + "?location=" + URLEncoder.encode(query, "UTF-8") + "&maxResults=" + maxResults + "&key=" + key;
+        String response = NetUtils.downloadUrl(url, null, true, "UTF-8");
+        return new JSONObject(response).getJSONArray("results").getJSONObject(0).getJSONArray("locations");
+    }
+
+    @Override
+    public boolean isPrefixSearch() {
+        // MapQuest matches whole words and may return places not containing all query words
+        return false;
+    }
+
+}
@@ -1,12 +1,27 @@
 package com.nutiteq.advancedmap.mapquest;
 
+import java.util.List;
+
+import org.json.JSONArray;
+
+import android.app.SearchManager;
 import android.content.SearchRecentSuggestionsProvider;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.BaseColumns;
+
+import com.nutiteq.advancedmap.geocode.OfflineGeocoder;
+import com.nutiteq.advancedmap.geocode.SuggestionEngine;
 
 /**
  * To create a search suggestions provider using the built-in recent queries mode, 
  * simply extend SearchRecentSuggestionsProvider as shown here, and configure with
  * a unique authority and the mode you with to use.  For more information, see
  * {@link android.content.SearchRecentSuggestionsProvider}.
+ *
+ * Recent queries are extended with live geocoder suggestions while typing, from SuggestionEngine.
+ * Offline geocoder is used if its index is available, otherwise MapQuest.
  */
 public class SearchSuggestionProvider extends SearchRecentSuggestionsProvider {
     
@@ -23,6 +38,16 @@ public class SearchSuggestionProvider extends SearchRecentSuggestionsProvider {
      */
     final static int MODE = DATABASE_MODE_QUERIES;
     
+    private static final int MIN_QUERY_LENGTH = 2;
+    private static final int MAX_SUGGESTIONS = 10;
+
+    private static final String[] COLUMNS = new String[] { BaseColumns._ID, SearchManager.SUGGEST_COLUMN_TEXT_1,
+            SearchManager.SUGGEST_COLUMN_TEXT_2, SearchManager.SUGGEST_COLUMN_QUERY };
+
+    private static SuggestionEngine suggestionEngine;
+    private static double focusLat = Double.NaN;
+    private static double focusLon = Double.NaN;
+
     /**
      * The main job of the constructor is to call {@link #setupSuggestions(String, int)} with the
      * appropriate configuration values.
@@ -31,4 +56,66 @@ public class SearchSuggestionProvider extends SearchRecentSuggestionsProvider {
         super();
         setupSuggestions(AUTHORITY, MODE);
     }
+
+    /**
+     * Set map focus point, suggestions are ordered by distance from it.
+     */
+    public static synchronized void setFocusPoint(double lat, double lon) {
+        focusLat = lat;
+        focusLon = lon;
+        if (suggestionEngine != null) {
+            suggestionEngine.setFocusPoint(lat, lon);
+        }
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        Cursor recentQueries = super.query(uri, projection, selection, selectionArgs, sortOrder);
+        String query = selectionArgs != null && selectionArgs.length > 0 ? selectionArgs[0] : null;
+        if (query == null || query.trim().length() < MIN_QUERY_LENGTH) {
+            return recentQueries;
+        }
+
+        List<SuggestionEngine.Suggestion> suggestions = getSuggestionEngine().suggest(query);
+        MatrixCursor cursor = new MatrixCursor(COLUMNS);
+        int id = 0;
+        for (SuggestionEngine.Suggestion suggestion : suggestions) {
+            cursor.addRow(new Object[] { id++, suggestion.getText1(), suggestion.getText2(), suggestion.getText1() });
+        }
+        if (recentQueries != null) {
+            int textColumn = recentQueries.getColumnIndex(SearchManager.SUGGEST_COLUMN_TEXT_1);
+            int queryColumn = recentQueries.getColumnIndex(SearchManager.SUGGEST_COLUMN_QUERY);
+            while (textColumn >= 0 && recentQueries.moveToNext()) {
+                String text = recentQueries.getString(textColumn);
+                cursor.addRow(new Object[] { id++, text, null, queryColumn >= 0 ? recentQueries.getString(queryColumn) : text });
+            }
+            recentQueries.close();
+        }
+        return cursor;
+    }
+
+    private static synchronized SuggestionEngine getSuggestionEngine() {
+        if (suggestionEngine == null) {
+            final OfflineGeocoder offlineGeocoder = MapQuestSearchQuery.getOfflineGeocoder();
+            SuggestionEngine.Source source;
+            if (offlineGeocoder != null) {
+                source = new SuggestionEngine.Source() {
+                    @Override
+                    public JSONArray search(String query, int maxResults) {
+                        return offlineGeocoder.search(query, maxResults);
+                    }
+
+                    @Override
+                    public boolean isPrefixSearch() {
+                        return true;
+                    }
+                };
+            } else {
+                source = new MapQuestSuggestionSource(MapQuestSearchQuery.MAPQUEST_KEY);
+            }
+            suggestionEngine = new SuggestionEngine(source, MAX_SUGGESTIONS);
+            suggestionEngine.setFocusPoint(focusLat, focusLon);
+        }
+        return suggestionEngine;
+    }
 }
@@ -0,0 +1,80 @@
+package com.nutiteq.advancedmap.style;
+
+import java.util.Map;
+
+import com.nutiteq.components.TextureInfo;
+import com.nutiteq.style.LabelStyle;
+import com.nutiteq.ui.DefaultLabel;
+import com.nutiteq.ui.Label;
+
+/**
+ *
+ * Label listing feature attributes as "name: value" lines, rendered only when it is shown.
+ *
+ * Keeps just a reference to the attribute map of the feature. The description text and the DefaultLabel
+ * with its Paint are created when the label is first drawn, so features which are never selected
+ * cost a single small object instead of a text buffer, strings and a DefaultLabel each.
+ *
+ */
+public class AttributeLabel extends Label {
+    private final String title;
+    private final Map<String, String> attributes;
+    private final LabelStyle labelStyle;
+    private volatile DefaultLabel label;
+
+    /**
+     * Default constructor.
+     *
+     * @param title
+     *          label title
+     * @param attributes
+     *          feature attributes, read when the label is first drawn
+     * @param labelStyle
+     *          label style, null for the default style
+     */
+    public AttributeLabel(String title, Map<String, String> attributes, LabelStyle labelStyle) {
+        this.title = title;
+        this.attributes = attributes;
+        this.labelStyle = labelStyle;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    /**
+     * Get description text, built from the attributes on each call.
+     */
+    public String getDescription() {
+        StringBuilder description = new StringBuilder();
+        for (Map.Entry<String, String> entry : attributes.entrySet()) {
+            description.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+        }
+        return description.toString();
+    }
+
+    @Override
+    public TextureInfo drawMarkerLabel() {
+        return getLabel().drawMarkerLabel();
+    }
+
+    @Override
+    public float getMarkerLabelAlpha() {
+        return getLabel().getMarkerLabelAlpha();
+    }
+
+    private DefaultLabel getLabel() {
+        DefaultLabel label = this.label;
+        if (label == null) {
+            synchronized (this) {
+                label = this.label;
+                if (label == null) {
+                    label = labelStyle != null ? new DefaultLabel(title, getDescription(), labelStyle) : new DefaultLabel(title, getDescription());
+                    this.label = label;
+                }
+            }
+        }
+        return label;
+    }
+
+}
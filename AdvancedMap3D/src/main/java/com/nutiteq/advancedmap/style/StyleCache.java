@@ -0,0 +1,64 @@
+package com.nutiteq.advancedmap.style;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.graphics.Typeface;
+
+import com.nutiteq.style.LabelStyle;
+
+/**
+ *
+ * Registry of shared styles, so activities use one instance of each distinct style.
+ *
+ * Label style of feature attribute labels is built once per screen density. There are only a few densities,
+ * so the registry stays small; styles may reference bitmaps and fonts, call clear() when they are not needed anymore.
+ *
+ */
+public class StyleCache {
+    private static final StyleCache instance = new StyleCache();
+
+    private final Map<Float, LabelStyle> attributeLabelStyles = new HashMap<Float, LabelStyle>();
+
+    /**
+     * Get application wide registry.
+     */
+    public static StyleCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Get label style for feature attribute labels, shared for the same screen density.
+     *
+     * @param dpi
+     *          screen density scale, DisplayMetrics.density
+     */
+    public synchronized LabelStyle getAttributeLabelStyle(float dpi) {
+        LabelStyle labelStyle = attributeLabelStyles.get(dpi);
+        if (labelStyle == null) {
+            labelStyle = LabelStyle.builder()
+                    .setEdgePadding((int) (12 * dpi))
+                    .setLinePadding((int) (6 * dpi))
+                    .setTitleFont(Typeface.create("Arial", Typeface.BOLD), (int) (16 * dpi))
+                    .setDescriptionFont(Typeface.create("Arial", Typeface.NORMAL), (int) (13 * dpi))
+                    .build();
+            attributeLabelStyles.put(dpi, labelStyle);
+        }
+        return labelStyle;
+    }
+
+    /**
+     * Get number of registered styles.
+     */
+    public synchronized int size() {
+        return attributeLabelStyles.size();
+    }
+
+    /**
+     * Remove all registered styles.
+     */
+    public synchronized void clear() {
+        attributeLabelStyles.clear();
+    }
+
+}
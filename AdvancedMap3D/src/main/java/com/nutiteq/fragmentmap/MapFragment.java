@@ -5,6 +5,8 @@ import java.util.List;
 
 import com.nutiteq.MapView;
 import com.nutiteq.advancedmap.R;
+import com.nutiteq.advancedmap.clustering.ClusterMarkerLayer;
+import com.nutiteq.advancedmap.clustering.ClusteredMarkerDataSource;
 import com.nutiteq.components.Color;
 import com.nutiteq.components.Components;
 import com.nutiteq.components.MapPos;
@@ -35,6 +37,7 @@ import android.view.ViewGroup.LayoutParams;
  * the elements are loaded from external data source, in that case the list of layers has to be simply rebuild in OnCreateView.
  * When elements are added dynamically, then custom serialization is needed. In this example we have a custom marker layer
  * and to serialize/restore each marker, we keep its state in MarkerState class. Actual markers are created in onActivityCreated method.
+ * Markers are clustered with ClusterMarkerLayer, clicking a cluster zooms in until it splits.
  *  
  * @author mtehver
  *
@@ -54,7 +57,11 @@ public class MapFragment extends Fragment {
   private class MapEventListener extends MapListener {
     @Override
     public void onVectorElementClicked(VectorElement vectorElement, double x, double y, boolean longClick) {
-      if (vectorElement instanceof Marker) {
+      if (vectorElement.userData instanceof ClusteredMarkerDataSource.Cluster) {
+        ClusteredMarkerDataSource.Cluster cluster = (ClusteredMarkerDataSource.Cluster) vectorElement.userData;
+        mapView.setFocusPoint(((Marker) vectorElement).getMapPos(), 500);
+        mapView.zoom(cluster.getZoom() + 1 - mapView.getZoom(), 500);
+      } else if (vectorElement instanceof Marker) {
         selectMarker((Marker) vectorElement, true);
       }
     }
@@ -121,8 +128,10 @@ public class MapFragment extends Fragment {
     baseLayer = new RasterLayer(dataSource, 0);
     mapView.getLayers().setBaseLayer(baseLayer);
     
-    // Create marker layer
-    markerLayer = new MarkerLayer(baseLayer.getProjection());
+    // Create marker layer, nearby markers are shown as clusters
+    ClusteredMarkerDataSource markerDataSource = new ClusteredMarkerDataSource(baseLayer.getProjection(),
+        UnscaledBitmapLoader.decodeResource(getResources(), R.drawable.point), 0.6f);
+    markerLayer = new ClusterMarkerLayer(markerDataSource);
     mapView.getLayers().addLayer(markerLayer);
 
     // Styles for markers
@@ -232,7 +241,7 @@ public class MapFragment extends Fragment {
 
       // Create random markers, centered around focus point
       MapPos focusPoint = mapView.getFocusPoint();
-      for (int i = 0; i < 20; i++) {
+      for (int i = 0; i < 1000; i++) {
         MapPos mapPos = new MapPos(focusPoint.x + (Math.random() - 0.5f) * 100000, focusPoint.y + (Math.random() - 0.5f) * 100000);
         MapPos wgs84 = mapView.getLayers().getBaseProjection().toWgs84(mapPos.x, mapPos.y);
         String info = "Marker " + i + "\nWGS84 " + String.format("%.4f, %.4f", wgs84.x, wgs84.y);
@@ -240,11 +249,14 @@ public class MapFragment extends Fragment {
       }
     }
 
-    // Initialize marker layer based on markerStates list
+    // Initialize marker layer based on markerStates list, markers are added at once to build clusters only once
+    List<Marker> markers = new ArrayList<Marker>(markerStates.size());
     for (MarkerState markerState : markerStates) {
-      Marker marker = new Marker(markerState.mapPos, null, normalMarkerStyle, markerState);
-      markerLayer.add(marker);
-      if (markerState.selected) {
+      markers.add(new Marker(markerState.mapPos, null, normalMarkerStyle, markerState));
+    }
+    markerLayer.addAll(markers);
+    for (Marker marker : markers) {
+      if (((MarkerState) marker.userData).selected) {
         selectMarker(marker, false);
       }
     }